@@ -0,0 +1,466 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.bench;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+import com.minhtu.thrift.impl.CalculatorHandler;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TLatencyHistogram;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TSimpleServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TNonblockingUnixServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TUnixServerSocket;
+import org.apache.thrift.transport.TUnixSocket;
+
+/**
+ * Loopback load generator that runs the Calculator service against each server implementation and reports latency
+ * percentiles, so server and transport choices can be made from data.
+ *
+ * <p>
+ * Every connection issues {@code calculate} calls whose Work carries a comment of the configured payload size.
+ * Connections keep up to {@code depth} requests in flight by writing further frames before reading responses.
+ * </p>
+ *
+ * <ul>
+ * <li>Closed loop ({@code rate=0}): each response triggers the next request. Latency is measured from the actual send,
+ * and with {@code interval} set, stalls longer than the interval are back-filled to correct for coordinated
+ * omission.</li>
+ * <li>Open loop ({@code rate>0}): requests are scheduled at a fixed total rate regardless of responses, and latency is
+ * measured from the scheduled send time, so queueing in the client counts against the server as it would for real
+ * callers.</li>
+ * </ul>
+ *
+ * <p>
+ * Options are given as {@code name=value} arguments, e.g.
+ * {@code ant loadgen -Dloadgenargs="servers=hsha,threadedselector connections=32 depth=4 payload=1024 rate=20000"}:
+ * </p>
+ * <ul>
+ * <li>servers: comma separated list of simple, threadpool, hsha, nonblocking, threadedselector (default all)</li>
+ * <li>protocol: binary or compact (default binary)</li>
+ * <li>connections: concurrent client connections (default 8)</li>
+ * <li>depth: requests in flight per connection (default 1)</li>
+ * <li>payload: comment length in bytes (default 64)</li>
+ * <li>rate: total requests per second for open loop, 0 for closed loop (default 0)</li>
+ * <li>interval: expected microseconds between closed loop requests for coordinated omission correction (default 0)</li>
+ * <li>warmup, duration: seconds (default 5 and 20)</li>
+ * <li>port: port to run the servers on (default 9190)</li>
+ * <li>unixsocket: path of a unix domain socket to run the servers on instead of the port (Java 16 or later)</li>
+ * <li>workers: worker threads of the pooled servers (default 8)</li>
+ * <li>histogram: file prefix for the percentile distributions, one file per server (default: print to stdout)</li>
+ * <li>csv: file to append summary rows to (default: print to stdout)</li>
+ * </ul>
+ *
+ * <p>
+ * TSimpleServer serves one connection at a time, so it is always driven through a single connection.
+ * </p>
+ */
+public class LoadGenerator {
+
+    private static final String[] ALL_SERVERS = { "simple", "threadpool", "hsha", "nonblocking", "threadedselector" };
+
+    private static final String CSV_HEADER = "server,protocol,mode,connections,depth,payload,rate,requests,errors,"
+            + "throughput,mean_us,p50_us,p90_us,p99_us,p999_us,p9999_us,max_us";
+
+    private final Map<String, String> options;
+    private final String protocol;
+    private final int depth;
+    private final int payload;
+    private final long rate;
+    private final long intervalNanos;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int port;
+    private final String unixSocket;
+    private final int workers;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        protocol = option("protocol", "binary");
+        depth = Integer.parseInt(option("depth", "1"));
+        payload = Integer.parseInt(option("payload", "64"));
+        rate = Long.parseLong(option("rate", "0"));
+        intervalNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(option("interval", "0")));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "20")));
+        port = Integer.parseInt(option("port", "9190"));
+        unixSocket = options.get("unixsocket");
+        workers = Integer.parseInt(option("workers", "8"));
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+
+        String servers = generator.option("servers", null);
+        String[] serverNames = servers == null ? ALL_SERVERS : servers.split(",");
+
+        String csv = options.get("csv");
+        PrintStream csvOut = csv == null ? System.out : new PrintStream(new FileOutputStream(csv, true), true);
+        try {
+            if (csv == null || new File(csv).length() == 0) {
+                csvOut.println(CSV_HEADER);
+            }
+            for (String server : serverNames) {
+                generator.run(server.trim(), csvOut);
+            }
+        } finally {
+            if (csvOut != System.out) {
+                csvOut.close();
+            }
+        }
+    }
+
+    /**
+     * Runs one server type under load and writes its results.
+     */
+    public void run(String serverName, PrintStream csvOut) throws Exception {
+        int connections = Integer.parseInt(option("connections", "8"));
+        if ("simple".equals(serverName) && connections > 1) {
+            System.err.println("TSimpleServer serves a single connection, using 1 instead of " + connections);
+            connections = 1;
+        }
+
+        final TServer server = createServer(serverName);
+        Thread serveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        }, "loadgen-" + serverName);
+        serveThread.start();
+        while (!server.isServing()) {
+            Thread.sleep(10);
+        }
+
+        Connection[] clients = new Connection[connections];
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = new Connection(i, connections, start, measureFrom, end);
+            }
+            for (Connection client : clients) {
+                client.start();
+            }
+            for (Connection client : clients) {
+                client.join();
+            }
+        } finally {
+            for (Connection client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            server.stop();
+            serveThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        TLatencyHistogram histogram = new TLatencyHistogram();
+        long responses = 0;
+        long errors = 0;
+        for (Connection client : clients) {
+            histogram.add(client.histogram);
+            responses += client.responses;
+            errors += client.errors;
+        }
+        report(unixSocket == null ? serverName : serverName + "-uds", connections, histogram, responses, errors,
+                csvOut);
+    }
+
+    /**
+     * Writes the results of one run. The request count and throughput come from the responses actually received; the
+     * histogram also holds the samples back-filled by coordinated omission correction, so it only provides the latency
+     * distribution.
+     */
+    private void report(String serverName, int connections, TLatencyHistogram histogram, long responses,
+            long errors, PrintStream csvOut) throws IOException {
+        String prefix = options.get("histogram");
+        PrintStream histogramOut = prefix == null ? System.out : new PrintStream(new FileOutputStream(prefix + "-"
+                + serverName + ".hgrm"));
+        try {
+            if (prefix == null) {
+                histogramOut.println("# " + serverName + " latency in microseconds");
+            }
+            histogram.outputPercentileDistribution(histogramOut, 1000.0);
+        } finally {
+            if (histogramOut != System.out) {
+                histogramOut.close();
+            }
+        }
+
+        double seconds = durationNanos / 1e9;
+        csvOut.println(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f",
+                serverName, protocol, rate > 0 ? "open" : "closed", connections, depth, payload, rate,
+                responses, errors, responses / seconds, histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getValueAtPercentile(99.99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    private TProtocolFactory protocolFactory() {
+        if ("binary".equals(protocol)) {
+            return new TBinaryProtocol.Factory();
+        } else if ("compact".equals(protocol)) {
+            return new TCompactProtocol.Factory();
+        }
+        throw new IllegalArgumentException("Unknown protocol " + protocol);
+    }
+
+    private TServer createServer(String name) throws TTransportException {
+        Calculator.Processor<CalculatorHandler> processor = new Calculator.Processor<CalculatorHandler>(
+                new CalculatorHandler());
+        TFramedTransport.Factory framed = new TFramedTransport.Factory();
+        if ("simple".equals(name)) {
+            return new TSimpleServer(new TServer.Args(serverTransport()).processor(processor)
+                    .transportFactory(framed).protocolFactory(protocolFactory()));
+        } else if ("threadpool".equals(name)) {
+            return new TThreadPoolServer(new TThreadPoolServer.Args(serverTransport()).minWorkerThreads(workers)
+                    .processor(processor).transportFactory(framed).protocolFactory(protocolFactory()));
+        } else if ("hsha".equals(name)) {
+            return new THsHaServer(new THsHaServer.Args(nonblockingServerTransport()).workerThreads(workers)
+                    .processor(processor).protocolFactory(protocolFactory()));
+        } else if ("nonblocking".equals(name)) {
+            return new TNonblockingServer(new TNonblockingServer.Args(nonblockingServerTransport()).processor(
+                    processor).protocolFactory(protocolFactory()));
+        } else if ("threadedselector".equals(name)) {
+            return new TThreadedSelectorServer(new TThreadedSelectorServer.Args(nonblockingServerTransport())
+                    .workerThreads(workers).processor(processor).protocolFactory(protocolFactory()));
+        }
+        throw new IllegalArgumentException("Unknown server " + name);
+    }
+
+    private TServerTransport serverTransport() throws TTransportException {
+        return unixSocket == null ? new TServerSocket(port) : new TUnixServerSocket(unixSocket);
+    }
+
+    private TNonblockingServerTransport nonblockingServerTransport() throws TTransportException {
+        return unixSocket == null ? new TNonblockingServerSocket(port) : new TNonblockingUnixServerSocket(unixSocket);
+    }
+
+    /**
+     * One client connection. A sender thread writes requests and a receiver thread reads the responses, which arrive in
+     * order, so that up to {@code depth} requests can be in flight.
+     */
+    private class Connection {
+        private final TTransport socket;
+        private final TTransport outTrans;
+        private final TTransport inTrans;
+        private final TProtocol outProt;
+        private final TProtocol inProt;
+        private final Calculator.calculate_args args;
+        private final Calculator.calculate_result result = new Calculator.calculate_result();
+
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final long scheduleInterval;
+
+        // send times by sequence number, in slots of a ring as large as the pipeline
+        private final AtomicLongArray sendTimes = new AtomicLongArray(depth);
+        private final Semaphore inFlight = new Semaphore(depth);
+        private volatile int sent;
+
+        final TLatencyHistogram histogram = new TLatencyHistogram();
+        // responses received in the measured window, without the samples the histogram back-fills
+        long responses;
+        long errors;
+
+        private final Thread sender;
+        private final Thread receiver;
+
+        Connection(int id, int connections, long start, long measureFrom, long end) throws TTransportException {
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            // spread the total open loop rate evenly over the connections
+            this.scheduleInterval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+
+            socket = unixSocket == null ? new TSocket("127.0.0.1", port, (int) TimeUnit.SECONDS.toMillis(30))
+                    : new TUnixSocket(unixSocket);
+            socket.open();
+            // separate framing for each direction so sender and receiver never share buffers
+            outTrans = new TFramedTransport(socket);
+            inTrans = new TFramedTransport(socket);
+            outProt = protocolFactory().getProtocol(outTrans);
+            inProt = protocolFactory().getProtocol(inTrans);
+
+            char[] comment = new char[payload];
+            for (int i = 0; i < payload; i++) {
+                comment[i] = (char) ('a' + i % 26);
+            }
+            Work work = new Work(6, 7, Operation.MULTIPLY);
+            work.setComment(new String(comment));
+            args = new Calculator.calculate_args(id, work);
+
+            sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, "loadgen-sender-" + id);
+            receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "loadgen-receiver-" + id);
+        }
+
+        void start() {
+            receiver.start();
+            sender.start();
+        }
+
+        void join() throws InterruptedException {
+            sender.join();
+            receiver.join();
+        }
+
+        void close() {
+            socket.close();
+        }
+
+        private void send() {
+            try {
+                for (int seq = 0;; seq++) {
+                    long sendTime;
+                    if (scheduleInterval > 0) {
+                        // open loop: the request is due at its scheduled time whether or not the pipeline has room
+                        sendTime = start + seq * scheduleInterval;
+                        long now;
+                        while ((now = System.nanoTime()) < sendTime) {
+                            LockSupport.parkNanos(sendTime - now);
+                        }
+                        if (sendTime >= end) {
+                            break;
+                        }
+                        inFlight.acquire();
+                    } else {
+                        inFlight.acquire();
+                        sendTime = System.nanoTime();
+                        if (sendTime >= end) {
+                            inFlight.release();
+                            break;
+                        }
+                    }
+                    sendTimes.set(seq % depth, sendTime);
+                    outProt.writeMessageBegin(new TMessage("calculate", TMessageType.CALL, seq));
+                    args.write(outProt);
+                    outProt.writeMessageEnd();
+                    outTrans.flush();
+                    sent = seq + 1;
+                    LockSupport.unpark(receiver);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (TException e) {
+                System.err.println("Sender failed: " + e);
+            } finally {
+                sent = -sent - 1;
+                LockSupport.unpark(receiver);
+            }
+        }
+
+        private void receive() {
+            try {
+                for (int seq = 0;; seq++) {
+                    // the sender stores -(sent + 1) once it is done
+                    int s;
+                    while ((s = sent) >= 0 && seq >= s) {
+                        LockSupport.park(this);
+                    }
+                    if (s < 0 && seq >= -s - 1) {
+                        break;
+                    }
+                    TMessage msg = inProt.readMessageBegin();
+                    if (msg.type == TMessageType.EXCEPTION) {
+                        TApplicationException.read(inProt);
+                        errors++;
+                    } else {
+                        result.read(inProt);
+                    }
+                    inProt.readMessageEnd();
+                    long now = System.nanoTime();
+                    long sendTime = sendTimes.get(seq % depth);
+                    inFlight.release();
+                    if (msg.seqid != seq) {
+                        errors++;
+                    }
+                    if (sendTime >= measureFrom) {
+                        responses++;
+                        histogram.recordValueWithExpectedInterval(now - sendTime, rate > 0 ? 0 : intervalNanos);
+                    }
+                }
+            } catch (TException e) {
+                System.err.println("Receiver failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.bench;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TJSONProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TTupleProtocol;
+import org.apache.thrift.transport.TFastFramedTransport;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serialization and deserialization throughput and latency for every combination of protocol, transport and
+ * payload size. Writes go through a TIOStreamTransport over a reset TByteArrayOutputStream and reads come from a
+ * TMemoryInputTransport, the same in-memory setup the nonblocking servers use for each request.
+ *
+ * <p>
+ * Run with {@code ant bench -Dbenchargs="ProtocolBenchmark -prof gc"} to include allocation rates, or narrow the
+ * matrix with JMH's {@code -p protocol=compact -p transport=framed}.
+ * </p>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    @Param({ "binary", "compact", "json", "tuple" })
+    public String protocol;
+
+    @Param({ "memory", "framed", "fastframed" })
+    public String transport;
+
+    /**
+     * small: a SharedStruct with a short value. medium: a Work with a 1 KB comment. large: calculate args wrapping a
+     * Work with a 64 KB comment.
+     */
+    @Param({ "small", "medium", "large" })
+    public String payload;
+
+    private TBase<?, ?> value;
+    private TBase<?, ?> target;
+
+    private TByteArrayOutputStream outBytes;
+    private TTransport outTrans;
+    private TProtocol outProt;
+
+    private byte[] serialized;
+    private TMemoryInputTransport inBase;
+    private TTransport inTrans;
+    private TProtocol inProt;
+
+    @Setup
+    public void setup() throws TException {
+        value = createPayload(payload);
+        target = value.deepCopy();
+        target.clear();
+
+        TProtocolFactory protocolFactory = createProtocolFactory(protocol);
+
+        outBytes = new TByteArrayOutputStream();
+        outTrans = wrap(new TIOStreamTransport(outBytes), transport);
+        outProt = protocolFactory.getProtocol(outTrans);
+
+        serialize();
+        serialized = Arrays.copyOf(outBytes.get(), outBytes.len());
+
+        inBase = new TMemoryInputTransport();
+        inTrans = wrap(inBase, transport);
+        inProt = protocolFactory.getProtocol(inTrans);
+
+        // don't report numbers for a combination that doesn't round trip
+        if (!value.equals(deserialize()) || !value.equals(roundTrip())) {
+            throw new IllegalStateException(protocol + " over " + transport + " does not round trip the " + payload
+                    + " payload");
+        }
+    }
+
+    static TBase<?, ?> createPayload(String payload) {
+        if ("small".equals(payload)) {
+            SharedStruct shared = new SharedStruct();
+            shared.setKey(42);
+            shared.setValue("a small value...");
+            return shared;
+        } else if ("medium".equals(payload)) {
+            return createWork(1024);
+        } else if ("large".equals(payload)) {
+            return new Calculator.calculate_args(7, createWork(64 * 1024));
+        }
+        throw new IllegalArgumentException("Unknown payload " + payload);
+    }
+
+    private static Work createWork(int commentLength) {
+        Work work = new Work(1, 2, Operation.DIVIDE);
+        char[] comment = new char[commentLength];
+        for (int i = 0; i < commentLength; i++) {
+            comment[i] = (char) ('a' + i % 26);
+        }
+        work.setComment(new String(comment));
+        return work;
+    }
+
+    static TProtocolFactory createProtocolFactory(String protocol) {
+        if ("binary".equals(protocol)) {
+            return new TBinaryProtocol.Factory();
+        } else if ("compact".equals(protocol)) {
+            return new TCompactProtocol.Factory();
+        } else if ("json".equals(protocol)) {
+            return new TJSONProtocol.Factory();
+        } else if ("tuple".equals(protocol)) {
+            return new TTupleProtocol.Factory();
+        }
+        throw new IllegalArgumentException("Unknown protocol " + protocol);
+    }
+
+    static TTransport wrap(TTransport base, String transport) {
+        if ("memory".equals(transport)) {
+            return base;
+        } else if ("framed".equals(transport)) {
+            return new TFramedTransport(base);
+        } else if ("fastframed".equals(transport)) {
+            return new TFastFramedTransport(base);
+        }
+        throw new IllegalArgumentException("Unknown transport " + transport);
+    }
+
+    @Benchmark
+    public int serialize() throws TException {
+        outBytes.reset();
+        value.write(outProt);
+        outTrans.flush();
+        return outBytes.len();
+    }
+
+    @Benchmark
+    public TBase<?, ?> deserialize() throws TException {
+        inBase.reset(serialized);
+        target.clear();
+        target.read(inProt);
+        return target;
+    }
+
+    @Benchmark
+    public TBase<?, ?> roundTrip() throws TException {
+        serialize();
+        inBase.reset(outBytes.get(), 0, outBytes.len());
+        target.clear();
+        target.read(inProt);
+        return target;
+    }
+}
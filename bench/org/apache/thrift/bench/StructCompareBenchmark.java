@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.bench;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TBaseHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures equals, hashCode and compareTo of generated structs and of the container comparisons in
+ * {@link TBaseHelper}. Run with {@code ant bench -Dbenchargs="StructCompareBenchmark -prof gc"} to see allocation
+ * rates as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StructCompareBenchmark {
+
+    /**
+     * Number of elements in the container fields being compared.
+     */
+    @Param({ "10", "1000" })
+    public int size;
+
+    private Work work;
+    private Work equalWork;
+    private Work otherWork;
+
+    private SharedStruct shared;
+    private SharedStruct equalShared;
+    private SharedStruct otherShared;
+
+    private Set<Work> workSet;
+    private Set<Work> equalWorkSet;
+    private Set<Work> otherWorkSet;
+
+    private Map<Integer, SharedStruct> sharedMap;
+    private Map<Integer, SharedStruct> equalSharedMap;
+    private Map<Integer, SharedStruct> otherSharedMap;
+
+    @Setup
+    public void setup() {
+        work = newWork(1, 2, "compute something");
+        equalWork = newWork(1, 2, "compute something");
+        otherWork = newWork(1, 2, "compute something else");
+
+        shared = newShared(7, "seven");
+        equalShared = newShared(7, "seven");
+        otherShared = newShared(7, "eight");
+
+        Random random = new Random(42);
+        workSet = new HashSet<Work>();
+        sharedMap = new HashMap<Integer, SharedStruct>();
+        for (int i = 0; i < size; i++) {
+            workSet.add(newWork(random.nextInt(), random.nextInt(), "w" + i));
+            sharedMap.put(i, newShared(random.nextInt(), "s" + i));
+        }
+        equalWorkSet = new HashSet<Work>(workSet);
+        equalSharedMap = new HashMap<Integer, SharedStruct>(sharedMap);
+
+        // differ in a single element, the worst case for an ordered comparison
+        otherWorkSet = new HashSet<Work>(workSet);
+        otherWorkSet.remove(workSet.iterator().next());
+        otherWorkSet.add(newWork(0, 0, "other"));
+        otherSharedMap = new HashMap<Integer, SharedStruct>(sharedMap);
+        otherSharedMap.put(size / 2, newShared(0, "other"));
+    }
+
+    private static Work newWork(int num1, int num2, String comment) {
+        Work work = new Work(num1, num2, Operation.MULTIPLY);
+        work.setComment(comment);
+        return work;
+    }
+
+    private static SharedStruct newShared(int key, String value) {
+        SharedStruct shared = new SharedStruct();
+        shared.setKey(key);
+        shared.setValue(value);
+        return shared;
+    }
+
+    @Benchmark
+    public boolean workEquals() {
+        return work.equals(equalWork);
+    }
+
+    @Benchmark
+    public int workHashCode() {
+        return work.hashCode();
+    }
+
+    @Benchmark
+    public int workCompareTo() {
+        return work.compareTo(otherWork);
+    }
+
+    @Benchmark
+    public boolean sharedStructEquals() {
+        return shared.equals(equalShared);
+    }
+
+    @Benchmark
+    public int sharedStructHashCode() {
+        return shared.hashCode();
+    }
+
+    @Benchmark
+    public int sharedStructCompareTo() {
+        return shared.compareTo(otherShared);
+    }
+
+    @Benchmark
+    public int setCompareToEqual() {
+        return TBaseHelper.compareTo(workSet, equalWorkSet);
+    }
+
+    @Benchmark
+    public int setCompareToDifferent() {
+        return TBaseHelper.compareTo(workSet, otherWorkSet);
+    }
+
+    @Benchmark
+    public int mapCompareToEqual() {
+        return TBaseHelper.compareTo(sharedMap, equalSharedMap);
+    }
+
+    @Benchmark
+    public int mapCompareToDifferent() {
+        return TBaseHelper.compareTo(sharedMap, otherSharedMap);
+    }
+
+    @Benchmark
+    public int setHashCode() {
+        return workSet.hashCode();
+    }
+}
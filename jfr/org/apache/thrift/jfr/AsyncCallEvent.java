@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.apache.thrift.AsyncCall")
+@Label("Async Client Call")
+@Category("Thrift")
+@Description("An asynchronous Thrift client call, committed on the client manager's selector thread once it completed")
+@StackTrace(false)
+public class AsyncCallEvent extends Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("Sequence Id")
+    public long sequenceId;
+
+    @Label("Request Bytes")
+    @DataAmount
+    public long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount
+    public long responseBytes;
+
+    @Label("Send Time")
+    @Description("Time from creating the call until the request had been written")
+    @Timespan
+    public long sendTime;
+
+    @Label("Total Time")
+    @Timespan
+    public long totalTime;
+
+    @Label("Error")
+    public String error;
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.apache.thrift.ClientReceive")
+@Label("Client Receive")
+@Category("Thrift")
+@Description("A synchronous Thrift client waiting for and reading the response to a call")
+@StackTrace(false)
+public class ClientReceiveEvent extends Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("Sequence Id")
+    public int seqid;
+
+    @Label("Receive Time")
+    @Description("Time from starting to read the response until it was read, including the wait for the server")
+    @Timespan
+    public long receiveTime;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import org.apache.thrift.TCallTimings;
+import org.apache.thrift.TCallTimings.Phase;
+import org.apache.thrift.TEventRecorder;
+
+/**
+ * Turns Thrift events into JDK Flight Recorder events. After {@link #register()} the recorder is installed while a
+ * recording is running and removed when none is, so Thrift does not take any timings outside of recordings.
+ *
+ * <p>
+ * Thrift reports what it timed once the call, handshake or select loop pass is over, so the events are created and
+ * committed in one go: they have no JFR duration of their own and their start time is the moment they were committed,
+ * which places them at the end of what they describe in timeline views. Their durations are in the {@code *Time}
+ * fields. For the same reason a {@code threshold} setting on these events drops all of them rather than filtering out
+ * the fast ones; filter on the time fields when analysing the recording instead.
+ * </p>
+ */
+public class JfrEventRecorder extends TEventRecorder {
+
+    private static final JfrEventRecorder INSTANCE = new JfrEventRecorder();
+
+    private static boolean registered = false;
+
+    /**
+     * Starts following the state of the flight recorder. Calling it more than once has no further effect.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update();
+            }
+        });
+        if (FlightRecorder.isInitialized()) {
+            update();
+        }
+    }
+
+    private static synchronized void update() {
+        boolean running = false;
+        for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+            if (recording.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        TEventRecorder current = TEventRecorder.getInstance();
+        if (running && current == null) {
+            TEventRecorder.setInstance(INSTANCE);
+        } else if (!running && current == INSTANCE) {
+            TEventRecorder.setInstance(null);
+        }
+    }
+
+    @Override
+    public void serverCallCompleted(TCallTimings timings) {
+        ServerCallEvent event = new ServerCallEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = timings.getMethodName();
+        event.seqid = timings.getSeqid();
+        event.bytesIn = timings.getBytesIn();
+        event.bytesOut = timings.getBytesOut();
+        event.readTime = timings.getNanos(Phase.READ);
+        event.queueTime = timings.getNanos(Phase.QUEUE);
+        event.decodeTime = timings.getNanos(Phase.DECODE);
+        event.handlerTime = timings.getNanos(Phase.HANDLER);
+        event.encodeTime = timings.getNanos(Phase.ENCODE);
+        event.writeTime = timings.getNanos(Phase.WRITE);
+        event.totalTime = timings.getNanos(Phase.TOTAL);
+        event.commit();
+    }
+
+    @Override
+    public void clientSendCompleted(String methodName, int seqid, long startNanos, long endNanos) {
+        ClientSendEvent event = new ClientSendEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = methodName;
+        event.seqid = seqid;
+        event.sendTime = endNanos - startNanos;
+        event.commit();
+    }
+
+    @Override
+    public void clientReceiveCompleted(String methodName, int seqid, long startNanos, long endNanos, boolean success) {
+        ClientReceiveEvent event = new ClientReceiveEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = methodName;
+        event.seqid = seqid;
+        event.receiveTime = endNanos - startNanos;
+        event.success = success;
+        event.commit();
+    }
+
+    @Override
+    public void asyncCallCompleted(String methodName, long sequenceId, long startNanos, long requestSentNanos,
+            long endNanos, int requestBytes, int responseBytes, Exception error) {
+        AsyncCallEvent event = new AsyncCallEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = methodName;
+        event.sequenceId = sequenceId;
+        event.requestBytes = requestBytes;
+        event.responseBytes = responseBytes;
+        event.sendTime = requestSentNanos == 0 ? 0 : requestSentNanos - startNanos;
+        event.totalTime = endNanos - startNanos;
+        event.error = error == null ? null : error.toString();
+        event.commit();
+    }
+
+    @Override
+    public void selectCompleted(String threadName, int selectedKeys, long selectStartNanos, long selectEndNanos,
+            long processEndNanos) {
+        SelectLoopEvent event = new SelectLoopEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.selectedKeys = selectedKeys;
+        event.blockedTime = selectEndNanos - selectStartNanos;
+        event.processingTime = processEndNanos - selectEndNanos;
+        event.commit();
+    }
+
+    @Override
+    public void tlsHandshakeCompleted(String host, int port, long startNanos, long endNanos, boolean resumed,
+            Exception error) {
+        TlsHandshakeEvent event = new TlsHandshakeEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.host = host;
+        event.port = port;
+        event.resumed = resumed;
+        event.handshakeTime = endNanos - startNanos;
+        event.error = error == null ? null : error.toString();
+        event.commit();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emitted for every pass of a selector loop, so it is disabled unless turned on in the recording settings.
+ */
+@Name("org.apache.thrift.SelectLoop")
+@Label("Select Loop")
+@Category("Thrift")
+@Description("One pass of a Thrift selector thread through select() and the selected keys")
+@Enabled(false)
+@StackTrace(false)
+public class SelectLoopEvent extends Event {
+
+    @Label("Selected Keys")
+    public int selectedKeys;
+
+    @Label("Blocked Time")
+    @Timespan
+    public long blockedTime;
+
+    @Label("Processing Time")
+    @Timespan
+    public long processingTime;
+}
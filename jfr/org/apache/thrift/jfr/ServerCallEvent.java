@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.apache.thrift.ServerCall")
+@Label("Server Call")
+@Category("Thrift")
+@Description("A call handled by a Thrift server, committed once the response has been written")
+@StackTrace(false)
+public class ServerCallEvent extends Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("Sequence Id")
+    public int seqid;
+
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+
+    @Label("Read Time")
+    @Timespan
+    public long readTime;
+
+    @Label("Queue Time")
+    @Timespan
+    public long queueTime;
+
+    @Label("Decode Time")
+    @Timespan
+    public long decodeTime;
+
+    @Label("Handler Time")
+    @Timespan
+    public long handlerTime;
+
+    @Label("Encode Time")
+    @Timespan
+    public long encodeTime;
+
+    @Label("Write Time")
+    @Timespan
+    public long writeTime;
+
+    @Label("Total Time")
+    @Timespan
+    public long totalTime;
+}
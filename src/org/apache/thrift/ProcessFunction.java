@@ -7,6 +7,9 @@ import org.apache.thrift.protocol.TMessage;
 import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,14 +18,74 @@ public abstract class ProcessFunction<I, T extends TBase> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProcessFunction.class.getName());
 
+    private volatile boolean reuseArgs = false;
+    private final ThreadLocal<T> threadArgs = new ThreadLocal<T>();
+
+    private volatile TSlowCallLog slowCallLog = null;
+
     public ProcessFunction(String methodName) {
         this.methodName = methodName;
     }
 
     public final void process(int seqid, TProtocol iprot, TProtocol oprot, I iface) throws TException {
-        T args = getEmptyArgsInstance();
+        TSlowCallLog slowLog = slowCallLog;
+        TCallTimings timings = TCallTimings.current();
+        if (timings == null && slowLog != null) {
+            timings = slowLog.getThreadTimings();
+        }
+        if (timings != null) {
+            timings.markProcessStart(getMethodName(), seqid);
+        }
+
+        TTransport in = null;
+        byte[] buffer = null;
+        int argsStart = -1;
+        if (slowLog != null) {
+            in = iprot.getTransport();
+            buffer = in.getBuffer();
+            argsStart = buffer == null ? -1 : in.getBufferPosition();
+        }
+
+        T args = getArgsInstance();
+        try {
+            process(seqid, iprot, oprot, iface, args, timings);
+        } finally {
+            if (timings != null) {
+                timings.markProcessEnd();
+            }
+            if (slowLog != null) {
+                slowLog.callCompleted(getMethodName(), seqid, args, in, buffer, argsStart, timings);
+            }
+        }
+    }
+
+    private void process(int seqid, TProtocol iprot, TProtocol oprot, I iface, T args, TCallTimings timings)
+            throws TException {
+        TDeadline deadline = TDeadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            // the client has given up on the call, don't bother decoding or handling it
+            TProtocolUtil.skip(iprot, TType.STRUCT);
+            iprot.readMessageEnd();
+            if (args == threadArgs.get()) {
+                // don't leave the previous call's values for the slow call log
+                args.clear();
+            }
+            LOGGER.debug("Dropping call to {} whose deadline has passed", getMethodName());
+            if (!isOneway()) {
+                TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR, "Deadline exceeded before processing " + getMethodName());
+                oprot.writeMessageBegin(new TMessage(getMethodName(), TMessageType.EXCEPTION, seqid));
+                x.write(oprot);
+                oprot.writeMessageEnd();
+                oprot.getTransport().flush();
+            }
+            return;
+        }
         try {
-            args.read(iprot);
+            if (args == threadArgs.get()) {
+                TStructRefiller.read(args, iprot);
+            } else {
+                args.read(iprot);
+            }
         } catch (TProtocolException e) {
             iprot.readMessageEnd();
             TApplicationException x = new TApplicationException(TApplicationException.PROTOCOL_ERROR, e.getMessage());
@@ -33,6 +96,9 @@ public abstract class ProcessFunction<I, T extends TBase> {
             return;
         }
         iprot.readMessageEnd();
+        if (timings != null) {
+            timings.markDecodeEnd();
+        }
         TBase result = null;
 
         try {
@@ -46,6 +112,9 @@ public abstract class ProcessFunction<I, T extends TBase> {
             oprot.getTransport().flush();
             return;
         }
+        if (timings != null) {
+            timings.markHandlerEnd();
+        }
 
         if (!isOneway()) {
             oprot.writeMessageBegin(new TMessage(getMethodName(), TMessageType.REPLY, seqid));
@@ -64,4 +133,45 @@ public abstract class ProcessFunction<I, T extends TBase> {
     public String getMethodName() {
         return methodName;
     }
+
+    /**
+     * Enables or disables reuse of args instances. When enabled, every thread keeps one args instance that each call
+     * is read into with {@link TStructRefiller}, so the structs and containers inside it are refilled rather than
+     * allocated again. Handlers must then not keep the args, nor any struct or container reached from them, past the
+     * call that received them.
+     */
+    public void setReuseArgs(boolean reuseArgs) {
+        this.reuseArgs = reuseArgs;
+    }
+
+    public boolean isReuseArgs() {
+        return reuseArgs;
+    }
+
+    /**
+     * Records calls to this method that exceed their threshold in the given log, or stops recording if null.
+     */
+    public void setSlowCallLog(TSlowCallLog slowCallLog) {
+        this.slowCallLog = slowCallLog;
+    }
+
+    public TSlowCallLog getSlowCallLog() {
+        return slowCallLog;
+    }
+
+    /**
+     * Returns the args instance to read the next call into: a new one, or the per-thread instance still holding the
+     * previous call when reuse is enabled.
+     */
+    protected T getArgsInstance() {
+        if (!reuseArgs) {
+            return getEmptyArgsInstance();
+        }
+        T args = threadArgs.get();
+        if (args == null) {
+            args = getEmptyArgsInstance();
+            threadArgs.set(args);
+        }
+        return args;
+    }
 }
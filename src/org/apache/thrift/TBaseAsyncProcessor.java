@@ -50,6 +50,10 @@ public class TBaseAsyncProcessor<I> implements TProcessor {
         // Find processing function
         final TMessage msg = in.readMessageBegin();
         AsyncProcessFunction fn = processMap.get(msg.name);
+        TCallTimings timings = TCallTimings.current();
+        if (timings != null && fn != null) {
+            timings.markProcessStart(msg.name, msg.seqid);
+        }
         if (fn == null) {
             TProtocolUtil.skip(in, TType.STRUCT);
             in.readMessageEnd();
@@ -62,6 +66,23 @@ public class TBaseAsyncProcessor<I> implements TProcessor {
             return true;
         }
 
+        TDeadline deadline = TDeadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            // the client has given up on the call, don't bother decoding or starting it
+            TProtocolUtil.skip(in, TType.STRUCT);
+            in.readMessageEnd();
+            LOGGER.debug("Dropping call to {} whose deadline has passed", msg.name);
+            if (!fn.isOneway()) {
+                TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR, "Deadline exceeded before processing " + msg.name);
+                out.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+                x.write(out);
+                out.writeMessageEnd();
+                out.getTransport().flush();
+            }
+            fb.responseReady();
+            return true;
+        }
+
         // Get Args
         TBase args = (TBase) fn.getEmptyArgsInstance();
 
@@ -78,6 +99,9 @@ public class TBaseAsyncProcessor<I> implements TProcessor {
             return true;
         }
         in.readMessageEnd();
+        if (timings != null) {
+            timings.markDecodeEnd();
+        }
 
         // start off processing function
         fn.start(iface, args, fn.getResultHandler(fb, msg.seqid));
@@ -19,22 +19,20 @@ package org.apache.thrift;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 public final class TBaseHelper {
 
     private TBaseHelper() {
     }
 
-    private static final Comparator comparator = new NestedStructureComparator();
+    private static final Comparator<Object> comparator = new NestedStructureComparator();
 
     public static int compareTo(Object o1, Object o2) {
         if (o1 instanceof Comparable) {
@@ -124,11 +122,16 @@ public final class TBaseHelper {
         return 0;
     }
 
+    /**
+     * Compares two values of the same Comparable class. Thrift only calls this with two values of one field, so the
+     * unchecked call is safe.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     public static int compareTo(Comparable a, Comparable b) {
         return a.compareTo(b);
     }
 
-    public static int compareTo(List a, List b) {
+    public static int compareTo(List<?> a, List<?> b) {
         int lastComparison = compareTo(a.size(), b.size());
         if (lastComparison != 0) {
             return lastComparison;
@@ -142,49 +145,159 @@ public final class TBaseHelper {
         return 0;
     }
 
-    public static int compareTo(Set a, Set b) {
+    public static int compareTo(Set<?> a, Set<?> b) {
         int lastComparison = compareTo(a.size(), b.size());
         if (lastComparison != 0) {
             return lastComparison;
         }
-        SortedSet sortedA = new TreeSet(comparator);
-        sortedA.addAll(a);
-        SortedSet sortedB = new TreeSet(comparator);
-        sortedB.addAll(b);
-
-        Iterator iterA = sortedA.iterator();
-        Iterator iterB = sortedB.iterator();
+        if (a == b) {
+            return 0;
+        }
+        if (!hasContentEquality(a) || !hasContentEquality(b)) {
+            return compareSorted(a.toArray(), b.toArray());
+        }
 
-        // Compare each item.
-        while (iterA.hasNext() && iterB.hasNext()) {
-            lastComparison = comparator.compare(iterA.next(), iterB.next());
-            if (lastComparison != 0) {
-                return lastComparison;
+        // Walking both sets in sorted order stops at the smallest element that is in only one of them, and the set
+        // holding it sorts first. That element can be found with lookups alone, without sorting copies of the sets.
+        Object minOnlyInA = null;
+        boolean foundA = false;
+        for (Object elem : a) {
+            if (!b.contains(elem) && (!foundA || comparator.compare(elem, minOnlyInA) < 0)) {
+                minOnlyInA = elem;
+                foundA = true;
             }
         }
-
-        return 0;
+        if (!foundA) {
+            // same size and a is contained in b, so the sets are equal
+            return 0;
+        }
+        Object minOnlyInB = null;
+        boolean foundB = false;
+        for (Object elem : b) {
+            if (!a.contains(elem) && (!foundB || comparator.compare(elem, minOnlyInB) < 0)) {
+                minOnlyInB = elem;
+                foundB = true;
+            }
+        }
+        int comparison = comparator.compare(minOnlyInA, minOnlyInB);
+        if (comparison == 0) {
+            // membership disagreed with the ordering after all, only sorting gives a consistent answer
+            return compareSorted(a.toArray(), b.toArray());
+        }
+        return comparison < 0 ? -1 : 1;
     }
 
-    public static int compareTo(Map a, Map b) {
+    public static int compareTo(Map<?, ?> a, Map<?, ?> b) {
         int lastComparison = compareTo(a.size(), b.size());
         if (lastComparison != 0) {
             return lastComparison;
         }
+        if (a == b) {
+            return 0;
+        }
+        if (!hasContentEquality(a.keySet()) || !hasContentEquality(b.keySet())) {
+            return compareSortedEntries(a.entrySet().toArray(), b.entrySet().toArray());
+        }
 
-        // Sort a and b so we can compare them.
-        SortedMap sortedA = new TreeMap(comparator);
-        sortedA.putAll(a);
-        Iterator<Map.Entry> iterA = sortedA.entrySet().iterator();
-        SortedMap sortedB = new TreeMap(comparator);
-        sortedB.putAll(b);
-        Iterator<Map.Entry> iterB = sortedB.entrySet().iterator();
+        // Walking both maps in key order stops at the smallest key that is either in only one map, or in both with
+        // different values. Both candidates can be found with lookups alone, without sorting copies of the maps.
+        Object minOnlyInA = null;
+        boolean foundA = false;
+        Object minDiffering = null;
+        int differingComparison = 0;
+        for (Map.Entry<?, ?> entryA : a.entrySet()) {
+            Object key = entryA.getKey();
+            if (!b.containsKey(key)) {
+                if (!foundA || comparator.compare(key, minOnlyInA) < 0) {
+                    minOnlyInA = key;
+                    foundA = true;
+                }
+            } else if (differingComparison == 0 || comparator.compare(key, minDiffering) < 0) {
+                int valueComparison = comparator.compare(entryA.getValue(), b.get(key));
+                if (valueComparison != 0) {
+                    minDiffering = key;
+                    differingComparison = valueComparison;
+                }
+            }
+        }
+        if (!foundA) {
+            // same size and every key of a is in b, so the key sets are equal
+            return differingComparison;
+        }
+        Object minOnlyInB = null;
+        boolean foundB = false;
+        for (Object key : b.keySet()) {
+            if (!a.containsKey(key) && (!foundB || comparator.compare(key, minOnlyInB) < 0)) {
+                minOnlyInB = key;
+                foundB = true;
+            }
+        }
+        int keyComparison = comparator.compare(minOnlyInA, minOnlyInB);
+        if (keyComparison == 0) {
+            // membership disagreed with the ordering after all, only sorting gives a consistent answer
+            return compareSortedEntries(a.entrySet().toArray(), b.entrySet().toArray());
+        }
+        boolean aFirst = keyComparison < 0;
+        if (differingComparison != 0 && comparator.compare(minDiffering, aFirst ? minOnlyInA : minOnlyInB) < 0) {
+            return differingComparison;
+        }
+        return aFirst ? -1 : 1;
+    }
 
-        // Compare each item.
-        while (iterA.hasNext() && iterB.hasNext()) {
-            Map.Entry entryA = iterA.next();
-            Map.Entry entryB = iterB.next();
-            lastComparison = comparator.compare(entryA.getKey(), entryB.getKey());
+    /**
+     * Whether membership in the collection agrees with the nested structure ordering. That is the case unless the
+     * collection holds byte arrays, at any depth, which only compare equal to themselves in hash based collections.
+     */
+    private static boolean hasContentEquality(Set<?> set) {
+        if (set instanceof SortedSet && ((SortedSet<?>) set).comparator() == null) {
+            return true;
+        }
+        for (Object elem : set) {
+            if (containsBinary(elem)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsBinary(Object o) {
+        if (o instanceof byte[]) {
+            return true;
+        } else if (o instanceof Collection) {
+            for (Object elem : (Collection<?>) o) {
+                if (containsBinary(elem)) {
+                    return true;
+                }
+            }
+        } else if (o instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                if (containsBinary(entry.getKey()) || containsBinary(entry.getValue())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int compareSorted(Object[] a, Object[] b) {
+        Arrays.sort(a, comparator);
+        Arrays.sort(b, comparator);
+        for (int i = 0; i < a.length; i++) {
+            int lastComparison = comparator.compare(a[i], b[i]);
+            if (lastComparison != 0) {
+                return lastComparison;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareSortedEntries(Object[] a, Object[] b) {
+        Arrays.sort(a, entryKeyComparator);
+        Arrays.sort(b, entryKeyComparator);
+        for (int i = 0; i < a.length; i++) {
+            Map.Entry<?, ?> entryA = (Map.Entry<?, ?>) a[i];
+            Map.Entry<?, ?> entryB = (Map.Entry<?, ?>) b[i];
+            int lastComparison = comparator.compare(entryA.getKey(), entryB.getKey());
             if (lastComparison != 0) {
                 return lastComparison;
             }
@@ -193,14 +306,20 @@ public final class TBaseHelper {
                 return lastComparison;
             }
         }
-
         return 0;
     }
 
+    private static final Comparator<Object> entryKeyComparator = new Comparator<Object>() {
+        @Override
+        public int compare(Object oA, Object oB) {
+            return comparator.compare(((Map.Entry<?, ?>) oA).getKey(), ((Map.Entry<?, ?>) oB).getKey());
+        }
+    };
+
     /**
      * Comparator to compare items inside a structure (e.g. a list, set, or map).
      */
-    private static class NestedStructureComparator implements Comparator, Serializable {
+    private static class NestedStructureComparator implements Comparator<Object>, Serializable {
         public int compare(Object oA, Object oB) {
             if (oA == null && oB == null) {
                 return 0;
@@ -209,15 +328,15 @@ public final class TBaseHelper {
             } else if (oB == null) {
                 return 1;
             } else if (oA instanceof List) {
-                return compareTo((List) oA, (List) oB);
+                return compareTo((List<?>) oA, (List<?>) oB);
             } else if (oA instanceof Set) {
-                return compareTo((Set) oA, (Set) oB);
+                return compareTo((Set<?>) oA, (Set<?>) oB);
             } else if (oA instanceof Map) {
-                return compareTo((Map) oA, (Map) oB);
+                return compareTo((Map<?, ?>) oA, (Map<?, ?>) oB);
             } else if (oA instanceof byte[]) {
                 return compareTo((byte[]) oA, (byte[]) oB);
             } else {
-                return compareTo((Comparable) oA, (Comparable) oB);
+                return compareTo((Comparable<?>) oA, (Comparable<?>) oB);
             }
         }
     }
@@ -22,6 +22,29 @@ public abstract class TBaseProcessor<I> implements TProcessor {
         return Collections.unmodifiableMap(processMap);
     }
 
+    /**
+     * Enables or disables per-thread args reuse for every method of this processor.
+     *
+     * @see ProcessFunction#setReuseArgs(boolean)
+     */
+    public void setReuseArgs(boolean reuseArgs) {
+        for (ProcessFunction<I, ? extends TBase> fn : processMap.values()) {
+            fn.setReuseArgs(reuseArgs);
+        }
+    }
+
+    /**
+     * Records calls to any method of this processor that exceed their threshold in the given log, or stops recording
+     * if null.
+     *
+     * @see ProcessFunction#setSlowCallLog(TSlowCallLog)
+     */
+    public void setSlowCallLog(TSlowCallLog slowCallLog) {
+        for (ProcessFunction<I, ? extends TBase> fn : processMap.values()) {
+            fn.setSlowCallLog(slowCallLog);
+        }
+    }
+
     @Override
     public boolean process(TProtocol in, TProtocol out) throws TException {
         // when completed processing, the connection will be kept here on method read() inside
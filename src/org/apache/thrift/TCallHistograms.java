@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.thrift.TCallTimings.Phase;
+
+/**
+ * {@link TCallMetrics} that keeps a {@link TLatencyHistogram} for every phase of every method. Recording is lock free
+ * and does not allocate once a method has been seen. Percentiles are accurate to within about 3%, which keeps each
+ * histogram under 10 KB.
+ */
+public class TCallHistograms implements TCallMetrics {
+
+    /**
+     * Name under which calls to unknown methods are recorded.
+     */
+    public static final String UNKNOWN_METHOD = "<unknown>";
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final int SIGNIFICANT_BITS = 6;
+
+    private final ConcurrentMap<String, TLatencyHistogram[]> methods = new ConcurrentHashMap<String, TLatencyHistogram[]>();
+
+    @Override
+    public void callCompleted(TCallTimings timings) {
+        String methodName = timings.getMethodName();
+        TLatencyHistogram[] histograms = getOrCreate(methodName == null ? UNKNOWN_METHOD : methodName);
+        for (int i = 0; i < PHASES.length; i++) {
+            long nanos = timings.getNanos(PHASES[i]);
+            if (nanos > 0) {
+                histograms[i].recordValue(nanos);
+            }
+        }
+    }
+
+    /**
+     * Names of the methods for which calls have been recorded.
+     */
+    public Set<String> getMethodNames() {
+        return Collections.unmodifiableSet(methods.keySet());
+    }
+
+    /**
+     * The histogram of the given method and phase, or null if no call to the method has been recorded.
+     */
+    public TLatencyHistogram getHistogram(String methodName, Phase phase) {
+        TLatencyHistogram[] histograms = methods.get(methodName);
+        return histograms == null ? null : histograms[phase.ordinal()];
+    }
+
+    /**
+     * Drops everything recorded so far.
+     */
+    public void reset() {
+        methods.clear();
+    }
+
+    private TLatencyHistogram[] getOrCreate(String methodName) {
+        TLatencyHistogram[] histograms = methods.get(methodName);
+        if (histograms == null) {
+            histograms = new TLatencyHistogram[PHASES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new TLatencyHistogram(SIGNIFICANT_BITS);
+            }
+            TLatencyHistogram[] existing = methods.putIfAbsent(methodName, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        return histograms;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String methodName : methods.keySet()) {
+            for (Phase phase : PHASES) {
+                TLatencyHistogram histogram = getHistogram(methodName, phase);
+                if (histogram.getTotalCount() > 0) {
+                    sb.append(methodName).append(' ').append(phase.name().toLowerCase()).append(": ").append(histogram)
+                            .append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
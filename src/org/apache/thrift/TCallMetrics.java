@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+/**
+ * Receives the phase timings of every call a server completes. Implementations are called on the server's selector or
+ * worker threads and must therefore be thread safe and quick. Servers without metrics, the default, take no timings
+ * at all.
+ *
+ * @see TCallHistograms
+ */
+public interface TCallMetrics {
+
+    /**
+     * Called once the response to a call has been written, or once a oneway call has been processed.
+     *
+     * @param timings
+     *            the timings of the call, only valid for the duration of this method
+     */
+    void callCompleted(TCallTimings timings);
+}
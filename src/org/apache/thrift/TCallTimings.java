@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+/**
+ * {@link System#nanoTime()} stamps taken while a server handles a single call. Servers that have a
+ * {@link TCallMetrics}, and all servers while a {@link TEventRecorder} is installed, stamp the transport phases
+ * themselves and make the timings the thread's current ones while the processor runs, so {@link ProcessFunction} can
+ * stamp the decode, handler and encode phases. A phase that was not observed, e.g. the frame read of a blocking
+ * server, reports 0.
+ *
+ * Instances are reused from call to call and must not be retained by a {@link TCallMetrics} or
+ * {@link TEventRecorder}.
+ */
+public final class TCallTimings {
+
+    public enum Phase {
+        /** From the first byte of the frame until the whole frame has been read. */
+        READ,
+        /** From the end of the read until an invoker thread starts processing the frame. */
+        QUEUE,
+        /** Reading the call arguments. */
+        DECODE,
+        /** Running the handler. */
+        HANDLER,
+        /** Writing the result. */
+        ENCODE,
+        /** From the response being ready until it has been written, including the wait for the selector thread. */
+        WRITE,
+        /** The whole call, from the first phase observed to the last. */
+        TOTAL
+    }
+
+    private static final ThreadLocal<TCallTimings> CURRENT = new ThreadLocal<TCallTimings>();
+
+    // set once some server publishes timings, so that ProcessFunction does not
+    // pay for the thread local lookup when no server collects metrics
+    private static volatile boolean active = false;
+
+    private String methodName;
+    private int seqid;
+    private int bytesIn;
+    private int bytesOut;
+    private long readStart;
+    private long readEnd;
+    private long invokeStart;
+    private long processStart;
+    private long decodeEnd;
+    private long handlerEnd;
+    private long processEnd;
+    private long invokeEnd;
+    private long responseReady;
+    private long writeEnd;
+
+    /**
+     * The timings the processor running on this thread should stamp, or null.
+     */
+    public static TCallTimings current() {
+        return active ? CURRENT.get() : null;
+    }
+
+    /**
+     * Makes the given timings, or none if null, the current ones for this thread.
+     */
+    public static void setCurrent(TCallTimings timings) {
+        if (timings != null && !active) {
+            active = true;
+        }
+        CURRENT.set(timings);
+    }
+
+    /**
+     * Clears all stamps for the next call.
+     */
+    public void reset() {
+        methodName = null;
+        seqid = bytesIn = bytesOut = 0;
+        readStart = readEnd = invokeStart = processStart = decodeEnd = handlerEnd = processEnd = invokeEnd = responseReady = writeEnd = 0;
+    }
+
+    public void markReadStart() {
+        readStart = System.nanoTime();
+    }
+
+    public void markReadEnd() {
+        readEnd = System.nanoTime();
+    }
+
+    public void markInvokeStart() {
+        invokeStart = System.nanoTime();
+    }
+
+    public void markProcessStart(String methodName, int seqid) {
+        this.methodName = methodName;
+        this.seqid = seqid;
+        processStart = System.nanoTime();
+    }
+
+    public void markDecodeEnd() {
+        decodeEnd = System.nanoTime();
+    }
+
+    public void markHandlerEnd() {
+        handlerEnd = System.nanoTime();
+    }
+
+    public void markProcessEnd() {
+        processEnd = System.nanoTime();
+    }
+
+    public void markInvokeEnd() {
+        invokeEnd = System.nanoTime();
+    }
+
+    public void markResponseReady() {
+        responseReady = System.nanoTime();
+    }
+
+    public void markWriteEnd() {
+        writeEnd = System.nanoTime();
+    }
+
+    /**
+     * The name of the called method, or null if the call did not get as far as a known method.
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public int getSeqid() {
+        return seqid;
+    }
+
+    /**
+     * Size of the request frame, 0 if the server does not know it.
+     */
+    public int getBytesIn() {
+        return bytesIn;
+    }
+
+    public void setBytesIn(int bytesIn) {
+        this.bytesIn = bytesIn;
+    }
+
+    /**
+     * Size of the response, 0 if the server does not know it or there was none.
+     */
+    public int getBytesOut() {
+        return bytesOut;
+    }
+
+    public void setBytesOut(int bytesOut) {
+        this.bytesOut = bytesOut;
+    }
+
+    /**
+     * Whether the call got far enough to be worth reporting.
+     */
+    public boolean isStarted() {
+        return invokeStart != 0 || processStart != 0;
+    }
+
+    /**
+     * Nanoseconds spent in the given phase, 0 if the phase was not observed.
+     */
+    public long getNanos(Phase phase) {
+        switch (phase) {
+        case READ:
+            return span(readStart, readEnd);
+        case QUEUE:
+            return span(readEnd, invokeStart);
+        case DECODE:
+            return span(processStart, decodeEnd);
+        case HANDLER:
+            return span(decodeEnd, handlerEnd);
+        case ENCODE:
+            return span(handlerEnd, processEnd);
+        case WRITE:
+            return span(responseReady, writeEnd);
+        case TOTAL:
+            return span(first(readStart, first(invokeStart, processStart)),
+                    first(writeEnd, first(responseReady, first(invokeEnd, processEnd))));
+        default:
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+    }
+
+    /**
+     * Nanoseconds the processor spent on the call, from the start of the invocation to its end.
+     */
+    public long getInvokeNanos() {
+        return span(first(invokeStart, processStart), first(invokeEnd, processEnd));
+    }
+
+    /**
+     * Nanoseconds {@link ProcessFunction} spent on the call: decoding, handling and encoding it.
+     */
+    public long getProcessNanos() {
+        return span(processStart, processEnd);
+    }
+
+    private static long span(long start, long end) {
+        return start == 0 || end == 0 ? 0 : end - start;
+    }
+
+    private static long first(long stamp, long fallback) {
+        return stamp != 0 ? stamp : fallback;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TCallTimings(");
+        sb.append(methodName);
+        for (Phase phase : Phase.values()) {
+            sb.append(", ").append(phase.name().toLowerCase()).append('=').append(getNanos(phase));
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift;
+
+import org.apache.thrift.transport.THeaderTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * The point in time by which the client of the call being processed will have given up on it. Clients send their
+ * timeout with every call in the {@link THeaderTransport#CLIENT_TIMEOUT_HEADER} header, see
+ * {@link THeaderTransport#setClientTimeout(int)}, and servers using a {@link THeaderTransport} turn it into a deadline
+ * counted from the arrival of the request, so time spent queued for a worker thread counts against it.
+ *
+ * While a call is processed its deadline is the thread's current one. {@link ProcessFunction} drops calls whose
+ * deadline has passed before invoking the handler, and handlers can ask {@link #current()} for the remaining budget,
+ * e.g. to pass it on to downstream calls or to skip optional work.
+ */
+public final class TDeadline {
+
+    private static final ThreadLocal<TDeadline> CURRENT = new ThreadLocal<TDeadline>();
+
+    // set once some server publishes a deadline, so that ProcessFunction does not
+    // pay for the thread local lookup when no client sends timeouts
+    private static volatile boolean active = false;
+
+    private final long deadlineNanos;
+
+    private TDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * A deadline the given number of milliseconds after the {@link System#nanoTime()} stamp.
+     */
+    public static TDeadline after(long startNanos, long timeoutMillis) {
+        return new TDeadline(startNanos + timeoutMillis * 1000000L);
+    }
+
+    /**
+     * The deadline of the request about to be read from the given transport, counted from now, or null if the
+     * transport does not carry headers or the request has no timeout. For a {@link THeaderTransport} this reads the
+     * header of the next frame, blocking until it arrives if need be.
+     */
+    public static TDeadline read(TTransport in) throws TTransportException {
+        long millis = readTimeout(in);
+        return millis > 0 ? after(System.nanoTime(), millis) : null;
+    }
+
+    /**
+     * Like {@link #read(TTransport)}, but counted from when the request arrived.
+     *
+     * @param receivedNanos
+     *            {@link System#nanoTime()} when the request arrived
+     */
+    public static TDeadline read(TTransport in, long receivedNanos) throws TTransportException {
+        long millis = readTimeout(in);
+        return millis > 0 ? after(receivedNanos, millis) : null;
+    }
+
+    // the client timeout of the next request in milliseconds, 0 if it has none
+    private static long readTimeout(TTransport in) throws TTransportException {
+        if (!(in instanceof THeaderTransport)) {
+            return 0;
+        }
+        String timeout = ((THeaderTransport) in).readHeaders().get(THeaderTransport.CLIENT_TIMEOUT_HEADER);
+        if (timeout == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(timeout));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The deadline of the call being processed on this thread, or null if it has none.
+     */
+    public static TDeadline current() {
+        return active ? CURRENT.get() : null;
+    }
+
+    /**
+     * Makes the given deadline, or none if null, the current one for this thread.
+     */
+    public static void setCurrent(TDeadline deadline) {
+        if (deadline != null && !active) {
+            active = true;
+        }
+        CURRENT.set(deadline);
+    }
+
+    /**
+     * The {@link System#nanoTime()} value at which the deadline passes.
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * Nanoseconds left until the deadline, negative once it has passed.
+     */
+    public long getRemainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Milliseconds left until the deadline, 0 once it has passed.
+     */
+    public long getRemainingMillis() {
+        return Math.max(0, getRemainingNanos() / 1000000L);
+    }
+
+    public boolean isExpired() {
+        return getRemainingNanos() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TDeadline(remaining=" + getRemainingNanos() / 1000000L + "ms)";
+    }
+}
@@ -124,8 +124,30 @@ public class TDeserializer {
      * @throws TException
      */
     public void partialDeserialize(TBase tb, byte[] bytes, TFieldIdEnum fieldIdPathFirst, TFieldIdEnum... fieldIdPathRest) throws TException {
+        partialDeserialize(tb, bytes, 0, bytes.length, fieldIdPathFirst, fieldIdPathRest);
+    }
+
+    /**
+     * Deserialize only a single Thrift object (addressed by recursively using field id) from part of a byte array.
+     *
+     * @param tb
+     *            The object to read into
+     * @param bytes
+     *            The array to read from
+     * @param offset
+     *            The offset into {@code bytes} of the serialized object
+     * @param length
+     *            The length of the serialized object
+     * @param fieldIdPathFirst
+     *            First of the FieldId's that define a path tb
+     * @param fieldIdPathRest
+     *            The rest FieldId's that define a path tb
+     * @throws TException
+     */
+    public void partialDeserialize(TBase tb, byte[] bytes, int offset, int length, TFieldIdEnum fieldIdPathFirst,
+            TFieldIdEnum... fieldIdPathRest) throws TException {
         try {
-            if (locateField(bytes, fieldIdPathFirst, fieldIdPathRest) != null) {
+            if (locateField(bytes, offset, length, fieldIdPathFirst, fieldIdPathRest) != null) {
                 // if this line is reached, iprot will be positioned at the start of tb.
                 tb.read(protocol_);
             }
@@ -345,7 +367,12 @@ public class TDeserializer {
     }
 
     private TField locateField(byte[] bytes, TFieldIdEnum fieldIdPathFirst, TFieldIdEnum... fieldIdPathRest) throws TException {
-        trans_.reset(bytes);
+        return locateField(bytes, 0, bytes.length, fieldIdPathFirst, fieldIdPathRest);
+    }
+
+    private TField locateField(byte[] bytes, int offset, int length, TFieldIdEnum fieldIdPathFirst,
+            TFieldIdEnum... fieldIdPathRest) throws TException {
+        trans_.reset(bytes, offset, length);
 
         TFieldIdEnum[] fieldIdPath = new TFieldIdEnum[fieldIdPathRest.length + 1];
         fieldIdPath[0] = fieldIdPathFirst;
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+/**
+ * Receives events about calls and selector loops, e.g. to feed them to a profiler or flight recorder. No recorder is
+ * installed by default, and until one is the instrumented code does not even read the clock.
+ *
+ * Callbacks are made on the threads doing the work, with {@link System#nanoTime()} stamps, and must be quick and
+ * thread safe. All methods do nothing by default.
+ */
+public abstract class TEventRecorder {
+
+    private static volatile TEventRecorder instance = null;
+
+    /**
+     * The installed recorder, or null.
+     */
+    public static TEventRecorder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Installs the given recorder, or removes the installed one if null.
+     */
+    public static void setInstance(TEventRecorder recorder) {
+        instance = recorder;
+    }
+
+    /**
+     * A server completed a call.
+     *
+     * @param timings
+     *            the timings of the call, only valid for the duration of this method
+     */
+    public void serverCallCompleted(TCallTimings timings) {
+    }
+
+    /**
+     * A synchronous client wrote a call.
+     */
+    public void clientSendCompleted(String methodName, int seqid, long startNanos, long endNanos) {
+    }
+
+    /**
+     * A synchronous client read the response to a call, or failed to.
+     *
+     * @param success
+     *            false if the call failed, either because the server answered with an exception or because the
+     *            response could not be read
+     */
+    public void clientReceiveCompleted(String methodName, int seqid, long startNanos, long endNanos, boolean success) {
+    }
+
+    /**
+     * An asynchronous call completed.
+     *
+     * @param requestSentNanos
+     *            when the request had been written, 0 if it never was
+     * @param error
+     *            the error the call failed with, null if it succeeded
+     */
+    public void asyncCallCompleted(String methodName, long sequenceId, long startNanos, long requestSentNanos,
+            long endNanos, int requestBytes, int responseBytes, Exception error) {
+    }
+
+    /**
+     * A selector thread went once through its loop: it blocked in select() and then handled the selected keys.
+     *
+     * @param threadName
+     *            name of the selector thread
+     */
+    public void selectCompleted(String threadName, int selectedKeys, long selectStartNanos, long selectEndNanos,
+            long processEndNanos) {
+    }
+
+    /**
+     * A blocking TLS client socket finished its handshake, or failed to.
+     *
+     * @param resumed
+     *            whether an earlier session was resumed instead of doing a full handshake
+     * @param error
+     *            the error the handshake failed with, null if it succeeded
+     */
+    public void tlsHandshakeCompleted(String host, int port, long startNanos, long endNanos, boolean resumed,
+            Exception error) {
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values keep a configurable number of significant bits in
+ * a fixed array of counters, so recording is lock free, never allocates and may happen from several threads at once.
+ * Histograms recorded separately can be merged with {@link #add(TLatencyHistogram)}.
+ */
+public class TLatencyHistogram {
+
+    /**
+     * Significant bits kept by the default constructor, for a relative precision better than 0.1%.
+     */
+    public static final int DEFAULT_SIGNIFICANT_BITS = 11;
+
+    /**
+     * Largest value that can be recorded, a little over an hour in nanoseconds. Larger values are clamped.
+     */
+    public static final long MAX_VALUE = (1L << 42) - 1;
+
+    // values below subBucketCount are counted exactly, larger values keep subBucketBits significant bits
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int subBucketHalfCount;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    public TLatencyHistogram() {
+        this(DEFAULT_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @param significantBits
+     *            bits of precision kept per value, between 2 and 20. Values are accurate to within
+     *            2<sup>1-significantBits</sup> and the histogram takes 8 * (44 - significantBits) *
+     *            2<sup>significantBits - 1</sup> bytes.
+     */
+    public TLatencyHistogram(int significantBits) {
+        if (significantBits < 2 || significantBits > 20) {
+            throw new IllegalArgumentException("significantBits must be between 2 and 20 but is " + significantBits);
+        }
+        subBucketBits = significantBits;
+        subBucketCount = 1 << significantBits;
+        subBucketHalfCount = subBucketCount / 2;
+        int maxShift = 63 - Long.numberOfLeadingZeros(MAX_VALUE) - (subBucketBits - 1);
+        counts = new AtomicLongArray(subBucketCount + maxShift * subBucketHalfCount);
+    }
+
+    public void recordValue(long value) {
+        recordValue(value, 1);
+    }
+
+    private void recordValue(long value, long count) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts.addAndGet(indexOf(value), count);
+        totalCount.addAndGet(count);
+        sum.addAndGet(value * count);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /**
+     * Records a value and corrects for coordinated omission: when the value exceeds the interval at which the caller
+     * meant to issue requests, the requests that would have been sent during the stall are recorded too, with
+     * linearly decreasing latencies.
+     *
+     * @param expectedInterval
+     *            the intended time between two requests of the same caller, or 0 to record the value as is
+     */
+    public void recordValueWithExpectedInterval(long value, long expectedInterval) {
+        recordValue(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+            recordValue(missed);
+        }
+    }
+
+    /**
+     * Adds all values recorded in another histogram of the same precision to this one.
+     */
+    public void add(TLatencyHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Cannot add a histogram with " + other.subBucketBits
+                    + " significant bits to one with " + subBucketBits);
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        long otherCount = other.totalCount.get();
+        totalCount.addAndGet(otherCount);
+        sum.addAndGet(other.sum.get());
+        if (otherCount > 0) {
+            long value = other.min.get();
+            long current;
+            while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            }
+            value = other.max.get();
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMin() {
+        return totalCount.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Returns the highest value that is equivalent, within the histogram's precision, to the value below which the
+     * given percentage of recorded values fall.
+     *
+     * @param percentile
+     *            between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Prints the percentile distribution in the format of HdrHistogram's outputPercentileDistribution, so existing
+     * plotting tools can read it. Values are divided by {@code scale}, e.g. 1000.0 to print nanoseconds as
+     * microseconds.
+     */
+    public void outputPercentileDistribution(PrintStream out, double scale) {
+        out.println(String.format(Locale.ROOT, "%12s %14s %10s %14s", "Value", "Percentile", "TotalCount",
+                "1/(1-Percentile)"));
+        out.println();
+        long total = totalCount.get();
+        if (total > 0) {
+            // halve the distance to 100% at every step, with 5 ticks per halving
+            double percentile = 0.0;
+            double step = 100.0 / 2 / 5;
+            int ticksInHalf = 0;
+            while (percentile < 100.0) {
+                printLine(out, percentile, scale);
+                percentile += step;
+                if (++ticksInHalf == 5) {
+                    ticksInHalf = 0;
+                    step /= 2;
+                }
+                if (countBelowOrAt(getValueAtPercentile(percentile)) == total) {
+                    break;
+                }
+            }
+            printLine(out, 100.0, scale);
+        }
+        out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12s]", getMean() / scale, "n/a"));
+        out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", getMax() / scale, total));
+    }
+
+    private void printLine(PrintStream out, double percentile, double scale) {
+        long value = getValueAtPercentile(percentile);
+        long count = countBelowOrAt(value);
+        double quantile = percentile / 100.0;
+        if (quantile < 1.0) {
+            out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f", value / scale, quantile, count,
+                    1 / (1 - quantile)));
+        } else {
+            out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d", value / scale, quantile, count));
+        }
+    }
+
+    private long countBelowOrAt(long value) {
+        long count = 0;
+        int last = indexOf(Math.min(value, MAX_VALUE));
+        for (int i = 0; i <= last; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    private int indexOf(long value) {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (subBucketBits - 1);
+        int subBucket = (int) (value >>> shift);
+        return subBucketCount + (shift - 1) * subBucketHalfCount + (subBucket - subBucketHalfCount);
+    }
+
+    private long highestEquivalentValue(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int offset = index - subBucketCount;
+        int shift = offset / subBucketHalfCount + 1;
+        long subBucket = offset % subBucketHalfCount + subBucketHalfCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getTotalCount() + " mean=" + (long) getMean() + " p50=" + getValueAtPercentile(50) + " p99="
+                + getValueAtPercentile(99) + " p999=" + getValueAtPercentile(99.9) + " max=" + getMax();
+    }
+}
@@ -60,13 +60,34 @@ public abstract class TServiceClient {
     }
 
     protected void sendBase(String methodName, TBase args) throws TException {
+        TEventRecorder recorder = TEventRecorder.getInstance();
+        long start = recorder == null ? 0 : System.nanoTime();
         oprot_.writeMessageBegin(new TMessage(methodName, TMessageType.CALL, ++seqid_));
         args.write(oprot_);
         oprot_.writeMessageEnd();
         oprot_.getTransport().flush();
+        if (recorder != null) {
+            recorder.clientSendCompleted(methodName, seqid_, start, System.nanoTime());
+        }
     }
 
     protected void receiveBase(TBase result, String methodName) throws TException {
+        TEventRecorder recorder = TEventRecorder.getInstance();
+        if (recorder == null) {
+            readResponse(result, methodName);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            readResponse(result, methodName);
+            success = true;
+        } finally {
+            recorder.clientReceiveCompleted(methodName, seqid_, start, System.nanoTime(), success);
+        }
+    }
+
+    private void readResponse(TBase result, String methodName) throws TException {
         TMessage msg = iprot_.readMessageBegin();
         if (msg.type == TMessageType.EXCEPTION) {
             TApplicationException x = TApplicationException.read(iprot_);
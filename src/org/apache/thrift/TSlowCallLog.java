@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.thrift.TCallTimings.Phase;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Keeps the most recent calls that took longer than their method's threshold, with their decoded arguments, the
+ * arguments as they were read from the wire, and where the time went. Attach it to a processor with
+ * {@link TBaseProcessor#setSlowCallLog(TSlowCallLog)} and call {@link #dump(PrintStream)} or {@link #getEntries()}
+ * when needed.
+ *
+ * The raw argument bytes are only available when the input transport exposes its buffer, e.g. for framed transports,
+ * which includes the nonblocking servers. Entries are kept in a fixed size ring buffer that is written without locks,
+ * so a burst of slow calls overwrites the oldest entries.
+ */
+public class TSlowCallLog {
+
+    /**
+     * A slow call.
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final String threadName;
+        private final String methodName;
+        private final int seqid;
+        private final String args;
+        private final byte[] argsBytes;
+        private final boolean argsTruncated;
+        private final long[] phaseNanos;
+        private final long processNanos;
+
+        Entry(String methodName, int seqid, String args, byte[] argsBytes, boolean argsTruncated, long[] phaseNanos,
+                long processNanos) {
+            this.timestamp = System.currentTimeMillis();
+            this.threadName = Thread.currentThread().getName();
+            this.methodName = methodName;
+            this.seqid = seqid;
+            this.args = args;
+            this.argsBytes = argsBytes;
+            this.argsTruncated = argsTruncated;
+            this.phaseNanos = phaseNanos;
+            this.processNanos = processNanos;
+        }
+
+        /**
+         * When the call completed, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public int getSeqid() {
+            return seqid;
+        }
+
+        /**
+         * The toString() of the decoded arguments.
+         */
+        public String getArgs() {
+            return args;
+        }
+
+        /**
+         * The arguments as read from the wire, in the encoding of the server's protocol, or null if the transport did
+         * not expose them.
+         */
+        public byte[] getArgsBytes() {
+            return argsBytes;
+        }
+
+        /**
+         * Whether {@link #getArgsBytes()} only holds the start of the arguments.
+         */
+        public boolean isArgsTruncated() {
+            return argsTruncated;
+        }
+
+        /**
+         * Nanoseconds spent in the given phase, 0 if the phase was not observed.
+         */
+        public long getNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        /**
+         * Nanoseconds the processor spent decoding, handling and encoding the call. This is what the threshold
+         * applies to.
+         */
+        public long getProcessNanos() {
+            return processNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(new Date(timestamp)).append(' ').append(threadName).append(' ').append(methodName)
+                    .append(" seqid=").append(seqid).append(" process=").append(TimeUnit.NANOSECONDS.toMicros(processNanos))
+                    .append("us");
+            for (Phase phase : Phase.values()) {
+                if (phaseNanos[phase.ordinal()] > 0) {
+                    sb.append(' ').append(phase.name().toLowerCase()).append('=')
+                            .append(TimeUnit.NANOSECONDS.toMicros(phaseNanos[phase.ordinal()])).append("us");
+                }
+            }
+            sb.append("\n  args: ").append(args);
+            if (argsBytes != null) {
+                sb.append("\n  bytes (").append(argsBytes.length).append(argsTruncated ? ", truncated" : "")
+                        .append("): ");
+                for (byte b : argsBytes) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong slowCalls = new AtomicLong();
+
+    private final ConcurrentMap<String, Long> thresholds = new ConcurrentHashMap<String, Long>();
+    private volatile long defaultThresholdNanos;
+    private volatile int sampleInterval = 1;
+    private volatile int maxArgsBytes = 64 * 1024;
+
+    // timings for calls that the server does not time itself
+    private final ThreadLocal<TCallTimings> threadTimings = new ThreadLocal<TCallTimings>() {
+        @Override
+        protected TCallTimings initialValue() {
+            return new TCallTimings();
+        }
+    };
+
+    /**
+     * @param capacity
+     *            number of slow calls to keep
+     * @param defaultThreshold
+     *            threshold for methods without one of their own
+     */
+    public TSlowCallLog(int capacity, long defaultThreshold, TimeUnit unit) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        entries = new AtomicReferenceArray<Entry>(capacity);
+        defaultThresholdNanos = unit.toNanos(defaultThreshold);
+    }
+
+    public void setDefaultThreshold(long threshold, TimeUnit unit) {
+        defaultThresholdNanos = unit.toNanos(threshold);
+    }
+
+    /**
+     * Sets the threshold of a single method, overriding the default threshold.
+     */
+    public void setThreshold(String methodName, long threshold, TimeUnit unit) {
+        thresholds.put(methodName, unit.toNanos(threshold));
+    }
+
+    public long getThresholdNanos(String methodName) {
+        Long threshold = thresholds.get(methodName);
+        return threshold == null ? defaultThresholdNanos : threshold;
+    }
+
+    /**
+     * Only records every n-th slow call, to bound the cost of capturing when many calls are slow. Defaults to 1,
+     * recording every slow call.
+     */
+    public void setSampleInterval(int sampleInterval) {
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("Sample interval must be positive: " + sampleInterval);
+        }
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Limits how many bytes of the raw arguments are kept per call. Defaults to 64KB.
+     */
+    public void setMaxArgsBytes(int maxArgsBytes) {
+        this.maxArgsBytes = maxArgsBytes;
+    }
+
+    /**
+     * Number of slow calls seen, whether they were sampled or not.
+     */
+    public long getSlowCallCount() {
+        return slowCalls.get();
+    }
+
+    /**
+     * The recorded slow calls, oldest first. Calls recorded while the entries are collected may be missing or out of
+     * order.
+     */
+    public List<Entry> getEntries() {
+        int capacity = entries.length();
+        long end = written.get();
+        List<Entry> result = new ArrayList<Entry>(capacity);
+        for (long i = Math.max(0, end - capacity); i < end; i++) {
+            Entry entry = entries.get((int) (i % capacity));
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prints the recorded slow calls, oldest first.
+     */
+    public void dump(PrintStream out) {
+        for (Entry entry : getEntries()) {
+            out.println(entry);
+        }
+    }
+
+    /**
+     * Drops all recorded slow calls.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+    /**
+     * Timings for ProcessFunction to stamp when the server does not time the call itself.
+     */
+    TCallTimings getThreadTimings() {
+        TCallTimings timings = threadTimings.get();
+        timings.reset();
+        return timings;
+    }
+
+    /**
+     * Called by ProcessFunction once a call has been processed.
+     *
+     * @param argsStart
+     *            position of the arguments in the input transport's buffer, -1 if it has none
+     */
+    void callCompleted(String methodName, int seqid, TBase args, TTransport in, byte[] buffer, int argsStart,
+            TCallTimings timings) {
+        long processNanos = timings.getProcessNanos();
+        if (processNanos < getThresholdNanos(methodName)) {
+            return;
+        }
+        if (slowCalls.getAndIncrement() % sampleInterval != 0) {
+            return;
+        }
+
+        long[] phaseNanos = new long[Phase.values().length];
+        for (Phase phase : Phase.values()) {
+            phaseNanos[phase.ordinal()] = timings.getNanos(phase);
+        }
+
+        byte[] argsBytes = null;
+        boolean truncated = false;
+        // the bytes can only be trusted if the transport still reads from the same buffer
+        if (argsStart >= 0 && in.getBuffer() == buffer && in.getBufferPosition() >= argsStart) {
+            int length = in.getBufferPosition() - argsStart;
+            truncated = length > maxArgsBytes;
+            argsBytes = new byte[Math.min(length, maxArgsBytes)];
+            System.arraycopy(buffer, argsStart, argsBytes, 0, argsBytes.length);
+        }
+
+        String argsString;
+        try {
+            argsString = String.valueOf(args);
+        } catch (RuntimeException e) {
+            argsString = "<toString() failed: " + e + ">";
+        }
+
+        Entry entry = new Entry(methodName, seqid, argsString, argsBytes, truncated, phaseNanos, processNanos);
+        long slot = written.getAndIncrement();
+        entries.set((int) (slot % entries.length()), entry);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.thrift.meta_data.EnumMetaData;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.meta_data.MapMetaData;
+import org.apache.thrift.meta_data.SetMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TSet;
+import org.apache.thrift.protocol.TType;
+
+/**
+ * Reads a struct into an instance that already holds a previous value, reusing what it can instead of allocating.
+ *
+ * <p>
+ * Nested structs are read into the instances already set on the struct, lists are refilled in place and their struct
+ * elements read into, sets and maps are cleared and refilled. Fields missing from the input go back to their default
+ * or are unset, as after {@link TBase#clear()}. Strings, binary fields and boxed values are still allocated.
+ * </p>
+ *
+ * <p>
+ * The fields are found through the metadata the generated code registers, so generated classes work as they are;
+ * unions, and structs whose metadata leaves out a class (typedefs of structs or enums), are cleared and read by their
+ * own code. The result is the same value the generated read would produce, but anything that kept a reference to the
+ * previous value, or to a struct or container in it, sees it overwritten.
+ * </p>
+ */
+public final class TStructRefiller {
+
+    private static final ConcurrentHashMap<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<Class<?>, Layout>();
+
+    private TStructRefiller() {
+    }
+
+    /**
+     * Reads the next struct from the protocol into the given instance.
+     */
+    public static void read(TBase<?, ?> struct, TProtocol iprot) throws TException {
+        read(struct, iprot, TProtocolUtil.getMaxSkipDepth());
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void read(TBase struct, TProtocol iprot, int depth) throws TException {
+        if (depth <= 0) {
+            throw new TProtocolException(TProtocolException.DEPTH_LIMIT, "Maximum struct depth exceeded");
+        }
+        Layout layout = layout(struct.getClass());
+        if (layout == null) {
+            struct.clear();
+            struct.read(iprot);
+            return;
+        }
+        long seen = 0;
+        boolean[] seenMore = layout.fields.length > 64 ? new boolean[layout.fields.length] : null;
+
+        iprot.readStructBegin();
+        while (true) {
+            TField field = iprot.readFieldBegin();
+            if (field.type == TType.STOP) {
+                break;
+            }
+            TFieldIdEnum id = struct.fieldForId(field.id);
+            int index = id == null ? -1 : ((Enum<?>) id).ordinal();
+            if (index < 0 || index >= layout.fields.length || layout.values[index] == null
+                    || wireType(layout.values[index]) != field.type) {
+                TProtocolUtil.skip(iprot, field.type);
+            } else {
+                Object previous = struct.isSet(id) ? struct.getFieldValue(id) : null;
+                struct.setFieldValue(id, readValue(layout.values[index], previous, iprot, depth));
+                if (seenMore == null) {
+                    seen |= 1L << index;
+                } else {
+                    seenMore[index] = true;
+                }
+            }
+            iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+
+        for (int i = 0; i < layout.fields.length; i++) {
+            TFieldIdEnum id = layout.fields[i];
+            if (id == null || (seenMore == null ? (seen & 1L << i) != 0 : seenMore[i])) {
+                continue;
+            }
+            if (layout.defaults.isSet(id)) {
+                TBase defaults = isImmutable(layout.values[i].type) ? layout.defaults : layout.defaults.deepCopy();
+                struct.setFieldValue(id, defaults.getFieldValue(id));
+            } else if (struct.isSet(id)) {
+                struct.setFieldValue(id, null);
+            }
+        }
+        layout.validate(struct);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Object readValue(FieldValueMetaData meta, Object previous, TProtocol iprot, int depth)
+            throws TException {
+        switch (meta.type) {
+        case TType.BOOL:
+            return iprot.readBool();
+        case TType.BYTE:
+            return iprot.readByte();
+        case TType.I16:
+            return iprot.readI16();
+        case TType.I32:
+            return iprot.readI32();
+        case TType.I64:
+            return iprot.readI64();
+        case TType.DOUBLE:
+            return iprot.readDouble();
+        case TType.STRING:
+            return meta.isBinary() ? iprot.readBinary() : iprot.readString();
+        case TType.ENUM:
+            return findByValue(((EnumMetaData) meta).enumClass, iprot.readI32());
+        case TType.STRUCT: {
+            Class<? extends TBase> structClass = ((StructMetaData) meta).structClass;
+            TBase struct = previous != null && previous.getClass() == structClass ? (TBase) previous
+                    : newInstance(structClass);
+            read(struct, iprot, depth - 1);
+            return struct;
+        }
+        case TType.LIST: {
+            FieldValueMetaData elem = ((ListMetaData) meta).elemMetaData;
+            TList tlist = iprot.readListBegin();
+            List list = previous instanceof ArrayList ? (List) previous : new ArrayList(tlist.size);
+            int reused = Math.min(list.size(), tlist.size);
+            for (int i = 0; i < tlist.size; i++) {
+                if (i < reused) {
+                    list.set(i, readValue(elem, list.get(i), iprot, depth - 1));
+                } else {
+                    list.add(readValue(elem, null, iprot, depth - 1));
+                }
+            }
+            if (list.size() > tlist.size) {
+                list.subList(tlist.size, list.size()).clear();
+            }
+            iprot.readListEnd();
+            return list;
+        }
+        case TType.SET: {
+            FieldValueMetaData elem = ((SetMetaData) meta).elemMetaData;
+            TSet tset = iprot.readSetBegin();
+            Set set;
+            if (previous instanceof HashSet) {
+                set = (Set) previous;
+                set.clear();
+            } else {
+                set = new HashSet(2 * tset.size);
+            }
+            for (int i = 0; i < tset.size; i++) {
+                set.add(readValue(elem, null, iprot, depth - 1));
+            }
+            iprot.readSetEnd();
+            return set;
+        }
+        case TType.MAP: {
+            MapMetaData mapMeta = (MapMetaData) meta;
+            TMap tmap = iprot.readMapBegin();
+            Map map;
+            if (previous instanceof HashMap) {
+                map = (Map) previous;
+                map.clear();
+            } else {
+                map = new HashMap(2 * tmap.size);
+            }
+            for (int i = 0; i < tmap.size; i++) {
+                Object key = readValue(mapMeta.keyMetaData, null, iprot, depth - 1);
+                map.put(key, readValue(mapMeta.valueMetaData, null, iprot, depth - 1));
+            }
+            iprot.readMapEnd();
+            return map;
+        }
+        default:
+            throw new TProtocolException(TProtocolException.INVALID_DATA, "Unexpected field type " + meta.type);
+        }
+    }
+
+    private static byte wireType(FieldValueMetaData meta) {
+        return meta.type == TType.ENUM ? TType.I32 : meta.type;
+    }
+
+    private static boolean isImmutable(byte type) {
+        return type != TType.STRUCT && type != TType.LIST && type != TType.SET && type != TType.MAP
+                && type != TType.STRING;
+    }
+
+    private static TEnum findByValue(Class<? extends TEnum> enumClass, int value) {
+        for (TEnum constant : enumClass.getEnumConstants()) {
+            if (constant.getValue() == value) {
+                return constant;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static TBase newInstance(Class<? extends TBase> structClass) throws TException {
+        try {
+            return structClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new TException("Can not create " + structClass.getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new TException("Can not create " + structClass.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the layout of the given struct class, or null if it must be read by its own code.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Layout layout(Class<?> structClass) throws TException {
+        Layout layout = LAYOUTS.get(structClass);
+        if (layout == null) {
+            layout = Layout.UNSUPPORTED;
+            if (!TUnion.class.isAssignableFrom(structClass)) {
+                Map<? extends TFieldIdEnum, FieldMetaData> metaData = FieldMetaData
+                        .getStructMetaDataMap((Class<? extends TBase>) structClass);
+                if (metaData != null && isSupported(metaData)) {
+                    layout = new Layout(newInstance((Class<? extends TBase>) structClass), metaData);
+                }
+            }
+            LAYOUTS.putIfAbsent(structClass, layout);
+        }
+        return layout == Layout.UNSUPPORTED ? null : layout;
+    }
+
+    private static boolean isSupported(Map<? extends TFieldIdEnum, FieldMetaData> metaData) {
+        for (Map.Entry<? extends TFieldIdEnum, FieldMetaData> entry : metaData.entrySet()) {
+            if (!(entry.getKey() instanceof Enum) || !isSupported(entry.getValue().valueMetaData)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupported(FieldValueMetaData meta) {
+        switch (meta.type) {
+        case TType.BOOL:
+        case TType.BYTE:
+        case TType.I16:
+        case TType.I32:
+        case TType.I64:
+        case TType.DOUBLE:
+        case TType.STRING:
+            return true;
+        case TType.ENUM:
+            return meta instanceof EnumMetaData;
+        case TType.STRUCT:
+            return meta instanceof StructMetaData;
+        case TType.LIST:
+            return meta instanceof ListMetaData && isSupported(((ListMetaData) meta).elemMetaData);
+        case TType.SET:
+            return meta instanceof SetMetaData && isSupported(((SetMetaData) meta).elemMetaData);
+        case TType.MAP:
+            return meta instanceof MapMetaData && isSupported(((MapMetaData) meta).keyMetaData)
+                    && isSupported(((MapMetaData) meta).valueMetaData);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * The fields of a struct class indexed by the ordinal of their id, with an untouched instance for the defaults.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class Layout {
+        static final Layout UNSUPPORTED = new Layout();
+
+        final TFieldIdEnum[] fields;
+        final FieldValueMetaData[] values;
+        final TBase defaults;
+        final Method validate;
+
+        private Layout() {
+            fields = null;
+            values = null;
+            defaults = null;
+            validate = null;
+        }
+
+        Layout(TBase defaults, Map<? extends TFieldIdEnum, FieldMetaData> metaData) {
+            int size = 0;
+            for (TFieldIdEnum id : metaData.keySet()) {
+                size = Math.max(size, ((Enum<?>) id).ordinal() + 1);
+            }
+            fields = new TFieldIdEnum[size];
+            values = new FieldValueMetaData[size];
+            for (Map.Entry<? extends TFieldIdEnum, FieldMetaData> entry : metaData.entrySet()) {
+                int index = ((Enum<?>) entry.getKey()).ordinal();
+                fields[index] = entry.getKey();
+                values[index] = entry.getValue().valueMetaData;
+            }
+            this.defaults = defaults;
+            Method method;
+            try {
+                method = defaults.getClass().getMethod("validate");
+            } catch (NoSuchMethodException e) {
+                method = null;
+            }
+            validate = method;
+        }
+
+        void validate(TBase struct) throws TException {
+            if (validate == null) {
+                return;
+            }
+            try {
+                validate.invoke(struct);
+            } catch (IllegalAccessException e) {
+                throw new TException(e);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof TException) {
+                    throw (TException) e.getCause();
+                }
+                throw new TException(e.getCause());
+            }
+        }
+    }
+}
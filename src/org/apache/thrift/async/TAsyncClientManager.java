@@ -30,6 +30,7 @@ import java.util.TreeSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeoutException;
 
+import org.apache.thrift.TEventRecorder;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -91,6 +92,8 @@ public class TAsyncClientManager {
         public void run() {
             while (running) {
                 try {
+                    TEventRecorder recorder = TEventRecorder.getInstance();
+                    long selectStart = recorder == null ? 0 : System.nanoTime();
                     try {
                         if (timeoutWatchSet.size() == 0) {
                             // No timeouts, so select indefinitely
@@ -110,9 +113,14 @@ public class TAsyncClientManager {
                     } catch (IOException e) {
                         LOGGER.error("Caught IOException in TAsyncClientManager!", e);
                     }
+                    long selectEnd = recorder == null ? 0 : System.nanoTime();
+                    int selectedKeys = recorder == null ? 0 : selector.selectedKeys().size();
                     transitionMethods();
                     timeoutMethods();
                     startPendingMethods();
+                    if (recorder != null) {
+                        recorder.selectCompleted(getName(), selectedKeys, selectStart, selectEnd, System.nanoTime());
+                    }
                 } catch (Exception exception) {
                     LOGGER.error("Ignoring uncaught exception in SelectThread", exception);
                 }
@@ -24,10 +24,12 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.thrift.TEventRecorder;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.THeaderTransport;
 import org.apache.thrift.transport.TMemoryBuffer;
 import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -64,8 +66,18 @@ public abstract class TAsyncMethodCall<T> {
     private final byte[] sizeBufferArray = new byte[4];
     private ByteBuffer frameBuffer;
 
+    // whether the protocol frames its messages itself with a THeaderTransport, in which
+    // case the response frame is handed to the protocol with its size prefix
+    private boolean headerFramed;
+
     private long startTime = System.currentTimeMillis();
 
+    // stamps for the event recorder, only taken if one was installed when the call was made
+    private final boolean recorded;
+    private final long startNanos;
+    private long requestSentNanos;
+    private int requestBytes;
+
     protected TAsyncMethodCall(TAsyncClient client, TProtocolFactory protocolFactory, TNonblockingTransport transport,
             AsyncMethodCallback<T> callback, boolean isOneway) {
         this.transport = transport;
@@ -75,6 +87,8 @@ public abstract class TAsyncMethodCall<T> {
         this.isOneway = isOneway;
         this.sequenceId = TAsyncMethodCall.sequenceIdCounter.getAndIncrement();
         this.timeout = client.getTimeout();
+        this.recorded = TEventRecorder.getInstance() != null;
+        this.startNanos = recorded ? System.nanoTime() : 0;
     }
 
     protected State getState() {
@@ -105,6 +119,14 @@ public abstract class TAsyncMethodCall<T> {
         return timeout + startTime;
     }
 
+    /**
+     * The name of the called method, derived from the name of the generated call class.
+     */
+    protected String getMethodName() {
+        String name = getClass().getSimpleName();
+        return name.endsWith("_call") ? name.substring(0, name.length() - "_call".length()) : name;
+    }
+
     protected abstract void write_args(TProtocol protocol) throws TException;
 
     /**
@@ -116,12 +138,25 @@ public abstract class TAsyncMethodCall<T> {
     protected void prepareMethodCall() throws TException {
         TMemoryBuffer memoryBuffer = new TMemoryBuffer(INITIAL_MEMORY_BUFFER_SIZE);
         TProtocol protocol = protocolFactory.getProtocol(memoryBuffer);
+        headerFramed = protocol.getTransport() instanceof THeaderTransport;
+        if (headerFramed && timeout > 0) {
+            // let the server drop the call once this client has given up on it
+            ((THeaderTransport) protocol.getTransport()).setClientTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        }
         write_args(protocol);
 
-        int length = memoryBuffer.length();
-        frameBuffer = ByteBuffer.wrap(memoryBuffer.getArray(), 0, length);
-
-        TFramedTransport.encodeFrameSize(length, sizeBufferArray);
+        if (headerFramed) {
+            protocol.getTransport().flush();
+            int length = memoryBuffer.length();
+            requestBytes = length;
+            System.arraycopy(memoryBuffer.getArray(), 0, sizeBufferArray, 0, 4);
+            frameBuffer = ByteBuffer.wrap(memoryBuffer.getArray(), 4, length - 4);
+        } else {
+            int length = memoryBuffer.length();
+            requestBytes = length + 4;
+            frameBuffer = ByteBuffer.wrap(memoryBuffer.getArray(), 0, length);
+            TFramedTransport.encodeFrameSize(length, sizeBufferArray);
+        }
         sizeBuffer = ByteBuffer.wrap(sizeBufferArray);
     }
 
@@ -187,7 +222,7 @@ public abstract class TAsyncMethodCall<T> {
                 doWritingRequestBody(key);
                 break;
             case READING_RESPONSE_SIZE:
-                doReadingResponseSize();
+                doReadingResponseSize(key);
                 break;
             case READING_RESPONSE_BODY:
                 doReadingResponseBody(key);
@@ -203,6 +238,7 @@ public abstract class TAsyncMethodCall<T> {
     }
 
     protected void onError(Exception e) {
+        recordCompletion(0, e);
         client.onError(e);
         callback.onError(e);
         state = State.ERROR;
@@ -222,17 +258,40 @@ public abstract class TAsyncMethodCall<T> {
         key.interestOps(0);
         // this ensures that the TAsyncMethod instance doesn't hang around
         key.attach(null);
+        recordCompletion(isOneway ? 0 : frameBuffer.capacity() + (headerFramed ? 0 : 4), null);
         client.onComplete();
         callback.onComplete((T) this);
     }
 
-    private void doReadingResponseSize() throws IOException {
+    private void recordCompletion(int responseBytes, Exception error) {
+        if (!recorded) {
+            return;
+        }
+        TEventRecorder recorder = TEventRecorder.getInstance();
+        if (recorder != null) {
+            recorder.asyncCallCompleted(getMethodName(), sequenceId, startNanos, requestSentNanos, System.nanoTime(),
+                    requestBytes, responseBytes, error);
+        }
+    }
+
+    private void doReadingResponseSize(SelectionKey key) throws IOException {
         if (transport.read(sizeBuffer) < 0) {
             throw new IOException("Read call frame size failed");
         }
         if (sizeBuffer.remaining() == 0) {
             state = State.READING_RESPONSE_BODY;
-            frameBuffer = ByteBuffer.allocate(TFramedTransport.decodeFrameSize(sizeBufferArray));
+            int size = TFramedTransport.decodeFrameSize(sizeBufferArray);
+            if (headerFramed) {
+                frameBuffer = ByteBuffer.allocate(size + 4);
+                frameBuffer.put(sizeBufferArray);
+            } else {
+                frameBuffer = ByteBuffer.allocate(size);
+            }
+            // the body may already be waiting in the transport, e.g. in the
+            // rest of a decrypted TLS record, and then no read event follows
+            if (transport.hasBufferedInput()) {
+                doReadingResponseBody(key);
+            }
         }
     }
 
@@ -241,6 +300,9 @@ public abstract class TAsyncMethodCall<T> {
             throw new IOException("Write call frame failed");
         }
         if (frameBuffer.remaining() == 0) {
+            if (recorded) {
+                requestSentNanos = System.nanoTime();
+            }
             if (isOneway) {
                 cleanUpAndFireCallback(key);
             } else {
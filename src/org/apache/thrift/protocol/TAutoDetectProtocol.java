@@ -0,0 +1,462 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side protocol that works out from the first byte of the first message on a connection whether the client
+ * speaks binary (strict or not), compact or JSON, and sticks to that protocol for the rest of the connection. This lets
+ * a single port serve clients while they move from one protocol to another.
+ *
+ * The output protocol of a connection answers in the protocol detected by its input protocol once the server has paired
+ * them with {@link #setRequestProtocol(TAutoDetectProtocol)}, which the servers in this library do.
+ *
+ * @see TProtocolUtil#guessProtocolFactory(byte[], TProtocolFactory)
+ */
+public class TAutoDetectProtocol extends TProtocol {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TAutoDetectProtocol.class.getName());
+
+    /**
+     * Factory
+     */
+    public static class Factory implements TProtocolFactory {
+        private final TProtocolFactory binaryFactory_;
+        private final TProtocolFactory compactFactory_;
+        private final TProtocolFactory jsonFactory_;
+        private final TProtocolFactory fallbackFactory_;
+
+        /**
+         * Accepts binary, compact and JSON clients with the default settings of their protocols.
+         */
+        public Factory() {
+            this(new TBinaryProtocol.Factory(), new TCompactProtocol.Factory(), new TJSONProtocol.Factory());
+        }
+
+        /**
+         * @param binaryFactory
+         *            creates the protocol for binary clients, or null to reject them. It should accept messages
+         *            without a version if non-strict clients are to be served.
+         * @param compactFactory
+         *            creates the protocol for compact clients, or null to reject them
+         * @param jsonFactory
+         *            creates the protocol for JSON clients, or null to reject them
+         */
+        public Factory(TProtocolFactory binaryFactory, TProtocolFactory compactFactory, TProtocolFactory jsonFactory) {
+            binaryFactory_ = binaryFactory;
+            compactFactory_ = compactFactory;
+            jsonFactory_ = jsonFactory;
+            fallbackFactory_ = binaryFactory != null ? binaryFactory : compactFactory != null ? compactFactory
+                    : jsonFactory;
+            if (fallbackFactory_ == null) {
+                throw new IllegalArgumentException("At least one protocol must be accepted");
+            }
+        }
+
+        public TProtocol getProtocol(TTransport trans) {
+            return new TAutoDetectProtocol(trans, this);
+        }
+    }
+
+    // the byte every message of a protocol starts with
+    private static final byte BINARY_STRICT_START = (byte) 0x80;
+    private static final byte BINARY_NON_STRICT_START = 0x00;
+    private static final byte COMPACT_START = (byte) 0x82;
+    private static final byte JSON_START = '[';
+
+    private final Factory factory_;
+
+    // the input protocol of the connection, whose choice this one answers in
+    private TAutoDetectProtocol requestProtocol_;
+
+    private TProtocolFactory detected_;
+    private TProtocol delegate_;
+    private TProtocol fallback_;
+
+    public TAutoDetectProtocol(TTransport trans, Factory factory) {
+        super(trans);
+        factory_ = factory;
+    }
+
+    /**
+     * Makes this protocol write with the protocol detected by the given one, which reads the requests of the same
+     * connection.
+     */
+    public void setRequestProtocol(TAutoDetectProtocol requestProtocol) {
+        requestProtocol_ = requestProtocol;
+    }
+
+    /**
+     * The factory of the protocol detected on this connection, or null if no message has been read yet.
+     */
+    public TProtocolFactory getDetectedProtocolFactory() {
+        return detected_;
+    }
+
+    private TProtocol reader() throws TException {
+        if (delegate_ == null) {
+            detect();
+        }
+        return delegate_;
+    }
+
+    private TProtocol writer() {
+        if (delegate_ == null) {
+            if (requestProtocol_ != null && requestProtocol_.detected_ == null) {
+                // nothing has been understood yet, so the choice is still open
+                if (fallback_ == null) {
+                    fallback_ = factory_.fallbackFactory_.getProtocol(trans_);
+                }
+                return fallback_;
+            }
+            detected_ = requestProtocol_ != null ? requestProtocol_.detected_ : factory_.fallbackFactory_;
+            delegate_ = detected_.getProtocol(trans_);
+        }
+        return delegate_;
+    }
+
+    private void detect() throws TException {
+        TTransport trans = trans_;
+        byte first;
+        if (trans_.getBytesRemainingInBuffer() > 0) {
+            first = trans_.getBuffer()[trans_.getBufferPosition()];
+        } else {
+            byte[] b = new byte[1];
+            trans_.readAll(b, 0, 1);
+            first = b[0];
+            trans = new PushbackTransport(trans_, first);
+        }
+
+        TProtocolFactory factory;
+        switch (first) {
+        case BINARY_STRICT_START:
+        case BINARY_NON_STRICT_START:
+            factory = factory_.binaryFactory_;
+            break;
+        case COMPACT_START:
+            factory = factory_.compactFactory_;
+            break;
+        case JSON_START:
+            factory = factory_.jsonFactory_;
+            break;
+        default:
+            factory = null;
+            break;
+        }
+        if (factory == null) {
+            throw new TProtocolException(TProtocolException.NOT_IMPLEMENTED, "Unsupported protocol, message starts with 0x"
+                    + Integer.toHexString(first & 0xff));
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Detected protocol {} on {}", factory.getClass().getName(), trans_);
+        }
+        detected_ = factory;
+        delegate_ = factory.getProtocol(trans);
+    }
+
+    @Override
+    public void writeMessageBegin(TMessage message) throws TException {
+        writer().writeMessageBegin(message);
+    }
+
+    @Override
+    public void writeMessageEnd() throws TException {
+        writer().writeMessageEnd();
+    }
+
+    @Override
+    public void writeStructBegin(TStruct struct) throws TException {
+        writer().writeStructBegin(struct);
+    }
+
+    @Override
+    public void writeStructEnd() throws TException {
+        writer().writeStructEnd();
+    }
+
+    @Override
+    public void writeFieldBegin(TField field) throws TException {
+        writer().writeFieldBegin(field);
+    }
+
+    @Override
+    public void writeFieldEnd() throws TException {
+        writer().writeFieldEnd();
+    }
+
+    @Override
+    public void writeFieldStop() throws TException {
+        writer().writeFieldStop();
+    }
+
+    @Override
+    public void writeMapBegin(TMap map) throws TException {
+        writer().writeMapBegin(map);
+    }
+
+    @Override
+    public void writeMapEnd() throws TException {
+        writer().writeMapEnd();
+    }
+
+    @Override
+    public void writeListBegin(TList list) throws TException {
+        writer().writeListBegin(list);
+    }
+
+    @Override
+    public void writeListEnd() throws TException {
+        writer().writeListEnd();
+    }
+
+    @Override
+    public void writeSetBegin(TSet set) throws TException {
+        writer().writeSetBegin(set);
+    }
+
+    @Override
+    public void writeSetEnd() throws TException {
+        writer().writeSetEnd();
+    }
+
+    @Override
+    public void writeBool(boolean b) throws TException {
+        writer().writeBool(b);
+    }
+
+    @Override
+    public void writeByte(byte b) throws TException {
+        writer().writeByte(b);
+    }
+
+    @Override
+    public void writeI16(short i16) throws TException {
+        writer().writeI16(i16);
+    }
+
+    @Override
+    public void writeI32(int i32) throws TException {
+        writer().writeI32(i32);
+    }
+
+    @Override
+    public void writeI64(long i64) throws TException {
+        writer().writeI64(i64);
+    }
+
+    @Override
+    public void writeDouble(double dub) throws TException {
+        writer().writeDouble(dub);
+    }
+
+    @Override
+    public void writeString(String str) throws TException {
+        writer().writeString(str);
+    }
+
+    @Override
+    public void writeBinary(ByteBuffer buf) throws TException {
+        writer().writeBinary(buf);
+    }
+
+    @Override
+    public TMessage readMessageBegin() throws TException {
+        return reader().readMessageBegin();
+    }
+
+    @Override
+    public void readMessageEnd() throws TException {
+        reader().readMessageEnd();
+    }
+
+    @Override
+    public TStruct readStructBegin() throws TException {
+        return reader().readStructBegin();
+    }
+
+    @Override
+    public void readStructEnd() throws TException {
+        reader().readStructEnd();
+    }
+
+    @Override
+    public TField readFieldBegin() throws TException {
+        return reader().readFieldBegin();
+    }
+
+    @Override
+    public void readFieldEnd() throws TException {
+        reader().readFieldEnd();
+    }
+
+    @Override
+    public TMap readMapBegin() throws TException {
+        return reader().readMapBegin();
+    }
+
+    @Override
+    public void readMapEnd() throws TException {
+        reader().readMapEnd();
+    }
+
+    @Override
+    public TList readListBegin() throws TException {
+        return reader().readListBegin();
+    }
+
+    @Override
+    public void readListEnd() throws TException {
+        reader().readListEnd();
+    }
+
+    @Override
+    public TSet readSetBegin() throws TException {
+        return reader().readSetBegin();
+    }
+
+    @Override
+    public void readSetEnd() throws TException {
+        reader().readSetEnd();
+    }
+
+    @Override
+    public boolean readBool() throws TException {
+        return reader().readBool();
+    }
+
+    @Override
+    public byte readByte() throws TException {
+        return reader().readByte();
+    }
+
+    @Override
+    public short readI16() throws TException {
+        return reader().readI16();
+    }
+
+    @Override
+    public int readI32() throws TException {
+        return reader().readI32();
+    }
+
+    @Override
+    public long readI64() throws TException {
+        return reader().readI64();
+    }
+
+    @Override
+    public double readDouble() throws TException {
+        return reader().readDouble();
+    }
+
+    @Override
+    public String readString() throws TException {
+        return reader().readString();
+    }
+
+    @Override
+    public ByteBuffer readBinary() throws TException {
+        return reader().readBinary();
+    }
+
+    @Override
+    public void reset() {
+        if (delegate_ != null) {
+            delegate_.reset();
+        }
+    }
+
+    /**
+     * Hands out the byte read for detection before passing reads on to the underlying transport.
+     */
+    private static final class PushbackTransport extends TTransport {
+        private final TTransport underlying_;
+        private byte pushedBack_;
+        private boolean pending_ = true;
+
+        PushbackTransport(TTransport underlying, byte pushedBack) {
+            underlying_ = underlying;
+            pushedBack_ = pushedBack;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return underlying_.isOpen();
+        }
+
+        @Override
+        public void open() throws TTransportException {
+            underlying_.open();
+        }
+
+        @Override
+        public void close() {
+            underlying_.close();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            if (pending_ && len > 0) {
+                pending_ = false;
+                buf[off] = pushedBack_;
+                return 1;
+            }
+            return underlying_.read(buf, off, len);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws TTransportException {
+            underlying_.write(buf, off, len);
+        }
+
+        @Override
+        public void flush() throws TTransportException {
+            underlying_.flush();
+        }
+
+        @Override
+        public byte[] getBuffer() {
+            return pending_ ? null : underlying_.getBuffer();
+        }
+
+        @Override
+        public int getBufferPosition() {
+            return pending_ ? 0 : underlying_.getBufferPosition();
+        }
+
+        @Override
+        public int getBytesRemainingInBuffer() {
+            return pending_ ? -1 : underlying_.getBytesRemainingInBuffer();
+        }
+
+        @Override
+        public void consumeBuffer(int len) {
+            underlying_.consumeBuffer(len);
+        }
+    }
+}
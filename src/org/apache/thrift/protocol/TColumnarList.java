@@ -0,0 +1,716 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of structs in the columnar encoding of {@link TColumnarProtocol}, decoded into one array per field. Rows are
+ * read back by position, without materializing a struct per row, e.g. to aggregate a few fields of a large result.
+ *
+ * A column holds every value of one field id. Rows in which the field was not set are marked in a presence bitmap and
+ * read as the default value of the type. Integers are stored as zigzag varints, strings and binaries through a
+ * dictionary when the column has few distinct values, and struct and container fields as compact protocol encoded
+ * values.
+ */
+public final class TColumnarList {
+
+    static final byte ENCODING_PLAIN = 0;
+    static final byte ENCODING_DICTIONARY = 1;
+
+    static final byte ALL_PRESENT = 0;
+    static final byte PRESENCE_BITMAP = 1;
+
+    // dictionaries that grow past either bound are given up in favor of plain values
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+    private static final int MIN_VALUES_FOR_RATIO = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final TColumnarList EMPTY = new TColumnarList(0, new Column[0]);
+
+    private final int rowCount;
+    private final Column[] columns;
+
+    private TColumnarList(int rowCount, Column[] columns) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * The columns in the order of their field ids.
+     */
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * The column of the given field, or null if no row has it set.
+     */
+    public Column getColumnById(short fieldId) {
+        for (Column column : columns) {
+            if (column.fieldId == fieldId) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    Column[] columns() {
+        return columns;
+    }
+
+    /**
+     * The values of one field. Getters must match the type of the column and return the default value of the type for
+     * rows in which the field is not set.
+     */
+    public static final class Column {
+        private final short fieldId;
+        private final byte type;
+        private final TField field;
+
+        // one bit per row, null when the field is set in every row
+        private long[] presence;
+
+        private int[] ints;
+        private long[] longs;
+        private double[] doubles;
+
+        // strings, binaries and nested values are ranges of data, and so are the
+        // entries of a dictionary, which indexes then refers to row by row
+        private byte[] data;
+        private int[] offsets;
+        private int[] lengths;
+        private int[] indexes;
+        private String[] strings;
+
+        private Column(short fieldId, byte type) {
+            this.fieldId = fieldId;
+            this.type = type;
+            this.field = new TField("", type, fieldId);
+        }
+
+        public short getFieldId() {
+            return fieldId;
+        }
+
+        /**
+         * The {@link TType} of the values.
+         */
+        public byte getType() {
+            return type;
+        }
+
+        TField getField() {
+            return field;
+        }
+
+        public boolean isDictionaryEncoded() {
+            return indexes != null;
+        }
+
+        public boolean isSet(int row) {
+            return presence == null || (presence[row >>> 6] & (1L << row)) != 0;
+        }
+
+        public boolean getBool(int row) {
+            return ints[row] != 0;
+        }
+
+        public byte getByte(int row) {
+            return (byte) ints[row];
+        }
+
+        public short getI16(int row) {
+            return (short) ints[row];
+        }
+
+        public int getI32(int row) {
+            return ints[row];
+        }
+
+        public long getI64(int row) {
+            return longs[row];
+        }
+
+        public double getDouble(int row) {
+            return doubles[row];
+        }
+
+        /**
+         * The string in the given row, null if it is not set. Rows holding the same dictionary entry share the
+         * returned instance.
+         */
+        public String getString(int row) {
+            if (!isSet(row)) {
+                return null;
+            }
+            if (indexes == null) {
+                return new String(data, offsets[row], lengths[row], UTF8);
+            }
+            int index = indexes[row];
+            String s = strings[index];
+            if (s == null) {
+                s = new String(data, offsets[index], lengths[index], UTF8);
+                strings[index] = s;
+            }
+            return s;
+        }
+
+        /**
+         * The binary in the given row, wrapping the decoded list, null if it is not set.
+         */
+        public ByteBuffer getBinary(int row) {
+            if (!isSet(row)) {
+                return null;
+            }
+            int entry = indexes == null ? row : indexes[row];
+            return ByteBuffer.wrap(data, offsets[entry], lengths[entry]);
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        int getOffset(int row) {
+            return offsets[indexes == null ? row : indexes[row]];
+        }
+
+        int getLength(int row) {
+            return lengths[indexes == null ? row : indexes[row]];
+        }
+    }
+
+    static boolean isNested(byte type) {
+        return type == TType.STRUCT || type == TType.LIST || type == TType.SET || type == TType.MAP;
+    }
+
+    /**
+     * Decodes a list of the given number of rows from a block written by {@link Encoder#finish()}. Strings, binaries
+     * and nested values are left in the block, which must not be modified afterwards.
+     */
+    static TColumnarList decode(byte[] block, int rowCount) throws TProtocolException {
+        Source in = new Source(block);
+        int columnCount = in.readVarint();
+        if (columnCount < 0 || columnCount > block.length) {
+            throw corrupt("invalid column count " + columnCount);
+        }
+        Column[] columns = new Column[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            Column column = new Column((short) in.readVarint(), in.readByte());
+            byte encoding = in.readByte();
+            byte presenceMode = in.readByte();
+            if (presenceMode == PRESENCE_BITMAP) {
+                column.presence = new long[(rowCount + 63) >>> 6];
+                for (int row = 0; row < rowCount; row += 8) {
+                    long bits = in.readByte() & 0xffL;
+                    column.presence[row >>> 6] |= bits << (row & 63);
+                }
+            } else if (presenceMode != ALL_PRESENT) {
+                throw corrupt("invalid presence mode " + presenceMode);
+            }
+            int length = in.readVarint();
+            int end = in.pos + length;
+            if (length < 0 || end > block.length) {
+                throw corrupt("invalid column length " + length);
+            }
+            decodeValues(column, encoding, in, rowCount);
+            if (in.pos != end) {
+                throw corrupt("column " + column.fieldId + " has " + (end - in.pos) + " bytes left");
+            }
+            columns[c] = column;
+        }
+        if (in.pos != block.length) {
+            throw corrupt((block.length - in.pos) + " bytes after the last column");
+        }
+        return new TColumnarList(rowCount, columns);
+    }
+
+    private static void decodeValues(Column column, byte encoding, Source in, int rowCount)
+            throws TProtocolException {
+        switch (column.type) {
+        case TType.BOOL:
+        case TType.BYTE:
+            column.ints = new int[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isSet(row)) {
+                    column.ints[row] = in.readByte();
+                }
+            }
+            break;
+        case TType.I16:
+        case TType.I32:
+            column.ints = new int[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isSet(row)) {
+                    column.ints[row] = (int) in.readZigZag();
+                }
+            }
+            break;
+        case TType.I64:
+            column.longs = new long[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isSet(row)) {
+                    column.longs[row] = in.readZigZag();
+                }
+            }
+            break;
+        case TType.DOUBLE:
+            column.doubles = new double[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isSet(row)) {
+                    column.doubles[row] = Double.longBitsToDouble(in.readI64());
+                }
+            }
+            break;
+        case TType.STRING:
+        case TType.STRUCT:
+        case TType.LIST:
+        case TType.SET:
+        case TType.MAP:
+            column.data = in.buf;
+            if (encoding == ENCODING_DICTIONARY) {
+                int size = in.readVarint();
+                if (size < 0 || size > in.buf.length - in.pos) {
+                    throw corrupt("invalid dictionary size " + size);
+                }
+                column.offsets = new int[size];
+                column.lengths = new int[size];
+                column.strings = new String[size];
+                for (int i = 0; i < size; i++) {
+                    column.lengths[i] = in.readVarint();
+                    column.offsets[i] = in.skip(column.lengths[i]);
+                }
+                column.indexes = new int[rowCount];
+                for (int row = 0; row < rowCount; row++) {
+                    if (column.isSet(row)) {
+                        int index = in.readVarint();
+                        if (index < 0 || index >= size) {
+                            throw corrupt("dictionary index " + index + " out of range");
+                        }
+                        column.indexes[row] = index;
+                    }
+                }
+            } else if (encoding == ENCODING_PLAIN) {
+                column.offsets = new int[rowCount];
+                column.lengths = new int[rowCount];
+                for (int row = 0; row < rowCount; row++) {
+                    if (column.isSet(row)) {
+                        column.lengths[row] = in.readVarint();
+                        column.offsets[row] = in.skip(column.lengths[row]);
+                    }
+                }
+            } else {
+                throw corrupt("invalid encoding " + encoding);
+            }
+            break;
+        default:
+            throw corrupt("invalid type " + column.type);
+        }
+    }
+
+    private static TProtocolException corrupt(String message) {
+        return new TProtocolException(TProtocolException.INVALID_DATA, "Corrupt columnar list: " + message);
+    }
+
+    /**
+     * Reads the block of an encoded list.
+     */
+    private static final class Source {
+        final byte[] buf;
+        int pos;
+
+        Source(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() throws TProtocolException {
+            if (pos >= buf.length) {
+                throw corrupt("truncated");
+            }
+            return buf[pos++];
+        }
+
+        int readVarint() throws TProtocolException {
+            long value = readVarint64();
+            if (value > Integer.MAX_VALUE) {
+                throw corrupt("varint out of range");
+            }
+            return (int) value;
+        }
+
+        long readVarint64() throws TProtocolException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw corrupt("invalid varint");
+        }
+
+        long readZigZag() throws TProtocolException {
+            long n = readVarint64();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        long readI64() throws TProtocolException {
+            if (buf.length - pos < 8) {
+                throw corrupt("truncated");
+            }
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buf[pos++] & 0xff);
+            }
+            return value;
+        }
+
+        int skip(int length) throws TProtocolException {
+            if (length < 0 || length > buf.length - pos) {
+                throw corrupt("invalid value length " + length);
+            }
+            int start = pos;
+            pos += length;
+            return start;
+        }
+    }
+
+    /**
+     * A growable byte array.
+     */
+    static final class Sink {
+        byte[] buf;
+        int len;
+
+        Sink(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (len + extra > buf.length) {
+                byte[] grown = new byte[Math.max(len + extra, buf.length * 2)];
+                System.arraycopy(buf, 0, grown, 0, len);
+                buf = grown;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void writeVarint(long n) {
+            ensure(10);
+            while ((n & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buf[len++] = (byte) n;
+        }
+
+        void writeZigZag(long n) {
+            writeVarint((n << 1) ^ (n >> 63));
+        }
+
+        void writeI64(long n) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[len++] = (byte) (n >>> shift);
+            }
+        }
+
+        void write(byte[] b, int off, int length) {
+            ensure(length);
+            System.arraycopy(b, off, buf, len, length);
+            len += length;
+        }
+
+        void write(Sink sink) {
+            write(sink.buf, 0, sink.len);
+        }
+    }
+
+    /**
+     * Collects the fields of the rows of a list column by column, and encodes them into a block.
+     */
+    static final class Encoder {
+        private final List<ColumnEncoder> columns = new ArrayList<ColumnEncoder>();
+        private int rowCount;
+        // where the next field of a row is expected, rows usually set the same fields in the same order
+        private int cursor;
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        void beginRow() {
+            cursor = 0;
+        }
+
+        void endRow() {
+            rowCount++;
+        }
+
+        /**
+         * The column the value of the given field in the current row goes to.
+         */
+        ColumnEncoder column(short fieldId, byte type) throws TProtocolException {
+            ColumnEncoder column = null;
+            if (cursor < columns.size() && columns.get(cursor).fieldId == fieldId) {
+                column = columns.get(cursor);
+            } else {
+                for (int i = 0; i < columns.size(); i++) {
+                    if (columns.get(i).fieldId == fieldId) {
+                        column = columns.get(i);
+                        cursor = i;
+                        break;
+                    }
+                }
+                if (column == null) {
+                    column = new ColumnEncoder(fieldId, type);
+                    cursor = columns.size();
+                    columns.add(column);
+                }
+            }
+            cursor++;
+            if (column.type != type) {
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "Field " + fieldId + " written as type "
+                        + type + " after type " + column.type);
+            }
+            column.setPresent(rowCount);
+            return column;
+        }
+
+        byte[] finish() {
+            // rows replay their fields in column order, which should not depend on the first row setting every field
+            Collections.sort(columns, new Comparator<ColumnEncoder>() {
+                @Override
+                public int compare(ColumnEncoder left, ColumnEncoder right) {
+                    return left.fieldId - right.fieldId;
+                }
+            });
+            Sink out = new Sink(64);
+            out.writeVarint(columns.size());
+            for (ColumnEncoder column : columns) {
+                column.finish(out, rowCount);
+            }
+            byte[] block = out.buf;
+            if (out.len != block.length) {
+                block = new byte[out.len];
+                System.arraycopy(out.buf, 0, block, 0, out.len);
+            }
+            return block;
+        }
+    }
+
+    static final class ColumnEncoder {
+        final short fieldId;
+        final byte type;
+
+        private long[] presence = new long[16];
+        private int presentCount;
+        private int lastRow = -1;
+
+        private final Sink values = new Sink(64);
+
+        // dictionary of the distinct strings or binaries, null once it has been given up
+        private Map<Object, Integer> dictionary;
+        private Sink entries;
+        private int[] entryOffsets;
+
+        ColumnEncoder(short fieldId, byte type) {
+            this.fieldId = fieldId;
+            this.type = type;
+            if (type == TType.STRING) {
+                dictionary = new HashMap<Object, Integer>();
+                entries = new Sink(64);
+                entryOffsets = new int[16];
+            }
+        }
+
+        void setPresent(int row) throws TProtocolException {
+            if (row == lastRow) {
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "Field " + fieldId
+                        + " written twice in row " + row);
+            }
+            lastRow = row;
+            int word = row >>> 6;
+            if (word >= presence.length) {
+                long[] grown = new long[Math.max(word + 1, presence.length * 2)];
+                System.arraycopy(presence, 0, grown, 0, presence.length);
+                presence = grown;
+            }
+            presence[word] |= 1L << row;
+            presentCount++;
+        }
+
+        void writeByte(byte b) {
+            values.writeByte(b);
+        }
+
+        void writeInteger(long n) {
+            values.writeZigZag(n);
+        }
+
+        void writeDouble(double d) {
+            values.writeI64(Double.doubleToLongBits(d));
+        }
+
+        void writeString(String s) {
+            if (dictionary != null) {
+                Integer index = dictionary.get(s);
+                if (index != null) {
+                    values.writeVarint(index);
+                    return;
+                }
+            }
+            byte[] bytes = s.getBytes(UTF8);
+            writeBytes(s, bytes, 0, bytes.length);
+        }
+
+        void writeBinary(ByteBuffer bin) {
+            int length = bin.limit() - bin.position();
+            byte[] bytes;
+            int off;
+            if (bin.hasArray()) {
+                bytes = bin.array();
+                off = bin.arrayOffset() + bin.position();
+            } else {
+                bytes = new byte[length];
+                bin.duplicate().get(bytes);
+                off = 0;
+            }
+            if (dictionary != null) {
+                byte[] key = new byte[length];
+                System.arraycopy(bytes, off, key, 0, length);
+                ByteBuffer wrapped = ByteBuffer.wrap(key);
+                Integer index = dictionary.get(wrapped);
+                if (index != null) {
+                    values.writeVarint(index);
+                    return;
+                }
+                writeBytes(wrapped, key, 0, length);
+            } else {
+                writeBytes(null, bytes, off, length);
+            }
+        }
+
+        private void writeBytes(Object key, byte[] bytes, int off, int length) {
+            if (dictionary != null) {
+                int index = dictionary.size();
+                if (index < MAX_DICTIONARY_SIZE && (presentCount < MIN_VALUES_FOR_RATIO || index < presentCount / 2)) {
+                    dictionary.put(key, index);
+                    if (index + 1 >= entryOffsets.length) {
+                        int[] grown = new int[entryOffsets.length * 2];
+                        System.arraycopy(entryOffsets, 0, grown, 0, entryOffsets.length);
+                        entryOffsets = grown;
+                    }
+                    entries.write(bytes, off, length);
+                    entryOffsets[index + 1] = entries.len;
+                    values.writeVarint(index);
+                    return;
+                }
+                giveUpDictionary();
+            }
+            values.writeVarint(length);
+            values.write(bytes, off, length);
+        }
+
+        /**
+         * Rewrites the indexes collected so far as plain values.
+         */
+        private void giveUpDictionary() {
+            Source indexes = new Source(values.buf);
+            int end = values.len;
+            values.len = 0;
+            Sink plain = new Sink(Math.max(64, entries.len * 2));
+            try {
+                while (indexes.pos < end) {
+                    int index = indexes.readVarint();
+                    int start = entryOffsets[index];
+                    plain.writeVarint(entryOffsets[index + 1] - start);
+                    plain.write(entries.buf, start, entryOffsets[index + 1] - start);
+                }
+            } catch (TProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+            values.buf = plain.buf;
+            values.len = plain.len;
+            dictionary = null;
+            entries = null;
+            entryOffsets = null;
+        }
+
+        void writeNested(byte[] bytes, int off, int length) {
+            values.writeVarint(length);
+            values.write(bytes, off, length);
+        }
+
+        void finish(Sink out, int rowCount) {
+            if (dictionary != null && dictionary.size() > presentCount / 2) {
+                // mostly distinct values, the indexes would only add to them
+                giveUpDictionary();
+            }
+            out.writeVarint(fieldId & 0xffff);
+            out.writeByte(type);
+            out.writeByte(dictionary != null ? ENCODING_DICTIONARY : ENCODING_PLAIN);
+            if (presentCount == rowCount) {
+                out.writeByte(ALL_PRESENT);
+            } else {
+                out.writeByte(PRESENCE_BITMAP);
+                for (int row = 0; row < rowCount; row += 8) {
+                    int word = row >>> 6;
+                    out.writeByte(word < presence.length ? (int) (presence[word] >>> (row & 63)) : 0);
+                }
+            }
+            if (dictionary != null) {
+                Sink dict = new Sink(entries.len + 5 * dictionary.size() + 5);
+                dict.writeVarint(dictionary.size());
+                for (int i = 0; i < dictionary.size(); i++) {
+                    dict.writeVarint(entryOffsets[i + 1] - entryOffsets[i]);
+                    dict.write(entries.buf, entryOffsets[i], entryOffsets[i + 1] - entryOffsets[i]);
+                }
+                out.writeVarint(dict.len + values.len);
+                out.write(dict);
+            } else {
+                out.writeVarint(values.len);
+            }
+            out.write(values);
+        }
+    }
+}
@@ -0,0 +1,681 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Protocol decorator that writes every list of structs column by column instead of row by row: the rows of the list
+ * are collected as they are written and go out as a single binary value holding one column per field, see
+ * {@link TColumnarList}. Field headers are written once per column instead of once per row, integers shrink to
+ * varints, repeated strings to dictionary indexes, and similar values end up next to each other, which also helps any
+ * compression further down. Reading replays the columns row by row to generated code, or hands them out as they are
+ * through {@link #readColumnarList()}.
+ *
+ * Lists of structs nested in the rows of such a list, and any other value nested in them, are stored in their column
+ * in the compact protocol rather than column by column.
+ *
+ * The encoding is not understood by the wrapped protocol alone, so both ends of a connection have to opt in.
+ */
+public class TColumnarProtocol extends TProtocolDecorator {
+
+    /**
+     * Factory
+     */
+    public static class Factory implements TProtocolFactory {
+        private final TProtocolFactory factory_;
+
+        /**
+         * @param factory
+         *            creates the protocols to wrap
+         */
+        public Factory(TProtocolFactory factory) {
+            factory_ = factory;
+        }
+
+        public TProtocol getProtocol(TTransport trans) {
+            return new TColumnarProtocol(factory_.getProtocol(trans));
+        }
+    }
+
+    private static final TStruct ANONYMOUS_STRUCT = new TStruct();
+    private static final TField STOP = new TField("", TType.STOP, (short) 0);
+
+    // the list being written, null unless a list of structs is being written
+    private TColumnarList.Encoder encoder_;
+    private int declaredSize_;
+    private boolean writingRow_;
+    private TColumnarList.ColumnEncoder writeColumn_;
+    // set when the next begin call starts a struct or container value of the current field
+    private boolean writeNestedPending_;
+    // how deep inside a nested value the writer is
+    private int writeNestedDepth_;
+    private final TByteArrayOutputStream nestedOut_ = new TByteArrayOutputStream(256);
+    private final TProtocol nestedWriter_ = new TCompactProtocol(new TIOStreamTransport(nestedOut_));
+
+    // the list being read, null unless a list of structs is being read
+    private TColumnarList list_;
+    private int row_;
+    private boolean readingRow_;
+    private int nextColumn_;
+    private TColumnarList.Column readColumn_;
+    private boolean readNestedPending_;
+    private int readNestedDepth_;
+    private final TMemoryInputTransport nestedIn_ = new TMemoryInputTransport();
+    private final TProtocol nestedReader_ = new TCompactProtocol(nestedIn_);
+
+    public TColumnarProtocol(TProtocol protocol) {
+        super(protocol);
+    }
+
+    /**
+     * Reads a list of structs, written by this protocol, as columns.
+     *
+     * @throws TProtocolException
+     *             if the next value is not a list of structs
+     */
+    public TColumnarList readColumnarList() throws TException {
+        if (list_ != null) {
+            throw new TProtocolException(TProtocolException.INVALID_DATA,
+                    "Columnar lists nested in columnar lists are not stored as columns");
+        }
+        TList list = super.readListBegin();
+        if (list.elemType != TType.STRUCT) {
+            throw new TProtocolException(TProtocolException.INVALID_DATA, "Expected a list of structs but got element type "
+                    + list.elemType);
+        }
+        TColumnarList columns = readColumns(list);
+        super.readListEnd();
+        return columns;
+    }
+
+    private TColumnarList readColumns(TList list) throws TException {
+        if (list.size < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative list size: " + list.size);
+        }
+        if (list.size == 0) {
+            return TColumnarList.EMPTY;
+        }
+        ByteBuffer bin = super.readBinary();
+        // the columns keep referring to the block, which may be a slice of a transport buffer
+        byte[] block = new byte[bin.remaining()];
+        bin.get(block);
+        return TColumnarList.decode(block, list.size);
+    }
+
+    //
+    // Writing
+    //
+
+    private static TProtocolException outOfPlace(String what) {
+        return new TProtocolException(TProtocolException.INVALID_DATA, what + " written out of place in a list of structs");
+    }
+
+    /**
+     * Whether a begin call goes to the nested value of the current field.
+     */
+    private boolean beginNestedWrite() {
+        if (writeNestedDepth_ > 0) {
+            writeNestedDepth_++;
+            return true;
+        }
+        if (writeNestedPending_) {
+            writeNestedPending_ = false;
+            writeNestedDepth_ = 1;
+            nestedOut_.reset();
+            nestedWriter_.reset();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called after an end call went to the nested value, stores the value once it is complete.
+     */
+    private void endNestedWrite() {
+        if (--writeNestedDepth_ == 0) {
+            writeColumn_.writeNested(nestedOut_.get(), 0, nestedOut_.len());
+        }
+    }
+
+    private TColumnarList.ColumnEncoder valueColumn(byte type) throws TProtocolException {
+        if (writeColumn_ == null || writeColumn_.type != type) {
+            throw outOfPlace("Value of type " + type);
+        }
+        return writeColumn_;
+    }
+
+    @Override
+    public void writeMessageBegin(TMessage message) throws TException {
+        if (encoder_ != null) {
+            throw outOfPlace("Message");
+        }
+        super.writeMessageBegin(message);
+    }
+
+    @Override
+    public void writeStructBegin(TStruct struct) throws TException {
+        if (encoder_ == null) {
+            super.writeStructBegin(struct);
+        } else if (beginNestedWrite()) {
+            nestedWriter_.writeStructBegin(struct);
+        } else if (!writingRow_) {
+            encoder_.beginRow();
+            writingRow_ = true;
+        } else {
+            throw outOfPlace("Struct");
+        }
+    }
+
+    @Override
+    public void writeStructEnd() throws TException {
+        if (encoder_ == null) {
+            super.writeStructEnd();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeStructEnd();
+            endNestedWrite();
+        } else if (writingRow_) {
+            encoder_.endRow();
+            writingRow_ = false;
+            writeColumn_ = null;
+        } else {
+            throw outOfPlace("Struct end");
+        }
+    }
+
+    @Override
+    public void writeFieldBegin(TField field) throws TException {
+        if (encoder_ == null) {
+            super.writeFieldBegin(field);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeFieldBegin(field);
+        } else if (writingRow_) {
+            writeColumn_ = encoder_.column(field.id, field.type);
+            writeNestedPending_ = TColumnarList.isNested(field.type);
+        } else {
+            throw outOfPlace("Field");
+        }
+    }
+
+    @Override
+    public void writeFieldEnd() throws TException {
+        if (encoder_ == null) {
+            super.writeFieldEnd();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeFieldEnd();
+        } else {
+            writeColumn_ = null;
+        }
+    }
+
+    @Override
+    public void writeFieldStop() throws TException {
+        if (encoder_ == null) {
+            super.writeFieldStop();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeFieldStop();
+        }
+    }
+
+    @Override
+    public void writeListBegin(TList list) throws TException {
+        if (encoder_ == null) {
+            if (list.elemType != TType.STRUCT) {
+                super.writeListBegin(list);
+            } else {
+                encoder_ = new TColumnarList.Encoder();
+                declaredSize_ = list.size;
+            }
+        } else if (beginNestedWrite()) {
+            nestedWriter_.writeListBegin(list);
+        } else {
+            throw outOfPlace("List");
+        }
+    }
+
+    @Override
+    public void writeListEnd() throws TException {
+        if (encoder_ == null) {
+            super.writeListEnd();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeListEnd();
+            endNestedWrite();
+        } else if (!writingRow_) {
+            TColumnarList.Encoder encoder = encoder_;
+            encoder_ = null;
+            int rows = encoder.getRowCount();
+            if (rows != declaredSize_) {
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "List declared " + declaredSize_
+                        + " elements but " + rows + " were written");
+            }
+            super.writeListBegin(new TList(TType.STRUCT, rows));
+            if (rows > 0) {
+                super.writeBinary(ByteBuffer.wrap(encoder.finish()));
+            }
+            super.writeListEnd();
+        } else {
+            throw outOfPlace("List end");
+        }
+    }
+
+    @Override
+    public void writeMapBegin(TMap map) throws TException {
+        if (encoder_ == null) {
+            super.writeMapBegin(map);
+        } else if (beginNestedWrite()) {
+            nestedWriter_.writeMapBegin(map);
+        } else {
+            throw outOfPlace("Map");
+        }
+    }
+
+    @Override
+    public void writeMapEnd() throws TException {
+        if (encoder_ == null) {
+            super.writeMapEnd();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeMapEnd();
+            endNestedWrite();
+        } else {
+            throw outOfPlace("Map end");
+        }
+    }
+
+    @Override
+    public void writeSetBegin(TSet set) throws TException {
+        if (encoder_ == null) {
+            super.writeSetBegin(set);
+        } else if (beginNestedWrite()) {
+            nestedWriter_.writeSetBegin(set);
+        } else {
+            throw outOfPlace("Set");
+        }
+    }
+
+    @Override
+    public void writeSetEnd() throws TException {
+        if (encoder_ == null) {
+            super.writeSetEnd();
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeSetEnd();
+            endNestedWrite();
+        } else {
+            throw outOfPlace("Set end");
+        }
+    }
+
+    @Override
+    public void writeBool(boolean b) throws TException {
+        if (encoder_ == null) {
+            super.writeBool(b);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeBool(b);
+        } else {
+            valueColumn(TType.BOOL).writeByte(b ? (byte) 1 : (byte) 0);
+        }
+    }
+
+    @Override
+    public void writeByte(byte b) throws TException {
+        if (encoder_ == null) {
+            super.writeByte(b);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeByte(b);
+        } else {
+            valueColumn(TType.BYTE).writeByte(b);
+        }
+    }
+
+    @Override
+    public void writeI16(short i16) throws TException {
+        if (encoder_ == null) {
+            super.writeI16(i16);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeI16(i16);
+        } else {
+            valueColumn(TType.I16).writeInteger(i16);
+        }
+    }
+
+    @Override
+    public void writeI32(int i32) throws TException {
+        if (encoder_ == null) {
+            super.writeI32(i32);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeI32(i32);
+        } else {
+            valueColumn(TType.I32).writeInteger(i32);
+        }
+    }
+
+    @Override
+    public void writeI64(long i64) throws TException {
+        if (encoder_ == null) {
+            super.writeI64(i64);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeI64(i64);
+        } else {
+            valueColumn(TType.I64).writeInteger(i64);
+        }
+    }
+
+    @Override
+    public void writeDouble(double dub) throws TException {
+        if (encoder_ == null) {
+            super.writeDouble(dub);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeDouble(dub);
+        } else {
+            valueColumn(TType.DOUBLE).writeDouble(dub);
+        }
+    }
+
+    @Override
+    public void writeString(String str) throws TException {
+        if (encoder_ == null) {
+            super.writeString(str);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeString(str);
+        } else {
+            valueColumn(TType.STRING).writeString(str);
+        }
+    }
+
+    @Override
+    public void writeBinary(ByteBuffer buf) throws TException {
+        if (encoder_ == null) {
+            super.writeBinary(buf);
+        } else if (writeNestedDepth_ > 0) {
+            nestedWriter_.writeBinary(buf);
+        } else {
+            valueColumn(TType.STRING).writeBinary(buf);
+        }
+    }
+
+    //
+    // Reading
+    //
+
+    private static TProtocolException readOutOfPlace(String what) {
+        return new TProtocolException(TProtocolException.INVALID_DATA, what + " read out of place in a list of structs");
+    }
+
+    /**
+     * Whether a begin call goes to the nested value of the current field.
+     */
+    private boolean beginNestedRead() {
+        if (readNestedDepth_ > 0) {
+            readNestedDepth_++;
+            return true;
+        }
+        if (readNestedPending_) {
+            readNestedPending_ = false;
+            readNestedDepth_ = 1;
+            return true;
+        }
+        return false;
+    }
+
+    private TColumnarList.Column valueColumn() throws TProtocolException {
+        if (readColumn_ == null) {
+            throw readOutOfPlace("Value");
+        }
+        return readColumn_;
+    }
+
+    @Override
+    public TMessage readMessageBegin() throws TException {
+        if (list_ != null) {
+            throw readOutOfPlace("Message");
+        }
+        return super.readMessageBegin();
+    }
+
+    @Override
+    public TStruct readStructBegin() throws TException {
+        if (list_ == null) {
+            return super.readStructBegin();
+        } else if (beginNestedRead()) {
+            return nestedReader_.readStructBegin();
+        } else if (!readingRow_ && row_ + 1 < list_.getRowCount()) {
+            row_++;
+            readingRow_ = true;
+            nextColumn_ = 0;
+            return ANONYMOUS_STRUCT;
+        }
+        throw readOutOfPlace("Struct");
+    }
+
+    @Override
+    public void readStructEnd() throws TException {
+        if (list_ == null) {
+            super.readStructEnd();
+        } else if (readNestedDepth_ > 0) {
+            nestedReader_.readStructEnd();
+            readNestedDepth_--;
+        } else if (readingRow_) {
+            readingRow_ = false;
+            readColumn_ = null;
+        } else {
+            throw readOutOfPlace("Struct end");
+        }
+    }
+
+    @Override
+    public TField readFieldBegin() throws TException {
+        if (list_ == null) {
+            return super.readFieldBegin();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readFieldBegin();
+        } else if (!readingRow_) {
+            throw readOutOfPlace("Field");
+        }
+        TColumnarList.Column[] columns = list_.columns();
+        for (int c = nextColumn_; c < columns.length; c++) {
+            TColumnarList.Column column = columns[c];
+            if (column.isSet(row_)) {
+                nextColumn_ = c + 1;
+                readColumn_ = column;
+                if (TColumnarList.isNested(column.getType())) {
+                    nestedIn_.reset(column.getData(), column.getOffset(row_), column.getLength(row_));
+                    nestedReader_.reset();
+                    readNestedPending_ = true;
+                }
+                return column.getField();
+            }
+        }
+        nextColumn_ = columns.length;
+        readColumn_ = null;
+        return STOP;
+    }
+
+    @Override
+    public void readFieldEnd() throws TException {
+        if (list_ == null) {
+            super.readFieldEnd();
+        } else if (readNestedDepth_ > 0) {
+            nestedReader_.readFieldEnd();
+        } else {
+            readColumn_ = null;
+        }
+    }
+
+    @Override
+    public TList readListBegin() throws TException {
+        if (list_ == null) {
+            TList list = super.readListBegin();
+            if (list.elemType == TType.STRUCT) {
+                list_ = readColumns(list);
+                row_ = -1;
+                readingRow_ = false;
+            }
+            return list;
+        } else if (beginNestedRead()) {
+            return nestedReader_.readListBegin();
+        }
+        throw readOutOfPlace("List");
+    }
+
+    @Override
+    public void readListEnd() throws TException {
+        if (list_ == null) {
+            super.readListEnd();
+        } else if (readNestedDepth_ > 0) {
+            nestedReader_.readListEnd();
+            readNestedDepth_--;
+        } else if (!readingRow_) {
+            list_ = null;
+            super.readListEnd();
+        } else {
+            throw readOutOfPlace("List end");
+        }
+    }
+
+    @Override
+    public TMap readMapBegin() throws TException {
+        if (list_ == null) {
+            return super.readMapBegin();
+        } else if (beginNestedRead()) {
+            return nestedReader_.readMapBegin();
+        }
+        throw readOutOfPlace("Map");
+    }
+
+    @Override
+    public void readMapEnd() throws TException {
+        if (list_ == null) {
+            super.readMapEnd();
+        } else if (readNestedDepth_ > 0) {
+            nestedReader_.readMapEnd();
+            readNestedDepth_--;
+        } else {
+            throw readOutOfPlace("Map end");
+        }
+    }
+
+    @Override
+    public TSet readSetBegin() throws TException {
+        if (list_ == null) {
+            return super.readSetBegin();
+        } else if (beginNestedRead()) {
+            return nestedReader_.readSetBegin();
+        }
+        throw readOutOfPlace("Set");
+    }
+
+    @Override
+    public void readSetEnd() throws TException {
+        if (list_ == null) {
+            super.readSetEnd();
+        } else if (readNestedDepth_ > 0) {
+            nestedReader_.readSetEnd();
+            readNestedDepth_--;
+        } else {
+            throw readOutOfPlace("Set end");
+        }
+    }
+
+    @Override
+    public boolean readBool() throws TException {
+        if (list_ == null) {
+            return super.readBool();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readBool();
+        }
+        return valueColumn().getBool(row_);
+    }
+
+    @Override
+    public byte readByte() throws TException {
+        if (list_ == null) {
+            return super.readByte();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readByte();
+        }
+        return valueColumn().getByte(row_);
+    }
+
+    @Override
+    public short readI16() throws TException {
+        if (list_ == null) {
+            return super.readI16();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readI16();
+        }
+        return valueColumn().getI16(row_);
+    }
+
+    @Override
+    public int readI32() throws TException {
+        if (list_ == null) {
+            return super.readI32();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readI32();
+        }
+        return valueColumn().getI32(row_);
+    }
+
+    @Override
+    public long readI64() throws TException {
+        if (list_ == null) {
+            return super.readI64();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readI64();
+        }
+        return valueColumn().getI64(row_);
+    }
+
+    @Override
+    public double readDouble() throws TException {
+        if (list_ == null) {
+            return super.readDouble();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readDouble();
+        }
+        return valueColumn().getDouble(row_);
+    }
+
+    @Override
+    public String readString() throws TException {
+        if (list_ == null) {
+            return super.readString();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readString();
+        }
+        return valueColumn().getString(row_);
+    }
+
+    @Override
+    public ByteBuffer readBinary() throws TException {
+        if (list_ == null) {
+            return super.readBinary();
+        } else if (readNestedDepth_ > 0) {
+            return nestedReader_.readBinary();
+        }
+        return valueColumn().getBinary(row_);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.THeaderTransport;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Protocol for {@link THeaderTransport}. Every message is written with the protocol named by the transport's protocol
+ * id, and read with the protocol named in the header of the frame it arrives in, so a server using this protocol
+ * answers binary, compact and JSON clients alike.
+ */
+public class THeaderProtocol extends TProtocol {
+
+    /**
+     * Factory
+     */
+    public static class Factory implements TProtocolFactory {
+        private final int protocolId_;
+
+        public Factory() {
+            this(THeaderTransport.PROTOCOL_BINARY);
+        }
+
+        /**
+         * @param protocolId
+         *            the protocol messages are written with when they do not answer a request
+         */
+        public Factory(int protocolId) {
+            protocolId_ = protocolId;
+        }
+
+        public TProtocol getProtocol(TTransport trans) {
+            return new THeaderProtocol(trans, protocolId_);
+        }
+    }
+
+    private final THeaderTransport transport_;
+
+    private final TProtocol[] protocols_ = new TProtocol[3];
+
+    private TProtocol reader_;
+    private TProtocol writer_;
+
+    /**
+     * @param trans
+     *            a {@link THeaderTransport}, or the transport to wrap in one
+     */
+    public THeaderProtocol(TTransport trans) {
+        this(trans instanceof THeaderTransport ? (THeaderTransport) trans : new THeaderTransport(trans));
+    }
+
+    public THeaderProtocol(TTransport trans, int protocolId) {
+        this(trans);
+        transport_.setProtocolId(protocolId);
+    }
+
+    private THeaderProtocol(THeaderTransport trans) {
+        super(trans);
+        transport_ = trans;
+    }
+
+    public THeaderTransport getHeaderTransport() {
+        return transport_;
+    }
+
+    private TProtocol protocol(int protocolId) throws TProtocolException {
+        if (protocolId < 0 || protocolId >= protocols_.length) {
+            throw new TProtocolException(TProtocolException.NOT_IMPLEMENTED, "Unsupported protocol id " + protocolId);
+        }
+        TProtocol protocol = protocols_[protocolId];
+        if (protocol == null) {
+            switch (protocolId) {
+            case THeaderTransport.PROTOCOL_BINARY:
+                protocol = new TBinaryProtocol(transport_);
+                break;
+            case THeaderTransport.PROTOCOL_JSON:
+                protocol = new TJSONProtocol(transport_);
+                break;
+            default:
+                protocol = new TCompactProtocol(transport_);
+                break;
+            }
+            protocols_[protocolId] = protocol;
+        }
+        return protocol;
+    }
+
+    private TProtocol reader() throws TProtocolException {
+        if (reader_ == null) {
+            reader_ = protocol(transport_.getWriteProtocolId());
+        }
+        return reader_;
+    }
+
+    private TProtocol writer() throws TProtocolException {
+        if (writer_ == null) {
+            writer_ = protocol(transport_.getWriteProtocolId());
+        }
+        return writer_;
+    }
+
+    @Override
+    public void writeMessageBegin(TMessage message) throws TException {
+        transport_.setSequenceId(message.seqid);
+        writer_ = protocol(transport_.getWriteProtocolId());
+        writer_.writeMessageBegin(message);
+    }
+
+    @Override
+    public void writeMessageEnd() throws TException {
+        writer().writeMessageEnd();
+    }
+
+    @Override
+    public void writeStructBegin(TStruct struct) throws TException {
+        writer().writeStructBegin(struct);
+    }
+
+    @Override
+    public void writeStructEnd() throws TException {
+        writer().writeStructEnd();
+    }
+
+    @Override
+    public void writeFieldBegin(TField field) throws TException {
+        writer().writeFieldBegin(field);
+    }
+
+    @Override
+    public void writeFieldEnd() throws TException {
+        writer().writeFieldEnd();
+    }
+
+    @Override
+    public void writeFieldStop() throws TException {
+        writer().writeFieldStop();
+    }
+
+    @Override
+    public void writeMapBegin(TMap map) throws TException {
+        writer().writeMapBegin(map);
+    }
+
+    @Override
+    public void writeMapEnd() throws TException {
+        writer().writeMapEnd();
+    }
+
+    @Override
+    public void writeListBegin(TList list) throws TException {
+        writer().writeListBegin(list);
+    }
+
+    @Override
+    public void writeListEnd() throws TException {
+        writer().writeListEnd();
+    }
+
+    @Override
+    public void writeSetBegin(TSet set) throws TException {
+        writer().writeSetBegin(set);
+    }
+
+    @Override
+    public void writeSetEnd() throws TException {
+        writer().writeSetEnd();
+    }
+
+    @Override
+    public void writeBool(boolean b) throws TException {
+        writer().writeBool(b);
+    }
+
+    @Override
+    public void writeByte(byte b) throws TException {
+        writer().writeByte(b);
+    }
+
+    @Override
+    public void writeI16(short i16) throws TException {
+        writer().writeI16(i16);
+    }
+
+    @Override
+    public void writeI32(int i32) throws TException {
+        writer().writeI32(i32);
+    }
+
+    @Override
+    public void writeI64(long i64) throws TException {
+        writer().writeI64(i64);
+    }
+
+    @Override
+    public void writeDouble(double dub) throws TException {
+        writer().writeDouble(dub);
+    }
+
+    @Override
+    public void writeString(String str) throws TException {
+        writer().writeString(str);
+    }
+
+    @Override
+    public void writeBinary(ByteBuffer buf) throws TException {
+        writer().writeBinary(buf);
+    }
+
+    /**
+     * Reads the header of the frame the message arrives in, unless an event handler already has, and picks the
+     * protocol to decode the message with from it.
+     */
+    @Override
+    public TMessage readMessageBegin() throws TException {
+        transport_.readHeaders();
+        reader_ = protocol(transport_.getReadProtocolId());
+        return reader_.readMessageBegin();
+    }
+
+    @Override
+    public void readMessageEnd() throws TException {
+        reader().readMessageEnd();
+    }
+
+    @Override
+    public TStruct readStructBegin() throws TException {
+        return reader().readStructBegin();
+    }
+
+    @Override
+    public void readStructEnd() throws TException {
+        reader().readStructEnd();
+    }
+
+    @Override
+    public TField readFieldBegin() throws TException {
+        return reader().readFieldBegin();
+    }
+
+    @Override
+    public void readFieldEnd() throws TException {
+        reader().readFieldEnd();
+    }
+
+    @Override
+    public TMap readMapBegin() throws TException {
+        return reader().readMapBegin();
+    }
+
+    @Override
+    public void readMapEnd() throws TException {
+        reader().readMapEnd();
+    }
+
+    @Override
+    public TList readListBegin() throws TException {
+        return reader().readListBegin();
+    }
+
+    @Override
+    public void readListEnd() throws TException {
+        reader().readListEnd();
+    }
+
+    @Override
+    public TSet readSetBegin() throws TException {
+        return reader().readSetBegin();
+    }
+
+    @Override
+    public void readSetEnd() throws TException {
+        reader().readSetEnd();
+    }
+
+    @Override
+    public boolean readBool() throws TException {
+        return reader().readBool();
+    }
+
+    @Override
+    public byte readByte() throws TException {
+        return reader().readByte();
+    }
+
+    @Override
+    public short readI16() throws TException {
+        return reader().readI16();
+    }
+
+    @Override
+    public int readI32() throws TException {
+        return reader().readI32();
+    }
+
+    @Override
+    public long readI64() throws TException {
+        return reader().readI64();
+    }
+
+    @Override
+    public double readDouble() throws TException {
+        return reader().readDouble();
+    }
+
+    @Override
+    public String readString() throws TException {
+        return reader().readString();
+    }
+
+    @Override
+    public ByteBuffer readBinary() throws TException {
+        return reader().readBinary();
+    }
+
+    @Override
+    public void reset() {
+        for (TProtocol protocol : protocols_) {
+            if (protocol != null) {
+                protocol.reset();
+            }
+        }
+    }
+}
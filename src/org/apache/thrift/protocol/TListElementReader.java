@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import org.apache.thrift.TException;
+
+/**
+ * Callback used by {@link TProtocol#readList(TListElementReader)} to consume one list element at a time, without the
+ * list ever being materialized in memory.
+ *
+ */
+public interface TListElementReader {
+
+    /**
+     * Reads a single element from the protocol. Implementations must consume exactly one value of the element type
+     * given in the list header, either by reading it or by skipping it with {@link TProtocolUtil#skip(TProtocol, byte)}.
+     *
+     * @param iprot
+     *            Input protocol
+     * @param list
+     *            the list header
+     * @param index
+     *            zero based position of the element in the list
+     */
+    public void read(TProtocol iprot, TList list, int index) throws TException;
+}
@@ -20,7 +20,9 @@
 package org.apache.thrift.protocol;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 
+import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.apache.thrift.scheme.IScheme;
 import org.apache.thrift.scheme.StandardScheme;
@@ -148,6 +150,107 @@ public abstract class TProtocol {
 
     public abstract ByteBuffer readBinary() throws TException;
 
+    /**
+     * Streaming container methods.
+     */
+
+    /**
+     * Writes a list whose elements are pulled from an iterator, so the list never has to be materialized in memory.
+     * The element count precedes the elements on the wire and must therefore be known up front.
+     *
+     * @param elemType
+     *            the TType of the elements
+     * @param size
+     *            the number of elements the iterator will produce
+     * @param elements
+     *            source of the elements
+     * @param writer
+     *            writes a single element
+     * @throws TProtocolException
+     *             if the iterator produces more or fewer than {@code size} elements
+     */
+    public <E> void writeList(byte elemType, int size, Iterator<? extends E> elements, TListElementWriter<E> writer)
+            throws TException {
+        if (size < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative list size: " + size);
+        }
+        writeListBegin(new TList(elemType, size));
+        int written = 0;
+        while (elements.hasNext()) {
+            if (written == size) {
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "List has more than the declared "
+                        + size + " elements");
+            }
+            writer.write(this, elements.next());
+            written++;
+        }
+        if (written != size) {
+            throw new TProtocolException(TProtocolException.INVALID_DATA, "List declared " + size
+                    + " elements but only " + written + " were written");
+        }
+        writeListEnd();
+    }
+
+    /**
+     * Writes a list of structs pulled from an iterator.
+     *
+     * @see #writeList(byte, int, Iterator, TListElementWriter)
+     */
+    public void writeStructList(int size, Iterator<? extends TBase<?, ?>> elements) throws TException {
+        writeList(TType.STRUCT, size, elements, STRUCT_ELEMENT_WRITER);
+    }
+
+    private static final TListElementWriter<TBase<?, ?>> STRUCT_ELEMENT_WRITER = new TListElementWriter<TBase<?, ?>>() {
+        @Override
+        public void write(TProtocol oprot, TBase<?, ?> element) throws TException {
+            element.write(oprot);
+        }
+    };
+
+    /**
+     * Reads a list by handing each element to a callback as soon as it is decoded.
+     *
+     * @param reader
+     *            consumes a single element
+     * @return the list header that was read
+     */
+    public TList readList(TListElementReader reader) throws TException {
+        TList list = readListBegin();
+        for (int i = 0; i < list.size; i++) {
+            reader.read(this, list, i);
+        }
+        readListEnd();
+        return list;
+    }
+
+    /**
+     * Reads a list of structs, refilling a single struct instance for every element. Memory use is bounded by the
+     * largest element rather than by the list.
+     *
+     * @param element
+     *            the struct instance to read every element into
+     * @param handler
+     *            called after each element has been read
+     * @return the list header that was read
+     * @throws TProtocolException
+     *             if the list does not contain structs
+     */
+    public <T extends TBase<?, ?>> TList readStructList(final T element, final TStructElementHandler<T> handler)
+            throws TException {
+        return readList(new TListElementReader() {
+            @Override
+            public void read(TProtocol iprot, TList list, int index) throws TException {
+                if (list.elemType != TType.STRUCT) {
+                    throw new TProtocolException(TProtocolException.INVALID_DATA, "Expected a list of structs but got "
+                            + "element type " + list.elemType);
+                }
+                element.clear();
+                element.read(iprot);
+                handler.handle(element, index);
+            }
+        });
+    }
+
     /**
      * Reset any internal state back to a blank slate. This method only needs to be implemented for stateful protocols.
      */
@@ -45,6 +45,14 @@ public class TProtocolUtil {
         maxSkipDepth = depth;
     }
 
+    /**
+     * @return the maximum recursive depth the skip function will traverse
+     * @see #setMaxSkipDepth(int)
+     */
+    public static int getMaxSkipDepth() {
+        return maxSkipDepth;
+    }
+
     /**
      * Skips over the next data element from the provided input TProtocol object.
      *
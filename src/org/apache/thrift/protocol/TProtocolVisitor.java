@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.meta_data.FieldMetaData;
+
+/**
+ * Receives the events produced by {@link TProtocolWalker} while it walks serialized Thrift data. Every callback is a
+ * no-op by default so subclasses only override the events they are interested in, in the spirit of a SAX
+ * <code>DefaultHandler</code>.
+ *
+ * <p>
+ * Primitive values are passed as primitives, so visiting them allocates nothing. STRING values are passed as the
+ * <code>ByteBuffer</code> returned by {@link TProtocol#readBinary()}; decoding them to a <code>String</code> is left to
+ * the visitor.
+ * </p>
+ *
+ * @see TProtocolWalker
+ */
+public abstract class TProtocolVisitor {
+
+    /**
+     * Called when a struct starts.
+     *
+     * @param structClass
+     *            the generated class of the struct when known from metadata, otherwise null
+     */
+    public void structBegin(Class<? extends TBase> structClass) throws TException {
+    }
+
+    public void structEnd() throws TException {
+    }
+
+    /**
+     * Called when a field starts, before its value is visited.
+     *
+     * @param field
+     *            the field header as read from the protocol
+     * @param metaData
+     *            metadata of the field when the struct class is known and declares the field, otherwise null
+     * @return true to visit the field value, false to skip over it without producing events
+     */
+    public boolean fieldBegin(TField field, FieldMetaData metaData) throws TException {
+        return true;
+    }
+
+    public void fieldEnd() throws TException {
+    }
+
+    public void listBegin(TList list) throws TException {
+    }
+
+    public void listEnd() throws TException {
+    }
+
+    public void setBegin(TSet set) throws TException {
+    }
+
+    public void setEnd() throws TException {
+    }
+
+    public void mapBegin(TMap map) throws TException {
+    }
+
+    public void mapEnd() throws TException {
+    }
+
+    public void visitBool(boolean b) throws TException {
+    }
+
+    public void visitByte(byte b) throws TException {
+    }
+
+    public void visitI16(short i16) throws TException {
+    }
+
+    public void visitI32(int i32) throws TException {
+    }
+
+    public void visitI64(long i64) throws TException {
+    }
+
+    public void visitDouble(double dub) throws TException {
+    }
+
+    public void visitBinary(ByteBuffer buf) throws TException {
+    }
+}
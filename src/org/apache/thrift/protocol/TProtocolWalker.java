@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.meta_data.MapMetaData;
+import org.apache.thrift.meta_data.SetMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+
+/**
+ * Event driven reader for serialized Thrift data. The walker reads values from any {@link TProtocol} and reports them
+ * to a {@link TProtocolVisitor} without building <code>TBase</code> objects, which makes it suitable for projections
+ * and aggregations over stored data.
+ *
+ * <p>
+ * When the generated class of the top level struct is given, the walker follows its {@link FieldMetaData} so that
+ * visitors receive field names and nested struct classes. Without it the data is walked schema-agnostically, exactly
+ * the way {@link TProtocolUtil#skip(TProtocol, byte)} would traverse it.
+ * </p>
+ *
+ * <p>
+ * Instances hold no per-walk state and may be shared between threads.
+ * </p>
+ */
+public class TProtocolWalker {
+
+    private static final ConcurrentMap<Class<? extends TBase>, FieldIndex> fieldIndexes = new ConcurrentHashMap<Class<? extends TBase>, FieldIndex>();
+
+    /**
+     * Nesting depth allowed by the default constructor. Deep enough for any real schema, shallow enough that nested
+     * hostile input fails with a {@link TProtocolException} long before the Java stack runs out.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    private final int maxDepth;
+
+    /**
+     * Creates a walker limited to {@link #DEFAULT_MAX_DEPTH} levels of nesting, or to
+     * {@link TProtocolUtil#getMaxSkipDepth()} if that has been configured lower.
+     */
+    public TProtocolWalker() {
+        this(Math.min(DEFAULT_MAX_DEPTH, TProtocolUtil.getMaxSkipDepth()));
+    }
+
+    /**
+     * @param maxDepth
+     *            the maximum nesting depth of structs and containers, to prevent Java stack overflow on hostile input
+     */
+    public TProtocolWalker(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Walks a single struct without any schema information.
+     */
+    public void walkStruct(TProtocol prot, TProtocolVisitor visitor) throws TException {
+        walk(prot, TType.STRUCT, null, visitor, maxDepth);
+    }
+
+    /**
+     * Walks a single struct, using the metadata of the given generated class for field names and nested struct
+     * classes.
+     */
+    public void walkStruct(TProtocol prot, Class<? extends TBase> structClass, TProtocolVisitor visitor)
+            throws TException {
+        walk(prot, TType.STRUCT, structClass == null ? null : new StructMetaData(TType.STRUCT, structClass), visitor,
+                maxDepth);
+    }
+
+    /**
+     * Walks the next value of the given type.
+     *
+     * @param type
+     *            the TType of the value
+     */
+    public void walk(TProtocol prot, byte type, TProtocolVisitor visitor) throws TException {
+        walk(prot, type, null, visitor, maxDepth);
+    }
+
+    private void walk(TProtocol prot, byte type, FieldValueMetaData metaData, TProtocolVisitor visitor, int depth)
+            throws TException {
+        if (depth <= 0) {
+            throw new TProtocolException(TProtocolException.DEPTH_LIMIT, "Maximum walk depth exceeded");
+        }
+        switch (type) {
+        case TType.BOOL:
+            visitor.visitBool(prot.readBool());
+            break;
+
+        case TType.BYTE:
+            visitor.visitByte(prot.readByte());
+            break;
+
+        case TType.I16:
+            visitor.visitI16(prot.readI16());
+            break;
+
+        case TType.I32:
+            visitor.visitI32(prot.readI32());
+            break;
+
+        case TType.I64:
+            visitor.visitI64(prot.readI64());
+            break;
+
+        case TType.DOUBLE:
+            visitor.visitDouble(prot.readDouble());
+            break;
+
+        case TType.STRING:
+            visitor.visitBinary(prot.readBinary());
+            break;
+
+        case TType.STRUCT:
+            walkStruct(prot, metaData, visitor, depth);
+            break;
+
+        case TType.MAP: {
+            FieldValueMetaData keyMetaData = null;
+            FieldValueMetaData valueMetaData = null;
+            if (metaData instanceof MapMetaData) {
+                keyMetaData = ((MapMetaData) metaData).keyMetaData;
+                valueMetaData = ((MapMetaData) metaData).valueMetaData;
+            }
+            TMap map = prot.readMapBegin();
+            visitor.mapBegin(map);
+            for (int i = 0; i < map.size; i++) {
+                walk(prot, map.keyType, keyMetaData, visitor, depth - 1);
+                walk(prot, map.valueType, valueMetaData, visitor, depth - 1);
+            }
+            prot.readMapEnd();
+            visitor.mapEnd();
+            break;
+        }
+
+        case TType.SET: {
+            FieldValueMetaData elemMetaData = metaData instanceof SetMetaData ? ((SetMetaData) metaData).elemMetaData
+                    : null;
+            TSet set = prot.readSetBegin();
+            visitor.setBegin(set);
+            for (int i = 0; i < set.size; i++) {
+                walk(prot, set.elemType, elemMetaData, visitor, depth - 1);
+            }
+            prot.readSetEnd();
+            visitor.setEnd();
+            break;
+        }
+
+        case TType.LIST: {
+            FieldValueMetaData elemMetaData = metaData instanceof ListMetaData ? ((ListMetaData) metaData).elemMetaData
+                    : null;
+            TList list = prot.readListBegin();
+            visitor.listBegin(list);
+            for (int i = 0; i < list.size; i++) {
+                walk(prot, list.elemType, elemMetaData, visitor, depth - 1);
+            }
+            prot.readListEnd();
+            visitor.listEnd();
+            break;
+        }
+
+        default:
+            break;
+        }
+    }
+
+    private void walkStruct(TProtocol prot, FieldValueMetaData metaData, TProtocolVisitor visitor, int depth)
+            throws TException {
+        Class<? extends TBase> structClass = metaData instanceof StructMetaData ? ((StructMetaData) metaData).structClass
+                : null;
+        FieldIndex index = structClass == null ? null : fieldIndex(structClass);
+
+        prot.readStructBegin();
+        visitor.structBegin(structClass);
+        while (true) {
+            TField field = prot.readFieldBegin();
+            if (field.type == TType.STOP) {
+                break;
+            }
+            FieldMetaData fieldMetaData = index == null ? null : index.get(field.id);
+            if (fieldMetaData != null && wireType(fieldMetaData.valueMetaData) != field.type) {
+                // Wire type disagrees with the schema, walk it as unknown data
+                fieldMetaData = null;
+            }
+            if (visitor.fieldBegin(field, fieldMetaData)) {
+                walk(prot, field.type, fieldMetaData == null ? null : fieldMetaData.valueMetaData, visitor,
+                        depth - 1);
+            } else {
+                TProtocolUtil.skip(prot, field.type, depth - 1);
+            }
+            prot.readFieldEnd();
+            visitor.fieldEnd();
+        }
+        prot.readStructEnd();
+        visitor.structEnd();
+    }
+
+    private static byte wireType(FieldValueMetaData metaData) {
+        return metaData.type == TType.ENUM ? TType.I32 : metaData.type;
+    }
+
+    private static FieldIndex fieldIndex(Class<? extends TBase> structClass) {
+        FieldIndex index = fieldIndexes.get(structClass);
+        if (index == null) {
+            index = new FieldIndex(FieldMetaData.getStructMetaDataMap(structClass));
+            FieldIndex existing = fieldIndexes.putIfAbsent(structClass, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Field metadata of one struct class, searchable by field id without boxing.
+     */
+    private static final class FieldIndex {
+        private final short[] ids;
+        private final FieldMetaData[] fields;
+
+        FieldIndex(Map<? extends TFieldIdEnum, FieldMetaData> metaDataMap) {
+            int size = metaDataMap == null ? 0 : metaDataMap.size();
+            ids = new short[size];
+            fields = new FieldMetaData[size];
+            if (size == 0) {
+                return;
+            }
+            int i = 0;
+            for (TFieldIdEnum field : metaDataMap.keySet()) {
+                ids[i++] = field.getThriftFieldId();
+            }
+            Arrays.sort(ids);
+            for (Map.Entry<? extends TFieldIdEnum, FieldMetaData> entry : metaDataMap.entrySet()) {
+                fields[Arrays.binarySearch(ids, entry.getKey().getThriftFieldId())] = entry.getValue();
+            }
+        }
+
+        FieldMetaData get(short id) {
+            int pos = Arrays.binarySearch(ids, id);
+            return pos < 0 ? null : fields[pos];
+        }
+    }
+}
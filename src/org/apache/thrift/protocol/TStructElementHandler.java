@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+
+/**
+ * Callback used by {@link TProtocol#readStructList(TBase, TStructElementHandler)} to consume struct elements of a
+ * list. The same struct instance is refilled for every element, so handlers that need to keep an element must copy
+ * it (for example with {@link TBase#deepCopy()}).
+ *
+ * @param <T>
+ *            the struct type
+ */
+public interface TStructElementHandler<T extends TBase<?, ?>> {
+
+    /**
+     * Called once per list element, after the element has been read into {@code element}.
+     *
+     * @param element
+     *            the reused struct instance holding the current element
+     * @param index
+     *            zero based position of the element in the list
+     */
+    public void handle(T element, int index) throws TException;
+}
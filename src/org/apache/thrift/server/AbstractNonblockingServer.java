@@ -24,18 +24,25 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.thrift.TBaseAsyncProcessor;
 import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TCallTimings;
+import org.apache.thrift.TDeadline;
+import org.apache.thrift.TEventRecorder;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.THeaderTransport;
 import org.apache.thrift.transport.TIOStreamTransport;
 import org.apache.thrift.transport.TMemoryInputTransport;
 import org.apache.thrift.transport.TNonblockingServerTransport;
 import org.apache.thrift.transport.TNonblockingTransport;
+import org.apache.thrift.transport.TTrafficCapture;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
@@ -49,11 +56,44 @@ public abstract class AbstractNonblockingServer extends TServer {
 
     public static abstract class AbstractNonblockingServerArgs<T extends AbstractNonblockingServerArgs<T>> extends AbstractServerArgs<T> {
         public long maxReadBufferBytes = Long.MAX_VALUE;
+        int frameArenaMaxBytes = 0;
+        boolean frameArenaLeakDetection = false;
+        TTrafficCapture trafficCapture = null;
 
         public AbstractNonblockingServerArgs(TNonblockingServerTransport transport) {
             super(transport);
             transportFactory(new TFramedTransport.Factory());
         }
+
+        /**
+         * Reuses each connection's request frame memory across requests, keeping frames of up to the given size.
+         * Handlers must not retain binary values read from a request past the end of the call. 0, the default,
+         * allocates a new frame for every request.
+         *
+         * @see FrameArena
+         */
+        public T frameArenaMaxBytes(int frameArenaMaxBytes) {
+            this.frameArenaMaxBytes = frameArenaMaxBytes;
+            return self();
+        }
+
+        /**
+         * Makes the frame arenas look for handlers that retain request memory instead of reusing it. Meant for
+         * testing a handler before enabling {@link #frameArenaMaxBytes(int)}.
+         */
+        public T frameArenaLeakDetection(boolean frameArenaLeakDetection) {
+            this.frameArenaLeakDetection = frameArenaLeakDetection;
+            return self();
+        }
+
+        /**
+         * Records every request frame, and when connections close, into the given capture for later replay with
+         * {@link org.apache.thrift.transport.TTrafficReplayer}.
+         */
+        public T trafficCapture(TTrafficCapture trafficCapture) {
+            this.trafficCapture = trafficCapture;
+            return self();
+        }
     }
 
     /**
@@ -67,9 +107,43 @@ public abstract class AbstractNonblockingServer extends TServer {
      */
     final AtomicLong readBufferBytesAllocated = new AtomicLong(0);
 
+    /**
+     * Frame arena settings, see {@link AbstractNonblockingServerArgs#frameArenaMaxBytes(int)}.
+     */
+    final int FRAME_ARENA_MAX_BYTES;
+    final boolean FRAME_ARENA_LEAK_DETECTION;
+
+    /**
+     * How many retained request frames the frame arenas have reported.
+     */
+    final AtomicLong frameLeaksDetected = new AtomicLong(0);
+
+    /**
+     * Where request frames are recorded, null if they are not.
+     */
+    final TTrafficCapture TRAFFIC_CAPTURE;
+
+    private static final byte[] EMPTY_FRAME = new byte[0];
+
+    /**
+     * Source of the connection ids of captured frames.
+     */
+    final AtomicLong connectionIds = new AtomicLong(0);
+
     public AbstractNonblockingServer(AbstractNonblockingServerArgs args) {
         super(args);
         MAX_READ_BUFFER_BYTES = args.maxReadBufferBytes;
+        FRAME_ARENA_MAX_BYTES = args.frameArenaMaxBytes;
+        FRAME_ARENA_LEAK_DETECTION = args.frameArenaLeakDetection;
+        TRAFFIC_CAPTURE = args.trafficCapture;
+    }
+
+    /**
+     * Number of request frames found still reachable after their response was written, see
+     * {@link AbstractNonblockingServerArgs#frameArenaLeakDetection(boolean)}. Always 0 without leak detection.
+     */
+    public long getFrameLeaksDetected() {
+        return frameLeaksDetected.get();
     }
 
     /**
@@ -151,10 +225,27 @@ public abstract class AbstractNonblockingServer extends TServer {
         // List of FrameBuffers that want to change their selection interests.
         protected final Set<FrameBuffer> selectInterestChanges = new HashSet<>();
 
+        // FrameBuffers whose transport holds input the selector will not report, only touched by this thread
+        private final List<FrameBuffer> bufferedReads = new ArrayList<>();
+
+        // whether requests whose first byte is read during the current select pass are timed
+        boolean timingCalls = false;
+
         public AbstractSelectThread() throws IOException {
             this.selector = SelectorProvider.provider().openSelector();
         }
 
+        /**
+         * Decides whether the requests read during the coming select pass are timed. Sampling this once per pass keeps
+         * the check off the per-request path.
+         *
+         * @param recorder
+         *            the event recorder installed when the pass started, or null
+         */
+        protected void sampleTimingCalls(TEventRecorder recorder) {
+            timingCalls = metrics_ != null || recorder != null;
+        }
+
         /**
          * If the selector is blocked, wake it up.
          */
@@ -185,6 +276,25 @@ public abstract class AbstractNonblockingServer extends TServer {
                 }
                 selectInterestChanges.clear();
             }
+            processBufferedReads();
+        }
+
+        /**
+         * Have a FrameBuffer read input its transport has already taken off the network before the next select. Must
+         * be called from this thread.
+         */
+        protected void requestBufferedRead(FrameBuffer frameBuffer) {
+            bufferedReads.add(frameBuffer);
+        }
+
+        private void processBufferedReads() {
+            // reading may queue further reads, e.g. after an inline oneway call
+            while (!bufferedReads.isEmpty()) {
+                FrameBuffer fb = bufferedReads.remove(bufferedReads.size() - 1);
+                if (fb.isReading() && fb.selectionKey_.isValid() && fb.trans_.hasBufferedInput()) {
+                    handleRead(fb.selectionKey_);
+                }
+            }
         }
 
         /**
@@ -192,6 +302,11 @@ public abstract class AbstractNonblockingServer extends TServer {
          */
         protected void handleRead(SelectionKey key) {
             FrameBuffer buffer = (FrameBuffer) key.attachment();
+            if (buffer.state_ == FrameBufferState.WRITING) {
+                // the transport waited for input of its own, e.g. during a TLS handshake
+                handleWrite(key);
+                return;
+            }
             if (!buffer.read()) {
                 cleanupSelectionKey(key);
                 return;
@@ -210,6 +325,11 @@ public abstract class AbstractNonblockingServer extends TServer {
          */
         protected void handleWrite(SelectionKey key) {
             FrameBuffer buffer = (FrameBuffer) key.attachment();
+            if (buffer.isReading()) {
+                // the transport waited to send output of its own, e.g. during a TLS handshake
+                handleRead(key);
+                return;
+            }
             if (!buffer.write()) {
                 cleanupSelectionKey(key);
             }
@@ -294,24 +414,67 @@ public abstract class AbstractNonblockingServer extends TServer {
         // context associated with this connection
         protected final ServerContext context_;
 
+        // allocation scope for request frames, null when frames are not reused
+        protected final FrameArena arena_;
+
+        // the buffer the frame size is read into, reused for every request
+        private final ByteBuffer frameSizeBuffer_ = ByteBuffer.allocate(4);
+
+        // phase timings of the current request, only taken when timed_ is set and
+        // allocated the first time a request of this connection is timed
+        protected TCallTimings timings_;
+
+        // whether the current request is being timed, decided when its first byte is read
+        protected boolean timed_ = false;
+
+        // identifies this connection in the traffic capture
+        private final long connectionId_;
+
+        // when the current frame was read, only stamped when frames can carry a deadline
+        private long frameReadNanos_;
+        private boolean frameStamped_ = false;
+
         public FrameBuffer(final TNonblockingTransport trans, final SelectionKey selectionKey, final AbstractSelectThread selectThread) {
             trans_ = trans;
             selectionKey_ = selectionKey;
             selectThread_ = selectThread;
-            buffer_ = ByteBuffer.allocate(4);
+            buffer_ = frameSizeBuffer_;
 
             frameTrans_ = new TMemoryInputTransport();
             response_ = new TByteArrayOutputStream();
             inTrans_ = inputTransportFactory_.getTransport(frameTrans_);
             outTrans_ = outputTransportFactory_.getTransport(new TIOStreamTransport(response_));
+            if (inTrans_ instanceof THeaderTransport && outTrans_ instanceof THeaderTransport) {
+                // responses go out in the protocol and with the transforms of their request
+                ((THeaderTransport) outTrans_).setRequestTransport((THeaderTransport) inTrans_);
+            }
             inProt_ = inputProtocolFactory_.getProtocol(inTrans_);
             outProt_ = outputProtocolFactory_.getProtocol(outTrans_);
+            pairProtocols(inProt_, outProt_);
 
             if (eventHandler_ != null) {
                 context_ = eventHandler_.createContext(inProt_, outProt_);
             } else {
                 context_ = null;
             }
+
+            if (FRAME_ARENA_MAX_BYTES > 0 || FRAME_ARENA_LEAK_DETECTION) {
+                arena_ = new FrameArena(FRAME_ARENA_MAX_BYTES, FRAME_ARENA_LEAK_DETECTION) {
+                    @Override
+                    protected void leakDetected(int length) {
+                        super.leakDetected(length);
+                        frameLeaksDetected.incrementAndGet();
+                    }
+                };
+                if (inTrans_ instanceof TFramedTransport) {
+                    // the arena already scopes the frame memory to the request, no need for a second copy
+                    ((TFramedTransport) inTrans_).setReadInPlace(true);
+                }
+            } else {
+                arena_ = null;
+            }
+
+            connectionId_ = TRAFFIC_CAPTURE == null ? 0 : connectionIds.incrementAndGet();
         }
 
         /**
@@ -322,6 +485,16 @@ public abstract class AbstractNonblockingServer extends TServer {
          */
         public boolean read() {
             if (state_ == FrameBufferState.READING_FRAME_SIZE) {
+                if (buffer_.position() == 0) {
+                    timed_ = selectThread_.timingCalls;
+                    if (timed_) {
+                        if (timings_ == null) {
+                            timings_ = new TCallTimings();
+                        }
+                        timings_.markReadStart();
+                    }
+                }
+
                 // try to read the frame size completely
                 if (!internalRead()) {
                     return false;
@@ -355,7 +528,7 @@ public abstract class AbstractNonblockingServer extends TServer {
                     readBufferBytesAllocated.addAndGet(frameSize + 4);
 
                     // reallocate the readbuffer as a frame-sized buffer
-                    buffer_ = ByteBuffer.allocate(frameSize + 4);
+                    buffer_ = arena_ == null ? ByteBuffer.allocate(frameSize + 4) : arena_.allocate(frameSize + 4);
                     buffer_.putInt(frameSize);
 
                     state_ = FrameBufferState.READING_FRAME;
@@ -382,6 +555,18 @@ public abstract class AbstractNonblockingServer extends TServer {
                     // get rid of the read select interests
                     selectionKey_.interestOps(0);
                     state_ = FrameBufferState.READ_FRAME_COMPLETE;
+                    if (inTrans_ instanceof THeaderTransport) {
+                        frameReadNanos_ = System.nanoTime();
+                        frameStamped_ = true;
+                    }
+                    if (timed_) {
+                        timings_.markReadEnd();
+                        timings_.setBytesIn(buffer_.limit());
+                    }
+                    if (TRAFFIC_CAPTURE != null) {
+                        TRAFFIC_CAPTURE.captureFrame(connectionId_, buffer_.array(), buffer_.arrayOffset() + 4,
+                                buffer_.limit() - 4);
+                    }
                 }
 
                 return true;
@@ -408,6 +593,9 @@ public abstract class AbstractNonblockingServer extends TServer {
 
                 // we're done writing. now we need to switch back to reading.
                 if (buffer_.remaining() == 0) {
+                    if (timed_) {
+                        timings_.markWriteEnd();
+                    }
                     prepareRead();
                 }
                 return true;
@@ -443,9 +631,13 @@ public abstract class AbstractNonblockingServer extends TServer {
             // buffer that we need to subtract for our memory accounting.
             if (state_ == FrameBufferState.READING_FRAME || state_ == FrameBufferState.READ_FRAME_COMPLETE
                     || state_ == FrameBufferState.AWAITING_CLOSE) {
-                readBufferBytesAllocated.addAndGet(-buffer_.array().length);
+                readBufferBytesAllocated.addAndGet(-buffer_.capacity());
+                releaseFrame();
             }
             trans_.close();
+            if (TRAFFIC_CAPTURE != null) {
+                TRAFFIC_CAPTURE.captureClose(connectionId_);
+            }
             if (eventHandler_ != null) {
                 eventHandler_.deleteContext(context_, inProt_, outProt_);
             }
@@ -458,6 +650,13 @@ public abstract class AbstractNonblockingServer extends TServer {
             return state_ == FrameBufferState.READ_FRAME_COMPLETE;
         }
 
+        /**
+         * Check if this FrameBuffer is waiting for the rest of a frame.
+         */
+        public boolean isReading() {
+            return state_ == FrameBufferState.READING_FRAME_SIZE || state_ == FrameBufferState.READING_FRAME;
+        }
+
         /**
          * After the processor has processed the invocation, whatever thread is managing invocations should call this
          * method on this FrameBuffer so we know it's time to start trying to write again. Also, if it turns out that
@@ -465,11 +664,17 @@ public abstract class AbstractNonblockingServer extends TServer {
          * reading.
          */
         public void responseReady() {
+            if (timed_) {
+                timings_.markResponseReady();
+                timings_.setBytesOut(response_.len());
+            }
+
             // the read buffer is definitely no longer in use, so we will decrement
             // our read buffer count. we do this here as well as in close because
             // we'd like to free this read memory up as quickly as possible for other
             // clients.
-            readBufferBytesAllocated.addAndGet(-buffer_.array().length);
+            readBufferBytesAllocated.addAndGet(-buffer_.capacity());
+            releaseFrame();
 
             if (response_.len() == 0) {
                 // go straight to reading again. this was probably an oneway method
@@ -492,20 +697,33 @@ public abstract class AbstractNonblockingServer extends TServer {
          * Actually invoke the method signified by this FrameBuffer.
          */
         public void invoke() {
-            frameTrans_.reset(buffer_.array());
+            frameTrans_.reset(buffer_.array(), buffer_.arrayOffset(), buffer_.capacity());
             response_.reset();
+            boolean timed = startTimings();
+            TDeadline deadline = null;
 
             try {
+                deadline = startDeadline();
                 if (eventHandler_ != null) {
                     eventHandler_.processContext(context_, inTrans_, outTrans_);
                 }
                 processorFactory_.getProcessor(inTrans_).process(inProt_, outProt_);
+                if (timed) {
+                    timings_.markInvokeEnd();
+                }
                 responseReady();
                 return;
             } catch (TException te) {
                 LOGGER.warn("Exception while invoking!", te);
             } catch (Throwable t) {
                 LOGGER.error("Unexpected throwable while invoking!", t);
+            } finally {
+                if (timed) {
+                    endTimings();
+                }
+                if (deadline != null) {
+                    TDeadline.setCurrent(null);
+                }
             }
             // This will only be reached when there is a throwable.
             state_ = FrameBufferState.AWAITING_CLOSE;
@@ -537,8 +755,75 @@ public abstract class AbstractNonblockingServer extends TServer {
             // we're in the select thread.
             selectionKey_.interestOps(SelectionKey.OP_READ);
             // get ready for another go-around
-            buffer_ = ByteBuffer.allocate(4);
+            frameSizeBuffer_.clear();
+            buffer_ = frameSizeBuffer_;
             state_ = FrameBufferState.READING_FRAME_SIZE;
+
+            // the next request may already have been read off the socket, e.g.
+            // as part of a TLS record, in which case no read event will come
+            if (trans_.hasBufferedInput()) {
+                selectThread_.requestBufferedRead(this);
+            }
+
+            if (timed_) {
+                if (timings_.isStarted()) {
+                    callCompleted(timings_);
+                }
+                timings_.reset();
+                timed_ = false;
+            }
+        }
+
+        /**
+         * Marks the start of the invocation and exposes the timings to the processor running on this thread.
+         *
+         * @return whether the invocation is timed, in which case {@link #endTimings()} must be called once the
+         *         processor has returned
+         */
+        protected boolean startTimings() {
+            if (timed_) {
+                timings_.markInvokeStart();
+                TCallTimings.setCurrent(timings_);
+            }
+            return timed_;
+        }
+
+        /**
+         * Stops exposing the timings to this thread.
+         */
+        protected void endTimings() {
+            TCallTimings.setCurrent(null);
+        }
+
+        /**
+         * Makes the deadline the client sent with the frame, counted from the end of the frame read, the current one
+         * for this thread.
+         *
+         * @return the deadline, or null if the frame has none
+         */
+        protected TDeadline startDeadline() throws TTransportException {
+            if (!frameStamped_) {
+                return null;
+            }
+            TDeadline deadline = TDeadline.read(inTrans_, frameReadNanos_);
+            if (deadline != null) {
+                TDeadline.setCurrent(deadline);
+            }
+            return deadline;
+        }
+
+        /**
+         * Ends the request scope of the frame that was just processed, letting the arena reuse its memory.
+         */
+        private void releaseFrame() {
+            if (arena_ != null && buffer_ != frameSizeBuffer_) {
+                // the server must not keep the frame alive itself, or leak detection blames the handler
+                frameTrans_.reset(EMPTY_FRAME);
+                if (inTrans_ instanceof TFramedTransport) {
+                    ((TFramedTransport) inTrans_).clearReadBuffer();
+                }
+                arena_.release(buffer_);
+            }
         }
 
         /**
@@ -570,19 +855,31 @@ public abstract class AbstractNonblockingServer extends TServer {
 
         @Override
         public void invoke() {
-            frameTrans_.reset(buffer_.array());
+            frameTrans_.reset(buffer_.array(), buffer_.arrayOffset(), buffer_.capacity());
             response_.reset();
+            boolean timed = startTimings();
+            TDeadline deadline = null;
 
             try {
+                deadline = startDeadline();
                 if (eventHandler_ != null) {
                     eventHandler_.processContext(context_, inTrans_, outTrans_);
                 }
+                // the response may already be on its way back, so the end of the
+                // invocation is marked by responseReady()
                 ((TBaseAsyncProcessor) processorFactory_.getProcessor(inTrans_)).process(this);
                 return;
             } catch (TException te) {
                 LOGGER.warn("Exception while invoking!", te);
             } catch (Throwable t) {
                 LOGGER.error("Unexpected throwable while invoking!", t);
+            } finally {
+                if (timed) {
+                    endTimings();
+                }
+                if (deadline != null) {
+                    TDeadline.setCurrent(null);
+                }
             }
             // This will only be reached when there is a throwable.
             state_ = FrameBufferState.AWAITING_CLOSE;
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-connection allocation scope for the request frames read by a nonblocking server's FrameBuffer.
+ *
+ * <p>
+ * Everything decoded from a frame dies together once the response has been produced, so instead of allocating a new
+ * frame array for every request the arena hands out the same backing array again after the previous request has been
+ * {@link #release(ByteBuffer) released}. Protocols that read binary fields straight out of the frame (such as
+ * TBinaryProtocol over TFramedTransport) return slices of that array, so handlers must not keep binary values past
+ * the end of the call when an arena is in use.
+ * </p>
+ *
+ * <p>
+ * With leak detection enabled the arena stops reusing arrays. It instead allocates a fresh array for each request and
+ * watches released arrays through weak references: if a released array is still reachable after a garbage collection
+ * has cleared a sentinel allocated with it, something other than the server, typically a handler holding on to a
+ * binary slice, retained it, and a warning is logged. Reports are hints, since collectors may clear the sentinel and
+ * the array in different cycles.
+ * </p>
+ *
+ * <p>
+ * An arena is owned by a single FrameBuffer and is not thread safe; the server's state machine guarantees that
+ * {@link #allocate(int)} and {@link #release(ByteBuffer)} never run concurrently.
+ * </p>
+ */
+public class FrameArena {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameArena.class.getName());
+
+    private final int maxRetainedBytes;
+    private final boolean detectLeaks;
+
+    // the backing array kept between requests
+    private byte[] array_;
+
+    // leak detection state for the most recently released array
+    private WeakReference<byte[]> released_;
+    private WeakReference<Object> gcSentinel_;
+
+    /**
+     * @param maxRetainedBytes
+     *            largest array the arena keeps between requests. Frames larger than this are allocated and dropped as
+     *            usual so that one big request does not pin its memory for the lifetime of the connection.
+     * @param detectLeaks
+     *            whether to look for handlers retaining frame memory instead of reusing it
+     */
+    public FrameArena(int maxRetainedBytes, boolean detectLeaks) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.detectLeaks = detectLeaks;
+    }
+
+    /**
+     * Returns a buffer of exactly {@code size} bytes of capacity for the next frame.
+     */
+    public ByteBuffer allocate(int size) {
+        if (detectLeaks) {
+            checkReleased();
+            return ByteBuffer.allocate(size);
+        }
+        if (array_ == null || array_.length < size) {
+            byte[] array = new byte[size];
+            if (size <= maxRetainedBytes) {
+                array_ = array;
+            }
+            return ByteBuffer.wrap(array);
+        }
+        return ByteBuffer.wrap(array_, 0, size).slice();
+    }
+
+    /**
+     * Ends the current request scope. Everything decoded from the last allocated buffer must be unreachable from
+     * application code once this is called.
+     *
+     * @param buffer
+     *            the buffer returned by the last {@link #allocate(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        if (detectLeaks && buffer != null && buffer.hasArray()) {
+            checkReleased();
+            released_ = new WeakReference<byte[]>(buffer.array());
+            gcSentinel_ = new WeakReference<Object>(new Object());
+        }
+    }
+
+    /**
+     * Number of bytes the arena is currently holding on to between requests.
+     */
+    public int retainedBytes() {
+        return array_ == null ? 0 : array_.length;
+    }
+
+    private void checkReleased() {
+        if (released_ == null) {
+            return;
+        }
+        byte[] released = released_.get();
+        if (released == null) {
+            released_ = null;
+            gcSentinel_ = null;
+        } else if (gcSentinel_.get() == null) {
+            leakDetected(released.length);
+            released_ = null;
+            gcSentinel_ = null;
+        }
+    }
+
+    /**
+     * Called with leak detection enabled when a released frame of {@code length} bytes outlived its sentinel. Logs a
+     * warning; subclasses may also count or fail on it.
+     */
+    protected void leakDetected(int length) {
+        LOGGER.warn("A request frame of " + length
+                + " bytes is still reachable after its response was written. A handler is likely retaining "
+                + "binary values read from the request.");
+    }
+}
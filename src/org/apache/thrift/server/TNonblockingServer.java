@@ -19,6 +19,7 @@
 
 package org.apache.thrift.server;
 
+import org.apache.thrift.TEventRecorder;
 import org.apache.thrift.transport.TNonblockingServerTransport;
 import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -173,9 +174,14 @@ public class TNonblockingServer extends AbstractNonblockingServer {
          */
         private void select() {
             try {
+                TEventRecorder recorder = TEventRecorder.getInstance();
+                sampleTimingCalls(recorder);
+                long selectStart = recorder == null ? 0 : System.nanoTime();
+
                 // Wait for io events.
                 // Block here until there are at least one event (new connection, readable, writable) occurs
-                selector.select();
+                int selected = selector.select();
+                long selectEnd = recorder == null ? 0 : System.nanoTime();
 
                 // process the io events we received
                 Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
@@ -201,6 +207,9 @@ public class TNonblockingServer extends AbstractNonblockingServer {
                         LOGGER.warn("Unexpected state in select! " + key.interestOps());
                     }
                 }
+                if (recorder != null) {
+                    recorder.selectCompleted(getName(), selected, selectStart, selectEnd, System.nanoTime());
+                }
             } catch (IOException e) {
                 LOGGER.warn("Got an IOException while selecting!", e);
             }
@@ -19,9 +19,16 @@
 
 package org.apache.thrift.server;
 
+import org.apache.thrift.TCallMetrics;
+import org.apache.thrift.TCallTimings;
+import org.apache.thrift.TDeadline;
+import org.apache.thrift.TEventRecorder;
+import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
 import org.apache.thrift.TProcessorFactory;
+import org.apache.thrift.protocol.TAutoDetectProtocol;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportFactory;
@@ -45,51 +52,68 @@ public abstract class TServer {
         TTransportFactory outputTransportFactory = new TTransportFactory();
         TProtocolFactory inputProtocolFactory = new TBinaryProtocol.Factory();
         TProtocolFactory outputProtocolFactory = new TBinaryProtocol.Factory();
+        TCallMetrics metrics;
 
         public AbstractServerArgs(TServerTransport transport) {
             serverTransport = transport;
         }
 
+        /**
+         * Returns this instance as the concrete args type, for setters to return.
+         */
+        @SuppressWarnings("unchecked")
+        protected final T self() {
+            return (T) this;
+        }
+
         public T processorFactory(TProcessorFactory factory) {
             this.processorFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T processor(TProcessor processor) {
             this.processorFactory = new TProcessorFactory(processor);
-            return (T) this;
+            return self();
         }
 
         public T transportFactory(TTransportFactory factory) {
             this.inputTransportFactory = factory;
             this.outputTransportFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T inputTransportFactory(TTransportFactory factory) {
             this.inputTransportFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T outputTransportFactory(TTransportFactory factory) {
             this.outputTransportFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T protocolFactory(TProtocolFactory factory) {
             this.inputProtocolFactory = factory;
             this.outputProtocolFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T inputProtocolFactory(TProtocolFactory factory) {
             this.inputProtocolFactory = factory;
-            return (T) this;
+            return self();
         }
 
         public T outputProtocolFactory(TProtocolFactory factory) {
             this.outputProtocolFactory = factory;
-            return (T) this;
+            return self();
+        }
+
+        /**
+         * Times the phases of every call and reports them to the given metrics. By default no timings are taken.
+         */
+        public T metrics(TCallMetrics metrics) {
+            this.metrics = metrics;
+            return self();
         }
     }
 
@@ -127,6 +151,11 @@ public abstract class TServer {
 
     protected TServerEventHandler eventHandler_;
 
+    /**
+     * Receiver of call timings, null if calls are not timed
+     */
+    protected final TCallMetrics metrics_;
+
     protected TServer(AbstractServerArgs args) {
         processorFactory_ = args.processorFactory;
         serverTransport_ = args.serverTransport;
@@ -134,6 +163,7 @@ public abstract class TServer {
         outputTransportFactory_ = args.outputTransportFactory;
         inputProtocolFactory_ = args.inputProtocolFactory;
         outputProtocolFactory_ = args.outputProtocolFactory;
+        metrics_ = args.metrics;
     }
 
     /**
@@ -163,4 +193,68 @@ public abstract class TServer {
     public TServerEventHandler getEventHandler() {
         return eventHandler_;
     }
+
+    /**
+     * Whether calls should be timed right now: the server has metrics or an event recorder is installed.
+     */
+    protected boolean isTimingCalls() {
+        return metrics_ != null || TEventRecorder.getInstance() != null;
+    }
+
+    /**
+     * Reports the timings of a completed call to the server's metrics and the installed event recorder.
+     */
+    protected void callCompleted(TCallTimings timings) {
+        if (metrics_ != null) {
+            metrics_.callCompleted(timings);
+        }
+        TEventRecorder recorder = TEventRecorder.getInstance();
+        if (recorder != null) {
+            recorder.serverCallCompleted(timings);
+        }
+    }
+
+    /**
+     * Lets the output protocol of a connection answer in the protocol its input protocol detects, see
+     * {@link TAutoDetectProtocol}.
+     */
+    protected static void pairProtocols(TProtocol in, TProtocol out) {
+        if (in instanceof TAutoDetectProtocol && out instanceof TAutoDetectProtocol && in != out) {
+            ((TAutoDetectProtocol) out).setRequestProtocol((TAutoDetectProtocol) in);
+        }
+    }
+
+    /**
+     * Has the processor handle one call, timing it if {@link #isTimingCalls()}, and under the deadline the client sent
+     * with it, if any.
+     *
+     * @param timings
+     *            the connection's timings
+     */
+    protected boolean process(TProcessor processor, TProtocol in, TProtocol out, TCallTimings timings) throws TException {
+        TDeadline deadline = TDeadline.read(in.getTransport());
+        if (deadline != null) {
+            TDeadline.setCurrent(deadline);
+        }
+        try {
+            if (!isTimingCalls()) {
+                return processor.process(in, out);
+            }
+            timings.reset();
+            TCallTimings.setCurrent(timings);
+            try {
+                boolean result = processor.process(in, out);
+                if (timings.isStarted()) {
+                    callCompleted(timings);
+                }
+                return result;
+            } finally {
+                TCallTimings.setCurrent(null);
+            }
+        } finally {
+            if (deadline != null) {
+                TDeadline.setCurrent(null);
+            }
+        }
+    }
 }
@@ -19,6 +19,7 @@
 
 package org.apache.thrift.server;
 
+import org.apache.thrift.TCallTimings;
 import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
 import org.apache.thrift.protocol.TProtocol;
@@ -66,6 +67,7 @@ public class TSimpleServer extends TServer {
             TProtocol inputProtocol = null;
             TProtocol outputProtocol = null;
             ServerContext connectionContext = null;
+            TCallTimings timings = new TCallTimings();
             try {
                 client = serverTransport_.accept();
                 if (client != null) {
@@ -74,6 +76,7 @@ public class TSimpleServer extends TServer {
                     outputTransport = outputTransportFactory_.getTransport(client);
                     inputProtocol = inputProtocolFactory_.getProtocol(inputTransport);
                     outputProtocol = outputProtocolFactory_.getProtocol(outputTransport);
+                    pairProtocols(inputProtocol, outputProtocol);
                     
                     if (eventHandler_ != null) {
                         connectionContext = eventHandler_.createContext(inputProtocol, outputProtocol);
@@ -90,7 +93,7 @@ public class TSimpleServer extends TServer {
                         if (eventHandler_ != null) {
                             eventHandler_.processContext(connectionContext, inputTransport, outputTransport);
                         }
-                        if (!processor.process(inputProtocol, outputProtocol)) {
+                        if (!process(processor, inputProtocol, outputProtocol, timings)) {
                             break;
                         }
                     }
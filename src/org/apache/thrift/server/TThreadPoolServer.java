@@ -26,6 +26,7 @@ import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.thrift.TCallTimings;
 import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
 import org.apache.thrift.protocol.TProtocol;
@@ -257,6 +258,7 @@ public class TThreadPoolServer extends TServer {
 
             TServerEventHandler eventHandler = null;
             ServerContext connectionContext = null;
+            TCallTimings timings = new TCallTimings();
 
             try {
                 processor = processorFactory_.getProcessor(client_);
@@ -264,6 +266,7 @@ public class TThreadPoolServer extends TServer {
                 outputTransport = outputTransportFactory_.getTransport(client_);
                 inputProtocol = inputProtocolFactory_.getProtocol(inputTransport);
                 outputProtocol = outputProtocolFactory_.getProtocol(outputTransport);
+                pairProtocols(inputProtocol, outputProtocol);
 
                 eventHandler = getEventHandler();
                 if (eventHandler != null) {
@@ -280,7 +283,7 @@ public class TThreadPoolServer extends TServer {
                     if (eventHandler != null) {
                         eventHandler.processContext(connectionContext, inputTransport, outputTransport);
                     }
-                    if (stopped_ || !processor.process(inputProtocol, outputProtocol)) {
+                    if (stopped_ || !process(processor, inputProtocol, outputProtocol, timings)) {
                         break;
                     }
                 }
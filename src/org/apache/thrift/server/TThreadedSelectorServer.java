@@ -18,6 +18,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.thrift.TEventRecorder;
 import org.apache.thrift.transport.TNonblockingServerTransport;
 import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -374,8 +375,12 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
          */
         private void select() {
             try {
+                TEventRecorder recorder = TEventRecorder.getInstance();
+                long selectStart = recorder == null ? 0 : System.nanoTime();
+
                 // wait for connect events.
-                acceptSelector.select();
+                int selected = acceptSelector.select();
+                long selectEnd = recorder == null ? 0 : System.nanoTime();
 
                 // process the io events we received
                 Iterator<SelectionKey> selectedKeys = acceptSelector.selectedKeys().iterator();
@@ -394,6 +399,9 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
                         LOGGER.warn("Unexpected state in select! " + key.interestOps());
                     }
                 }
+                if (recorder != null) {
+                    recorder.selectCompleted(getName(), selected, selectStart, selectEnd, System.nanoTime());
+                }
             } catch (IOException e) {
                 LOGGER.warn("Got an IOException while selecting!", e);
             }
@@ -539,8 +547,13 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
          */
         private void select() {
             try {
+                TEventRecorder recorder = TEventRecorder.getInstance();
+                sampleTimingCalls(recorder);
+                long selectStart = recorder == null ? 0 : System.nanoTime();
+
                 // wait for io events.
-                selector.select();
+                int selected = selector.select();
+                long selectEnd = recorder == null ? 0 : System.nanoTime();
 
                 // process the io events we received
                 Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
@@ -564,6 +577,9 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
                         LOGGER.warn("Unexpected state in select! " + key.interestOps());
                     }
                 }
+                if (recorder != null) {
+                    recorder.selectCompleted(getName(), selected, selectStart, selectEnd, System.nanoTime());
+                }
             } catch (IOException e) {
                 LOGGER.warn("Got an IOException while selecting!", e);
             }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Acquire and release accesses to the indexes and flags the shared memory transport keeps in a mapped file.
+ *
+ * <p>
+ * The file is shared with another process, so the Java memory model does not cover it, and plain buffer accesses may
+ * be reordered with the ring data they publish. From Java 9 on the accesses go through byte buffer view VarHandles,
+ * looked up reflectively once since the library still builds for older releases. Older JVMs only get plain accesses
+ * next to a volatile fence, which keeps the order on x86, whose stores are not reordered with other stores nor loads
+ * with other loads; on any other architecture they are refused.
+ * </p>
+ *
+ * <p>
+ * All accesses are big endian, like the plain accesses of a {@link ByteBuffer}, so that both sides agree on the layout
+ * whichever of the two they use. Offsets must be aligned to the size of the value.
+ * </p>
+ */
+final class SharedMemoryAccess {
+
+    // (ByteBuffer, int)long, (ByteBuffer, int, long)void, (ByteBuffer, int)int and (ByteBuffer, int, int)void
+    private static final MethodHandle GET_LONG_ACQUIRE;
+    private static final MethodHandle SET_LONG_RELEASE;
+    private static final MethodHandle GET_INT_ACQUIRE;
+    private static final MethodHandle SET_INT_RELEASE;
+
+    private static final boolean FENCED_FALLBACK;
+
+    private static volatile int fence;
+
+    static {
+        MethodHandle getLong = null;
+        MethodHandle setLong = null;
+        MethodHandle getInt = null;
+        MethodHandle setInt = null;
+        try {
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            Class<Enum> accessMode = (Class<Enum>) Class.forName("java.lang.invoke.VarHandle$AccessMode");
+            Method view = Class.forName("java.lang.invoke.MethodHandles").getMethod("byteBufferViewVarHandle",
+                    Class.class, ByteOrder.class);
+            Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+            Object longs = view.invoke(null, long[].class, ByteOrder.BIG_ENDIAN);
+            Object ints = view.invoke(null, int[].class, ByteOrder.BIG_ENDIAN);
+            @SuppressWarnings("unchecked")
+            Object acquire = Enum.valueOf(accessMode, "GET_ACQUIRE");
+            @SuppressWarnings("unchecked")
+            Object release = Enum.valueOf(accessMode, "SET_RELEASE");
+            getLong = (MethodHandle) toMethodHandle.invoke(longs, acquire);
+            setLong = (MethodHandle) toMethodHandle.invoke(longs, release);
+            getInt = (MethodHandle) toMethodHandle.invoke(ints, acquire);
+            setInt = (MethodHandle) toMethodHandle.invoke(ints, release);
+        } catch (Exception e) {
+            // before Java 9
+            getLong = null;
+        }
+        GET_LONG_ACQUIRE = getLong;
+        SET_LONG_RELEASE = setLong;
+        GET_INT_ACQUIRE = getInt;
+        SET_INT_RELEASE = setInt;
+        String arch = System.getProperty("os.arch", "").toLowerCase(Locale.ENGLISH);
+        FENCED_FALLBACK = getLong == null
+                && (arch.equals("amd64") || arch.equals("x86_64") || arch.equals("x86") || arch.matches("i[3-6]86"));
+    }
+
+    private SharedMemoryAccess() {
+    }
+
+    /**
+     * Whether this JVM can order accesses to shared memory.
+     */
+    static boolean isSupported() {
+        return GET_LONG_ACQUIRE != null || FENCED_FALLBACK;
+    }
+
+    static void checkSupported() throws TTransportException {
+        if (!isSupported()) {
+            throw new TTransportException(TTransportException.NOT_OPEN,
+                    "Shared memory transports need Java 9 or later on " + System.getProperty("os.arch"));
+        }
+    }
+
+    /**
+     * Loads a long; later loads of the buffer are not reordered before it.
+     */
+    static long getLongAcquire(ByteBuffer buffer, int offset) {
+        if (GET_LONG_ACQUIRE == null) {
+            long value = buffer.getLong(offset);
+            int f = fence;
+            return value;
+        }
+        try {
+            return (long) GET_LONG_ACQUIRE.invokeExact(buffer, offset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Stores a long; earlier stores to the buffer are not reordered after it.
+     */
+    static void setLongRelease(ByteBuffer buffer, int offset, long value) {
+        if (SET_LONG_RELEASE == null) {
+            fence = 0;
+            buffer.putLong(offset, value);
+            return;
+        }
+        try {
+            SET_LONG_RELEASE.invokeExact(buffer, offset, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Loads an int; later loads of the buffer are not reordered before it.
+     */
+    static int getIntAcquire(ByteBuffer buffer, int offset) {
+        if (GET_INT_ACQUIRE == null) {
+            int value = buffer.getInt(offset);
+            int f = fence;
+            return value;
+        }
+        try {
+            return (int) GET_INT_ACQUIRE.invokeExact(buffer, offset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Stores an int; earlier stores to the buffer are not reordered after it.
+     */
+    static void setIntRelease(ByteBuffer buffer, int offset, int value) {
+        if (SET_INT_RELEASE == null) {
+            fence = 0;
+            buffer.putInt(offset, value);
+            return;
+        }
+        try {
+            SET_INT_RELEASE.invokeExact(buffer, offset, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends events to a file in the {@link TFileTransport} format from a dedicated writer thread. Callers only copy the
+ * event into a lock-free queue; the writer thread drains whatever has been queued, coalesces it into as few writes as
+ * possible, pads out chunks so no event spans a chunk boundary, and syncs the file to disk according to its
+ * {@link SyncPolicy}. When the queue is full, callers wait for the writer to catch up.
+ *
+ * A writer is shared by all threads writing to the file, typically through one {@link TFileTransport} per thread
+ * created with {@link TFileTransport#TFileTransport(TAsyncFileWriter)}.
+ */
+public class TAsyncFileWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TAsyncFileWriter.class.getName());
+
+    public static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    // how long the writer sleeps when idle and no sync is due
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * When the writer forces written events to disk. Events are always handed to the operating system as soon as the
+     * writer gets to them; the policy only decides how often FileChannel.force() is called.
+     */
+    public static final class SyncPolicy {
+
+        /**
+         * Never force; the operating system writes the data back whenever it sees fit.
+         */
+        public static final SyncPolicy NEVER = new SyncPolicy(0, 0);
+
+        /**
+         * Force after every batch of events.
+         */
+        public static final SyncPolicy ALWAYS = new SyncPolicy(0, 1);
+
+        private final long intervalNanos_;
+        private final long intervalBytes_;
+
+        private SyncPolicy(long intervalNanos, long intervalBytes) {
+            intervalNanos_ = intervalNanos;
+            intervalBytes_ = intervalBytes;
+        }
+
+        /**
+         * Force at most the given time after an event has been written.
+         */
+        public static SyncPolicy every(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Invalid sync interval " + interval);
+            }
+            return new SyncPolicy(unit.toNanos(interval), 0);
+        }
+
+        /**
+         * Force whenever at least the given number of bytes has been written since the last sync.
+         */
+        public static SyncPolicy everyBytes(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Invalid sync interval " + bytes + " bytes");
+            }
+            return new SyncPolicy(0, bytes);
+        }
+
+        boolean isDue(long unsyncedBytes, long unsyncedSinceNanos, long now) {
+            if (unsyncedBytes == 0) {
+                return false;
+            }
+            return (intervalBytes_ > 0 && unsyncedBytes >= intervalBytes_)
+                    || (intervalNanos_ > 0 && now - unsyncedSinceNanos >= intervalNanos_);
+        }
+
+        @Override
+        public String toString() {
+            if (intervalNanos_ > 0) {
+                return "SyncPolicy(every " + TimeUnit.NANOSECONDS.toMillis(intervalNanos_) + " ms)";
+            }
+            if (intervalBytes_ > 0) {
+                return "SyncPolicy(every " + intervalBytes_ + " bytes)";
+            }
+            return "SyncPolicy(never)";
+        }
+    }
+
+    private final String path_;
+    private final RandomAccessFile file_;
+    private final FileChannel channel_;
+    private final TFileTransport.ChunkState chunkState_;
+    private final SyncPolicy syncPolicy_;
+    private final Queue<byte[]> queue_ = new ConcurrentLinkedQueue<byte[]>();
+    private final Semaphore queueSpace_;
+    private final ByteBuffer writeBuffer_ = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread writer_;
+
+    private volatile boolean writerParked_ = false;
+    private volatile boolean closed_ = false;
+    private volatile IOException failure_ = null;
+
+    // appended_ is the number of events accepted, synced_ the number known to be on disk
+    private final AtomicLong appended_ = new AtomicLong();
+    private final Object syncLock_ = new Object();
+    private volatile long written_ = 0;
+    private volatile long synced_ = 0;
+    private volatile long syncRequested_ = 0;
+    private volatile long syncCount_ = 0;
+    private volatile long bytesWritten_ = 0;
+
+    // only used by the writer thread
+    private long unsyncedBytes_ = 0;
+    private long unsyncedSinceNanos_ = 0;
+
+    public TAsyncFileWriter(String path, SyncPolicy syncPolicy) throws TTransportException {
+        this(path, syncPolicy, DEFAULT_QUEUE_SIZE, TFileTransport.ChunkState.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens the file for appending, creating it if needed, and starts the writer thread.
+     *
+     * @param queueSize
+     *            number of events that may wait to be written before callers have to wait
+     * @param chunkSize
+     *            the chunk size of the file, which readers must use as well
+     */
+    public TAsyncFileWriter(String path, SyncPolicy syncPolicy, int queueSize, int chunkSize)
+            throws TTransportException {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Invalid queue size " + queueSize);
+        }
+        path_ = path;
+        syncPolicy_ = syncPolicy;
+        queueSpace_ = new Semaphore(queueSize);
+        chunkState_ = new TFileTransport.ChunkState(chunkSize);
+        try {
+            file_ = new RandomAccessFile(new File(path), "rw");
+            channel_ = file_.getChannel();
+            long length = channel_.size();
+            channel_.position(length);
+            chunkState_.seek(length);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, iox);
+        }
+        writer_ = new Thread("TAsyncFileWriter " + path) {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        };
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy_;
+    }
+
+    public boolean isOpen() {
+        return !closed_;
+    }
+
+    /**
+     * Queues a single event, waiting for space in the queue if it is full.
+     *
+     * @throws TTransportException
+     *             if the writer is closed or failed, the event does not fit into a chunk, or the calling thread is
+     *             interrupted while waiting
+     */
+    public void append(byte[] buf, int off, int len) throws TTransportException {
+        checkAppend(len);
+        if (!queueSpace_.tryAcquire()) {
+            try {
+                queueSpace_.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TTransportException(TTransportException.TIMED_OUT, "Interrupted waiting for queue space");
+            }
+        }
+        enqueue(buf, off, len);
+    }
+
+    /**
+     * Queues a single event, waiting at most the given time for space in the queue.
+     *
+     * @return false if the queue stayed full and the event was not queued
+     */
+    public boolean append(byte[] buf, int off, int len, long timeout, TimeUnit unit) throws TTransportException {
+        checkAppend(len);
+        try {
+            if (!queueSpace_.tryAcquire(timeout, unit)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException(TTransportException.TIMED_OUT, "Interrupted waiting for queue space");
+        }
+        enqueue(buf, off, len);
+        return true;
+    }
+
+    private void checkAppend(int len) throws TTransportException {
+        if (closed_) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Writer is closed");
+        }
+        if (failure_ != null) {
+            throw new TTransportException("Writing to " + path_ + " failed", failure_);
+        }
+        if (len + 4 > chunkState_.getChunkSize()) {
+            throw new TTransportException("Event of " + len + " bytes does not fit into a chunk of "
+                    + chunkState_.getChunkSize() + " bytes");
+        }
+    }
+
+    private void enqueue(byte[] buf, int off, int len) {
+        byte[] event = new byte[len];
+        System.arraycopy(buf, off, event, 0, len);
+        // counted before it is queued, so that sync() never waits for less than what the caller queued
+        appended_.incrementAndGet();
+        queue_.offer(event);
+        if (writerParked_) {
+            LockSupport.unpark(writer_);
+        }
+    }
+
+    /**
+     * Waits until all events appended so far have been written and forced to disk, regardless of the sync policy.
+     */
+    public void sync() throws TTransportException {
+        synchronized (syncLock_) {
+            long target = appended_.get();
+            if (syncRequested_ < target) {
+                syncRequested_ = target;
+            }
+            LockSupport.unpark(writer_);
+            while (synced_ < target) {
+                if (failure_ != null) {
+                    throw new TTransportException("Writing to " + path_ + " failed", failure_);
+                }
+                if (!writer_.isAlive()) {
+                    throw new TTransportException(TTransportException.NOT_OPEN, "Writer is closed");
+                }
+                try {
+                    syncLock_.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TTransportException(TTransportException.TIMED_OUT, "Interrupted waiting for sync");
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of events written to the file so far.
+     */
+    public long getWrittenCount() {
+        return written_;
+    }
+
+    /**
+     * Number of bytes written to the file so far, including sizes and padding.
+     */
+    public long getBytesWritten() {
+        return bytesWritten_;
+    }
+
+    /**
+     * Number of times the file was forced to disk.
+     */
+    public long getSyncCount() {
+        return syncCount_;
+    }
+
+    /**
+     * Writes the events still queued, syncs them unless the policy is {@link SyncPolicy#NEVER}, and closes the file.
+     * Events appended concurrently with closing may be rejected or lost.
+     */
+    public void close() {
+        closed_ = true;
+        LockSupport.unpark(writer_);
+        boolean interrupted = false;
+        while (writer_.isAlive()) {
+            try {
+                writer_.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeEvents() {
+        try {
+            while (true) {
+                boolean closed = closed_;
+                int batch = writeBatch();
+                long now = System.nanoTime();
+                if (syncRequested_ > synced_ || syncPolicy_.isDue(unsyncedBytes_, unsyncedSinceNanos_, now)
+                        || (closed && syncPolicy_ != SyncPolicy.NEVER)) {
+                    force();
+                }
+                if (closed && queue_.isEmpty()) {
+                    break;
+                }
+                if (batch == 0) {
+                    park(now);
+                }
+            }
+        } catch (IOException iox) {
+            LOGGER.error("Writing to " + path_ + " failed, no further events are written", iox);
+            failure_ = iox;
+            discardQueue();
+        } finally {
+            closed_ = true;
+            try {
+                file_.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Error closing " + path_, iox);
+            }
+            synchronized (syncLock_) {
+                syncLock_.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes whatever is queued right now.
+     *
+     * @return number of events written
+     */
+    private int writeBatch() throws IOException {
+        int count = 0;
+        byte[] event;
+        while ((event = queue_.poll()) != null) {
+            queueSpace_.release();
+            int remaining = chunkState_.getRemaining();
+            if (event.length + 4 > remaining) {
+                pad(remaining);
+            }
+            if (writeBuffer_.remaining() < 4) {
+                flushBuffer();
+            }
+            writeBuffer_.putInt(event.length);
+            put(event);
+            chunkState_.skip(event.length + 4);
+            count++;
+        }
+        flushBuffer();
+        written_ += count;
+        return count;
+    }
+
+    private void pad(int len) throws IOException {
+        chunkState_.skip(len);
+        while (len > 0) {
+            if (!writeBuffer_.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(len, writeBuffer_.remaining());
+            for (int i = 0; i < n; i++) {
+                writeBuffer_.put((byte) 0);
+            }
+            len -= n;
+        }
+    }
+
+    private void put(byte[] event) throws IOException {
+        int off = 0;
+        while (off < event.length) {
+            if (!writeBuffer_.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(event.length - off, writeBuffer_.remaining());
+            writeBuffer_.put(event, off, n);
+            off += n;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer_.flip();
+        int len = writeBuffer_.remaining();
+        while (writeBuffer_.hasRemaining()) {
+            channel_.write(writeBuffer_);
+        }
+        writeBuffer_.clear();
+        if (len > 0) {
+            if (unsyncedBytes_ == 0) {
+                unsyncedSinceNanos_ = System.nanoTime();
+            }
+            unsyncedBytes_ += len;
+            bytesWritten_ += len;
+        }
+    }
+
+    private void force() throws IOException {
+        // everything up to written_ has been handed to the channel
+        long written = written_;
+        if (unsyncedBytes_ > 0) {
+            channel_.force(false);
+            syncCount_++;
+            unsyncedBytes_ = 0;
+        }
+        synced_ = written;
+        synchronized (syncLock_) {
+            syncLock_.notifyAll();
+        }
+    }
+
+    private void park(long now) {
+        long nanos = IDLE_NANOS;
+        if (unsyncedBytes_ > 0 && syncPolicy_.intervalNanos_ > 0) {
+            nanos = Math.max(0, unsyncedSinceNanos_ + syncPolicy_.intervalNanos_ - now);
+        }
+        writerParked_ = true;
+        // recheck after announcing the park, so an event queued meanwhile is not left waiting
+        if (queue_.isEmpty() && !closed_ && syncRequested_ <= synced_) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        writerParked_ = false;
+    }
+
+    private void discardQueue() {
+        while (queue_.poll() != null) {
+            queueSpace_.release();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, thread safe pool of equally sized byte buffers.
+ *
+ * Transports that need scratch space only while data is in flight, such as the network buffers of a TLS connection,
+ * take buffers from a pool and give them back as soon as they are empty, so that idle connections hold no memory and
+ * busy ones do not allocate a new buffer for every message. Requests for more than the pool's buffer size are served
+ * with a new buffer that is dropped again on release.
+ */
+public class TByteBufferPool {
+
+    private final int bufferSize_;
+    private final int maxPooled_;
+    private final boolean direct_;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pooled_ = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooledCount_ = new AtomicInteger(0);
+
+    /**
+     * @param bufferSize
+     *            capacity of the pooled buffers
+     * @param maxPooled
+     *            most buffers kept while nobody uses them, further released buffers are left to the garbage collector
+     */
+    public TByteBufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, false);
+    }
+
+    /**
+     * @param direct
+     *            whether to pool direct instead of heap buffers
+     */
+    public TByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        bufferSize_ = bufferSize;
+        maxPooled_ = maxPooled;
+        direct_ = direct;
+    }
+
+    /**
+     * Takes a cleared buffer of the pool's buffer size.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pooled_.poll();
+        if (buffer == null) {
+            return allocate(bufferSize_);
+        }
+        pooledCount_.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Takes a cleared buffer with at least the given capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        return minCapacity <= bufferSize_ ? acquire() : allocate(minCapacity);
+    }
+
+    /**
+     * Gives a buffer back. The caller must not use it afterwards. Null and buffers that did not come from the pool are
+     * ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize_ || buffer.isDirect() != direct_) {
+            return;
+        }
+        if (pooledCount_.incrementAndGet() > maxPooled_) {
+            pooledCount_.decrementAndGet();
+            return;
+        }
+        pooled_.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize_;
+    }
+
+    public boolean isDirect() {
+        return direct_;
+    }
+
+    /**
+     * Number of buffers currently waiting in the pool.
+     */
+    public int getPooledCount() {
+        return pooledCount_.get();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct_ ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
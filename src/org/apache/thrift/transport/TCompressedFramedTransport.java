@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.thrift.EncodingUtils;
+
+/**
+ * A framed transport that compresses large frames with {@link Deflater}. Frames below a size threshold, and frames
+ * that would not get smaller, are sent as they are, so small calls pay nothing but a flag byte. Every frame says
+ * whether it is compressed, so each side may choose its own threshold and level, but both must use the same preset
+ * dictionary, if any.
+ *
+ * A frame is a 4 byte length followed by a flag byte and the data. Compressed frames carry the uncompressed length
+ * after the flag, followed by a zlib stream. A preset dictionary such as a sample of typical payloads improves the
+ * compression of small frames, since every frame is compressed on its own.
+ *
+ * The compressor, the decompressor and the read and write buffers are reused from frame to frame like those of
+ * {@link TFastFramedTransport}, so protocols that read binary fields straight out of the transport buffer return
+ * slices of a buffer that is overwritten by the next frame. {@link #close()} frees the native memory of the
+ * compressor and decompressor.
+ *
+ * This implementation is NOT threadsafe.
+ */
+public class TCompressedFramedTransport extends TTransport {
+
+    public static class Factory extends TTransportFactory {
+        private final int minCompressSize;
+        private final int level;
+        private final byte[] dictionary;
+        private final int maxLength;
+
+        public Factory() {
+            this(DEFAULT_MIN_COMPRESS_SIZE, DEFAULT_LEVEL, null, DEFAULT_MAX_LENGTH);
+        }
+
+        public Factory(int minCompressSize, int level, byte[] dictionary, int maxLength) {
+            this.minCompressSize = minCompressSize;
+            this.level = level;
+            this.dictionary = dictionary;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public TTransport getTransport(TTransport trans) {
+            return new TCompressedFramedTransport(trans, minCompressSize, level, dictionary, maxLength);
+        }
+    }
+
+    /**
+     * Frames with less data than this are sent uncompressed by default.
+     */
+    public static final int DEFAULT_MIN_COMPRESS_SIZE = 1024;
+
+    /**
+     * Favors speed, which for text payloads gives most of the size reduction of the higher levels.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * How big is the largest allowable frame, compressed or not? Defaults to 16MB.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16384000;
+
+    public static final byte FLAG_UNCOMPRESSED = 0;
+    public static final byte FLAG_DEFLATE = 1;
+
+    private static final int FRAME_HEADER_BYTES = 4;
+    private static final int FLAG_BYTES = 1;
+    private static final int DEFLATE_HEADER_BYTES = FRAME_HEADER_BYTES + FLAG_BYTES + 4;
+
+    private static final int DEFAULT_BUF_CAPACITY = 1024;
+
+    private final TTransport underlying;
+    private final int minCompressSize;
+    private final int level;
+    private final byte[] dictionary;
+    private final int maxLength;
+
+    // room for the frame header and flag, followed by the data
+    private final AutoExpandingBuffer writeBuffer;
+    private int writePos;
+    private final AutoExpandingBuffer compressedOut;
+    private final AutoExpandingBuffer readData;
+    private final AutoExpandingBuffer compressedIn;
+    private final TMemoryInputTransport readBuffer = new TMemoryInputTransport();
+    private final byte[] header = new byte[DEFLATE_HEADER_BYTES];
+
+    // created on first use and ended by close()
+    private Deflater deflater;
+    private Inflater inflater;
+
+    private long bytesWritten;
+    private long wireBytesWritten;
+
+    /**
+     * Create a new transport that compresses frames of at least {@link #DEFAULT_MIN_COMPRESS_SIZE} bytes at
+     * {@link #DEFAULT_LEVEL}, without a preset dictionary.
+     *
+     * @param underlying
+     *            Transport that real reads and writes will go through to.
+     */
+    public TCompressedFramedTransport(TTransport underlying) {
+        this(underlying, DEFAULT_MIN_COMPRESS_SIZE, DEFAULT_LEVEL, null, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param underlying
+     *            Transport that real reads and writes will go through to.
+     * @param minCompressSize
+     *            frames with less data are sent uncompressed
+     * @param level
+     *            the {@link Deflater} compression level
+     * @param dictionary
+     *            preset dictionary, which the other side must use as well, or null
+     * @param maxLength
+     *            The max frame size you are willing to read, before and after decompression.
+     */
+    public TCompressedFramedTransport(TTransport underlying, int minCompressSize, int level, byte[] dictionary,
+            int maxLength) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.underlying = underlying;
+        this.minCompressSize = minCompressSize;
+        this.level = level;
+        this.dictionary = dictionary;
+        this.maxLength = maxLength;
+        writeBuffer = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+        compressedOut = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+        readData = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+        compressedIn = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+        writePos = FRAME_HEADER_BYTES + FLAG_BYTES;
+    }
+
+    /**
+     * Number of bytes passed to {@link #write(byte[], int, int)} and flushed so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Number of bytes the flushed frames took on the underlying transport, including their headers.
+     */
+    public long getWireBytesWritten() {
+        return wireBytesWritten;
+    }
+
+    @Override
+    public void close() {
+        underlying.close();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return underlying.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        underlying.open();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        int got = readBuffer.read(buf, off, len);
+        if (got > 0) {
+            return got;
+        }
+
+        // Read another frame of data
+        readFrame();
+
+        return readBuffer.read(buf, off, len);
+    }
+
+    private void readFrame() throws TTransportException {
+        underlying.readAll(header, 0, FRAME_HEADER_BYTES + FLAG_BYTES);
+        int size = TFramedTransport.decodeFrameSize(header);
+
+        if (size < FLAG_BYTES) {
+            throw new TTransportException("Read an invalid frame size (" + size + ")!");
+        }
+
+        if (size > maxLength) {
+            throw new TTransportException("Frame size (" + size + ") larger than max length (" + maxLength + ")!");
+        }
+
+        byte flag = header[FRAME_HEADER_BYTES];
+        int length = size - FLAG_BYTES;
+        if (flag == FLAG_UNCOMPRESSED) {
+            readData.resizeIfNecessary(length);
+            underlying.readAll(readData.array(), 0, length);
+            readBuffer.reset(readData.array(), 0, length);
+        } else if (flag == FLAG_DEFLATE) {
+            if (length < 4) {
+                throw new TTransportException("Read an invalid compressed frame size (" + size + ")!");
+            }
+            underlying.readAll(header, 0, 4);
+            int uncompressed = TFramedTransport.decodeFrameSize(header);
+            if (uncompressed < 0 || uncompressed > maxLength) {
+                throw new TTransportException("Uncompressed frame size (" + uncompressed + ") larger than max length ("
+                        + maxLength + ")!");
+            }
+            length -= 4;
+            compressedIn.resizeIfNecessary(length);
+            underlying.readAll(compressedIn.array(), 0, length);
+            readData.resizeIfNecessary(uncompressed);
+            inflate(compressedIn.array(), length, readData.array(), uncompressed);
+            readBuffer.reset(readData.array(), 0, uncompressed);
+        } else {
+            throw new TTransportException("Unknown frame flag " + flag);
+        }
+    }
+
+    private void inflate(byte[] in, int inLength, byte[] out, int outLength) throws TTransportException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            inflater.reset();
+        }
+        inflater.setInput(in, 0, inLength);
+        try {
+            int n = inflater.inflate(out, 0, outLength);
+            if (n == 0 && inflater.needsDictionary()) {
+                if (dictionary == null) {
+                    throw new TTransportException("Frame was compressed with a preset dictionary, but none is set");
+                }
+                try {
+                    inflater.setDictionary(dictionary);
+                } catch (IllegalArgumentException e) {
+                    throw new TTransportException("Frame was compressed with a different preset dictionary");
+                }
+                n = inflater.inflate(out, 0, outLength);
+            }
+            int total = n;
+            while (total < outLength && !inflater.finished() && n > 0) {
+                n = inflater.inflate(out, total, outLength - total);
+                total += n;
+            }
+            if (total != outLength || !inflater.finished()) {
+                throw new TTransportException("Compressed frame does not hold the " + outLength + " bytes it declares");
+            }
+        } catch (DataFormatException e) {
+            throw new TTransportException("Invalid compressed frame", e);
+        }
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        writeBuffer.resizeIfNecessary(writePos + len);
+        System.arraycopy(buf, off, writeBuffer.array(), writePos, len);
+        writePos += len;
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+        byte[] data = writeBuffer.array();
+        int length = writePos - FRAME_HEADER_BYTES - FLAG_BYTES;
+        try {
+            int compressed = length >= minCompressSize ? deflate(data, FRAME_HEADER_BYTES + FLAG_BYTES, length) : -1;
+            if (compressed >= 0) {
+                byte[] out = compressedOut.array();
+                TFramedTransport.encodeFrameSize(FLAG_BYTES + 4 + compressed, out);
+                out[FRAME_HEADER_BYTES] = FLAG_DEFLATE;
+                EncodingUtils.encodeBigEndian(length, out, FRAME_HEADER_BYTES + FLAG_BYTES);
+                underlying.write(out, 0, DEFLATE_HEADER_BYTES + compressed);
+                wireBytesWritten += DEFLATE_HEADER_BYTES + compressed;
+            } else {
+                // the header space reserved in front of the data
+                TFramedTransport.encodeFrameSize(FLAG_BYTES + length, data);
+                data[FRAME_HEADER_BYTES] = FLAG_UNCOMPRESSED;
+                underlying.write(data, 0, FRAME_HEADER_BYTES + FLAG_BYTES + length);
+                wireBytesWritten += FRAME_HEADER_BYTES + FLAG_BYTES + length;
+            }
+            bytesWritten += length;
+        } finally {
+            writePos = FRAME_HEADER_BYTES + FLAG_BYTES;
+        }
+        underlying.flush();
+    }
+
+    /**
+     * Compresses the given data into compressedOut, after room for the frame header.
+     *
+     * @return the compressed size, or -1 if compressing would not make the frame smaller
+     */
+    private int deflate(byte[] data, int off, int len) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+        }
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data, off, len);
+        deflater.finish();
+
+        // give up as soon as the compressed frame would be no smaller than the uncompressed one
+        int limit = FRAME_HEADER_BYTES + FLAG_BYTES + len - 1;
+        compressedOut.resizeIfNecessary(limit);
+        byte[] out = compressedOut.array();
+        int pos = DEFLATE_HEADER_BYTES;
+        while (!deflater.finished() && pos < limit) {
+            pos += deflater.deflate(out, pos, limit - pos);
+        }
+        return deflater.finished() ? pos - DEFLATE_HEADER_BYTES : -1;
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return readBuffer.getBuffer();
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return readBuffer.getBufferPosition();
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return readBuffer.getBytesRemainingInBuffer();
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+        readBuffer.consumeBuffer(len);
+    }
+}
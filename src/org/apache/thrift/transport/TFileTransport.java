@@ -26,6 +26,8 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.util.Random;
 
+import org.apache.thrift.TByteArrayOutputStream;
+
 /**
  * FileTransport implementation of the TTransport interface. Currently this is a straightforward port of the cpp
  * implementation
@@ -203,6 +205,21 @@ public class TFileTransport extends TTransport {
      */
     private boolean readOnly_ = false;
 
+    /**
+     * Event being written, committed by flush()
+     */
+    private final TByteArrayOutputStream writeBuffer_ = new TByteArrayOutputStream();
+
+    /**
+     * Chunk state of the output stream
+     */
+    ChunkState writeState_ = null;
+
+    /**
+     * Writer events are handed to instead of the output stream, for write only transports
+     */
+    private TAsyncFileWriter asyncWriter_ = null;
+
     /**
      * Get File Tailing Policy
      * 
@@ -377,6 +394,8 @@ public class TFileTransport extends TTransport {
      * @return true
      */
     public boolean isOpen() {
+        if (asyncWriter_ != null)
+            return asyncWriter_.isOpen();
         return ((inputStream_ != null) && (readOnly_ || (outputStream_ != null)));
     }
 
@@ -388,22 +407,29 @@ public class TFileTransport extends TTransport {
         if (isOpen())
             throw new TTransportException(TTransportException.ALREADY_OPEN);
 
+        if (asyncWriter_ != null)
+            throw new TTransportException(TTransportException.NOT_OPEN, "Async writer is closed");
+
         try {
             inputStream_ = createInputStream();
             cs = new ChunkState();
             currentEvent_ = new Event(new byte[256]);
 
-            if (!readOnly_)
+            if (!readOnly_) {
                 outputStream_ = new BufferedOutputStream(inputFile_.getOutputStream(), 8192);
+                writeState_ = new ChunkState();
+                writeState_.seek(inputFile_.length());
+            }
         } catch (IOException iox) {
             throw new TTransportException(TTransportException.NOT_OPEN, iox);
         }
     }
 
     /**
-     * Closes the transport.
+     * Closes the transport. A write only transport drops any unflushed data but leaves its shared writer open.
      */
     public void close() {
+        writeBuffer_.reset();
         if (inputFile_ != null) {
             try {
                 inputFile_.close();
@@ -448,6 +474,18 @@ public class TFileTransport extends TTransport {
         readOnly_ = readOnly;
     }
 
+    /**
+     * Write only File Transport ctor. Events are appended by the given writer's thread, so {@link #flush()} only
+     * waits if the writer's queue is full. The transport is open for as long as the writer is.
+     *
+     * @param asyncWriter
+     *            writer shared by all transports writing to the file
+     */
+    public TFileTransport(TAsyncFileWriter asyncWriter) {
+        asyncWriter_ = asyncWriter;
+        readOnly_ = false;
+    }
+
     /**
      * Cloned from TTransport.java:readAll(). Only difference is throwing an EOF exception where one is detected.
      */
@@ -483,6 +521,8 @@ public class TFileTransport extends TTransport {
     public int read(byte[] buf, int off, int len) throws TTransportException {
         if (!isOpen())
             throw new TTransportException(TTransportException.NOT_OPEN, "Must open before reading");
+        if (asyncWriter_ != null)
+            throw new TTransportException("Transport is write only");
 
         if (currentEvent_.getRemaining() == 0) {
             if (!readEvent())
@@ -496,6 +536,8 @@ public class TFileTransport extends TTransport {
     public int getNumChunks() throws TTransportException {
         if (!isOpen())
             throw new TTransportException(TTransportException.NOT_OPEN, "Must open before getNumChunks");
+        if (asyncWriter_ != null)
+            throw new TTransportException("Transport is write only");
         try {
             long len = inputFile_.length();
             if (len == 0)
@@ -511,6 +553,8 @@ public class TFileTransport extends TTransport {
     public int getCurChunk() throws TTransportException {
         if (!isOpen())
             throw new TTransportException(TTransportException.NOT_OPEN, "Must open before getCurChunk");
+        if (asyncWriter_ != null)
+            throw new TTransportException("Transport is write only");
         return (cs.getChunkNum());
 
     }
@@ -518,6 +562,8 @@ public class TFileTransport extends TTransport {
     public void seekToChunk(int chunk) throws TTransportException {
         if (!isOpen())
             throw new TTransportException(TTransportException.NOT_OPEN, "Must open before seeking");
+        if (asyncWriter_ != null)
+            throw new TTransportException("Transport is write only");
 
         int numChunks = getNumChunks();
 
@@ -579,7 +625,7 @@ public class TFileTransport extends TTransport {
     }
 
     /**
-     * Writes up to len bytes from the buffer.
+     * Appends len bytes from the buffer to the current event. The event is written out by {@link #flush()}.
      *
      * @param buf
      *            The output data buffer
@@ -588,20 +634,84 @@ public class TFileTransport extends TTransport {
      * @param len
      *            The number of bytes to write
      * @throws TTransportException
-     *             if there was an error writing data
+     *             if the transport is read only or not open
      */
     public void write(byte[] buf, int off, int len) throws TTransportException {
-        throw new TTransportException("Not Supported");
+        checkWritable();
+        writeBuffer_.write(buf, off, len);
     }
 
     /**
-     * Flush any pending data out of a transport buffer.
+     * Writes the current event, if anything was written since the last flush, and flushes the file stream.
      *
      * @throws TTransportException
      *             if there was an error writing out data.
      */
     public void flush() throws TTransportException {
-        throw new TTransportException("Not Supported");
+        checkWritable();
+        if (writeBuffer_.len() > 0) {
+            writeEvent(writeBuffer_.get(), 0, writeBuffer_.len());
+            writeBuffer_.reset();
+        }
+        if (asyncWriter_ != null)
+            return;
+        try {
+            outputStream_.flush();
+        } catch (IOException iox) {
+            throw new TTransportException(iox.getMessage(), iox);
+        }
+    }
+
+    /**
+     * Writes a single event without flushing the file stream. Events never span chunks: if the event does not fit
+     * into the rest of the current chunk, the chunk is padded out and the event starts the next one. A write only
+     * transport queues the event to its writer instead.
+     *
+     * @throws TTransportException
+     *             if the event does not fit into a chunk or there was an error writing it
+     */
+    public void writeEvent(byte[] buf, int off, int len) throws TTransportException {
+        checkWritable();
+        if (len <= 0) {
+            // a zero size is read back as padding
+            return;
+        }
+        if (asyncWriter_ != null) {
+            asyncWriter_.append(buf, off, len);
+            return;
+        }
+        if (len + 4 > writeState_.getChunkSize()) {
+            throw new TTransportException("Event of " + len + " bytes does not fit into a chunk of "
+                    + writeState_.getChunkSize() + " bytes");
+        }
+        try {
+            int remaining = writeState_.getRemaining();
+            if (len + 4 > remaining) {
+                byte[] padding = new byte[Math.min(remaining, 8192)];
+                for (int left = remaining; left > 0; left -= padding.length) {
+                    outputStream_.write(padding, 0, Math.min(left, padding.length));
+                }
+                writeState_.skip(remaining);
+            }
+            // sizes are little endian, like the cpp implementation writes them
+            outputStream_.write(len & 0xff);
+            outputStream_.write((len >> 8) & 0xff);
+            outputStream_.write((len >> 16) & 0xff);
+            outputStream_.write((len >> 24) & 0xff);
+            outputStream_.write(buf, off, len);
+            writeState_.skip(len + 4);
+        } catch (IOException iox) {
+            throw new TTransportException(iox.getMessage(), iox);
+        }
+    }
+
+    private void checkWritable() throws TTransportException {
+        if (asyncWriter_ != null)
+            return;
+        if (readOnly_)
+            throw new TTransportException("Transport is read only");
+        if (outputStream_ == null)
+            throw new TTransportException(TTransportException.NOT_OPEN, "Must open before writing");
     }
 
     /**
@@ -44,7 +44,14 @@ public class TFramedTransport extends TTransport {
     /**
      * Buffer for input
      */
-    private TMemoryInputTransport readBuffer_ = new TMemoryInputTransport(new byte[0]);
+    private TMemoryInputTransport readBuffer_ = new TMemoryInputTransport(EMPTY_FRAME);
+
+    private static final byte[] EMPTY_FRAME = new byte[0];
+
+    /**
+     * Whether frames held by an underlying TMemoryInputTransport are read without copying
+     */
+    private boolean readInPlace_ = false;
 
     public static class Factory extends TTransportFactory {
         private int maxLength_;
@@ -76,6 +83,23 @@ public class TFramedTransport extends TTransport {
         maxLength_ = TFramedTransport.DEFAULT_MAX_LENGTH;
     }
 
+    /**
+     * When enabled and the underlying transport is a TMemoryInputTransport already holding the whole frame, frames are
+     * read straight out of its buffer instead of being copied. Binary values read through this transport then alias
+     * the caller's buffer, so the caller must not modify it while they are in use. Off by default.
+     */
+    public void setReadInPlace(boolean readInPlace) {
+        readInPlace_ = readInPlace;
+    }
+
+    /**
+     * Drops the frame currently being read, so that a buffer read in place is no longer referenced once the caller is
+     * done with it. Whatever was left unread in the frame is discarded.
+     */
+    public void clearReadBuffer() {
+        readBuffer_.reset(EMPTY_FRAME);
+    }
+
 	@Override
     public void open() throws TTransportException {
         transport_.open();
@@ -140,6 +164,13 @@ public class TFramedTransport extends TTransport {
             throw new TTransportException("Frame size (" + size + ") larger than max length (" + maxLength_ + ")!");
         }
 
+        if (readInPlace_ && transport_ instanceof TMemoryInputTransport && transport_.getBytesRemainingInBuffer() >= size) {
+            // the whole frame is already in memory owned by the caller, read it in place
+            readBuffer_.reset(transport_.getBuffer(), transport_.getBufferPosition(), size);
+            transport_.consumeBuffer(size);
+            return;
+        }
+
         byte[] buff = new byte[size];
         transport_.readAll(buff, 0, size);
         readBuffer_.reset(buff);
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+/**
+ * A reversible transformation of the payload of a {@link THeaderTransport} frame, such as compression or a checksum.
+ * The ids of the transforms applied to a frame are listed in its header, so the receiver must know every transform
+ * the sender uses. Instances belong to a single transport and may keep state, such as a compressor, between frames.
+ */
+public interface THeaderTransform {
+
+    /**
+     * The id that identifies the transform in frame headers.
+     */
+    int getId();
+
+    /**
+     * Transforms outgoing data.
+     *
+     * @return the number of bytes written to the start of out
+     */
+    int encode(byte[] buf, int off, int len, AutoExpandingBuffer out) throws TTransportException;
+
+    /**
+     * Reverses {@link #encode}.
+     *
+     * @return the number of bytes written to the start of out
+     */
+    int decode(byte[] buf, int off, int len, AutoExpandingBuffer out) throws TTransportException;
+
+    /**
+     * Frees any resources held by the transform.
+     */
+    void close();
+}
@@ -0,0 +1,741 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.thrift.EncodingUtils;
+
+/**
+ * A framed transport whose frames carry a header with per-request metadata, in the header format shared with other
+ * Thrift implementations. Besides the frame length every frame has
+ * <ul>
+ * <li>a magic number, flags and a sequence id,</li>
+ * <li>the id of the protocol the payload is encoded with, see {@link org.apache.thrift.protocol.THeaderProtocol},</li>
+ * <li>the ids of the {@link THeaderTransform transforms} applied to the payload, in the order they were applied,</li>
+ * <li>string key/value pairs, e.g. a deadline, a trace id or a priority,</li>
+ * </ul>
+ * followed by the transformed payload.
+ *
+ * Headers set with {@link #setWriteHeader(String, String)} go out with the next frame only. On a server, the
+ * {@link org.apache.thrift.server.TServerEventHandler#processContext processContext} callback can call
+ * {@link #readHeaders()} on its input transport to look at the headers of the next request before any of its payload is
+ * decoded, e.g. to schedule or shed it, and set response headers on its output transport. Server side transports
+ * answer every request with the protocol and transforms the request used.
+ *
+ * The read and write buffers are reused from frame to frame like those of {@link TFastFramedTransport}, so protocols
+ * that read binary fields straight out of the transport buffer return slices of a buffer that is overwritten by the
+ * next frame.
+ *
+ * This implementation is NOT threadsafe.
+ */
+public class THeaderTransport extends TTransport {
+
+    /**
+     * <code>TTransportFactory</code> for servers. Like {@link TSaslServerTransport.Factory} it hands out the same
+     * transport for the input and the output side of a connection, so that responses can mirror their request.
+     */
+    public static class Factory extends TTransportFactory {
+
+        private final Map<TTransport, WeakReference<THeaderTransport>> transportMap = Collections
+                .synchronizedMap(new WeakHashMap<TTransport, WeakReference<THeaderTransport>>());
+
+        private final int maxLength;
+
+        public Factory() {
+            this(DEFAULT_MAX_LENGTH);
+        }
+
+        public Factory(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public TTransport getTransport(TTransport base) {
+            WeakReference<THeaderTransport> ref = transportMap.get(base);
+            THeaderTransport transport = ref == null ? null : ref.get();
+            if (transport == null) {
+                transport = new THeaderTransport(base, maxLength);
+                transport.setRequestTransport(transport);
+                transportMap.put(base, new WeakReference<THeaderTransport>(transport));
+            }
+            return transport;
+        }
+    }
+
+    public static final int HEADER_MAGIC = 0x0FFF;
+
+    public static final int PROTOCOL_BINARY = 0;
+    public static final int PROTOCOL_JSON = 1;
+    public static final int PROTOCOL_COMPACT = 2;
+
+    /**
+     * Compresses the payload into a zlib stream.
+     */
+    public static final int ZLIB_TRANSFORM = 0x01;
+
+    /**
+     * Appends a CRC-32 of the payload, which the receiver verifies. Ids below this one are used by other Thrift
+     * implementations.
+     */
+    public static final int CRC32_TRANSFORM = 0x10;
+
+    /**
+     * How big is the largest allowable frame, before and after transforms? Defaults to 16MB.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16384000;
+
+    /**
+     * Header carrying the number of milliseconds the client will wait for the response, see
+     * {@link org.apache.thrift.TDeadline}.
+     */
+    public static final String CLIENT_TIMEOUT_HEADER = "client_timeout";
+
+    private static final int INFO_KEYVALUE = 1;
+
+    // frame length, magic, flags, sequence id and header size
+    private static final int FIXED_HEADER_BYTES = 14;
+
+    private static final int MAX_HEADER_BYTES = 0xFFFF * 4;
+
+    private static final int DEFAULT_BUF_CAPACITY = 1024;
+
+    private final TTransport underlying_;
+
+    private final int maxLength_;
+
+    private final Map<Integer, THeaderTransform> transforms_ = new HashMap<Integer, THeaderTransform>();
+
+    // the transport whose requests frames written by this one answer, if any
+    private THeaderTransport requestTransport_;
+
+    private int protocolId_ = PROTOCOL_BINARY;
+    private final List<Integer> writeTransforms_ = new ArrayList<Integer>();
+    private final Map<String, String> writeHeaders_ = new LinkedHashMap<String, String>();
+    private int sequenceId_;
+    private int clientTimeout_;
+
+    private final AutoExpandingBuffer writeBuffer_ = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+    private int writePos_;
+    private final AutoExpandingBuffer headerBuffer_ = new AutoExpandingBuffer(64, 1.5);
+    private int headerPos_;
+    private AutoExpandingBuffer[] writeScratch_;
+
+    private final TMemoryInputTransport readBuffer_ = new TMemoryInputTransport();
+    private final AutoExpandingBuffer frameBuffer_ = new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5);
+    private AutoExpandingBuffer[] readScratch_;
+    private final byte[] i32buf_ = new byte[4];
+
+    private int readProtocolId_ = -1;
+    private int readSequenceId_;
+    private int[] readTransforms_ = new int[0];
+    private Map<String, String> readHeaders_ = Collections.emptyMap();
+
+    // set when a frame could only be read in part, which leaves the stream unusable
+    private TTransportException readFailure_;
+
+    // position while parsing a frame header
+    private int parsePos_;
+    private int parseEnd_;
+
+    public THeaderTransport(TTransport underlying) {
+        this(underlying, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength
+     *            The max frame size you are willing to read, before and after transforms.
+     */
+    public THeaderTransport(TTransport underlying, int maxLength) {
+        underlying_ = underlying;
+        maxLength_ = maxLength;
+    }
+
+    public TTransport getUnderlyingTransport() {
+        return underlying_;
+    }
+
+    /**
+     * Makes the frames written by this transport answer the requests read by the given one, using the protocol and
+     * transforms of the last request. Server side transports answer their own requests.
+     */
+    public void setRequestTransport(THeaderTransport requestTransport) {
+        requestTransport_ = requestTransport;
+    }
+
+    /**
+     * Registers a transform, replacing any built in or earlier one with the same id. Transforms used by the peer must
+     * be registered before its frames are read.
+     */
+    public void addTransform(THeaderTransform transform) {
+        THeaderTransform previous = transforms_.put(transform.getId(), transform);
+        if (previous != null && previous != transform) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Applies the given transform to every frame written from now on, after those added before.
+     *
+     * @throws TTransportException
+     *             if the transform is neither built in nor registered
+     */
+    public void addWriteTransform(int id) throws TTransportException {
+        transform(id);
+        writeTransforms_.add(id);
+    }
+
+    public void clearWriteTransforms() {
+        writeTransforms_.clear();
+    }
+
+    /**
+     * Sets the protocol id announced in the frames written by this transport. It has to match the protocol writing the
+     * payload, which {@link org.apache.thrift.protocol.THeaderProtocol} takes care of.
+     */
+    public void setProtocolId(int protocolId) {
+        protocolId_ = protocolId;
+    }
+
+    /**
+     * The protocol id the next frame will be written with, which for a transport answering requests is the one of the
+     * last request.
+     */
+    public int getWriteProtocolId() {
+        if (requestTransport_ != null && requestTransport_.readProtocolId_ >= 0) {
+            return requestTransport_.readProtocolId_;
+        }
+        return protocolId_;
+    }
+
+    public void setSequenceId(int sequenceId) {
+        sequenceId_ = sequenceId;
+    }
+
+    /**
+     * Sends the given timeout in the {@link #CLIENT_TIMEOUT_HEADER} header of every frame from now on, so that the
+     * server can drop requests the client has given up on. Usually this is the socket or call timeout of the client; 0
+     * stops sending it.
+     */
+    public void setClientTimeout(int clientTimeoutMillis) {
+        clientTimeout_ = clientTimeoutMillis;
+    }
+
+    public int getClientTimeout() {
+        return clientTimeout_;
+    }
+
+    /**
+     * Sets a header for the next frame.
+     */
+    public void setWriteHeader(String key, String value) {
+        writeHeaders_.put(key, value);
+    }
+
+    /**
+     * The headers for the next frame, which may be modified.
+     */
+    public Map<String, String> getWriteHeaders() {
+        return writeHeaders_;
+    }
+
+    /**
+     * Reads the header of the next frame unless the payload of the current one has not been read completely, and
+     * returns its headers. The payload stays in the transport for the protocol to decode.
+     */
+    public Map<String, String> readHeaders() throws TTransportException {
+        if (readBuffer_.getBytesRemainingInBuffer() <= 0) {
+            nextFrame();
+        }
+        return readHeaders_;
+    }
+
+    /**
+     * The headers of the last frame read.
+     */
+    public Map<String, String> getReadHeaders() {
+        return readHeaders_;
+    }
+
+    /**
+     * The protocol id of the last frame read, -1 if none has been read.
+     */
+    public int getReadProtocolId() {
+        return readProtocolId_;
+    }
+
+    public int getReadSequenceId() {
+        return readSequenceId_;
+    }
+
+    /**
+     * The ids of the transforms applied to the last frame read, in the order they were applied.
+     */
+    public int[] getReadTransforms() {
+        return readTransforms_.clone();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return underlying_.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        underlying_.open();
+    }
+
+    @Override
+    public void close() {
+        underlying_.close();
+        for (THeaderTransform transform : transforms_.values()) {
+            transform.close();
+        }
+        transforms_.clear();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        int got = readBuffer_.read(buf, off, len);
+        if (got > 0) {
+            return got;
+        }
+
+        // Read another frame of data
+        nextFrame();
+
+        return readBuffer_.read(buf, off, len);
+    }
+
+    private void nextFrame() throws TTransportException {
+        if (readFailure_ != null) {
+            throw readFailure_;
+        }
+        underlying_.readAll(i32buf_, 0, 4);
+        try {
+            readFrame(TFramedTransport.decodeFrameSize(i32buf_));
+        } catch (TTransportException e) {
+            readFailure_ = e;
+            throw e;
+        }
+    }
+
+    private void readFrame(int size) throws TTransportException {
+        if (size < FIXED_HEADER_BYTES - 4) {
+            throw new TTransportException("Read an invalid frame size (" + size + ")!");
+        }
+        if (size > maxLength_) {
+            throw new TTransportException("Frame size (" + size + ") larger than max length (" + maxLength_ + ")!");
+        }
+
+        byte[] frame;
+        int base;
+        if (underlying_ instanceof TMemoryInputTransport && underlying_.getBytesRemainingInBuffer() >= size) {
+            // the whole frame is already in memory owned by the caller, read it in place
+            frame = underlying_.getBuffer();
+            base = underlying_.getBufferPosition();
+            underlying_.consumeBuffer(size);
+        } else {
+            frameBuffer_.resizeIfNecessary(size);
+            frame = frameBuffer_.array();
+            base = 0;
+            underlying_.readAll(frame, 0, size);
+        }
+
+        int magic = decodeU16(frame, base);
+        if (magic != HEADER_MAGIC) {
+            throw new TTransportException("Not a header frame, magic 0x"
+                    + Integer.toHexString(magic));
+        }
+        readSequenceId_ = EncodingUtils.decodeBigEndian(frame, base + 4);
+        int headerSize = decodeU16(frame, base + 8) * 4;
+        int payload = base + FIXED_HEADER_BYTES - 4 + headerSize;
+        if (payload > base + size) {
+            throw new TTransportException("Header size " + headerSize
+                    + " exceeds frame size " + size);
+        }
+
+        parsePos_ = base + FIXED_HEADER_BYTES - 4;
+        parseEnd_ = payload;
+        int protocolId = readVarint(frame);
+        int transformCount = readVarint(frame);
+        if (transformCount > parseEnd_ - parsePos_) {
+            throw new TTransportException("Invalid transform count "
+                    + transformCount);
+        }
+        int[] transforms = new int[transformCount];
+        for (int i = 0; i < transformCount; i++) {
+            transforms[i] = readVarint(frame);
+        }
+        Map<String, String> headers = Collections.emptyMap();
+        while (parsePos_ < parseEnd_) {
+            int infoId = readVarint(frame);
+            if (infoId != INFO_KEYVALUE) {
+                // padding, or information this transport does not know how to skip
+                break;
+            }
+            int count = readVarint(frame);
+            if (headers.isEmpty()) {
+                headers = new HashMap<String, String>();
+            }
+            for (int i = 0; i < count; i++) {
+                String key = readString(frame);
+                headers.put(key, readString(frame));
+            }
+        }
+        readProtocolId_ = protocolId;
+        readTransforms_ = transforms;
+        readHeaders_ = headers;
+
+        byte[] data = frame;
+        int off = payload;
+        int len = base + size - payload;
+        if (transformCount > 0) {
+            if (readScratch_ == null) {
+                readScratch_ = newScratch();
+            }
+            for (int i = transformCount - 1; i >= 0; i--) {
+                AutoExpandingBuffer out = readScratch_[i % 2];
+                len = transform(transforms[i]).decode(data, off, len, out);
+                if (len > maxLength_) {
+                    throw new TTransportException("Frame size (" + len + ") larger than max length (" + maxLength_
+                            + ")!");
+                }
+                data = out.array();
+                off = 0;
+            }
+        }
+        readBuffer_.reset(data, off, len);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        writeBuffer_.resizeIfNecessary(writePos_ + len);
+        System.arraycopy(buf, off, writeBuffer_.array(), writePos_, len);
+        writePos_ += len;
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+        try {
+            byte[] data = writeBuffer_.array();
+            int off = 0;
+            int len = writePos_;
+
+            List<Integer> transforms = writeTransforms_;
+            if (requestTransport_ != null && requestTransport_.readProtocolId_ >= 0) {
+                transforms = new ArrayList<Integer>(requestTransport_.readTransforms_.length);
+                for (int id : requestTransport_.readTransforms_) {
+                    transforms.add(id);
+                }
+            }
+            if (!transforms.isEmpty()) {
+                if (writeScratch_ == null) {
+                    writeScratch_ = newScratch();
+                }
+                for (int i = 0; i < transforms.size(); i++) {
+                    AutoExpandingBuffer out = writeScratch_[i % 2];
+                    len = transform(transforms.get(i)).encode(data, off, len, out);
+                    data = out.array();
+                    off = 0;
+                }
+            }
+
+            headerPos_ = FIXED_HEADER_BYTES;
+            writeVarint(getWriteProtocolId());
+            writeVarint(transforms.size());
+            for (int id : transforms) {
+                writeVarint(id);
+            }
+            boolean timeout = clientTimeout_ > 0 && !writeHeaders_.containsKey(CLIENT_TIMEOUT_HEADER);
+            if (timeout || !writeHeaders_.isEmpty()) {
+                writeVarint(INFO_KEYVALUE);
+                writeVarint(writeHeaders_.size() + (timeout ? 1 : 0));
+                if (timeout) {
+                    writeString(CLIENT_TIMEOUT_HEADER);
+                    writeString(Integer.toString(clientTimeout_));
+                }
+                for (Map.Entry<String, String> header : writeHeaders_.entrySet()) {
+                    writeString(header.getKey());
+                    writeString(header.getValue());
+                }
+            }
+            while ((headerPos_ - FIXED_HEADER_BYTES) % 4 != 0) {
+                writeByte(0);
+            }
+            int headerSize = headerPos_ - FIXED_HEADER_BYTES;
+            if (headerSize > MAX_HEADER_BYTES) {
+                throw new TTransportException("Header of " + headerSize + " bytes exceeds the maximum of "
+                        + MAX_HEADER_BYTES);
+            }
+
+            byte[] header = headerBuffer_.array();
+            TFramedTransport.encodeFrameSize(FIXED_HEADER_BYTES - 4 + headerSize + len, header);
+            encodeU16(HEADER_MAGIC, header, 4);
+            encodeU16(0, header, 6);
+            EncodingUtils.encodeBigEndian(sequenceId_, header, 8);
+            encodeU16(headerSize / 4, header, 12);
+
+            underlying_.write(header, 0, headerPos_);
+            underlying_.write(data, off, len);
+        } finally {
+            writePos_ = 0;
+            writeHeaders_.clear();
+        }
+        underlying_.flush();
+    }
+
+    private THeaderTransform transform(int id) throws TTransportException {
+        THeaderTransform transform = transforms_.get(id);
+        if (transform == null) {
+            if (id == ZLIB_TRANSFORM) {
+                transform = new ZlibTransform(maxLength_);
+            } else if (id == CRC32_TRANSFORM) {
+                transform = new Crc32Transform();
+            } else {
+                throw new TTransportException("Unknown header transform " + id);
+            }
+            transforms_.put(id, transform);
+        }
+        return transform;
+    }
+
+    private static AutoExpandingBuffer[] newScratch() {
+        return new AutoExpandingBuffer[] { new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5),
+                new AutoExpandingBuffer(DEFAULT_BUF_CAPACITY, 1.5) };
+    }
+
+    private int readVarint(byte[] buf) throws TTransportException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (parsePos_ >= parseEnd_) {
+                throw new TTransportException("Truncated frame header");
+            }
+            byte b = buf[parsePos_++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new TTransportException("Invalid varint in frame header");
+    }
+
+    private String readString(byte[] buf) throws TTransportException {
+        int length = readVarint(buf);
+        if (length < 0 || length > parseEnd_ - parsePos_) {
+            throw new TTransportException("Invalid string length " + length
+                    + " in frame header");
+        }
+        try {
+            String s = new String(buf, parsePos_, length, "UTF-8");
+            parsePos_ += length;
+            return s;
+        } catch (UnsupportedEncodingException e) {
+            throw new TTransportException("JVM DOES NOT SUPPORT UTF-8");
+        }
+    }
+
+    private void writeVarint(int n) {
+        while ((n & ~0x7F) != 0) {
+            writeByte((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        writeByte(n);
+    }
+
+    private void writeString(String s) throws TTransportException {
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new TTransportException("JVM DOES NOT SUPPORT UTF-8");
+        }
+        writeVarint(bytes.length);
+        headerBuffer_.resizeIfNecessary(headerPos_ + bytes.length);
+        System.arraycopy(bytes, 0, headerBuffer_.array(), headerPos_, bytes.length);
+        headerPos_ += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        headerBuffer_.resizeIfNecessary(headerPos_ + 1);
+        headerBuffer_.array()[headerPos_++] = (byte) b;
+    }
+
+    private static int decodeU16(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
+    private static void encodeU16(int n, byte[] buf, int off) {
+        buf[off] = (byte) (n >> 8);
+        buf[off + 1] = (byte) n;
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return readBuffer_.getBuffer();
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return readBuffer_.getBufferPosition();
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return readBuffer_.getBytesRemainingInBuffer();
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+        readBuffer_.consumeBuffer(len);
+    }
+
+    private static final class ZlibTransform implements THeaderTransform {
+
+        private final int maxLength_;
+        private Deflater deflater_;
+        private Inflater inflater_;
+
+        ZlibTransform(int maxLength) {
+            maxLength_ = maxLength;
+        }
+
+        @Override
+        public int getId() {
+            return ZLIB_TRANSFORM;
+        }
+
+        @Override
+        public int encode(byte[] buf, int off, int len, AutoExpandingBuffer out) {
+            if (deflater_ == null) {
+                deflater_ = new Deflater();
+            } else {
+                deflater_.reset();
+            }
+            deflater_.setInput(buf, off, len);
+            deflater_.finish();
+            out.resizeIfNecessary(len / 2 + 64);
+            int pos = 0;
+            while (!deflater_.finished()) {
+                if (pos == out.array().length) {
+                    out.resizeIfNecessary(pos + 1);
+                }
+                pos += deflater_.deflate(out.array(), pos, out.array().length - pos);
+            }
+            return pos;
+        }
+
+        @Override
+        public int decode(byte[] buf, int off, int len, AutoExpandingBuffer out) throws TTransportException {
+            if (inflater_ == null) {
+                inflater_ = new Inflater();
+            } else {
+                inflater_.reset();
+            }
+            inflater_.setInput(buf, off, len);
+            out.resizeIfNecessary(len * 2);
+            int pos = 0;
+            try {
+                while (!inflater_.finished()) {
+                    if (pos == out.array().length) {
+                        if (pos >= maxLength_) {
+                            throw new TTransportException("Decompressed frame larger than max length (" + maxLength_
+                                    + ")!");
+                        }
+                        out.resizeIfNecessary(pos + 1);
+                    }
+                    int n = inflater_.inflate(out.array(), pos, out.array().length - pos);
+                    if (n == 0 && !inflater_.finished() && (inflater_.needsInput() || inflater_.needsDictionary())) {
+                        throw new TTransportException("Truncated zlib payload");
+                    }
+                    pos += n;
+                }
+            } catch (DataFormatException e) {
+                throw new TTransportException("Invalid zlib payload", e);
+            }
+            return pos;
+        }
+
+        @Override
+        public void close() {
+            if (deflater_ != null) {
+                deflater_.end();
+            }
+            if (inflater_ != null) {
+                inflater_.end();
+            }
+        }
+    }
+
+    private static final class Crc32Transform implements THeaderTransform {
+
+        private final CRC32 crc_ = new CRC32();
+
+        @Override
+        public int getId() {
+            return CRC32_TRANSFORM;
+        }
+
+        @Override
+        public int encode(byte[] buf, int off, int len, AutoExpandingBuffer out) {
+            out.resizeIfNecessary(len + 4);
+            System.arraycopy(buf, off, out.array(), 0, len);
+            EncodingUtils.encodeBigEndian(checksum(buf, off, len), out.array(), len);
+            return len + 4;
+        }
+
+        @Override
+        public int decode(byte[] buf, int off, int len, AutoExpandingBuffer out) throws TTransportException {
+            if (len < 4) {
+                throw new TTransportException("Payload too short for a checksum");
+            }
+            int length = len - 4;
+            if (checksum(buf, off, length) != EncodingUtils.decodeBigEndian(buf, off + length)) {
+                throw new TTransportException("Payload checksum mismatch");
+            }
+            out.resizeIfNecessary(length);
+            System.arraycopy(buf, off, out.array(), 0, length);
+            return length;
+        }
+
+        private int checksum(byte[] buf, int off, int len) {
+            crc_.reset();
+            crc_.update(buf, off, len);
+            return (int) crc_.getValue();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
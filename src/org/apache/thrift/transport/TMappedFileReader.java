@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads files written in the {@link TFileTransport} format through memory mapped chunks. Unlike
+ * {@link TFileTransport}, which streams the whole file through a single buffered input stream, every chunk is mapped
+ * on its own and read through its own {@link Chunk} transport, so different threads can read different chunks of the
+ * same file at the same time. See {@link TParallelFileProcessor}.
+ *
+ * The file is expected not to change while chunks are read; events that were appended after the reader was opened
+ * are not seen, and an event cut off at the end of the file ends its chunk.
+ */
+public class TMappedFileReader {
+
+    private final RandomAccessFile file_;
+    private final FileChannel channel_;
+    private final int chunkSize_;
+    private final long length_;
+
+    public TMappedFileReader(String path) throws IOException {
+        this(new File(path), TFileTransport.ChunkState.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param file
+     *            the file to read
+     * @param chunkSize
+     *            the chunk size the file was written with
+     */
+    public TMappedFileReader(File file, int chunkSize) throws IOException {
+        if (chunkSize <= 4) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        file_ = new RandomAccessFile(file, "r");
+        channel_ = file_.getChannel();
+        chunkSize_ = chunkSize;
+        length_ = channel_.size();
+    }
+
+    public int getChunkSize() {
+        return chunkSize_;
+    }
+
+    /**
+     * Length of the file when the reader was opened.
+     */
+    public long length() {
+        return length_;
+    }
+
+    public int getNumChunks() {
+        return (int) ((length_ + chunkSize_ - 1) / chunkSize_);
+    }
+
+    /**
+     * Maps a single chunk. Like {@link TFileTransport#seekToChunk(int)}, a negative chunk number counts from the end.
+     * The returned transport is independent of all others and must only be used by one thread at a time.
+     *
+     * @throws TTransportException
+     *             if there is no such chunk or it could not be mapped
+     */
+    public Chunk getChunk(int chunk) throws TTransportException {
+        int numChunks = getNumChunks();
+        if (chunk < 0) {
+            chunk += numChunks;
+        }
+        if (chunk < 0 || chunk >= numChunks) {
+            throw new TTransportException("Chunk " + chunk + " out of range, the file has " + numChunks + " chunks");
+        }
+        long offset = (long) chunk * chunkSize_;
+        try {
+            MappedByteBuffer buffer = channel_.map(FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(chunkSize_, length_ - offset));
+            return new Chunk(chunk, chunkSize_, buffer);
+        } catch (IOException iox) {
+            throw new TTransportException("Map chunk " + chunk + " " + iox.getMessage(), iox);
+        }
+    }
+
+    /**
+     * Closes the file. Chunks that are already mapped stay readable until they are garbage collected.
+     */
+    public void close() {
+        try {
+            file_.close();
+        } catch (IOException iox) {
+            System.err.println("WARNING: Error closing input file: " + iox.getMessage());
+        }
+    }
+
+    /**
+     * A read only transport over the events of one mapped chunk. Reads continue from one event into the next, as
+     * they do on {@link TFileTransport}, and {@link #readAll(byte[], int, int)} throws an
+     * {@link TTransportException#END_OF_FILE} exception at the end of the chunk.
+     */
+    public static class Chunk extends TTransport {
+
+        private final int chunkNum_;
+        private final int chunkSize_;
+        private final MappedByteBuffer buffer_;
+
+        /**
+         * Bytes left in the current event
+         */
+        private int eventRemaining_ = 0;
+
+        Chunk(int chunkNum, int chunkSize, MappedByteBuffer buffer) {
+            chunkNum_ = chunkNum;
+            chunkSize_ = chunkSize;
+            buffer_ = buffer;
+            buffer_.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int getChunkNum() {
+            return chunkNum_;
+        }
+
+        /**
+         * Offset of the next byte to be read, relative to the start of the chunk.
+         */
+        public int getPosition() {
+            return buffer_.position();
+        }
+
+        /**
+         * Whether anything is left to read in this chunk. Skips any padding before the next event.
+         *
+         * @throws TTransportException
+         *             if the next event is corrupted
+         */
+        public boolean hasMoreEvents() throws TTransportException {
+            while (eventRemaining_ == 0) {
+                if (buffer_.remaining() < 4) {
+                    return false;
+                }
+                int esize = buffer_.getInt();
+                // the last chunk is mapped only up to the end of the file, an event may still span the whole chunk
+                if (esize < 0 || esize > chunkSize_ - buffer_.position()) {
+                    throw new TTransportException("FileTransport error: bad event size");
+                }
+                if (esize > buffer_.remaining()) {
+                    // cut off by the end of the file
+                    buffer_.position(buffer_.limit());
+                    return false;
+                }
+                eventRemaining_ = esize;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            if (!hasMoreEvents()) {
+                return 0;
+            }
+            int n = Math.min(len, eventRemaining_);
+            buffer_.get(buf, off, n);
+            eventRemaining_ -= n;
+            return n;
+        }
+
+        /**
+         * Cloned from TTransport.java:readAll(). Only difference is throwing an EOF exception at the end of the chunk.
+         */
+        @Override
+        public int readAll(byte[] buf, int off, int len) throws TTransportException {
+            int got = 0;
+            while (got < len) {
+                int ret = read(buf, off + got, len - got);
+                if (ret == 0) {
+                    throw new TTransportException(TTransportException.END_OF_FILE, "End of chunk " + chunkNum_
+                            + " reached");
+                }
+                got += ret;
+            }
+            return got;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws TTransportException {
+            throw new TTransportException("Chunk is read only");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Nonblocking server transport whose accepted connections are {@link TNonblockingSSLSocket TLS transports}, for use
+ * with the selector based servers. The handshake of a new connection runs in the server's selector loop as its first
+ * bytes are read. Sessions are cached by the server session context of the given {@link SSLContext}.
+ */
+public class TNonblockingSSLServerSocket extends TNonblockingServerSocket {
+
+    private final SSLContext context_;
+
+    private final SSLParameters parameters_;
+
+    private final TByteBufferPool pool_;
+
+    public TNonblockingSSLServerSocket(int port, SSLContext context) throws TTransportException {
+        this(new NonblockingAbstractServerSocketArgs().port(port), context, null, TNonblockingSSLSocket.DEFAULT_BUFFER_POOL);
+    }
+
+    /**
+     * @param parameters
+     *            engine settings such as protocols, cipher suites and client authentication, the context's defaults if
+     *            null
+     * @param pool
+     *            source of the network buffers of accepted connections
+     */
+    public TNonblockingSSLServerSocket(NonblockingAbstractServerSocketArgs args, SSLContext context,
+            SSLParameters parameters, TByteBufferPool pool) throws TTransportException {
+        super(args);
+        context_ = context;
+        parameters_ = parameters;
+        pool_ = pool;
+    }
+
+    @Override
+    protected TNonblockingSocket acceptImpl() throws TTransportException {
+        TNonblockingSocket socket = super.acceptImpl();
+        if (socket == null) {
+            return null;
+        }
+        try {
+            return new TNonblockingSSLSocket(socket.getSocketChannel(), TNonblockingSSLSocket.createEngine(context_,
+                    parameters_, null, -1, false), pool_);
+        } catch (IOException iox) {
+            socket.close();
+            throw new TTransportException(iox);
+        }
+    }
+}
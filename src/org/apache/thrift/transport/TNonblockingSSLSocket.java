@@ -0,0 +1,517 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Nonblocking transport that encrypts its traffic with an {@link SSLEngine}, so that TLS connections can be served by
+ * the selector based servers and used with {@link org.apache.thrift.async.TAsyncClientManager}.
+ *
+ * The handshake is driven by the same {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} calls the selector loop
+ * makes for frames. Until it has completed they return 0 and the transport points its selection key at whatever the
+ * handshake waits for, restoring the caller's interest once it is done. Delegated handshake tasks run on the calling
+ * thread.
+ *
+ * Bytes only count as written once the TLS record holding them has been handed to the socket, so after a partial
+ * write the caller has to pass the same buffer again, as the servers and the async client do. Reads may take more off
+ * the socket than the caller asked for; {@link #hasBufferedInput()} tells when the rest is waiting in the transport.
+ *
+ * Network buffers are taken from a {@link TByteBufferPool} only while they hold data. Client transports create their
+ * engine with the server's host and port, which lets the {@link SSLContext} resume earlier sessions with that server.
+ */
+public class TNonblockingSSLSocket extends TNonblockingSocket {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TNonblockingSSLSocket.class.getName());
+
+    /**
+     * Pool used when none is given, its buffers are large enough for any TLS record.
+     */
+    public static final TByteBufferPool DEFAULT_BUFFER_POOL = new TByteBufferPool(17 * 1024, 256);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine_;
+
+    private final TByteBufferPool pool_;
+
+    // encrypted input that has not been unwrapped yet, in write mode
+    private ByteBuffer netIn_;
+
+    // decrypted input that has not been returned yet, in read mode
+    private ByteBuffer appIn_;
+
+    // encrypted output that has not been written to the socket yet, in read mode
+    private ByteBuffer netOut_;
+
+    // the caller's buffer and the number of its bytes in netOut_, which are
+    // only reported as written once netOut_ has been flushed
+    private ByteBuffer wrapped_;
+    private int wrappedBytes_;
+
+    private SelectionKey selectionKey_;
+
+    private boolean handshaking_ = true;
+
+    // the caller's interest when the running handshake started, -1 if none
+    private int callerInterest_ = -1;
+
+    private boolean inboundDone_ = false;
+
+    /**
+     * Create a new nonblocking TLS client transport that will be connected to host:port.
+     */
+    public TNonblockingSSLSocket(String host, int port, SSLContext context) throws IOException {
+        this(host, port, 0, context, null, DEFAULT_BUFFER_POOL);
+    }
+
+    /**
+     * Create a new nonblocking TLS client transport that will be connected to host:port.
+     *
+     * @param parameters
+     *            engine settings such as protocols and cipher suites, the context's defaults if null
+     * @param pool
+     *            source of the network buffers
+     */
+    public TNonblockingSSLSocket(String host, int port, int timeout, SSLContext context, SSLParameters parameters,
+            TByteBufferPool pool) throws IOException {
+        this(SocketChannel.open(), timeout, new InetSocketAddress(host, port), createEngine(context, parameters, host,
+                port, true), pool);
+    }
+
+    /**
+     * Constructor that takes an already connected socket, typically one accepted by a server, and an engine set up for
+     * it.
+     */
+    public TNonblockingSSLSocket(SocketChannel socketChannel, SSLEngine engine, TByteBufferPool pool) throws IOException {
+        this(socketChannel, 0, null, engine, pool);
+        if (!socketChannel.isConnected())
+            throw new IOException("Socket must already be connected");
+    }
+
+    protected TNonblockingSSLSocket(SocketChannel socketChannel, int timeout, SocketAddress socketAddress,
+            SSLEngine engine, TByteBufferPool pool) throws IOException {
+        super(socketChannel, timeout, socketAddress);
+        engine_ = engine;
+        pool_ = pool;
+        engine_.beginHandshake();
+    }
+
+    static SSLEngine createEngine(SSLContext context, SSLParameters parameters, String host, int port,
+            boolean clientMode) {
+        SSLEngine engine = host == null ? context.createSSLEngine() : context.createSSLEngine(host, port);
+        engine.setUseClientMode(clientMode);
+        if (parameters != null) {
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    public SSLEngine getSSLEngine() {
+        return engine_;
+    }
+
+    /**
+     * The TLS session, which is only established once the handshake has completed.
+     */
+    public SSLSession getSession() {
+        return engine_.getSession();
+    }
+
+    public boolean isHandshakeComplete() {
+        return !handshaking_;
+    }
+
+	@Override
+    public SelectionKey registerSelector(Selector selector, int interests) throws IOException {
+        selectionKey_ = super.registerSelector(selector, interests);
+        return selectionKey_;
+    }
+
+	@Override
+    public boolean hasBufferedInput() {
+        return (appIn_ != null && appIn_.hasRemaining()) || (netIn_ != null && netIn_.position() > 0);
+    }
+
+    /**
+     * Perform a nonblocking read into buffer, returning 0 while the handshake has not completed.
+     */
+	@Override
+    public int read(ByteBuffer buffer) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        int read = 0;
+        boolean eof = false;
+        while (buffer.hasRemaining()) {
+            if (appIn_ != null) {
+                read += transfer(appIn_, buffer);
+                if (!appIn_.hasRemaining()) {
+                    appIn_ = release(appIn_);
+                }
+                continue;
+            }
+            if (inboundDone_) {
+                eof = true;
+                break;
+            }
+            if (netIn_ != null && netIn_.position() > 0) {
+                int position = buffer.position();
+                SSLEngineResult result = unwrap(buffer);
+                read += buffer.position() - position;
+                if (result.getStatus() == Status.CLOSED) {
+                    inboundDone_ = true;
+                    continue;
+                }
+                if (result.getStatus() == Status.OK) {
+                    if (needsHandshake(result) && !handshake()) {
+                        break;
+                    }
+                    continue;
+                }
+                // BUFFER_UNDERFLOW, the rest of the record is still on the way
+            }
+            int n = readNet();
+            if (n < 0) {
+                eof = true;
+                break;
+            }
+            if (n == 0) {
+                break;
+            }
+        }
+        return read == 0 && eof ? -1 : read;
+    }
+
+    /**
+     * Perform a nonblocking write of the data in buffer, returning 0 while the handshake has not completed.
+     */
+	@Override
+    public int write(ByteBuffer buffer) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        int written = 0;
+        while (flushNet()) {
+            if (wrapped_ != null) {
+                if (wrapped_ == buffer) {
+                    buffer.position(buffer.position() + wrappedBytes_);
+                    written += wrappedBytes_;
+                }
+                wrapped_ = null;
+            }
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+            SSLEngineResult result = wrap(buffer.duplicate());
+            if (result.getStatus() == Status.CLOSED) {
+                throw new SSLException("Cannot write after the TLS connection has been closed");
+            }
+            wrapped_ = buffer;
+            wrappedBytes_ = result.bytesConsumed();
+            if (needsHandshake(result) && !handshake()) {
+                break;
+            }
+        }
+        return written;
+    }
+
+	@Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        try {
+            return read(ByteBuffer.wrap(buf, off, len));
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.UNKNOWN, iox);
+        }
+    }
+
+    /**
+     * Writes as much as the socket takes without blocking, and fails if that is not everything.
+     */
+	@Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, off, len);
+        try {
+            write(buffer);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.UNKNOWN, iox);
+        }
+        if (buffer.hasRemaining()) {
+            throw new TTransportException("Could only write " + (len - buffer.remaining()) + " of " + len
+                    + " bytes without blocking");
+        }
+    }
+
+    /**
+     * Sends the TLS close notification if the socket takes it right away, then closes the socket.
+     */
+	@Override
+    public void close() {
+        if (isOpen() && !handshaking_) {
+            engine_.closeOutbound();
+            try {
+                if (flushNet()) {
+                    wrap(EMPTY);
+                    flushNet();
+                }
+            } catch (IOException iox) {
+                LOGGER.debug("Could not send the TLS close notification.", iox);
+            }
+        }
+        super.close();
+        netIn_ = release(netIn_);
+        appIn_ = release(appIn_);
+        netOut_ = release(netOut_);
+        wrapped_ = null;
+    }
+
+    /**
+     * Advances the handshake as far as the socket allows without blocking.
+     *
+     * @return true once the handshake has completed
+     */
+    private boolean handshake() throws IOException {
+        if (!handshaking_) {
+            return true;
+        }
+        if (callerInterest_ < 0 && selectionKey_ != null) {
+            callerInterest_ = selectionKey_.interestOps();
+        }
+        while (true) {
+            switch (engine_.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine_.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                if (!flushNet()) {
+                    selectFor(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                if (wrap(EMPTY).getStatus() == Status.CLOSED) {
+                    // let the alert go out if it can
+                    flushNet();
+                    throw new SSLException("TLS connection closed during the handshake");
+                }
+                break;
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                if (!flushNet()) {
+                    selectFor(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                handshaking_ = false;
+                if (callerInterest_ >= 0) {
+                    selectFor(callerInterest_);
+                    callerInterest_ = -1;
+                }
+                return true;
+            default:
+                // NEED_UNWRAP, or NEED_UNWRAP_AGAIN on newer JDKs
+                if (!flushNet()) {
+                    selectFor(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                if (netIn_ != null && netIn_.position() > 0) {
+                    Status status = unwrap(null).getStatus();
+                    if (status == Status.CLOSED) {
+                        throw new SSLException("TLS connection closed during the handshake");
+                    }
+                    if (status == Status.OK) {
+                        break;
+                    }
+                }
+                int n = readNet();
+                if (n < 0) {
+                    throw new SSLException("Connection closed during the TLS handshake");
+                }
+                if (n == 0) {
+                    selectFor(SelectionKey.OP_READ);
+                    return false;
+                }
+            }
+        }
+    }
+
+    private boolean needsHandshake(SSLEngineResult result) {
+        HandshakeStatus status = result.getHandshakeStatus();
+        if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+            return false;
+        }
+        // e.g. a TLS 1.3 key update
+        handshaking_ = true;
+        return true;
+    }
+
+    private void selectFor(int interests) {
+        if (selectionKey_ != null && selectionKey_.isValid() && selectionKey_.interestOps() != interests) {
+            selectionKey_.interestOps(interests);
+        }
+    }
+
+    /**
+     * Reads from the socket into netIn_.
+     */
+    private int readNet() throws IOException {
+        int packetSize = engine_.getSession().getPacketBufferSize();
+        if (netIn_ == null) {
+            netIn_ = pool_.acquire(packetSize);
+        } else if (netIn_.capacity() < packetSize) {
+            netIn_ = grow(netIn_, packetSize);
+        }
+        int n = getSocketChannel().read(netIn_);
+        if (netIn_.position() == 0) {
+            netIn_ = release(netIn_);
+        }
+        return n;
+    }
+
+    /**
+     * Unwraps the next record in netIn_, straight into the given buffer if it has room for a whole record and nothing
+     * is buffered in appIn_, otherwise into appIn_.
+     */
+    private SSLEngineResult unwrap(ByteBuffer buffer) throws IOException {
+        int appSize = engine_.getSession().getApplicationBufferSize();
+        boolean direct = buffer != null && appIn_ == null && buffer.remaining() >= appSize;
+        ByteBuffer target;
+        if (direct) {
+            target = buffer;
+        } else {
+            if (appIn_ == null) {
+                appIn_ = pool_.acquire(appSize);
+            } else {
+                appIn_.compact();
+                if (appIn_.remaining() < appSize) {
+                    appIn_ = grow(appIn_, appIn_.position() + appSize);
+                }
+            }
+            target = appIn_;
+        }
+
+        SSLEngineResult result;
+        netIn_.flip();
+        try {
+            result = engine_.unwrap(netIn_, target);
+        } finally {
+            netIn_.compact();
+            if (netIn_.position() == 0) {
+                netIn_ = release(netIn_);
+            }
+            if (!direct) {
+                appIn_.flip();
+                if (!appIn_.hasRemaining()) {
+                    appIn_ = release(appIn_);
+                }
+            }
+        }
+        if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record does not fit the application buffer size of " + appSize);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the given data into netOut_, which must have been flushed.
+     */
+    private SSLEngineResult wrap(ByteBuffer buffer) throws IOException {
+        ByteBuffer out = pool_.acquire(engine_.getSession().getPacketBufferSize());
+        SSLEngineResult result;
+        try {
+            result = engine_.wrap(buffer, out);
+        } catch (IOException iox) {
+            pool_.release(out);
+            throw iox;
+        }
+        out.flip();
+        if (out.hasRemaining()) {
+            netOut_ = out;
+        } else {
+            pool_.release(out);
+        }
+        if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record does not fit the packet buffer size of " + out.capacity());
+        }
+        return result;
+    }
+
+    /**
+     * Writes netOut_ to the socket.
+     *
+     * @return true if nothing is left to write
+     */
+    private boolean flushNet() throws IOException {
+        if (netOut_ == null) {
+            return true;
+        }
+        getSocketChannel().write(netOut_);
+        if (netOut_.hasRemaining()) {
+            return false;
+        }
+        netOut_ = release(netOut_);
+        return true;
+    }
+
+    private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        pool_.release(buffer);
+        return bigger;
+    }
+
+    private ByteBuffer release(ByteBuffer buffer) {
+        pool_.release(buffer);
+        return null;
+    }
+
+    private static int transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        if (n == from.remaining()) {
+            to.put(from);
+        } else {
+            ByteBuffer slice = from.duplicate();
+            slice.limit(slice.position() + n);
+            to.put(slice);
+            from.position(from.position() + n);
+        }
+        return n;
+    }
+}
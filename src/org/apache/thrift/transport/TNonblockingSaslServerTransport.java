@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.thrift.transport.TSaslServerTransport.TSaslServerDefinition;
+
+/**
+ * Nonblocking server transport whose accepted connections authenticate with SASL before their first frame, for use
+ * with the selector based servers. It decorates another nonblocking server transport, such as a
+ * {@link TNonblockingServerSocket} or a {@link TNonblockingSSLServerSocket}, and wraps the connections it accepts into
+ * {@link TNonblockingSaslTransport}s that negotiate in the server's selector loop, so authenticated connections do not
+ * need a thread each as with {@link TSaslServerTransport}.
+ *
+ * Clients use {@link TSaslClientTransport} as usual. The mechanisms run on the selector threads, so they must not
+ * block, e.g. on a key distribution center.
+ */
+public class TNonblockingSaslServerTransport extends TNonblockingServerTransport {
+
+    private final TNonblockingServerTransport serverTransport_;
+
+    private final int maxFrameSize_;
+
+    private final TByteBufferPool pool_;
+
+    private final Map<String, TSaslServerDefinition> serverDefinitionMap_ = new ConcurrentHashMap<String, TSaslServerDefinition>();
+
+    public TNonblockingSaslServerTransport(TNonblockingServerTransport serverTransport) {
+        this(serverTransport, TFramedTransport.DEFAULT_MAX_LENGTH, TSaslTransport.DEFAULT_BUFFER_POOL);
+    }
+
+    /**
+     * @param maxFrameSize
+     *            largest negotiation message or wrapped frame accepted from a client
+     * @param pool
+     *            source of heap buffers for partial input and output
+     */
+    public TNonblockingSaslServerTransport(TNonblockingServerTransport serverTransport, int maxFrameSize,
+            TByteBufferPool pool) {
+        serverTransport_ = serverTransport;
+        maxFrameSize_ = maxFrameSize;
+        pool_ = pool;
+    }
+
+    /**
+     * Creates the transport with a single server definition. See the Java documentation for
+     * <code>Sasl.createSaslServer</code> for the details of the parameters.
+     */
+    public TNonblockingSaslServerTransport(TNonblockingServerTransport serverTransport, String mechanism,
+            String protocol, String serverName, Map<String, String> props, CallbackHandler cbh) {
+        this(serverTransport);
+        addServerDefinition(mechanism, protocol, serverName, props, cbh);
+    }
+
+    /**
+     * Add a supported server definition to the connections accepted from now on. See the Java documentation for
+     * <code>Sasl.createSaslServer</code> for the details of the parameters.
+     */
+    public void addServerDefinition(String mechanism, String protocol, String serverName, Map<String, String> props,
+            CallbackHandler cbh) {
+        serverDefinitionMap_.put(mechanism, new TSaslServerDefinition(mechanism, protocol, serverName, props, cbh));
+    }
+
+    public TNonblockingServerTransport getUnderlyingTransport() {
+        return serverTransport_;
+    }
+
+    @Override
+    public void listen() throws TTransportException {
+        serverTransport_.listen();
+    }
+
+    @Override
+    public void registerSelector(Selector selector) {
+        serverTransport_.registerSelector(selector);
+    }
+
+    @Override
+    protected TNonblockingSaslTransport acceptImpl() throws TTransportException {
+        TTransport accepted = serverTransport_.accept();
+        return new TNonblockingSaslTransport((TNonblockingTransport) accepted, serverDefinitionMap_, maxFrameSize_,
+                pool_);
+    }
+
+    @Override
+    public void close() {
+        serverTransport_.close();
+    }
+
+    @Override
+    public void interrupt() {
+        serverTransport_.interrupt();
+    }
+}
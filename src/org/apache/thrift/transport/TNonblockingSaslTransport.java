@@ -0,0 +1,596 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+import org.apache.thrift.transport.TSaslServerTransport.TSaslServerDefinition;
+import org.apache.thrift.transport.TSaslTransport.NegotiationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side of the Thrift SASL protocol for a nonblocking connection, created by
+ * {@link TNonblockingSaslServerTransport} for every accepted connection.
+ *
+ * Negotiation is driven by the {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} calls the selector loop makes
+ * for frames. Until it has completed they return 0 and the transport points its selection key at whatever the
+ * negotiation waits for, restoring the caller's interest once it is done. Afterwards the caller reads and writes
+ * framed messages as with any nonblocking transport. If a QOP was negotiated, every frame is wrapped into a SASL frame
+ * on the way out and unwrapped on the way in, otherwise both are passed through unchanged since the SASL data framing
+ * without a QOP is the Thrift framing.
+ *
+ * Like {@link TNonblockingSSLSocket}, the bytes completing a frame only count as written once the wrapped frame has
+ * been handed to the underlying transport, so after a partial write the caller has to pass the same buffer again.
+ * Buffers for partial input and output are taken from a {@link TByteBufferPool} only while they hold data.
+ */
+public class TNonblockingSaslTransport extends TNonblockingTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TNonblockingSaslTransport.class.getName());
+
+    private static final int MESSAGE_HEADER_BYTES = TSaslTransport.STATUS_BYTES + TSaslTransport.PAYLOAD_LENGTH_BYTES;
+
+    private static final int FRAME_HEADER_BYTES = TSaslTransport.PAYLOAD_LENGTH_BYTES;
+
+    private final TNonblockingTransport underlying_;
+
+    private final Map<String, TSaslServerDefinition> definitions_;
+
+    private final int maxFrameSize_;
+
+    private final TByteBufferPool pool_;
+
+    private SaslServer saslServer_;
+
+    private boolean complete_ = false;
+
+    private boolean wrap_ = false;
+
+    // input that has not been processed yet, in write mode
+    private ByteBuffer netIn_;
+
+    // output that has not been written to the underlying transport yet, in read mode
+    private ByteBuffer netOut_;
+
+    // the frame the caller is writing while it arrives in pieces, in write mode
+    private ByteBuffer outFrame_;
+
+    // the caller's buffer and the number of its bytes that are in netOut_,
+    // which are only reported as written once netOut_ has been flushed
+    private ByteBuffer heldBack_;
+    private int heldBytes_;
+
+    // the length and data of the unwrapped frame being returned, in read mode
+    private final ByteBuffer appHeader_ = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    private ByteBuffer appIn_;
+
+    private SelectionKey selectionKey_;
+
+    // the caller's interest when the negotiation started, -1 if none
+    private int callerInterest_ = -1;
+
+    /**
+     * @param underlying
+     *            the accepted connection
+     * @param definitions
+     *            the mechanisms the server supports, by name
+     * @param maxFrameSize
+     *            largest negotiation message or wrapped frame accepted from the client
+     * @param pool
+     *            source of heap buffers for partial input and output
+     */
+    public TNonblockingSaslTransport(TNonblockingTransport underlying, Map<String, TSaslServerDefinition> definitions,
+            int maxFrameSize, TByteBufferPool pool) {
+        if (pool.isDirect()) {
+            throw new IllegalArgumentException("SASL transports need a pool of heap buffers");
+        }
+        underlying_ = underlying;
+        definitions_ = definitions;
+        maxFrameSize_ = maxFrameSize;
+        pool_ = pool;
+        appHeader_.limit(0);
+    }
+
+    public TNonblockingTransport getUnderlyingTransport() {
+        return underlying_;
+    }
+
+    /**
+     * The <code>SaslServer</code> of the negotiated mechanism, e.g. for its authorization id, or null if the client
+     * has not chosen one yet.
+     */
+    public SaslServer getSaslServer() {
+        return saslServer_;
+    }
+
+    public boolean isNegotiationComplete() {
+        return complete_;
+    }
+
+    @Override
+    public boolean startConnect() throws IOException {
+        return underlying_.startConnect();
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        return underlying_.finishConnect();
+    }
+
+    @Override
+    public SelectionKey registerSelector(Selector selector, int interests) throws IOException {
+        selectionKey_ = underlying_.registerSelector(selector, interests);
+        return selectionKey_;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return underlying_.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        underlying_.open();
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+        underlying_.flush();
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        if (!complete_) {
+            return false;
+        }
+        return appHeader_.hasRemaining() || appIn_ != null || (netIn_ != null && netIn_.position() > 0)
+                || underlying_.hasBufferedInput();
+    }
+
+    /**
+     * Perform a nonblocking read into buffer, returning 0 while the negotiation has not completed.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        if (!negotiate()) {
+            return isOpen() ? 0 : -1;
+        }
+        int read = 0;
+        boolean eof = false;
+        while (buffer.hasRemaining()) {
+            if (appHeader_.hasRemaining()) {
+                read += transfer(appHeader_, buffer);
+                continue;
+            }
+            if (appIn_ != null) {
+                read += transfer(appIn_, buffer);
+                if (!appIn_.hasRemaining()) {
+                    appIn_ = null;
+                }
+                continue;
+            }
+            if (netIn_ != null && netIn_.position() > 0) {
+                if (!wrap_) {
+                    netIn_.flip();
+                    read += transfer(netIn_, buffer);
+                    netIn_.compact();
+                    if (netIn_.position() == 0) {
+                        netIn_ = release(netIn_);
+                    }
+                    continue;
+                }
+                if (unwrapFrame()) {
+                    continue;
+                }
+            }
+            int n = wrap_ ? readNet() : underlying_.read(buffer);
+            if (n < 0) {
+                eof = true;
+                break;
+            }
+            if (n == 0) {
+                break;
+            }
+            if (!wrap_) {
+                read += n;
+            }
+        }
+        return read == 0 && eof ? -1 : read;
+    }
+
+    /**
+     * Perform a nonblocking write of the data in buffer, returning 0 while the negotiation has not completed.
+     */
+    @Override
+    public int write(ByteBuffer buffer) throws IOException {
+        if (!negotiate()) {
+            return 0;
+        }
+        if (!wrap_) {
+            return underlying_.write(buffer);
+        }
+        int written = 0;
+        while (flushNet()) {
+            if (heldBack_ != null) {
+                if (heldBack_ == buffer) {
+                    buffer.position(buffer.position() + heldBytes_);
+                    written += heldBytes_;
+                }
+                heldBack_ = null;
+            }
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+            written += wrapFrame(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        try {
+            return read(ByteBuffer.wrap(buf, off, len));
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.UNKNOWN, iox);
+        }
+    }
+
+    /**
+     * Writes as much as the underlying transport takes without blocking, and fails if that is not everything.
+     */
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, off, len);
+        try {
+            write(buffer);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.UNKNOWN, iox);
+        }
+        if (buffer.hasRemaining()) {
+            throw new TTransportException("Could only write " + (len - buffer.remaining()) + " of " + len
+                    + " bytes without blocking");
+        }
+    }
+
+    /**
+     * Closes the underlying transport and disposes of the <code>SaslServer</code>.
+     */
+    @Override
+    public void close() {
+        underlying_.close();
+        if (saslServer_ != null) {
+            try {
+                saslServer_.dispose();
+            } catch (SaslException e) {
+                // Not much we can do here.
+            }
+        }
+        netIn_ = release(netIn_);
+        netOut_ = release(netOut_);
+        outFrame_ = release(outFrame_);
+        appIn_ = null;
+        heldBack_ = null;
+    }
+
+    /**
+     * Advances the negotiation as far as the underlying transport allows without blocking.
+     *
+     * @return true once the negotiation has completed, false while it waits for the network or if the client went away
+     *         before sending anything
+     */
+    private boolean negotiate() throws IOException {
+        if (complete_) {
+            return true;
+        }
+        if (callerInterest_ < 0 && selectionKey_ != null) {
+            callerInterest_ = selectionKey_.interestOps();
+        }
+        while (true) {
+            if (!flushNet()) {
+                selectFor(SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (saslServer_ != null && saslServer_.isComplete()) {
+                completeNegotiation();
+                return true;
+            }
+            if (netIn_ != null && netIn_.position() >= MESSAGE_HEADER_BYTES) {
+                int length = netIn_.getInt(TSaslTransport.STATUS_BYTES);
+                if (length < 0 || length > maxFrameSize_) {
+                    throw fail(NegotiationStatus.ERROR, "Invalid payload header length: " + length);
+                }
+                if (netIn_.position() >= MESSAGE_HEADER_BYTES + length) {
+                    byte status = netIn_.get(0);
+                    // handed to the SASL mechanism, which may keep it
+                    byte[] payload = new byte[length];
+                    netIn_.flip();
+                    netIn_.position(MESSAGE_HEADER_BYTES);
+                    netIn_.get(payload);
+                    netIn_.compact();
+                    if (netIn_.position() == 0) {
+                        netIn_ = release(netIn_);
+                    }
+                    handleMessage(status, payload);
+                    continue;
+                }
+                ensureInputCapacity(MESSAGE_HEADER_BYTES + length);
+            }
+            boolean nothingRead = netIn_ == null && saslServer_ == null;
+            int n = readNet();
+            if (n < 0) {
+                if (nothingRead) {
+                    // possibly a health check, nothing worth reporting
+                    LOGGER.debug("Connection closed before SASL negotiation started");
+                    close();
+                    return false;
+                }
+                throw new SaslException("Connection closed during SASL negotiation");
+            }
+            if (n == 0) {
+                selectFor(SelectionKey.OP_READ);
+                return false;
+            }
+        }
+    }
+
+    private void handleMessage(byte statusByte, byte[] payload) throws IOException {
+        NegotiationStatus status = NegotiationStatus.byValue(statusByte);
+        if (status == null) {
+            throw fail(NegotiationStatus.ERROR, "Invalid status " + statusByte);
+        }
+        if (status == NegotiationStatus.BAD || status == NegotiationStatus.ERROR) {
+            throw new SaslException("Peer indicated failure: " + new String(payload, "UTF-8"));
+        }
+        LOGGER.debug("Received message with status {} and payload length {}", status, payload.length);
+
+        if (saslServer_ == null) {
+            if (status != NegotiationStatus.START) {
+                throw fail(NegotiationStatus.ERROR, "Expecting START status, received " + status);
+            }
+            String mechanismName = new String(payload);
+            TSaslServerDefinition definition = definitions_.get(mechanismName);
+            if (definition == null) {
+                throw fail(NegotiationStatus.BAD, "Unsupported mechanism type " + mechanismName);
+            }
+            try {
+                saslServer_ = Sasl.createSaslServer(definition.mechanism, definition.protocol, definition.serverName,
+                        definition.props, definition.cbh);
+            } catch (SaslException e) {
+                throw fail(NegotiationStatus.BAD, e.getMessage());
+            }
+            if (saslServer_ == null) {
+                throw fail(NegotiationStatus.BAD, "No SASL server available for mechanism " + mechanismName);
+            }
+            return;
+        }
+
+        if (status != NegotiationStatus.COMPLETE && status != NegotiationStatus.OK) {
+            throw fail(NegotiationStatus.ERROR, "Expected COMPLETE or OK, got " + status);
+        }
+        byte[] challenge;
+        try {
+            challenge = saslServer_.evaluateResponse(payload);
+        } catch (SaslException e) {
+            throw fail(NegotiationStatus.BAD, e.getMessage());
+        }
+        queueMessage(saslServer_.isComplete() ? NegotiationStatus.COMPLETE : NegotiationStatus.OK, challenge);
+    }
+
+    private void completeNegotiation() {
+        String qop = (String) saslServer_.getNegotiatedProperty(Sasl.QOP);
+        wrap_ = qop != null && !qop.equalsIgnoreCase("auth");
+        complete_ = true;
+        LOGGER.debug("SASL negotiation complete, QOP {}", qop);
+        if (callerInterest_ >= 0) {
+            selectFor(callerInterest_);
+            callerInterest_ = -1;
+        }
+    }
+
+    /**
+     * Queues a message with the given status and text for the client, sends it if the underlying transport takes it
+     * right away and returns the exception to throw.
+     */
+    private SaslException fail(NegotiationStatus status, String message) {
+        try {
+            queueMessage(status, message == null ? new byte[0] : message.getBytes("UTF-8"));
+            flushNet();
+        } catch (IOException iox) {
+            LOGGER.debug("Could not send failure response", iox);
+        }
+        return new SaslException(message);
+    }
+
+    private void queueMessage(NegotiationStatus status, byte[] payload) {
+        if (payload == null) {
+            payload = new byte[0];
+        }
+        ByteBuffer out = pool_.acquire(MESSAGE_HEADER_BYTES + payload.length);
+        out.put(status.getValue()).putInt(payload.length).put(payload).flip();
+        netOut_ = out;
+    }
+
+    /**
+     * Unwraps the next frame in netIn_ into appHeader_ and appIn_.
+     *
+     * @return false if the frame has not been read completely yet
+     */
+    private boolean unwrapFrame() throws IOException {
+        if (netIn_.position() < FRAME_HEADER_BYTES) {
+            return false;
+        }
+        int length = netIn_.getInt(0);
+        if (length < 0 || length > maxFrameSize_) {
+            throw new IOException("Invalid SASL frame size " + length);
+        }
+        if (netIn_.position() < FRAME_HEADER_BYTES + length) {
+            ensureInputCapacity(FRAME_HEADER_BYTES + length);
+            return false;
+        }
+        byte[] data = saslServer_.unwrap(netIn_.array(), netIn_.arrayOffset() + FRAME_HEADER_BYTES, length);
+        netIn_.flip();
+        netIn_.position(FRAME_HEADER_BYTES + length);
+        netIn_.compact();
+        if (netIn_.position() == 0) {
+            netIn_ = release(netIn_);
+        }
+        appHeader_.clear();
+        appHeader_.putInt(data.length).flip();
+        appIn_ = ByteBuffer.wrap(data);
+        return true;
+    }
+
+    /**
+     * Takes the next frame, or the next piece of it, from the caller's output. Once the frame is complete it is
+     * wrapped into netOut_, and the bytes that completed it are held back until netOut_ has been flushed.
+     *
+     * @return number of bytes taken for good
+     */
+    private int wrapFrame(ByteBuffer buffer) throws IOException {
+        if (outFrame_ == null && buffer.remaining() >= FRAME_HEADER_BYTES && buffer.hasArray()) {
+            int length = buffer.getInt(buffer.position());
+            if (length >= 0 && buffer.remaining() >= FRAME_HEADER_BYTES + length) {
+                // the whole frame is there, wrap it in place
+                queueWrapped(buffer.array(), buffer.arrayOffset() + buffer.position() + FRAME_HEADER_BYTES, length);
+                heldBack_ = buffer;
+                heldBytes_ = FRAME_HEADER_BYTES + length;
+                return 0;
+            }
+        }
+
+        if (outFrame_ == null) {
+            outFrame_ = pool_.acquire();
+            outFrame_.limit(FRAME_HEADER_BYTES);
+        }
+        ByteBuffer source = buffer.duplicate();
+        if (outFrame_.position() < FRAME_HEADER_BYTES) {
+            int taken = transfer(source, outFrame_);
+            if (outFrame_.hasRemaining()) {
+                buffer.position(source.position());
+                return taken;
+            }
+            int length = outFrame_.getInt(0);
+            if (length < 0) {
+                throw new IOException("Cannot write a frame of negative size " + length);
+            }
+            if (outFrame_.capacity() < FRAME_HEADER_BYTES + length) {
+                ByteBuffer bigger = pool_.acquire(FRAME_HEADER_BYTES + length);
+                outFrame_.flip();
+                bigger.put(outFrame_);
+                pool_.release(outFrame_);
+                outFrame_ = bigger;
+            }
+            outFrame_.limit(FRAME_HEADER_BYTES + length);
+        }
+        transfer(source, outFrame_);
+        int taken = source.position() - buffer.position();
+        if (outFrame_.hasRemaining()) {
+            buffer.position(source.position());
+            return taken;
+        }
+        queueWrapped(outFrame_.array(), outFrame_.arrayOffset() + FRAME_HEADER_BYTES, outFrame_.position()
+                - FRAME_HEADER_BYTES);
+        outFrame_ = release(outFrame_);
+        heldBack_ = buffer;
+        heldBytes_ = taken;
+        return 0;
+    }
+
+    private void queueWrapped(byte[] buf, int off, int len) throws SaslException {
+        byte[] wrapped = saslServer_.wrap(buf, off, len);
+        ByteBuffer out = pool_.acquire(FRAME_HEADER_BYTES + wrapped.length);
+        out.putInt(wrapped.length).put(wrapped).flip();
+        netOut_ = out;
+    }
+
+    private void selectFor(int interests) {
+        if (selectionKey_ != null && selectionKey_.isValid() && selectionKey_.interestOps() != interests) {
+            selectionKey_.interestOps(interests);
+        }
+    }
+
+    /**
+     * Reads from the underlying transport into netIn_.
+     */
+    private int readNet() throws IOException {
+        if (netIn_ == null) {
+            netIn_ = pool_.acquire();
+        }
+        int n = underlying_.read(netIn_);
+        if (netIn_.position() == 0) {
+            netIn_ = release(netIn_);
+        }
+        return n;
+    }
+
+    private void ensureInputCapacity(int capacity) {
+        if (netIn_.capacity() < capacity) {
+            ByteBuffer bigger = pool_.acquire(capacity);
+            netIn_.flip();
+            bigger.put(netIn_);
+            pool_.release(netIn_);
+            netIn_ = bigger;
+        }
+    }
+
+    /**
+     * Writes netOut_ to the underlying transport.
+     *
+     * @return true if nothing is left to write
+     */
+    private boolean flushNet() throws IOException {
+        if (netOut_ == null) {
+            return true;
+        }
+        underlying_.write(netOut_);
+        if (netOut_.hasRemaining()) {
+            return false;
+        }
+        netOut_ = release(netOut_);
+        return true;
+    }
+
+    private ByteBuffer release(ByteBuffer buffer) {
+        pool_.release(buffer);
+        return null;
+    }
+
+    private static int transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        if (n == from.remaining()) {
+            to.put(from);
+        } else {
+            ByteBuffer slice = from.duplicate();
+            slice.limit(slice.position() + n);
+            to.put(slice);
+            from.position(from.position() + n);
+        }
+        return n;
+    }
+}
@@ -75,19 +75,39 @@ public class TNonblockingSocket extends TNonblockingTransport {
             throw new IOException("Socket must already be connected");
     }
 
-    private TNonblockingSocket(SocketChannel socketChannel, int timeout, SocketAddress socketAddress) throws IOException {
+    /**
+     * Constructor for subclasses that connect to other kinds of addresses.
+     *
+     * @param socketChannel
+     *            unconnected channel
+     * @param socketAddress
+     *            address to connect to
+     */
+    protected TNonblockingSocket(SocketChannel socketChannel, int timeout, SocketAddress socketAddress) throws IOException {
         socketChannel_ = socketChannel;
         socketAddress_ = socketAddress;
 
         // make it a nonblocking channel
         socketChannel.configureBlocking(false);
 
-        // set options
-        Socket socket = socketChannel.socket();
-        socket.setSoLinger(false, 0);
-        socket.setTcpNoDelay(true);
-        socket.setKeepAlive(true);
-        setTimeout(timeout);
+        // set options, which only TCP channels have
+        if (isTcp()) {
+            Socket socket = socketChannel.socket();
+            socket.setSoLinger(false, 0);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            setTimeout(timeout);
+        }
+    }
+
+    private boolean isTcp() {
+        try {
+            socketChannel_.socket();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            // e.g. a unix domain socket channel
+            return false;
+        }
     }
 
     /**
@@ -108,6 +128,9 @@ public class TNonblockingSocket extends TNonblockingTransport {
      *            Milliseconds timeout
      */
     public void setTimeout(int timeout) {
+        if (!isTcp()) {
+            return;
+        }
         try {
             socketChannel_.socket().setSoTimeout(timeout);
         } catch (SocketException sx) {
@@ -46,4 +46,13 @@ public abstract class TNonblockingTransport extends TTransport {
     public abstract int read(ByteBuffer buffer) throws IOException;
 
     public abstract int write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Whether input has already been taken off the network and is waiting in the transport, such as the rest of a
+     * decrypted TLS record. A selector does not report the transport readable for such input, so callers that wait for
+     * readiness must read again first.
+     */
+    public boolean hasBufferedInput() {
+        return false;
+    }
 }
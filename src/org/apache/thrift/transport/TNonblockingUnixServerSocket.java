@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Nonblocking server transport listening on a unix domain socket, for use with the nonblocking servers. Requires Java
+ * 16 or later at runtime.
+ */
+public class TNonblockingUnixServerSocket extends TNonblockingServerTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TNonblockingUnixServerSocket.class.getName());
+
+    private final String path_;
+
+    private ServerSocketChannel serverChannel_ = null;
+
+    public TNonblockingUnixServerSocket(String path) throws TTransportException {
+        this(path, 0);
+    }
+
+    /**
+     * Creates a server socket listening at the given path. A socket file left behind by a server that is no longer
+     * running is replaced; any other file at the path, or a socket a server still listens on, fails the call.
+     *
+     * @param backlog
+     *            maximum number of pending connections, 0 for the default
+     */
+    public TNonblockingUnixServerSocket(String path, int backlog) throws TTransportException {
+        path_ = path;
+        try {
+            serverChannel_ = UnixDomainSockets.openServerChannel(path, backlog);
+            serverChannel_.configureBlocking(false);
+        } catch (IOException ioe) {
+            close();
+            throw new TTransportException("Could not create unix domain socket at " + path + ".", ioe);
+        }
+    }
+
+    @Override
+    public void listen() throws TTransportException {
+    }
+
+    @Override
+    protected TNonblockingSocket acceptImpl() throws TTransportException {
+        if (serverChannel_ == null) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "No underlying server socket.");
+        }
+        try {
+            SocketChannel socketChannel = serverChannel_.accept();
+            if (socketChannel == null) {
+                return null;
+            }
+            return new TNonblockingSocket(socketChannel);
+        } catch (IOException iox) {
+            throw new TTransportException(iox);
+        }
+    }
+
+    @Override
+    public void registerSelector(Selector selector) {
+        try {
+            serverChannel_.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (ClosedChannelException e) {
+            LOGGER.warn("Could not register closed server socket.", e);
+        }
+    }
+
+    /**
+     * Closes the server socket and removes its socket file.
+     */
+    @Override
+    public void close() {
+        if (serverChannel_ != null) {
+            try {
+                serverChannel_.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Could not close server socket.", iox);
+            }
+            serverChannel_ = null;
+            new File(path_).delete();
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        close();
+    }
+
+    public String getPath() {
+        return path_;
+    }
+}
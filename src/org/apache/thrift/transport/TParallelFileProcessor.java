@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+
+/**
+ * Processes files generated by TFileTransport on several threads. Like {@link TFileProcessor}, but every chunk is
+ * read through its own {@link TMappedFileReader.Chunk} and the chunks are spread over a {@link ForkJoinPool}. Calls
+ * within a chunk are processed in order, one after the other; calls in different chunks run concurrently, so the
+ * processor must be thread safe, as it is when used by a multi-threaded server.
+ *
+ * Responses are discarded.
+ */
+public class TParallelFileProcessor {
+
+    private final TProcessor processor_;
+    private final TProtocolFactory inputProtocolFactory_;
+    private final TProtocolFactory outputProtocolFactory_;
+    private final TMappedFileReader reader_;
+    private final ForkJoinPool pool_;
+
+    private final AtomicLong calls_ = new AtomicLong();
+
+    public TParallelFileProcessor(TProcessor processor, TProtocolFactory protocolFactory, TMappedFileReader reader) {
+        this(processor, protocolFactory, protocolFactory, reader, null);
+    }
+
+    /**
+     * @param pool
+     *            the pool to process chunks on, or null to start a pool for every call and shut it down afterwards
+     */
+    public TParallelFileProcessor(TProcessor processor, TProtocolFactory inputProtocolFactory,
+            TProtocolFactory outputProtocolFactory, TMappedFileReader reader, ForkJoinPool pool) {
+        processor_ = processor;
+        inputProtocolFactory_ = inputProtocolFactory;
+        outputProtocolFactory_ = outputProtocolFactory;
+        reader_ = reader;
+        pool_ = pool;
+    }
+
+    /**
+     * Number of calls processed so far.
+     */
+    public long getCallCount() {
+        return calls_.get();
+    }
+
+    /**
+     * Process from start to last chunk both inclusive where chunks begin from 0. Returns once all chunks have been
+     * processed. If processing a chunk fails, chunks that have not started yet are skipped and the first failure is
+     * rethrown.
+     *
+     * @param startChunkNum
+     *            first chunk to be processed
+     * @param endChunkNum
+     *            last chunk to be processed
+     */
+    public void processChunk(int startChunkNum, int endChunkNum) throws TException {
+        int numChunks = reader_.getNumChunks();
+        if (endChunkNum < 0)
+            endChunkNum += numChunks;
+
+        if (startChunkNum < 0)
+            startChunkNum += numChunks;
+
+        if (endChunkNum < startChunkNum)
+            throw new TException("endChunkNum " + endChunkNum + " is less than " + startChunkNum);
+
+        AtomicReference<TException> failure = new AtomicReference<TException>();
+        ForkJoinPool pool = pool_ == null ? new ForkJoinPool() : pool_;
+        try {
+            pool.invoke(new ChunkRange(startChunkNum, endChunkNum + 1, failure));
+        } finally {
+            if (pool != pool_) {
+                pool.shutdown();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Process a single chunk
+     *
+     * @param chunkNum
+     *            chunk to be processed
+     */
+    public void processChunk(int chunkNum) throws TException {
+        processChunk(chunkNum, chunkNum);
+    }
+
+    /**
+     * Process all chunks of the file.
+     */
+    public void process() throws TException {
+        if (reader_.getNumChunks() > 0) {
+            processChunk(0, -1);
+        }
+    }
+
+    private void processChunkInOrder(TMappedFileReader.Chunk chunk) throws TException {
+        TProtocol ip = inputProtocolFactory_.getProtocol(chunk);
+        TProtocol op = outputProtocolFactory_.getProtocol(new DiscardingTransport());
+
+        try {
+            while (chunk.hasMoreEvents()) {
+                processor_.process(ip, op);
+                calls_.incrementAndGet();
+            }
+        } catch (TTransportException e) {
+            // an event cut off by the end of the file ends the chunk
+            if (e.getType() != TTransportException.END_OF_FILE)
+                throw e;
+        }
+    }
+
+    /**
+     * Splits a range of chunks in halves until each task processes a single chunk.
+     */
+    private class ChunkRange extends RecursiveAction {
+
+        private final int start_;
+        private final int end_;
+        private final AtomicReference<TException> failure_;
+
+        ChunkRange(int start, int end, AtomicReference<TException> failure) {
+            start_ = start;
+            end_ = end;
+            failure_ = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure_.get() != null) {
+                return;
+            }
+            if (end_ - start_ > 1) {
+                int mid = (start_ + end_) >>> 1;
+                invokeAll(new ChunkRange(start_, mid, failure_), new ChunkRange(mid, end_, failure_));
+                return;
+            }
+            try {
+                processChunkInOrder(reader_.getChunk(start_));
+            } catch (TException e) {
+                failure_.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                failure_.compareAndSet(null, new TException("Processing chunk " + start_ + " failed", e));
+            }
+        }
+    }
+
+    private static class DiscardingTransport extends TTransport {
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            throw new TTransportException("Output transport can not be read");
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+        }
+    }
+}
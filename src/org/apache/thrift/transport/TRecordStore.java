@@ -0,0 +1,661 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file of serialized Thrift structs that can be looked up by key. Keys are longs that never decrease
+ * from one record to the next, such as sequence numbers, which {@link #append(TBase)} assigns, or timestamps.
+ * Appending a record with the same key as the last one replaces it.
+ *
+ * Every record carries a CRC of its key and contents. A sparse index, memory mapped from a second file next to the
+ * data file, holds the key and offset of a record every {@link #DEFAULT_INDEX_INTERVAL} bytes or so; a lookup binary
+ * searches the index and reads the few records that follow the entry it found with a single positional read, so it
+ * costs one read of the data file, normally from the page cache. After a crash, records that were only partly
+ * written are found by their CRC and truncated when the store is opened again.
+ *
+ * {@link #compact(Filter)} rewrites the store without replaced records and without the records a filter rejects.
+ *
+ * Lookups may run concurrently with each other, with appends and with compaction. Appends are serialized.
+ */
+public class TRecordStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TRecordStore.class.getName());
+
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+
+    private static final int MAGIC = 0x54525331; // "TRS1"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // payload length, CRC of key and payload, key
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8;
+
+    // key, offset
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+    private static final int MIN_INDEX_CAPACITY = 4096 * INDEX_ENTRY_SIZE;
+
+    /**
+     * Decides which records survive {@link TRecordStore#compact(Filter)}.
+     */
+    public interface Filter {
+        /**
+         * @param record
+         *            the serialized record, which must not be retained
+         * @return whether to keep the record
+         */
+        boolean keep(long key, byte[] record, int offset, int length);
+    }
+
+    private final File dataFile_;
+    private final File indexFile_;
+    private final int indexInterval_;
+    private final TProtocolFactory protocolFactory_;
+    private final TSerializer serializer_;
+    private final ThreadLocal<TDeserializer> deserializer_ = new ThreadLocal<TDeserializer>() {
+        @Override
+        protected TDeserializer initialValue() {
+            return new TDeserializer(protocolFactory_);
+        }
+    };
+
+    // serializes appends, compaction and close
+    private final Object appendLock_ = new Object();
+    // lookups hold the read lock so that compaction and close do not pull the files from under them
+    private final ReadWriteLock lock_ = new ReentrantReadWriteLock();
+    private volatile Segment segment_;
+
+    public TRecordStore(String path) throws TTransportException {
+        this(path, new TBinaryProtocol.Factory(), DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Opens the store at the given path, creating it if needed. The index is kept in path + ".index".
+     *
+     * @param protocolFactory
+     *            protocol records are serialized with
+     * @param indexInterval
+     *            approximate number of data bytes between index entries; lookups read about this much
+     */
+    public TRecordStore(String path, TProtocolFactory protocolFactory, int indexInterval) throws TTransportException {
+        if (indexInterval <= 0) {
+            throw new IllegalArgumentException("Invalid index interval " + indexInterval);
+        }
+        dataFile_ = new File(path);
+        indexFile_ = new File(path + ".index");
+        indexInterval_ = indexInterval;
+        protocolFactory_ = protocolFactory;
+        serializer_ = new TSerializer(protocolFactory);
+        segment_ = openSegment(dataFile_, indexFile_);
+    }
+
+    private Segment openSegment(File dataFile, File indexFile) throws TTransportException {
+        try {
+            return new Segment(dataFile, indexFile, indexInterval_);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Open " + dataFile + " " + iox.getMessage(),
+                    iox);
+        }
+    }
+
+    /**
+     * Appends a record under the key following the last one, 0 for an empty store.
+     *
+     * @return the key of the record
+     */
+    public long append(TBase<?, ?> record) throws TException {
+        synchronized (appendLock_) {
+            Segment segment = openSegment();
+            long key = segment.isEmpty() ? 0 : segment.lastKey + 1;
+            append(key, record);
+            return key;
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @throws TException
+     *             if the key is less than the last key
+     */
+    public void append(long key, TBase<?, ?> record) throws TException {
+        synchronized (appendLock_) {
+            byte[] bytes = serializer_.serialize(record);
+            append(key, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Appends an already serialized record.
+     *
+     * @throws TException
+     *             if the key is less than the last key
+     */
+    public void append(long key, byte[] record, int offset, int length) throws TException {
+        synchronized (appendLock_) {
+            Segment segment = openSegment();
+            if (!segment.isEmpty() && key < segment.lastKey) {
+                throw new TException("Key " + key + " is less than the last key " + segment.lastKey);
+            }
+            try {
+                segment.append(key, record, offset, length);
+            } catch (IOException iox) {
+                throw new TTransportException("Append to " + dataFile_ + " " + iox.getMessage(), iox);
+            }
+        }
+    }
+
+    /**
+     * Looks up the serialized record with the given key.
+     *
+     * @return the record, or null if there is none
+     */
+    public byte[] get(long key) throws TException {
+        lock_.readLock().lock();
+        try {
+            return openSegment().get(key);
+        } catch (IOException iox) {
+            throw new TTransportException("Read from " + dataFile_ + " " + iox.getMessage(), iox);
+        } finally {
+            lock_.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the record with the given key and reads it into the given struct.
+     *
+     * @return false if there is no such record
+     */
+    public boolean get(long key, TBase<?, ?> record) throws TException {
+        byte[] bytes = get(key);
+        if (bytes == null) {
+            return false;
+        }
+        deserializer_.get().deserialize(record, bytes);
+        return true;
+    }
+
+    /**
+     * Looks up the record with the given key and reads only the struct at the given field path into tb, skipping
+     * over everything else. tb is left untouched if the record does not have the field.
+     *
+     * @return false if there is no such record
+     * @see TDeserializer#partialDeserialize(TBase, byte[], TFieldIdEnum, TFieldIdEnum...)
+     */
+    public boolean get(long key, TBase<?, ?> tb, TFieldIdEnum fieldIdPathFirst, TFieldIdEnum... fieldIdPathRest)
+            throws TException {
+        byte[] bytes = get(key);
+        if (bytes == null) {
+            return false;
+        }
+        deserializer_.get().partialDeserialize(tb, bytes, fieldIdPathFirst, fieldIdPathRest);
+        return true;
+    }
+
+    /**
+     * The key of the last record, or Long.MIN_VALUE if the store is empty.
+     */
+    public long getLastKey() throws TTransportException {
+        Segment segment = openSegment();
+        return segment.isEmpty() ? Long.MIN_VALUE : segment.lastKey;
+    }
+
+    /**
+     * Size of the data file in bytes.
+     */
+    public long length() throws TTransportException {
+        return openSegment().dataLength;
+    }
+
+    /**
+     * Forces the data and index to disk.
+     */
+    public void sync() throws TTransportException {
+        synchronized (appendLock_) {
+            try {
+                openSegment().force();
+            } catch (IOException iox) {
+                throw new TTransportException("Sync " + dataFile_ + " " + iox.getMessage(), iox);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the store, keeping only the last record of every key, and of those only the ones the filter keeps.
+     * Lookups continue while the store is rewritten; appends wait.
+     *
+     * @param filter
+     *            decides which records to keep, or null to keep all
+     * @return number of bytes reclaimed
+     */
+    public long compact(Filter filter) throws TException {
+        synchronized (appendLock_) {
+            Segment old = openSegment();
+            File compactData = new File(dataFile_.getPath() + ".compact");
+            File compactIndex = new File(indexFile_.getPath() + ".compact");
+            compactData.delete();
+            compactIndex.delete();
+
+            Segment compacted = openSegment(compactData, compactIndex);
+            try {
+                RecordCursor cursor = new RecordCursor(old.dataChannel, FILE_HEADER_SIZE, old.dataLength);
+                byte[] pending = null;
+                long pendingKey = 0;
+                while (cursor.next()) {
+                    if (pending != null && cursor.key != pendingKey) {
+                        copy(compacted, filter, pendingKey, pending);
+                    }
+                    pendingKey = cursor.key;
+                    pending = cursor.copyRecord();
+                }
+                if (pending != null) {
+                    copy(compacted, filter, pendingKey, pending);
+                }
+                compacted.force();
+            } catch (IOException iox) {
+                compacted.close();
+                throw new TTransportException("Compact " + dataFile_ + " " + iox.getMessage(), iox);
+            }
+            compacted.close();
+
+            lock_.writeLock().lock();
+            try {
+                old.close();
+                segment_ = null;
+                // without an index the data file is scanned when opened, so a crash between the moves is harmless
+                Files.deleteIfExists(indexFile_.toPath());
+                Files.move(compactData.toPath(), dataFile_.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Files.move(compactIndex.toPath(), indexFile_.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException iox) {
+                throw new TTransportException("Compact " + dataFile_ + " " + iox.getMessage(), iox);
+            } finally {
+                try {
+                    segment_ = openSegment(dataFile_, indexFile_);
+                } finally {
+                    lock_.writeLock().unlock();
+                }
+            }
+            return old.dataLength - segment_.dataLength;
+        }
+    }
+
+    private static void copy(Segment segment, Filter filter, long key, byte[] record) throws IOException {
+        if (filter == null || filter.keep(key, record, 0, record.length)) {
+            segment.append(key, record, 0, record.length);
+        }
+    }
+
+    /**
+     * Closes the store. Lookups in progress are completed first.
+     */
+    public void close() {
+        synchronized (appendLock_) {
+            lock_.writeLock().lock();
+            try {
+                if (segment_ != null) {
+                    segment_.close();
+                    segment_ = null;
+                }
+            } finally {
+                lock_.writeLock().unlock();
+            }
+        }
+    }
+
+    private Segment openSegment() throws TTransportException {
+        Segment segment = segment_;
+        if (segment == null) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Record store is closed");
+        }
+        return segment;
+    }
+
+    /**
+     * A data file and its index.
+     */
+    private static final class Segment {
+        final File dataFile;
+        final RandomAccessFile data;
+        final FileChannel dataChannel;
+        final RandomAccessFile index;
+        final FileChannel indexChannel;
+        final int indexInterval;
+        final CRC32 crc = new CRC32();
+
+        // the mapping is replaced before indexEntries grows past it
+        volatile MappedByteBuffer indexMap;
+        volatile int indexEntries;
+        volatile long dataLength;
+
+        // only used by appends
+        long lastKey = Long.MIN_VALUE;
+        long lastIndexedOffset;
+
+        Segment(File dataFile, File indexFile, int indexInterval) throws IOException {
+            this.dataFile = dataFile;
+            this.indexInterval = indexInterval;
+            data = new RandomAccessFile(dataFile, "rw");
+            dataChannel = data.getChannel();
+            index = new RandomAccessFile(indexFile, "rw");
+            indexChannel = index.getChannel();
+            try {
+                openData();
+                openIndex();
+                recover();
+            } catch (IOException iox) {
+                close();
+                throw iox;
+            }
+        }
+
+        private void openData() throws IOException {
+            long length = dataChannel.size();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            if (length == 0) {
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(dataChannel, header, 0);
+                length = FILE_HEADER_SIZE;
+            } else {
+                if (length >= FILE_HEADER_SIZE) {
+                    readFully(dataChannel, header, 0);
+                }
+                if (length < FILE_HEADER_SIZE || header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a record store");
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported record store version " + header.getInt(4));
+                }
+            }
+            dataLength = length;
+        }
+
+        private void openIndex() throws IOException {
+            long capacity = Math.max(MIN_INDEX_CAPACITY, indexChannel.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE);
+            indexMap = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            // entries are written in order of increasing offsets, so unused slots, which read as offset 0, form a
+            // suffix of the file
+            int lo = 0;
+            int hi = (int) (capacity / INDEX_ENTRY_SIZE);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (entryOffset(indexMap, mid) != 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            indexEntries = lo;
+        }
+
+        /**
+         * Checks the records after the last index entry, indexes them and truncates anything that does not check out.
+         */
+        private void recover() throws IOException {
+            while (true) {
+                int entries = indexEntries;
+                long start = entries > 0 ? entryOffset(indexMap, entries - 1) : FILE_HEADER_SIZE;
+                lastIndexedOffset = start;
+                RecordCursor cursor = new RecordCursor(dataChannel, start, dataLength);
+                long end = start;
+                boolean first = true;
+                try {
+                    while (cursor.next()) {
+                        if (first && entries > 0) {
+                            if (cursor.key != entryKey(indexMap, entries - 1)) {
+                                break;
+                            }
+                        } else {
+                            maybeIndex(cursor.key, cursor.recordOffset);
+                        }
+                        lastKey = cursor.key;
+                        end = cursor.position;
+                        first = false;
+                    }
+                } catch (TTransportException e) {
+                    // a corrupt record, handled below
+                }
+                if (first && entries > 0) {
+                    // the indexed record itself is gone, fall back to the previous entry
+                    indexMap.putLong((entries - 1) * INDEX_ENTRY_SIZE, 0);
+                    indexMap.putLong((entries - 1) * INDEX_ENTRY_SIZE + 8, 0);
+                    indexEntries = entries - 1;
+                    continue;
+                }
+                if (end < dataLength) {
+                    LOGGER.warn("Truncating " + (dataLength - end) + " bytes of incomplete or corrupt records from "
+                            + dataFile + " at offset " + end);
+                    dataChannel.truncate(end);
+                    dataLength = end;
+                }
+                return;
+            }
+        }
+
+        boolean isEmpty() {
+            return dataLength == FILE_HEADER_SIZE;
+        }
+
+        void append(long key, byte[] record, int offset, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            buf.putInt(length).putInt(0).putLong(key).put(record, offset, length);
+            crc.reset();
+            crc.update(buf.array(), 8, 8 + length);
+            buf.putInt(4, (int) crc.getValue());
+            buf.flip();
+
+            long recordOffset = dataLength;
+            writeFully(dataChannel, buf, recordOffset);
+            dataLength = recordOffset + buf.capacity();
+            maybeIndex(key, recordOffset);
+            lastKey = key;
+        }
+
+        private void maybeIndex(long key, long recordOffset) throws IOException {
+            int entries = indexEntries;
+            if (entries > 0 && recordOffset - lastIndexedOffset < indexInterval) {
+                return;
+            }
+            MappedByteBuffer map = indexMap;
+            if ((long) (entries + 1) * INDEX_ENTRY_SIZE > map.capacity()) {
+                map = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * map.capacity());
+                indexMap = map;
+            }
+            map.putLong(entries * INDEX_ENTRY_SIZE, key);
+            map.putLong(entries * INDEX_ENTRY_SIZE + 8, recordOffset);
+            indexEntries = entries + 1;
+            lastIndexedOffset = recordOffset;
+        }
+
+        byte[] get(long key) throws IOException, TTransportException {
+            int entries = indexEntries;
+            MappedByteBuffer map = indexMap;
+            if (entries == 0 || key < entryKey(map, 0)) {
+                return null;
+            }
+            // start at the last entry with a smaller key, since an earlier record may share the key of an entry
+            int lo = 0;
+            int hi = entries - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (entryKey(map, mid) < key) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            RecordCursor cursor = new RecordCursor(dataChannel, entryOffset(map, lo), dataLength);
+            byte[] found = null;
+            while (cursor.next() && cursor.key <= key) {
+                if (cursor.key == key) {
+                    found = cursor.copyRecord();
+                }
+            }
+            return found;
+        }
+
+        void force() throws IOException {
+            dataChannel.force(false);
+            indexMap.force();
+        }
+
+        void close() {
+            try {
+                data.close();
+                index.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Error closing " + dataFile, iox);
+            }
+        }
+
+        private static long entryKey(ByteBuffer map, int entry) {
+            return map.getLong(entry * INDEX_ENTRY_SIZE);
+        }
+
+        private static long entryOffset(ByteBuffer map, int entry) {
+            return map.getLong(entry * INDEX_ENTRY_SIZE + 8);
+        }
+    }
+
+    /**
+     * Reads records one after the other, a block at a time, checking their CRCs.
+     */
+    private static final class RecordCursor {
+        private final FileChannel channel;
+        private final long end;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer block;
+        private long blockStart;
+
+        long position;
+        long recordOffset;
+        long key;
+        int recordPos;
+        int recordLength;
+
+        RecordCursor(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            block = ByteBuffer.allocate(8192);
+            block.limit(0);
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return false at the end of the data
+         * @throws TTransportException
+         *             if the record is incomplete or corrupt
+         */
+        boolean next() throws IOException, TTransportException {
+            if (position >= end) {
+                return false;
+            }
+            if (end - position < RECORD_HEADER_SIZE) {
+                throw corrupt();
+            }
+            int pos = fill(RECORD_HEADER_SIZE);
+            int length = block.getInt(pos);
+            if (length < 0 || length > end - position - RECORD_HEADER_SIZE) {
+                throw corrupt();
+            }
+            pos = fill(RECORD_HEADER_SIZE + length);
+            crc.reset();
+            crc.update(block.array(), pos + 8, 8 + length);
+            if ((int) crc.getValue() != block.getInt(pos + 4)) {
+                throw corrupt();
+            }
+            recordOffset = position;
+            key = block.getLong(pos + 8);
+            recordPos = pos + RECORD_HEADER_SIZE;
+            recordLength = length;
+            position += RECORD_HEADER_SIZE + length;
+            return true;
+        }
+
+        byte[] copyRecord() {
+            byte[] record = new byte[recordLength];
+            System.arraycopy(block.array(), recordPos, record, 0, recordLength);
+            return record;
+        }
+
+        /**
+         * Makes sure len bytes at the current position are in the block.
+         *
+         * @return the index of the current position in the block
+         */
+        private int fill(int len) throws IOException {
+            if (position >= blockStart && position + len <= blockStart + block.limit()) {
+                return (int) (position - blockStart);
+            }
+            if (len > block.capacity()) {
+                block = ByteBuffer.allocate(len);
+            }
+            block.clear();
+            block.limit((int) Math.min(block.capacity(), end - position));
+            blockStart = position;
+            readFully(channel, block, position);
+            return 0;
+        }
+
+        private TTransportException corrupt() {
+            return new TTransportException("Incomplete or corrupt record at offset " + position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+        buf.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+}
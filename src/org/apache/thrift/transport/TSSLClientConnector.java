@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.thrift.transport.TSSLTransportFactory.TSSLTransportParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out SSL wrapped TSockets to one server whose handshakes have been done ahead of time on a background thread,
+ * so that opening a connection does not wait for the TLS handshake.
+ *
+ * The connector keeps up to a given number of connected sockets ready. Each {@link #take()} hands one out, or connects
+ * on the calling thread if none is ready, and starts connecting a replacement. Connections that have been waiting
+ * longer than the idle limit are discarded, since servers close idle connections. All sockets share the SSLContext of
+ * the parameters, so after the first full handshake the background handshakes resume its session.
+ */
+public class TSSLClientConnector implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TSSLClientConnector.class.getName());
+
+    // how long to wait for the session tickets of a new TLS 1.3 connection
+    private static final int TICKET_WAIT_MILLIS = 50;
+
+    private final String host_;
+    private final int port_;
+    private final int timeout_;
+    private final SSLSocketFactory factory_;
+    private final int ahead_;
+    private final long maxIdleMillis_;
+    private final ExecutorService executor_;
+
+    private final LinkedBlockingDeque<ReadySocket> ready_ = new LinkedBlockingDeque<ReadySocket>();
+    private final AtomicInteger pending_ = new AtomicInteger(0);
+    private volatile boolean closed_ = false;
+
+    /**
+     * Creates a connector and starts connecting ahead.
+     *
+     * @param params
+     *            SSL settings, the default SSLContext if null
+     * @param ahead
+     *            number of connections to keep ready
+     * @param maxIdleMillis
+     *            how long a ready connection may wait before it is discarded
+     */
+    public TSSLClientConnector(String host, int port, int timeout, TSSLTransportParameters params, int ahead,
+            long maxIdleMillis) throws TTransportException {
+        host_ = host;
+        port_ = port;
+        timeout_ = timeout;
+        factory_ = TSSLTransportFactory.getClientSocketFactory(params);
+        ahead_ = ahead;
+        maxIdleMillis_ = maxIdleMillis;
+        executor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TSSLClientConnector-" + host_ + ":" + port_ + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        connectAhead();
+    }
+
+    /**
+     * Returns a connected socket, whose handshake has been done, and starts connecting its replacement.
+     */
+    public TSocket take() throws TTransportException {
+        if (closed_) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Connector has been closed");
+        }
+        TSocket socket = null;
+        ReadySocket ready;
+        while (socket == null && (ready = ready_.pollFirst()) != null) {
+            if (System.currentTimeMillis() - ready.readyAtMillis > maxIdleMillis_ || !ready.socket.isOpen()) {
+                ready.socket.close();
+            } else {
+                socket = ready.socket;
+            }
+        }
+        connectAhead();
+        return socket != null ? socket : connect();
+    }
+
+    /**
+     * Number of connections ready to be taken.
+     */
+    public int getReadyCount() {
+        return ready_.size();
+    }
+
+    /**
+     * Stops connecting ahead and closes the connections that are ready.
+     */
+    @Override
+    public void close() {
+        closed_ = true;
+        executor_.shutdown();
+        ReadySocket ready;
+        while ((ready = ready_.pollFirst()) != null) {
+            ready.socket.close();
+        }
+    }
+
+    private TSocket connect() throws TTransportException {
+        return TSSLTransportFactory.createClient(factory_, host_, port_, timeout_);
+    }
+
+    private void connectAhead() {
+        int pending;
+        while (!closed_ && ready_.size() + (pending = pending_.get()) < ahead_) {
+            if (!pending_.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            try {
+                executor_.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TSocket socket = connect();
+                            if (!takeSessionTickets(socket)) {
+                                return;
+                            }
+                            ReadySocket ready = new ReadySocket(socket);
+                            ready_.offerLast(ready);
+                            if (closed_ && ready_.remove(ready)) {
+                                ready.socket.close();
+                            }
+                        } catch (TTransportException ttx) {
+                            // the next take() tries again
+                            LOGGER.warn("Could not connect ahead to " + host_ + ":" + port_, ttx);
+                        } finally {
+                            pending_.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed in the meantime
+                pending_.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A TLS 1.3 server sends the tickets for resuming its session after the handshake, and the JDK only takes them in
+     * on the next read, which for a connection made ahead happens once it is used. Tickets are good for a single
+     * resumption, so without this every connection made ahead would need a full handshake.
+     *
+     * @return false if the socket had to be closed
+     */
+    private boolean takeSessionTickets(TSocket socket) {
+        SSLSocket sslSocket = (SSLSocket) socket.getSocket();
+        if (!"TLSv1.3".equals(sslSocket.getSession().getProtocol())) {
+            return true;
+        }
+        try {
+            int soTimeout = sslSocket.getSoTimeout();
+            sslSocket.setSoTimeout(TICKET_WAIT_MILLIS);
+            try {
+                // a Thrift server sends nothing before it has a request
+                sslSocket.getInputStream().read();
+                LOGGER.warn("Server " + host_ + ":" + port_ + " sent data or closed the connection before a request");
+                socket.close();
+                return false;
+            } catch (SocketTimeoutException e) {
+                // the tickets have been read
+            }
+            sslSocket.setSoTimeout(soTimeout);
+            return true;
+        } catch (IOException iox) {
+            LOGGER.warn("Could not read session tickets from " + host_ + ":" + port_, iox);
+            socket.close();
+            return false;
+        }
+    }
+
+    private static final class ReadySocket {
+        final TSocket socket;
+        final long readyAtMillis = System.currentTimeMillis();
+
+        ReadySocket(TSocket socket) {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.thrift.TLatencyHistogram;
+
+/**
+ * Counts and latencies of the TLS handshakes done by blocking client sockets, kept apart for full handshakes and for
+ * resumed sessions. A steady share of full handshakes on reconnect means sessions are not being resumed, e.g. because
+ * the session cache is too small or its entries expire too soon. Thread safe.
+ *
+ * @see TSSLTransportFactory#getClientHandshakeStats()
+ */
+public class TSSLHandshakeStats {
+
+    private final TLatencyHistogram full = new TLatencyHistogram();
+    private final TLatencyHistogram resumed = new TLatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    public void recordHandshake(long nanos, boolean resumedSession) {
+        (resumedSession ? resumed : full).recordValue(nanos);
+    }
+
+    public void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Latencies of the handshakes that negotiated a new session.
+     */
+    public TLatencyHistogram getFullHandshakes() {
+        return full;
+    }
+
+    /**
+     * Latencies of the handshakes that resumed an earlier session.
+     */
+    public TLatencyHistogram getResumedHandshakes() {
+        return resumed;
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "full: " + full + "\nresumed: " + resumed + "\nfailures: " + failures.get();
+    }
+}
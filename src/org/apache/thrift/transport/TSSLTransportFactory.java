@@ -22,22 +22,28 @@ package org.apache.thrift.transport;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.security.KeyStore;
 import java.util.Arrays;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import org.apache.thrift.TEventRecorder;
+
 /**
  * A Factory for providing and setting up Client and Server SSL wrapped TSocket and TServerSocket
  */
 public class TSSLTransportFactory {
 
+    private static final TSSLHandshakeStats CLIENT_HANDSHAKE_STATS = new TSSLHandshakeStats();
+
     /**
      * Get a SSL wrapped TServerSocket bound to the specified port. In this configuration the default settings are used.
      * Default settings are retrieved from System properties that are set.
@@ -97,7 +103,7 @@ public class TSSLTransportFactory {
             throw new TTransportException("Either one of the KeyStore or TrustStore must be set for SSLTransportParameters");
         }
 
-        SSLContext ctx = createSSLContext(params);
+        SSLContext ctx = params.getSSLContext();
         return createServer(ctx.getServerSocketFactory(), port, clientTimeout, params.clientAuth, ifAddress, params);
     }
 
@@ -145,7 +151,9 @@ public class TSSLTransportFactory {
 
     /**
      * Get a custom configured SSL wrapped TSocket. The SSL settings are obtained from the passed in
-     * TSSLTransportParameters.
+     * TSSLTransportParameters. Sockets created from the same parameters share one SSLContext, whose session cache lets
+     * reconnects to a host and port resume the earlier session, with TLS 1.3 session tickets where the JDK supports
+     * them, instead of doing a full handshake.
      *
      * @param host
      * @param port
@@ -159,10 +167,61 @@ public class TSSLTransportFactory {
             throw new TTransportException("Either one of the KeyStore or TrustStore must be set for SSLTransportParameters");
         }
 
-        SSLContext ctx = createSSLContext(params);
+        SSLContext ctx = params.getSSLContext();
         return createClient(ctx.getSocketFactory(), host, port, timeout);
     }
 
+    /**
+     * Get a nonblocking SSL server transport bound to the specified port and interface, for use with the selector based
+     * servers. The TSSLTransportParameters are used as for {@link #getServerSocket(int, int, InetAddress,
+     * TSSLTransportParameters)}.
+     *
+     * @param port
+     * @param clientTimeout
+     * @param ifAddress
+     * @param params
+     * @return A nonblocking SSL server transport
+     * @throws TTransportException
+     */
+    public static TNonblockingSSLServerSocket getNonblockingServerSocket(int port, int clientTimeout, InetAddress ifAddress,
+            TSSLTransportParameters params) throws TTransportException {
+        if (params == null || !(params.isKeyStoreSet || params.isTrustStoreSet)) {
+            throw new TTransportException("Either one of the KeyStore or TrustStore must be set for SSLTransportParameters");
+        }
+
+        SSLContext ctx = params.getSSLContext();
+        return new TNonblockingSSLServerSocket(new TNonblockingServerSocket.NonblockingAbstractServerSocketArgs()
+                .bindAddr(new InetSocketAddress(ifAddress, port)).clientTimeout(clientTimeout).backlog(100), ctx,
+                params.getSSLParameters(ctx, true), TNonblockingSSLSocket.DEFAULT_BUFFER_POOL);
+    }
+
+    /**
+     * Get a nonblocking SSL transport for the specified host and port, for use with TAsyncClientManager. The connection
+     * is made and the handshake done by the first call. Transports created from the same parameters share one
+     * SSLContext, so later connections to a server resume the session of earlier ones.
+     *
+     * @param host
+     * @param port
+     * @param timeout
+     * @param params
+     * @return A nonblocking SSL transport
+     * @throws TTransportException
+     */
+    public static TNonblockingSSLSocket getNonblockingClientSocket(String host, int port, int timeout, TSSLTransportParameters params)
+            throws TTransportException {
+        if (params == null || !(params.isKeyStoreSet || params.isTrustStoreSet)) {
+            throw new TTransportException("Either one of the KeyStore or TrustStore must be set for SSLTransportParameters");
+        }
+
+        SSLContext ctx = params.getSSLContext();
+        try {
+            return new TNonblockingSSLSocket(host, port, timeout, ctx, params.getSSLParameters(ctx, false),
+                    TNonblockingSSLSocket.DEFAULT_BUFFER_POOL);
+        } catch (IOException e) {
+            throw new TTransportException("Could not create a socket for " + host + " on port " + port, e);
+        }
+    }
+
     private static SSLContext createSSLContext(TSSLTransportParameters params) throws TTransportException {
         SSLContext ctx;
         FileInputStream fin = null;
@@ -197,6 +256,15 @@ public class TSSLTransportFactory {
                 ctx.init(null, tmf.getTrustManagers(), null);
             }
 
+            if (params.sessionCacheSize >= 0) {
+                ctx.getClientSessionContext().setSessionCacheSize(params.sessionCacheSize);
+                ctx.getServerSessionContext().setSessionCacheSize(params.sessionCacheSize);
+            }
+            if (params.sessionTimeout >= 0) {
+                ctx.getClientSessionContext().setSessionTimeout(params.sessionTimeout);
+                ctx.getServerSessionContext().setSessionTimeout(params.sessionTimeout);
+            }
+
         } catch (Exception e) {
             throw new TTransportException("Error creating the transport", e);
         } finally {
@@ -219,16 +287,67 @@ public class TSSLTransportFactory {
         return ctx;
     }
 
-    private static TSocket createClient(SSLSocketFactory factory, String host, int port, int timeout) throws TTransportException {
+    /**
+     * Handshake counts and latencies of all client sockets created by this factory.
+     */
+    public static TSSLHandshakeStats getClientHandshakeStats() {
+        return CLIENT_HANDSHAKE_STATS;
+    }
+
+    static SSLSocketFactory getClientSocketFactory(TSSLTransportParameters params) throws TTransportException {
+        if (params == null) {
+            return (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        if (!(params.isKeyStoreSet || params.isTrustStoreSet)) {
+            throw new TTransportException("Either one of the KeyStore or TrustStore must be set for SSLTransportParameters");
+        }
+        return params.getSSLContext().getSocketFactory();
+    }
+
+    static TSocket createClient(SSLSocketFactory factory, String host, int port, int timeout) throws TTransportException {
+        SSLSocket socket = null;
         try {
-            SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+            socket = (SSLSocket) factory.createSocket(host, port);
             socket.setSoTimeout(timeout);
+            handshake(socket, host, port);
             return new TSocket(socket);
         } catch (Exception e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException iox) {
+                    // already failing
+                }
+            }
             throw new TTransportException("Could not connect to " + host + " on port " + port, e);
         }
     }
 
+    /**
+     * Does the handshake up front instead of on the first write, so that its latency can be recorded.
+     */
+    private static void handshake(SSLSocket socket, String host, int port) throws IOException {
+        TEventRecorder recorder = TEventRecorder.getInstance();
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (IOException iox) {
+            CLIENT_HANDSHAKE_STATS.recordFailure();
+            if (recorder != null) {
+                recorder.tlsHandshakeCompleted(host, port, start, System.nanoTime(), false, iox);
+            }
+            throw iox;
+        }
+        long end = System.nanoTime();
+        // a resumed session keeps the creation time of the one it resumes
+        boolean resumed = socket.getSession().getCreationTime() < startMillis;
+        CLIENT_HANDSHAKE_STATS.recordHandshake(end - start, resumed);
+        if (recorder != null) {
+            recorder.tlsHandshakeCompleted(host, port, start, end, resumed, null);
+        }
+    }
+
     /**
      * A Class to hold all the SSL parameters
      */
@@ -246,6 +365,9 @@ public class TSSLTransportFactory {
         protected boolean clientAuth = false;
         protected boolean isKeyStoreSet = false;
         protected boolean isTrustStoreSet = false;
+        protected int sessionCacheSize = -1;
+        protected int sessionTimeout = -1;
+        private SSLContext context;
 
         public TSSLTransportParameters() {
         }
@@ -299,6 +421,7 @@ public class TSSLTransportFactory {
                 this.keyStoreType = keyStoreType;
             }
             isKeyStoreSet = true;
+            resetSSLContext();
         }
 
         /**
@@ -335,6 +458,7 @@ public class TSSLTransportFactory {
                 this.trustStoreType = trustStoreType;
             }
             isTrustStoreSet = true;
+            resetSSLContext();
         }
 
         /**
@@ -357,5 +481,50 @@ public class TSSLTransportFactory {
         public void requireClientAuth(boolean clientAuth) {
             this.clientAuth = clientAuth;
         }
+
+        /**
+         * Set the size and lifetime of the TLS session caches, which let clients resume a session instead of doing a
+         * full handshake. The JDK defaults apply to values that are not set.
+         *
+         * @param size
+         *            The number of sessions cached, 0 for no limit
+         * @param timeoutSeconds
+         *            How long a cached session may be resumed, 0 for no limit
+         */
+        public void setSessionCache(int size, int timeoutSeconds) {
+            this.sessionCacheSize = size;
+            this.sessionTimeout = timeoutSeconds;
+            resetSSLContext();
+        }
+
+        /**
+         * The SSLContext for these parameters, created on first use and shared by all transports created from them
+         * until the key store, trust store or session cache is changed.
+         */
+        synchronized SSLContext getSSLContext() throws TTransportException {
+            if (context == null) {
+                context = createSSLContext(this);
+            }
+            return context;
+        }
+
+        /**
+         * Makes the next transport use a new SSLContext with the current settings. Transports created before keep the
+         * old context, and sessions cached by it are not resumed by the new one.
+         */
+        private synchronized void resetSSLContext() {
+            context = null;
+        }
+
+        SSLParameters getSSLParameters(SSLContext ctx, boolean server) {
+            SSLParameters sslParameters = ctx.getDefaultSSLParameters();
+            if (cipherSuites != null) {
+                sslParameters.setCipherSuites(cipherSuites);
+            }
+            if (server) {
+                sslParameters.setNeedClientAuth(clientAuth);
+            }
+            return sslParameters;
+        }
     }
 }
@@ -49,7 +49,7 @@ public class TSaslServerTransport extends TSaslTransport {
     /**
      * Contains all the parameters used to define a SASL server implementation.
      */
-    private static class TSaslServerDefinition {
+    static class TSaslServerDefinition {
         public String mechanism;
         public String protocol;
         public String serverName;
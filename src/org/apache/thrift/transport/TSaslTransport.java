@@ -20,6 +20,7 @@
 package org.apache.thrift.transport;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,6 +36,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A superclass for SASL client/server thrift transports. A subclass need only implement the <code>open</open> method.
+ *
+ * Once negotiation is complete the data path does not allocate per frame beyond what the SASL mechanism does itself:
+ * wrapped frames are read into a buffer from a {@link TByteBufferPool} that is given back as soon as the frame has been
+ * unwrapped, or unwrapped in place when the underlying transport already holds the whole frame, and outgoing frames are
+ * assembled behind a reserved length prefix. The unwrapped data is exposed for direct buffer access, so protocols read
+ * fields without copying them.
  */
 abstract class TSaslTransport extends TTransport {
 
@@ -46,6 +53,13 @@ abstract class TSaslTransport extends TTransport {
     protected static final int STATUS_BYTES = 1;
     protected static final int PAYLOAD_LENGTH_BYTES = 4;
 
+    /**
+     * Pool shared by all SASL transports that are not given one of their own.
+     */
+    public static final TByteBufferPool DEFAULT_BUFFER_POOL = new TByteBufferPool(64 * 1024, 64);
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
     protected static enum SaslRole {
         SERVER, CLIENT;
     }
@@ -100,10 +114,36 @@ abstract class TSaslTransport extends TTransport {
     private TMemoryInputTransport readBuffer = new TMemoryInputTransport();
 
     /**
-     * Buffer for output.
+     * Buffer for output. The first PAYLOAD_LENGTH_BYTES are reserved for the frame length.
      */
     private final TByteArrayOutputStream writeBuffer = new TByteArrayOutputStream(1024);
 
+    /**
+     * Scratch space for wrapped and, if reuseFrames is set, plain incoming frames.
+     */
+    private TByteBufferPool bufferPool = DEFAULT_BUFFER_POOL;
+
+    /**
+     * Whether plain frames are read into pooled buffers rather than arrays of their own.
+     */
+    private boolean reuseFrames = false;
+
+    /**
+     * Whether plain frames held by an underlying TMemoryInputTransport are read without copying.
+     */
+    private boolean readInPlace = false;
+
+    /**
+     * The pooled buffer readBuffer currently reads from, if any.
+     */
+    private ByteBuffer frameBuffer;
+
+    // Used to read frame lengths, apart from the write side so that one thread may read while another writes.
+    private final byte[] readLengthBuffer = new byte[PAYLOAD_LENGTH_BYTES];
+
+    // Used to write frame lengths.
+    private final byte[] writeLengthBuffer = new byte[PAYLOAD_LENGTH_BYTES];
+
     /**
      * Create a TSaslTransport. It's assumed that setSaslServer will be called later to initialize the SASL endpoint
      * underlying this transport.
@@ -113,6 +153,7 @@ abstract class TSaslTransport extends TTransport {
      */
     protected TSaslTransport(TTransport underlyingTransport) {
         this.underlyingTransport = underlyingTransport;
+        reserveLength();
     }
 
     /**
@@ -126,12 +167,43 @@ abstract class TSaslTransport extends TTransport {
     protected TSaslTransport(SaslClient saslClient, TTransport underlyingTransport) {
         sasl = new SaslParticipant(saslClient);
         this.underlyingTransport = underlyingTransport;
+        reserveLength();
     }
 
     protected void setSaslServer(SaslServer saslServer) {
         sasl = new SaslParticipant(saslServer);
     }
 
+    /**
+     * Sets the pool incoming frames are read into, {@link #DEFAULT_BUFFER_POOL} unless set.
+     */
+    public void setBufferPool(TByteBufferPool bufferPool) {
+        if (bufferPool == null || bufferPool.isDirect()) {
+            throw new IllegalArgumentException("SASL transports need a pool of heap buffers");
+        }
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Makes frames without a negotiated QOP be read into pooled buffers as well. Protocols that read binary fields
+     * straight out of the transport buffer then return slices of a buffer that is reused once the next frame is read,
+     * so callers must not keep binary values past the call they were read in. Off by default, in which case such frames
+     * get an array of their own like with {@link TFramedTransport}.
+     */
+    public void setReuseFrames(boolean reuseFrames) {
+        this.reuseFrames = reuseFrames;
+    }
+
+    /**
+     * When enabled and the underlying transport is a TMemoryInputTransport already holding the whole frame, frames
+     * without a negotiated QOP are read straight out of its buffer instead of being copied. Binary values read through
+     * this transport then alias the caller's buffer, so the caller must not modify it while they are in use. Off by
+     * default.
+     */
+    public void setReadInPlace(boolean readInPlace) {
+        this.readInPlace = readInPlace;
+    }
+
     // Used to read the status byte and payload length.
     private final byte[] messageHeader = new byte[STATUS_BYTES + PAYLOAD_LENGTH_BYTES];
 
@@ -146,7 +218,7 @@ abstract class TSaslTransport extends TTransport {
      */
     protected void sendSaslMessage(NegotiationStatus status, byte[] payload) throws TTransportException {
         if (payload == null)
-            payload = new byte[0];
+            payload = EMPTY_PAYLOAD;
 
         messageHeader[0] = status.getValue();
         EncodingUtils.encodeBigEndian(payload.length, messageHeader, STATUS_BYTES);
@@ -181,6 +253,7 @@ abstract class TSaslTransport extends TTransport {
             throw sendAndThrowMessage(NegotiationStatus.ERROR, "Invalid payload header length: " + payloadBytes);
         }
 
+        // handed to the SASL mechanism, which may keep it
         byte[] payload = new byte[payloadBytes];
         underlyingTransport.readAll(payload, 0, payload.length);
 
@@ -355,9 +428,8 @@ abstract class TSaslTransport extends TTransport {
      *             Thrown if reading from the underlying transport fails.
      */
     protected int readLength() throws TTransportException {
-        byte[] lenBuf = new byte[4];
-        underlyingTransport.readAll(lenBuf, 0, lenBuf.length);
-        return EncodingUtils.decodeBigEndian(lenBuf);
+        underlyingTransport.readAll(readLengthBuffer, 0, readLengthBuffer.length);
+        return EncodingUtils.decodeBigEndian(readLengthBuffer);
     }
 
     /**
@@ -369,9 +441,8 @@ abstract class TSaslTransport extends TTransport {
      *             Thrown if writing to the underlying transport fails.
      */
     protected void writeLength(int length) throws TTransportException {
-        byte[] lenBuf = new byte[4];
-        TFramedTransport.encodeFrameSize(length, lenBuf);
-        underlyingTransport.write(lenBuf);
+        TFramedTransport.encodeFrameSize(length, writeLengthBuffer);
+        underlyingTransport.write(writeLengthBuffer);
     }
 
     // Below is the SASL implementation of the TTransport interface.
@@ -381,6 +452,7 @@ abstract class TSaslTransport extends TTransport {
      */
     @Override
     public void close() {
+        releaseFrame();
         underlyingTransport.close();
         try {
             sasl.dispose();
@@ -411,6 +483,7 @@ abstract class TSaslTransport extends TTransport {
         }
 
         // Read another frame of data
+        releaseFrame();
         try {
             readFrame();
         } catch (SaslException e) {
@@ -434,14 +507,68 @@ abstract class TSaslTransport extends TTransport {
         if (dataLength < 0)
             throw new TTransportException("Read a negative frame size (" + dataLength + ")!");
 
-        byte[] buff = new byte[dataLength];
         LOGGER.debug("{}: reading data length: {}", getRole(), dataLength);
-        underlyingTransport.readAll(buff, 0, dataLength);
         if (shouldWrap) {
-            buff = sasl.unwrap(buff, 0, buff.length);
+            byte[] buff;
+            if (underlyingTransport.getBytesRemainingInBuffer() >= dataLength) {
+                buff = sasl.unwrap(underlyingTransport.getBuffer(), underlyingTransport.getBufferPosition(), dataLength);
+                underlyingTransport.consumeBuffer(dataLength);
+            } else {
+                ByteBuffer wrapped = bufferPool.acquire(dataLength);
+                try {
+                    underlyingTransport.readAll(wrapped.array(), wrapped.arrayOffset(), dataLength);
+                    buff = sasl.unwrap(wrapped.array(), wrapped.arrayOffset(), dataLength);
+                } finally {
+                    bufferPool.release(wrapped);
+                }
+            }
             LOGGER.debug("data length after unwrap: {}", buff.length);
+            readBuffer.reset(buff);
+        } else if (readInPlace && underlyingTransport instanceof TMemoryInputTransport
+                && underlyingTransport.getBytesRemainingInBuffer() >= dataLength) {
+            // the whole frame is already in memory owned by the caller, read it in place
+            readBuffer.reset(underlyingTransport.getBuffer(), underlyingTransport.getBufferPosition(), dataLength);
+            underlyingTransport.consumeBuffer(dataLength);
+        } else if (reuseFrames) {
+            frameBuffer = bufferPool.acquire(dataLength);
+            underlyingTransport.readAll(frameBuffer.array(), frameBuffer.arrayOffset(), dataLength);
+            readBuffer.reset(frameBuffer.array(), frameBuffer.arrayOffset(), dataLength);
+        } else {
+            byte[] buff = new byte[dataLength];
+            underlyingTransport.readAll(buff, 0, dataLength);
+            readBuffer.reset(buff);
         }
-        readBuffer.reset(buff);
+    }
+
+    /**
+     * Gives the buffer the current frame was read into back to the pool.
+     */
+    private void releaseFrame() {
+        if (frameBuffer != null) {
+            readBuffer.reset(EMPTY_PAYLOAD);
+            bufferPool.release(frameBuffer);
+            frameBuffer = null;
+        }
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return readBuffer.getBuffer();
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return readBuffer.getBufferPosition();
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return readBuffer.getBytesRemainingInBuffer();
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+        readBuffer.consumeBuffer(len);
     }
 
     /**
@@ -461,24 +588,37 @@ abstract class TSaslTransport extends TTransport {
     @Override
     public void flush() throws TTransportException {
         byte[] buf = writeBuffer.get();
-        int dataLength = writeBuffer.len();
-        writeBuffer.reset();
+        int dataLength = writeBuffer.len() - PAYLOAD_LENGTH_BYTES;
 
-        if (shouldWrap) {
-            LOGGER.debug("data length before wrap: {}", dataLength);
-            try {
-                buf = sasl.wrap(buf, 0, dataLength);
-            } catch (SaslException e) {
-                throw new TTransportException(e);
+        try {
+            if (shouldWrap) {
+                LOGGER.debug("data length before wrap: {}", dataLength);
+                byte[] wrapped;
+                try {
+                    wrapped = sasl.wrap(buf, PAYLOAD_LENGTH_BYTES, dataLength);
+                } catch (SaslException e) {
+                    throw new TTransportException(e);
+                }
+                LOGGER.debug("writing data length: {}", wrapped.length);
+                writeLength(wrapped.length);
+                underlyingTransport.write(wrapped, 0, wrapped.length);
+            } else {
+                // the length goes into the reserved prefix so that the frame is a single write
+                LOGGER.debug("writing data length: {}", dataLength);
+                TFramedTransport.encodeFrameSize(dataLength, buf);
+                underlyingTransport.write(buf, 0, PAYLOAD_LENGTH_BYTES + dataLength);
             }
-            dataLength = buf.length;
+        } finally {
+            writeBuffer.reset();
+            reserveLength();
         }
-        LOGGER.debug("writing data length: {}", dataLength);
-        writeLength(dataLength);
-        underlyingTransport.write(buf, 0, dataLength);
         underlyingTransport.flush();
     }
 
+    private void reserveLength() {
+        writeBuffer.write(writeLengthBuffer, 0, PAYLOAD_LENGTH_BYTES);
+    }
+
     /**
      * Used exclusively by readSaslMessage to return both a status and data.
      */
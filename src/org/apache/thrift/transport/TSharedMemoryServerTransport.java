@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server transport for {@link TSharedMemoryTransport} clients, for use with the blocking servers. Watches a directory
+ * for the connection files clients create and accepts each one as a connection of its own.
+ */
+public class TSharedMemoryServerTransport extends TServerTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TSharedMemoryServerTransport.class.getName());
+
+    private static final int DEFAULT_CLIENT_TIMEOUT_MILLIS = 60000;
+
+    private final Path directory_;
+    private final TSharedMemoryTransport.WaitStrategy waitStrategy_;
+    private final int clientTimeout_;
+    private final Deque<Path> pending_ = new ArrayDeque<Path>();
+    private volatile WatchService watcher_ = null;
+
+    /**
+     * Accepted connections park while waiting and give up on a client that sends nothing for a minute.
+     */
+    public TSharedMemoryServerTransport(String directory) {
+        this(directory, TSharedMemoryTransport.WaitStrategy.PARK, DEFAULT_CLIENT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param waitStrategy
+     *            how accepted connections wait for their clients
+     * @param clientTimeout
+     *            milliseconds accepted connections wait for their clients, 0 to wait forever
+     */
+    public TSharedMemoryServerTransport(String directory, TSharedMemoryTransport.WaitStrategy waitStrategy,
+            int clientTimeout) {
+        directory_ = new File(directory).toPath();
+        waitStrategy_ = waitStrategy;
+        clientTimeout_ = clientTimeout;
+    }
+
+    /**
+     * Starts watching the directory, creating it if needed. Connection files that are already there are accepted as
+     * well if their clients may still be waiting, and removed once their clients' connect timeouts have passed.
+     */
+    @Override
+    public void listen() throws TTransportException {
+        try {
+            Files.createDirectories(directory_);
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            directory_.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+            watcher_ = watcher;
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Could not watch " + directory_, iox);
+        }
+        scanDirectory();
+    }
+
+    @Override
+    protected TSharedMemoryTransport acceptImpl() throws TTransportException {
+        WatchService watcher = watcher_;
+        if (watcher == null) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Server transport not listening.");
+        }
+        while (true) {
+            Path file = pending_.poll();
+            if (file != null) {
+                try {
+                    return TSharedMemoryTransport.accept(file.toFile(), waitStrategy_, clientTimeout_);
+                } catch (TTransportException e) {
+                    // e.g. the client gave up and removed its file, or it was seen twice
+                    LOGGER.debug("Skipping connection file " + file, e);
+                    continue;
+                }
+            }
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (ClosedWatchServiceException e) {
+                throw new TTransportException(TTransportException.NOT_OPEN, "Server transport closed.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TTransportException(TTransportException.NOT_OPEN, "Interrupted while accepting.");
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    scanDirectory();
+                } else {
+                    offer(directory_.resolve((Path) event.context()));
+                }
+            }
+            key.reset();
+        }
+    }
+
+    private void scanDirectory() throws TTransportException {
+        try {
+            DirectoryStream<Path> files = Files.newDirectoryStream(directory_);
+            try {
+                for (Path file : files) {
+                    offer(file);
+                }
+            } finally {
+                files.close();
+            }
+        } catch (IOException iox) {
+            throw new TTransportException("Could not list " + directory_, iox);
+        }
+    }
+
+    private void offer(Path file) {
+        if (file.getFileName().toString().endsWith(TSharedMemoryTransport.FILE_SUFFIX)) {
+            pending_.add(file);
+        }
+    }
+
+    @Override
+    public void close() {
+        WatchService watcher = watcher_;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Could not close directory watcher.", iox);
+            }
+            watcher_ = null;
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        close();
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport between two processes on the same host through a memory mapped file. The file holds two single producer,
+ * single consumer byte rings, one for each direction, so a call costs no system calls at all once connected. Like
+ * {@link TSocket} it is a byte stream and is usually wrapped in a {@link TFramedTransport}.
+ *
+ * A client connects by creating a connection file in the directory a {@link TSharedMemoryServerTransport} watches and
+ * waiting for the server to accept it. Written data becomes visible to the other side on {@link #flush()}, or
+ * whenever the ring fills up.
+ *
+ * A waiting side either spins or parks according to its {@link WaitStrategy}. Since the peer may be another process,
+ * a waiting thread can not be woken up and has to poll; a side that dies without closing the transport is only noticed
+ * through the timeout.
+ *
+ * The indexes and flags in the file are published with release stores and read with acquire loads, which needs Java 9
+ * or later on anything but x86, see {@link SharedMemoryAccess}.
+ */
+public class TSharedMemoryTransport extends TTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TSharedMemoryTransport.class.getName());
+
+    public static final int DEFAULT_RING_CAPACITY = 1024 * 1024;
+
+    /**
+     * Largest ring capacity, keeping the connection file, which holds two rings, below the 2GB a mapping can span.
+     */
+    public static final int MAX_RING_CAPACITY = 1 << 29;
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * How a thread waits for data or for space in a ring.
+     */
+    public static enum WaitStrategy {
+        /**
+         * Spins until the other side makes progress: the lowest latency, at the cost of a busy core for every waiting
+         * thread.
+         */
+        BUSY_SPIN,
+
+        /**
+         * Spins briefly, then yields, then parks for short intervals, so idle connections cost little CPU.
+         */
+        PARK;
+
+        void idle(int attempt) {
+            if (this == BUSY_SPIN || attempt < 1000) {
+                return;
+            }
+            if (attempt < 1100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50000);
+            }
+        }
+    }
+
+    static final String FILE_SUFFIX = ".shm";
+
+    private static final int MAGIC = 0x5453484d; // "TSHM"
+    private static final int VERSION = 2;
+
+    // file layout: a header of flags and the client's connect deadline, the two ring headers with each index on a cache
+    // line of its own, the client to server ring and the server to client ring
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int ACCEPTED_OFFSET = 12;
+    private static final int CLIENT_CLOSED_OFFSET = 16;
+    private static final int SERVER_CLOSED_OFFSET = 20;
+    private static final int CONNECT_DEADLINE_OFFSET = 24;
+    private static final int CACHE_LINE = 64;
+    private static final int TO_SERVER_HEADER_OFFSET = CACHE_LINE;
+    private static final int TO_CLIENT_HEADER_OFFSET = 3 * CACHE_LINE;
+    private static final int HEADER_SIZE = 5 * CACHE_LINE;
+
+    /**
+     * One direction of the connection as seen from one side.
+     */
+    private static final class Ring {
+        final int writeIndexOffset;
+        final int readIndexOffset;
+        final ByteBuffer data;
+
+        // this side's own index, the write index of the writing side or the read index of the reading side
+        long index;
+        // last seen index of the other side
+        long peerIndex;
+
+        Ring(MappedByteBuffer shared, int headerOffset, int dataOffset, int capacity) {
+            writeIndexOffset = headerOffset;
+            readIndexOffset = headerOffset + CACHE_LINE;
+            ByteBuffer dup = shared.duplicate();
+            dup.position(dataOffset);
+            dup.limit(dataOffset + capacity);
+            data = dup.slice();
+        }
+    }
+
+    private final String directory_;
+    private final int ringCapacity_;
+    private final WaitStrategy waitStrategy_;
+    private final boolean server_;
+    private int timeout_;
+
+    private MappedByteBuffer shared_ = null;
+    private Ring in_ = null;
+    private Ring out_ = null;
+    private int capacity_;
+    private volatile boolean closed_ = false;
+
+    /**
+     * Creates a new unconnected transport that will connect to the server watching the given directory.
+     */
+    public TSharedMemoryTransport(String directory) {
+        this(directory, DEFAULT_RING_CAPACITY, WaitStrategy.PARK, 0);
+    }
+
+    /**
+     * Creates a new unconnected transport that will connect to the server watching the given directory.
+     *
+     * @param ringCapacity
+     *            size of each ring, rounded up to a power of two, at most {@link #MAX_RING_CAPACITY}
+     * @param timeout
+     *            milliseconds to wait for the server, 0 to wait forever once connected and a few seconds to connect
+     */
+    public TSharedMemoryTransport(String directory, int ringCapacity, WaitStrategy waitStrategy, int timeout) {
+        if (ringCapacity <= 0 || ringCapacity > MAX_RING_CAPACITY) {
+            throw new IllegalArgumentException("Ring capacity must be between 1 and " + MAX_RING_CAPACITY
+                    + " bytes: " + ringCapacity);
+        }
+        directory_ = directory;
+        int capacity = Integer.highestOneBit(ringCapacity);
+        ringCapacity_ = capacity < ringCapacity ? capacity << 1 : capacity;
+        waitStrategy_ = waitStrategy;
+        timeout_ = timeout;
+        server_ = false;
+    }
+
+    private TSharedMemoryTransport(MappedByteBuffer shared, WaitStrategy waitStrategy, int timeout) {
+        directory_ = null;
+        ringCapacity_ = shared.getInt(CAPACITY_OFFSET);
+        waitStrategy_ = waitStrategy;
+        timeout_ = timeout;
+        server_ = true;
+        attach(shared);
+    }
+
+    /**
+     * Accepts the connection a client created in the given file. The file is removed; the mapping stays valid.
+     */
+    static TSharedMemoryTransport accept(File file, WaitStrategy waitStrategy, int timeout)
+            throws TTransportException {
+        SharedMemoryAccess.checkSupported();
+        MappedByteBuffer shared;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long length = raf.length();
+                if (length < HEADER_SIZE) {
+                    throw new TTransportException("Not a connection file: " + file);
+                }
+                shared = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, iox);
+        }
+        if (shared.getInt(MAGIC_OFFSET) != MAGIC || shared.getInt(VERSION_OFFSET) != VERSION) {
+            throw new TTransportException("Not a connection file: " + file);
+        }
+        int capacity = shared.getInt(CAPACITY_OFFSET);
+        if (capacity <= 0 || capacity > MAX_RING_CAPACITY || Integer.bitCount(capacity) != 1
+                || shared.capacity() < HEADER_SIZE + 2L * capacity) {
+            throw new TTransportException("Invalid ring capacity " + capacity + " in connection file: " + file);
+        }
+        if (SharedMemoryAccess.getIntAcquire(shared, ACCEPTED_OFFSET) != 0
+                || SharedMemoryAccess.getIntAcquire(shared, CLIENT_CLOSED_OFFSET) != 0) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Connection already accepted or abandoned: "
+                    + file);
+        }
+        if (System.currentTimeMillis() - shared.getLong(CONNECT_DEADLINE_OFFSET) > 0) {
+            // the client stopped waiting, most likely it died before it was accepted and could not clean up
+            if (!file.delete()) {
+                LOGGER.warn("Could not remove connection file " + file);
+            }
+            throw new TTransportException(TTransportException.TIMED_OUT, "Connection abandoned by its client: " + file);
+        }
+        TSharedMemoryTransport transport = new TSharedMemoryTransport(shared, waitStrategy, timeout);
+        transport.putFlag(ACCEPTED_OFFSET);
+        if (!file.delete()) {
+            LOGGER.warn("Could not remove connection file " + file);
+        }
+        return transport;
+    }
+
+    private void attach(MappedByteBuffer shared) {
+        shared_ = shared;
+        capacity_ = ringCapacity_;
+        Ring toServer = new Ring(shared, TO_SERVER_HEADER_OFFSET, HEADER_SIZE, capacity_);
+        Ring toClient = new Ring(shared, TO_CLIENT_HEADER_OFFSET, HEADER_SIZE + capacity_, capacity_);
+        in_ = server_ ? toServer : toClient;
+        out_ = server_ ? toClient : toServer;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for the other side before giving up, 0 to wait forever.
+     */
+    public void setTimeout(int timeout) {
+        timeout_ = timeout;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return shared_ != null && !closed_;
+    }
+
+    /**
+     * Creates the connection file and waits for the server to accept it.
+     */
+    @Override
+    public void open() throws TTransportException {
+        if (server_ || shared_ != null) {
+            throw new TTransportException(TTransportException.ALREADY_OPEN, "Transport already connected.");
+        }
+        SharedMemoryAccess.checkSupported();
+        long connectTimeout = timeout_ > 0 ? timeout_ : DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        File dir = new File(directory_);
+        File file;
+        MappedByteBuffer shared;
+        try {
+            File tmp = File.createTempFile("conn-", ".tmp", dir);
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(HEADER_SIZE + 2L * ringCapacity_);
+                shared = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            shared.putInt(MAGIC_OFFSET, MAGIC);
+            shared.putInt(VERSION_OFFSET, VERSION);
+            shared.putInt(CAPACITY_OFFSET, ringCapacity_);
+            // tells a server finding the file later whether the client may still be waiting
+            shared.putLong(CONNECT_DEADLINE_OFFSET, System.currentTimeMillis() + connectTimeout);
+            // the server only looks at the file once it has its final name
+            file = new File(dir, tmp.getName().replace(".tmp", FILE_SUFFIX));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Could not connect through " + directory_,
+                    iox);
+        }
+        attach(shared);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        for (int attempt = 0; getFlag(ACCEPTED_OFFSET) == 0; attempt++) {
+            if (System.nanoTime() - deadline > 0) {
+                close();
+                file.delete();
+                throw new TTransportException(TTransportException.TIMED_OUT, "No server accepted the connection in "
+                        + directory_);
+            }
+            // waiting for the server to get around to the accept, which is not worth a busy core
+            WaitStrategy.PARK.idle(attempt);
+        }
+    }
+
+    /**
+     * Closes this side of the connection. The other side sees the end of the stream once it has read everything that
+     * was flushed.
+     */
+    @Override
+    public void close() {
+        if (shared_ != null && !closed_) {
+            closed_ = true;
+            putFlag(server_ ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET);
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        checkOpen();
+        int available = (int) (in_.peerIndex - in_.index);
+        if (available == 0) {
+            available = awaitData();
+        }
+        int pos = (int) (in_.index & (capacity_ - 1));
+        int n = Math.min(len, Math.min(available, capacity_ - pos));
+        in_.data.position(pos);
+        in_.data.get(buf, off, n);
+        in_.index += n;
+        // hand the space back to the writer
+        putIndex(in_.readIndexOffset, in_.index);
+        return n;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        checkOpen();
+        while (len > 0) {
+            int free = (int) (capacity_ - (out_.index - out_.peerIndex));
+            if (free == 0) {
+                // let the reader drain what is there before waiting for it
+                putIndex(out_.writeIndexOffset, out_.index);
+                free = awaitSpace();
+            }
+            int pos = (int) (out_.index & (capacity_ - 1));
+            int n = Math.min(len, Math.min(free, capacity_ - pos));
+            out_.data.position(pos);
+            out_.data.put(buf, off, n);
+            out_.index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Makes everything written so far visible to the other side.
+     */
+    @Override
+    public void flush() throws TTransportException {
+        checkOpen();
+        putIndex(out_.writeIndexOffset, out_.index);
+    }
+
+    private int awaitData() throws TTransportException {
+        long deadline = 0;
+        for (int attempt = 0;; attempt++) {
+            in_.peerIndex = getIndex(in_.writeIndexOffset);
+            int available = (int) (in_.peerIndex - in_.index);
+            if (available > 0) {
+                return available;
+            }
+            if (getFlag(server_ ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET) != 0) {
+                // the peer flushes before closing, so check once more
+                in_.peerIndex = getIndex(in_.writeIndexOffset);
+                if (in_.peerIndex == in_.index) {
+                    throw new TTransportException(TTransportException.END_OF_FILE, "Peer closed the connection");
+                }
+                return (int) (in_.peerIndex - in_.index);
+            }
+            deadline = checkWait(attempt, deadline);
+        }
+    }
+
+    private int awaitSpace() throws TTransportException {
+        long deadline = 0;
+        for (int attempt = 0;; attempt++) {
+            out_.peerIndex = getIndex(out_.readIndexOffset);
+            int free = (int) (capacity_ - (out_.index - out_.peerIndex));
+            if (free > 0) {
+                return free;
+            }
+            if (getFlag(server_ ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET) != 0) {
+                throw new TTransportException(TTransportException.NOT_OPEN, "Peer closed the connection");
+            }
+            deadline = checkWait(attempt, deadline);
+        }
+    }
+
+    /**
+     * Idles once, checking the timeout and whether this side was closed every now and then.
+     *
+     * @return the deadline, computed on the first call
+     */
+    private long checkWait(int attempt, long deadline) throws TTransportException {
+        if ((attempt & 1023) == 0) {
+            checkOpen();
+            if (timeout_ > 0) {
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout_);
+                } else if (now - deadline > 0) {
+                    throw new TTransportException(TTransportException.TIMED_OUT, "Timed out waiting for the peer");
+                }
+            }
+        }
+        waitStrategy_.idle(attempt);
+        return deadline;
+    }
+
+    private void checkOpen() throws TTransportException {
+        if (!isOpen()) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Transport not open.");
+        }
+    }
+
+    private long getIndex(int offset) {
+        // acquire: data is only read after the index
+        return SharedMemoryAccess.getLongAcquire(shared_, offset);
+    }
+
+    private void putIndex(int offset, long index) {
+        // release: data accesses complete before the index moves
+        SharedMemoryAccess.setLongRelease(shared_, offset, index);
+    }
+
+    private int getFlag(int offset) {
+        return SharedMemoryAccess.getIntAcquire(shared_, offset);
+    }
+
+    private void putFlag(int offset) {
+        SharedMemoryAccess.setIntRelease(shared_, offset, 1);
+    }
+}
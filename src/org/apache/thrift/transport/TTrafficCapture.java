@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the request frames a server receives into a {@link TFileTransport} log, for {@link TTrafficReplayer} to
+ * replay later. Frames are copied and queued on the server's thread and written by a background thread. When the
+ * queue is full, frames are dropped rather than slowing down the server.
+ *
+ * @see org.apache.thrift.server.AbstractNonblockingServer.AbstractNonblockingServerArgs#trafficCapture(TTrafficCapture)
+ */
+public class TTrafficCapture {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TTrafficCapture.class.getName());
+
+    public static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+
+    /**
+     * Largest frame that fits into a single event of the log. Larger frames are dropped.
+     */
+    public static final int MAX_FRAME_SIZE = TFileTransport.ChunkState.DEFAULT_CHUNK_SIZE - 4 - TTrafficRecord.HEADER_SIZE;
+
+    private final TFileTransport file_;
+    private final BlockingQueue<TTrafficRecord> queue_;
+    private final Thread writer_;
+    private final AtomicLong captured_ = new AtomicLong();
+    private final AtomicLong dropped_ = new AtomicLong();
+    private final AtomicLong oversized_ = new AtomicLong();
+    // enqueue calls that may still add to the queue, which the writer waits for once closed
+    private final AtomicInteger enqueuing_ = new AtomicInteger();
+    private volatile boolean closed_ = false;
+
+    // turns System.nanoTime() into nanoseconds since the epoch
+    private final long epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    public TTrafficCapture(String path) throws TTransportException {
+        this(path, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Starts a capture into the given file, replacing its contents.
+     *
+     * @param queueSize
+     *            number of records that may wait to be written before further ones are dropped
+     */
+    public TTrafficCapture(String path, int queueSize) throws TTransportException {
+        try {
+            new File(path).createNewFile();
+            file_ = new TFileTransport(path, false);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, iox);
+        }
+        file_.open();
+        queue_ = new ArrayBlockingQueue<TTrafficRecord>(queueSize);
+        writer_ = new Thread("TTrafficCapture " + path) {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        };
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    /**
+     * Captures a request frame.
+     *
+     * @param frame
+     *            the frame, without its size prefix
+     */
+    public void captureFrame(long connectionId, byte[] frame, int off, int len) {
+        if (len > MAX_FRAME_SIZE) {
+            oversized_.incrementAndGet();
+            return;
+        }
+        byte[] copy = new byte[len];
+        System.arraycopy(frame, off, copy, 0, len);
+        enqueue(new TTrafficRecord(TTrafficRecord.FRAME, now(), connectionId, copy));
+    }
+
+    /**
+     * Captures the closing of a connection.
+     */
+    public void captureClose(long connectionId) {
+        enqueue(new TTrafficRecord(TTrafficRecord.CLOSE, now(), connectionId, null));
+    }
+
+    private long now() {
+        return System.nanoTime() + epochOffsetNanos;
+    }
+
+    private void enqueue(TTrafficRecord record) {
+        enqueuing_.incrementAndGet();
+        try {
+            if (!closed_ && queue_.offer(record)) {
+                captured_.incrementAndGet();
+            } else {
+                dropped_.incrementAndGet();
+            }
+        } finally {
+            enqueuing_.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of records queued for writing.
+     */
+    public long getCapturedCount() {
+        return captured_.get();
+    }
+
+    /**
+     * Number of records dropped because the queue was full or the capture closed.
+     */
+    public long getDroppedCount() {
+        return dropped_.get();
+    }
+
+    /**
+     * Number of frames dropped because they were larger than {@link #MAX_FRAME_SIZE}.
+     */
+    public long getOversizedCount() {
+        return oversized_.get();
+    }
+
+    /**
+     * Stops capturing, writes the records still queued and closes the file.
+     */
+    public void close() {
+        closed_ = true;
+        writer_.interrupt();
+        try {
+            writer_.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            // an enqueue that started before closed_ was set may still add a record
+            while (!closed_ || enqueuing_.get() != 0 || !queue_.isEmpty()) {
+                TTrafficRecord record;
+                try {
+                    record = queue_.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (record == null) {
+                    continue;
+                }
+                // write whatever else is queued before flushing
+                do {
+                    record.write(file_);
+                } while ((record = queue_.poll()) != null);
+                file_.flush();
+            }
+        } catch (TTransportException e) {
+            // records are checked to fit into a chunk when captured, so this is a failure of the file itself
+            LOGGER.error("Traffic capture failed, no further records are written", e);
+            closed_ = true;
+        } finally {
+            file_.close();
+            discardQueued();
+        }
+    }
+
+    /**
+     * Counts the records that could not be written as dropped.
+     */
+    private void discardQueued() {
+        while (enqueuing_.get() != 0 || !queue_.isEmpty()) {
+            if (queue_.poll() != null) {
+                captured_.decrementAndGet();
+                dropped_.incrementAndGet();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
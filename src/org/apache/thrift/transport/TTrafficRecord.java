@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A request frame or connection close captured by {@link TTrafficCapture}. Records are stored as
+ * {@link TFileTransport} events: a one byte type, the capture time and the connection id as big endian longs, the
+ * frame length as a big endian int, and the frame without its size prefix.
+ */
+public final class TTrafficRecord {
+
+    public static final byte FRAME = 1;
+    public static final byte CLOSE = 2;
+
+    static final int HEADER_SIZE = 1 + 8 + 8 + 4;
+
+    private static final byte[] NO_FRAME = new byte[0];
+
+    private final byte type;
+    private final long timestampNanos;
+    private final long connectionId;
+    private final byte[] frame;
+
+    public TTrafficRecord(byte type, long timestampNanos, long connectionId, byte[] frame) {
+        this.type = type;
+        this.timestampNanos = timestampNanos;
+        this.connectionId = connectionId;
+        this.frame = frame == null ? NO_FRAME : frame;
+    }
+
+    /**
+     * {@link #FRAME} or {@link #CLOSE}.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * When the record was captured, in nanoseconds since the epoch. Only the differences between records are exact.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Identifies the client connection, unique within a capture.
+     */
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * The request frame without its size prefix, empty for {@link #CLOSE} records.
+     */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Writes the record as a single event.
+     */
+    public void write(TFileTransport out) throws TTransportException {
+        byte[] event = new byte[HEADER_SIZE + frame.length];
+        ByteBuffer.wrap(event).put(type).putLong(timestampNanos).putLong(connectionId).putInt(frame.length).put(frame);
+        out.writeEvent(event, 0, event.length);
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the record, or null at the end of the file
+     */
+    public static TTrafficRecord read(TFileTransport in) throws TTransportException {
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            in.readAll(header, 0, HEADER_SIZE);
+        } catch (TTransportException e) {
+            if (e.getType() == TTransportException.END_OF_FILE) {
+                return null;
+            }
+            throw e;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        byte type = buf.get();
+        long timestampNanos = buf.getLong();
+        long connectionId = buf.getLong();
+        int length = buf.getInt();
+        if (length < 0) {
+            throw new TTransportException("Corrupt traffic record with a frame of " + length + " bytes");
+        }
+        byte[] frame = new byte[length];
+        in.readAll(frame, 0, length);
+        return new TTrafficRecord(type, timestampNanos, connectionId, frame);
+    }
+
+    @Override
+    public String toString() {
+        return "TTrafficRecord(" + (type == FRAME ? "frame" : type == CLOSE ? "close" : "type " + type) + ", connection "
+                + connectionId + ", " + frame.length + " bytes)";
+    }
+}
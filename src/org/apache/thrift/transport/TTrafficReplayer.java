@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a log written by {@link TTrafficCapture} against a server using framed transport. Every captured connection
+ * is replayed on its own connection and thread, so the original concurrency is kept, and frames are sent at their
+ * original pace, a multiple of it, or as fast as the server answers. The log is read by a single thread that hands
+ * frames to the connections without waiting for them, so frames of a connection that lags behind, because the server
+ * answers it slowly, are buffered in memory rather than holding up the other connections. The frames buffered across
+ * all connections are bounded by {@link #maxBufferedBytes(int)}; once the bound is hit the reader waits for the
+ * connections to catch up.
+ */
+public class TTrafficReplayer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TTrafficReplayer.class.getName());
+
+    private static final TTrafficRecord END = new TTrafficRecord(TTrafficRecord.CLOSE, 0, -1, null);
+
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    private final String path_;
+    private final String host_;
+    private final int port_;
+    private double speed_ = 1.0;
+    private int timeout_ = 0;
+    private TProtocolFactory protocolFactory_ = new TBinaryProtocol.Factory();
+    private Set<String> onewayMethods_ = new HashSet<String>();
+    private int maxBufferedBytes_ = DEFAULT_MAX_BUFFERED_BYTES;
+
+    private final AtomicLong calls_ = new AtomicLong();
+    private final AtomicLong onewayCalls_ = new AtomicLong();
+    private final AtomicLong errors_ = new AtomicLong();
+    private final AtomicLong latencyNanos_ = new AtomicLong();
+    private final AtomicLong lateNanos_ = new AtomicLong();
+
+    private long firstTimestamp_;
+    private long startNanos_;
+    private Semaphore buffered_;
+    private volatile long peakBufferedBytes_;
+
+    public TTrafficReplayer(String path, String host, int port) {
+        path_ = path;
+        host_ = host;
+        port_ = port;
+    }
+
+    /**
+     * Sets the replay speed: 1, the default, replays at the captured pace, 2 twice as fast, and 0 sends every frame as
+     * soon as the response to the previous one on its connection has arrived.
+     */
+    public TTrafficReplayer speed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Negative speed: " + speed);
+        }
+        speed_ = speed;
+        return this;
+    }
+
+    /**
+     * Socket timeout in milliseconds, 0 for none.
+     */
+    public TTrafficReplayer timeout(int timeout) {
+        timeout_ = timeout;
+        return this;
+    }
+
+    /**
+     * The protocol the frames were written with, used to tell oneway calls, which get no response. Defaults to the
+     * binary protocol.
+     */
+    public TTrafficReplayer protocolFactory(TProtocolFactory protocolFactory) {
+        protocolFactory_ = protocolFactory;
+        return this;
+    }
+
+    /**
+     * Names of the oneway methods of the service. Generated clients send oneway calls as ordinary calls, so only calls
+     * with the oneway message type are recognized without this.
+     */
+    public TTrafficReplayer onewayMethods(String... methodNames) {
+        onewayMethods_ = new HashSet<String>(Arrays.asList(methodNames));
+        return this;
+    }
+
+    /**
+     * Bounds the bytes of frames read from the log but not yet sent, across all connections. A frame larger than the
+     * bound is read once nothing else is buffered. Defaults to {@link #DEFAULT_MAX_BUFFERED_BYTES}.
+     */
+    public TTrafficReplayer maxBufferedBytes(int maxBufferedBytes) {
+        if (maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("Buffer bound must be positive: " + maxBufferedBytes);
+        }
+        maxBufferedBytes_ = maxBufferedBytes;
+        return this;
+    }
+
+    /**
+     * Replays the whole log, returning once every connection has finished.
+     */
+    public void replay() throws TException {
+        buffered_ = new Semaphore(maxBufferedBytes_);
+        peakBufferedBytes_ = 0;
+        TFileTransport file = new TFileTransport(openFile(), true);
+        file.open();
+        Map<Long, Connection> connections = new HashMap<Long, Connection>();
+        List<Connection> started = new ArrayList<Connection>();
+        try {
+            TTrafficRecord record;
+            boolean first = true;
+            while ((record = TTrafficRecord.read(file)) != null) {
+                if (first) {
+                    firstTimestamp_ = record.getTimestampNanos();
+                    startNanos_ = System.nanoTime();
+                    first = false;
+                }
+                Connection connection = connections.get(record.getConnectionId());
+                if (connection == null) {
+                    if (record.getType() == TTrafficRecord.CLOSE) {
+                        continue;
+                    }
+                    connection = new Connection(record.getConnectionId());
+                    connections.put(record.getConnectionId(), connection);
+                    started.add(connection);
+                    connection.start();
+                }
+                reserve(record);
+                connection.enqueue(record);
+                if (record.getType() == TTrafficRecord.CLOSE) {
+                    connections.remove(record.getConnectionId());
+                }
+            }
+        } finally {
+            file.close();
+            for (Connection connection : connections.values()) {
+                connection.enqueue(END);
+            }
+            for (Connection connection : started) {
+                try {
+                    connection.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the record fits into the buffer bound.
+     */
+    private void reserve(TTrafficRecord record) throws TTransportException {
+        int weight = weight(record);
+        if (weight == 0) {
+            return;
+        }
+        try {
+            buffered_.acquire(weight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException("Interrupted while replaying " + path_);
+        }
+        long buffered = maxBufferedBytes_ - buffered_.availablePermits();
+        if (buffered > peakBufferedBytes_) {
+            peakBufferedBytes_ = buffered;
+        }
+    }
+
+    private int weight(TTrafficRecord record) {
+        return record.getFrame() == null ? 0 : Math.min(record.getFrame().length, maxBufferedBytes_);
+    }
+
+    private TSeekableFile openFile() throws TTransportException {
+        try {
+            return new TStandardFile(path_);
+        } catch (IOException iox) {
+            throw new TTransportException(TTransportException.NOT_OPEN, iox);
+        }
+    }
+
+    /**
+     * Number of two-way calls that got a response.
+     */
+    public long getCallCount() {
+        return calls_.get();
+    }
+
+    public long getOnewayCallCount() {
+        return onewayCalls_.get();
+    }
+
+    /**
+     * Number of frames that could not be sent or got no response.
+     */
+    public long getErrorCount() {
+        return errors_.get();
+    }
+
+    /**
+     * Mean time from sending a frame until its response arrived.
+     */
+    public double getMeanLatencyNanos() {
+        long calls = calls_.get();
+        return calls == 0 ? 0 : (double) latencyNanos_.get() / calls;
+    }
+
+    /**
+     * Mean time frames were sent after their scheduled time, because the previous call on their connection had not
+     * completed yet. Grows when the server is slower than it was during the capture.
+     */
+    public double getMeanLatenessNanos() {
+        long frames = calls_.get() + onewayCalls_.get() + errors_.get();
+        return frames == 0 ? 0 : (double) lateNanos_.get() / frames;
+    }
+
+    /**
+     * Most bytes of frames that were buffered at once during the last replay.
+     */
+    public long getPeakBufferedBytes() {
+        return peakBufferedBytes_;
+    }
+
+    private class Connection extends Thread {
+        private final BlockingQueue<TTrafficRecord> queue_ = new LinkedBlockingQueue<TTrafficRecord>();
+        private final byte[] size_ = new byte[4];
+        private byte[] response_ = new byte[1024];
+        private TSocket socket_;
+
+        Connection(long connectionId) {
+            super("TTrafficReplayer connection " + connectionId);
+            setDaemon(true);
+        }
+
+        void enqueue(TTrafficRecord record) {
+            // the reader already reserved room for the record, this never blocks it
+            queue_.offer(record);
+        }
+
+        @Override
+        public void run() {
+            try {
+                TTrafficRecord record;
+                while ((record = queue_.take()).getType() == TTrafficRecord.FRAME) {
+                    try {
+                        replay(record);
+                    } finally {
+                        buffered_.release(weight(record));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop replaying this connection
+            } finally {
+                closeSocket();
+            }
+        }
+
+        private void replay(TTrafficRecord record) {
+            if (speed_ != 0) {
+                long scheduled = startNanos_ + (long) ((record.getTimestampNanos() - firstTimestamp_) / speed_);
+                long now;
+                while ((now = System.nanoTime()) < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                }
+                lateNanos_.addAndGet(now - scheduled);
+            }
+
+            byte[] frame = record.getFrame();
+            try {
+                if (socket_ == null) {
+                    socket_ = new TSocket(host_, port_, timeout_);
+                    socket_.open();
+                }
+                long start = System.nanoTime();
+                TFramedTransport.encodeFrameSize(frame.length, size_);
+                socket_.write(size_, 0, 4);
+                socket_.write(frame, 0, frame.length);
+                socket_.flush();
+                if (isOneway(frame)) {
+                    onewayCalls_.incrementAndGet();
+                    return;
+                }
+                socket_.readAll(size_, 0, 4);
+                int size = TFramedTransport.decodeFrameSize(size_);
+                if (size > response_.length) {
+                    response_ = new byte[size];
+                }
+                socket_.readAll(response_, 0, size);
+                latencyNanos_.addAndGet(System.nanoTime() - start);
+                calls_.incrementAndGet();
+            } catch (TTransportException e) {
+                LOGGER.warn("Replaying a frame on " + getName() + " failed, reconnecting for the next one", e);
+                errors_.incrementAndGet();
+                closeSocket();
+            }
+        }
+
+        private boolean isOneway(byte[] frame) {
+            try {
+                TMessage message = protocolFactory_.getProtocol(new TMemoryInputTransport(frame)).readMessageBegin();
+                return message.type == TMessageType.ONEWAY || onewayMethods_.contains(message.name);
+            } catch (TException e) {
+                return false;
+            }
+        }
+
+        private void closeSocket() {
+            if (socket_ != null) {
+                socket_.close();
+                socket_ = null;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: TTrafficReplayer <file> <host> <port> [speed [oneway methods...]]");
+            System.err.println("       (speed 1 replays at the captured pace, 0 as fast as possible)");
+            System.exit(1);
+        }
+        TTrafficReplayer replayer = new TTrafficReplayer(args[0], args[1], Integer.parseInt(args[2]));
+        if (args.length > 3) {
+            replayer.speed(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            replayer.onewayMethods(Arrays.copyOfRange(args, 4, args.length));
+        }
+        long start = System.nanoTime();
+        replayer.replay();
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Replayed " + replayer.getCallCount() + " calls and " + replayer.getOnewayCallCount()
+                + " oneway calls in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, " + replayer.getErrorCount()
+                + " errors, mean latency " + (long) replayer.getMeanLatencyNanos() / 1000 + " us, mean lateness "
+                + (long) replayer.getMeanLatenessNanos() / 1000 + " us");
+    }
+}
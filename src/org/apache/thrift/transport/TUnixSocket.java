@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking transport over a unix domain socket, the same-host counterpart of {@link TSocket}. Requires Java 16 or
+ * later at runtime.
+ *
+ * Reads from a unix domain socket channel can not time out, so unlike {@link TSocket} there is no timeout.
+ */
+public class TUnixSocket extends TIOStreamTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TUnixSocket.class.getName());
+
+    /**
+     * Wrapped channel
+     */
+    private SocketChannel channel_ = null;
+
+    /**
+     * Path of the socket file
+     */
+    private String path_ = null;
+
+    /**
+     * Constructor that takes an already connected channel, as accepted by {@link TUnixServerSocket}.
+     *
+     * @throws TTransportException
+     *             if there is an error setting up the streams
+     */
+    public TUnixSocket(SocketChannel channel) throws TTransportException {
+        channel_ = channel;
+        if (isOpen()) {
+            openStreams();
+        }
+    }
+
+    /**
+     * Creates a new unconnected socket that will connect to the socket file at the given path.
+     */
+    public TUnixSocket(String path) {
+        path_ = path;
+    }
+
+    /**
+     * Returns a reference to the underlying channel.
+     */
+    public SocketChannel getSocketChannel() {
+        return channel_;
+    }
+
+    /**
+     * Checks whether the socket is connected.
+     */
+    @Override
+    public boolean isOpen() {
+        return channel_ != null && channel_.isOpen() && channel_.isConnected();
+    }
+
+    /**
+     * Connects the socket.
+     */
+    @Override
+    public void open() throws TTransportException {
+        if (isOpen()) {
+            throw new TTransportException(TTransportException.ALREADY_OPEN, "Socket already connected.");
+        }
+        if (path_ == null || path_.length() == 0) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Cannot open null path.");
+        }
+        try {
+            channel_ = UnixDomainSockets.openChannel();
+            channel_.connect(UnixDomainSockets.address(path_));
+        } catch (IOException iox) {
+            close();
+            throw new TTransportException(TTransportException.NOT_OPEN, iox);
+        }
+        openStreams();
+    }
+
+    private void openStreams() {
+        // the channel streams of Channels.newInputStream() and newOutputStream() share a lock, which would keep a
+        // write from proceeding while a read blocks
+        inputStream_ = new BufferedInputStream(new ChannelInputStream(channel_), 1024);
+        outputStream_ = new BufferedOutputStream(new ChannelOutputStream(channel_), 1024);
+    }
+
+    /**
+     * Closes the socket.
+     */
+    @Override
+    public void close() {
+        // Close the underlying streams
+        super.close();
+
+        if (channel_ != null) {
+            try {
+                channel_.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Could not close socket.", iox);
+            }
+            channel_ = null;
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel_;
+
+        ChannelInputStream(SocketChannel channel) {
+            channel_ = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel_.read(ByteBuffer.wrap(buf, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel_.close();
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel_;
+
+        ChannelOutputStream(SocketChannel channel) {
+            channel_ = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+            while (bb.hasRemaining()) {
+                channel_.write(bb);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel_.close();
+        }
+    }
+}
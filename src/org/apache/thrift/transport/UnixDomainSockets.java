@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Unix domain socket support for the UDS transports. The channels and addresses are only available from Java 16 on
+ * while the library still builds for older releases, so they are looked up reflectively once.
+ */
+final class UnixDomainSockets {
+
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_CHANNEL;
+    private static final Method OPEN_SERVER_CHANNEL;
+
+    // file type bits of st_mode
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    static {
+        ProtocolFamily unix = null;
+        Method addressOf = null;
+        Method openChannel = null;
+        Method openServerChannel = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (Exception e) {
+            // not supported by this JVM
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_OF = addressOf;
+        OPEN_CHANNEL = openChannel;
+        OPEN_SERVER_CHANNEL = openServerChannel;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * Whether this JVM supports unix domain sockets.
+     */
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    static SocketAddress address(String path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, null, path);
+    }
+
+    static SocketChannel openChannel() throws IOException {
+        return (SocketChannel) invoke(OPEN_CHANNEL, null, UNIX);
+    }
+
+    /**
+     * Opens a server channel bound to the given path. A socket file left behind by a server that is gone is removed
+     * first.
+     *
+     * @throws IOException
+     *             if the path exists and is not a socket, or a server is still listening on it
+     */
+    static ServerSocketChannel openServerChannel(String path, int backlog) throws IOException {
+        removeStaleSocket(path);
+        ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, null, UNIX);
+        try {
+            channel.bind(address(path), backlog);
+            return channel;
+        } catch (IOException iox) {
+            channel.close();
+            throw iox;
+        }
+    }
+
+    private static void removeStaleSocket(String path) throws IOException {
+        Path file = Paths.get(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!isSocket(file, attributes)) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        SocketChannel probe = openChannel();
+        try {
+            probe.connect(address(path));
+        } catch (IOException iox) {
+            // nobody accepts connections on it any more
+            Files.deleteIfExists(file);
+            return;
+        } finally {
+            probe.close();
+        }
+        throw new IOException("A server is already listening on " + path);
+    }
+
+    private static boolean isSocket(Path file, BasicFileAttributes attributes) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException e) {
+            // sockets are neither regular files, directories nor links
+            return attributes.isOther();
+        } catch (IllegalArgumentException e) {
+            return attributes.isOther();
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object arg) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        }
+        try {
+            return method.invoke(target, arg);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestProcessFunctionReuse extends TestCase {
+
+    private static class RecordingHandler implements Calculator.Iface {
+        final List<Work> works = new ArrayList<Work>();
+
+        @Override
+        public void ping() {
+        }
+
+        @Override
+        public int add(int num1, int num2) {
+            return num1 + num2;
+        }
+
+        @Override
+        public int calculate(int logid, Work w) {
+            works.add(w);
+            return w.num1 * w.num2;
+        }
+
+        @Override
+        public void zip() {
+        }
+
+        @Override
+        public SharedStruct getStruct(int key) {
+            return new SharedStruct(key, "value");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ProcessFunction<Calculator.Iface, Calculator.calculate_args> calculateFunction(
+            Calculator.Processor<Calculator.Iface> processor) {
+        return (ProcessFunction<Calculator.Iface, Calculator.calculate_args>) processor.getProcessMapView().get(
+                "calculate");
+    }
+
+    public void testArgsInstanceIsKeptPerThread() throws Exception {
+        final ProcessFunction<Calculator.Iface, Calculator.calculate_args> fn = calculateFunction(
+                new Calculator.Processor<Calculator.Iface>(new RecordingHandler()));
+
+        assertNotSame(fn.getArgsInstance(), fn.getArgsInstance());
+
+        fn.setReuseArgs(true);
+        Calculator.calculate_args first = fn.getArgsInstance();
+        first.setLogid(7);
+        assertSame(first, fn.getArgsInstance());
+
+        final Calculator.calculate_args[] other = new Calculator.calculate_args[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                other[0] = fn.getArgsInstance();
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame(first, other[0]);
+    }
+
+    public void testNestedStructsAreRefilled() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        Calculator.Processor<Calculator.Iface> processor = new Calculator.Processor<Calculator.Iface>(handler);
+        processor.setReuseArgs(true);
+        assertTrue(calculateFunction(processor).isReuseArgs());
+
+        Work first = new Work(3, 10, Operation.MULTIPLY);
+        first.setComment("first");
+        assertEquals(30, call(processor, first));
+        Work second = new Work();
+        second.setNum2(5);
+        assertEquals(0, call(processor, second));
+
+        assertEquals(2, handler.works.size());
+        Work refilled = handler.works.get(1);
+        assertSame("the nested struct is read into again", handler.works.get(0), refilled);
+        assertEquals(second, refilled);
+        assertFalse(refilled.isSetOp());
+        assertFalse(refilled.isSetComment());
+
+        processor.setReuseArgs(false);
+        assertEquals(30, call(processor, first));
+        assertNotSame(refilled, handler.works.get(2));
+        assertEquals(first, handler.works.get(2));
+    }
+
+    private static int call(TProcessor processor, Work work) throws TException {
+        TMemoryBuffer request = new TMemoryBuffer(64);
+        TMemoryBuffer response = new TMemoryBuffer(64);
+        Calculator.Client client = new Calculator.Client(new TBinaryProtocol(response), new TBinaryProtocol(request));
+        client.send_calculate(1, work);
+        processor.process(new TBinaryProtocol(request), new TBinaryProtocol(response));
+        return client.recv_calculate();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class TestTBaseHelper extends TestCase {
+
+    /**
+     * The ordering compareTo(Set) had when it sorted copies of both sets.
+     */
+    private static int sortedCompare(Set<Integer> a, Set<Integer> b) {
+        if (a.size() != b.size()) {
+            return a.size() < b.size() ? -1 : 1;
+        }
+        Iterator<Integer> ia = new TreeSet<Integer>(a).iterator();
+        Iterator<Integer> ib = new TreeSet<Integer>(b).iterator();
+        while (ia.hasNext()) {
+            int c = ia.next().compareTo(ib.next());
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The ordering compareTo(Map) had when it sorted copies of both maps.
+     */
+    private static int sortedCompare(Map<Integer, String> a, Map<Integer, String> b) {
+        if (a.size() != b.size()) {
+            return a.size() < b.size() ? -1 : 1;
+        }
+        Iterator<Map.Entry<Integer, String>> ia = new TreeMap<Integer, String>(a).entrySet().iterator();
+        Iterator<Map.Entry<Integer, String>> ib = new TreeMap<Integer, String>(b).entrySet().iterator();
+        while (ia.hasNext()) {
+            Map.Entry<Integer, String> ea = ia.next();
+            Map.Entry<Integer, String> eb = ib.next();
+            int c = ea.getKey().compareTo(eb.getKey());
+            if (c != 0) {
+                return c;
+            }
+            c = ea.getValue().compareTo(eb.getValue());
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    public void testSetOrderingMatchesSortedWalk() {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            Set<Integer> a = new HashSet<Integer>();
+            Set<Integer> b = new HashSet<Integer>();
+            int size = random.nextInt(6);
+            while (a.size() < size) {
+                a.add(random.nextInt(10));
+            }
+            while (b.size() < size) {
+                b.add(random.nextInt(10));
+            }
+            assertEquals(a + " vs " + b, Integer.signum(sortedCompare(a, b)), Integer.signum(TBaseHelper.compareTo(a,
+                    b)));
+        }
+    }
+
+    public void testMapOrderingMatchesSortedWalk() {
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            Map<Integer, String> a = new HashMap<Integer, String>();
+            Map<Integer, String> b = new HashMap<Integer, String>();
+            int size = random.nextInt(5);
+            while (a.size() < size) {
+                a.put(random.nextInt(8), "v" + random.nextInt(3));
+            }
+            while (b.size() < size) {
+                b.put(random.nextInt(8), "v" + random.nextInt(3));
+            }
+            assertEquals(a + " vs " + b, Integer.signum(sortedCompare(a, b)), Integer.signum(TBaseHelper.compareTo(a,
+                    b)));
+        }
+    }
+
+    public void testBinaryElementsCompareByContent() {
+        Set<byte[]> a = new HashSet<byte[]>();
+        a.add(new byte[] { 1, 2 });
+        a.add(new byte[] { 3 });
+        Set<byte[]> b = new HashSet<byte[]>();
+        b.add(new byte[] { 3 });
+        b.add(new byte[] { 1, 2 });
+        assertEquals(0, TBaseHelper.compareTo(a, b));
+        b.remove(b.iterator().next());
+        b.add(new byte[] { 4 });
+        assertTrue(TBaseHelper.compareTo(a, b) != 0);
+        assertEquals(-Integer.signum(TBaseHelper.compareTo(a, b)), Integer.signum(TBaseHelper.compareTo(b, a)));
+
+        Map<byte[], Integer> ma = new HashMap<byte[], Integer>();
+        ma.put(new byte[] { 1 }, 1);
+        Map<byte[], Integer> mb = new HashMap<byte[], Integer>();
+        mb.put(new byte[] { 1 }, 2);
+        assertTrue(TBaseHelper.compareTo(ma, mb) < 0);
+    }
+
+    public void testNestedBinaryElementsCompareByContent() {
+        Set<List<byte[]>> a = new HashSet<List<byte[]>>();
+        a.add(Arrays.asList(new byte[] { 1, 2 }));
+        a.add(Arrays.asList(new byte[] { 3 }));
+        Set<List<byte[]>> b = new HashSet<List<byte[]>>();
+        b.add(Arrays.asList(new byte[] { 3 }));
+        b.add(Arrays.asList(new byte[] { 1, 2 }));
+        assertEquals(0, TBaseHelper.compareTo(a, b));
+        assertEquals(0, TBaseHelper.compareTo(b, a));
+
+        Map<List<byte[]>, Integer> ma = new HashMap<List<byte[]>, Integer>();
+        ma.put(Arrays.asList(new byte[] { 1 }), 1);
+        ma.put(Arrays.asList(new byte[] { 2 }), 2);
+        Map<List<byte[]>, Integer> mb = new HashMap<List<byte[]>, Integer>();
+        mb.put(Arrays.asList(new byte[] { 2 }), 2);
+        mb.put(Arrays.asList(new byte[] { 1 }), 1);
+        assertEquals(0, TBaseHelper.compareTo(ma, mb));
+        assertEquals(0, TBaseHelper.compareTo(mb, ma));
+        Map<List<byte[]>, Integer> mc = new HashMap<List<byte[]>, Integer>();
+        mc.put(Arrays.asList(new byte[] { 2 }), 2);
+        mc.put(Arrays.asList(new byte[] { 1 }), 3);
+        assertTrue(TBaseHelper.compareTo(ma, mc) < 0);
+        assertTrue(TBaseHelper.compareTo(mc, ma) > 0);
+    }
+
+    public void testNestedContainers() {
+        List<Set<Integer>> a = new ArrayList<Set<Integer>>();
+        a.add(new HashSet<Integer>(Arrays.asList(1, 2)));
+        List<Set<Integer>> b = new ArrayList<Set<Integer>>();
+        b.add(new HashSet<Integer>(Arrays.asList(1, 3)));
+        assertTrue(TBaseHelper.compareTo(a, b) < 0);
+        assertTrue(TBaseHelper.compareTo(b, a) > 0);
+        assertEquals(0, TBaseHelper.compareTo(a, a));
+    }
+}
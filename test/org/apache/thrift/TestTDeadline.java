@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.THeaderProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.THeaderTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.InvalidOperation;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTDeadline extends TestCase {
+
+    /**
+     * Remembers the deadline add was called under, and blocks its worker in calculate when asked to.
+     */
+    static class DeadlineHandler extends ServerTestHelper.Handler {
+        volatile TDeadline lastDeadline;
+        final CountDownLatch slowCallStarted = new CountDownLatch(1);
+
+        @Override
+        public int add(int num1, int num2) {
+            lastDeadline = TDeadline.current();
+            return super.add(num1, num2);
+        }
+
+        @Override
+        public int calculate(int logid, Work w) throws InvalidOperation {
+            if (logid < 0) {
+                slowCallStarted.countDown();
+                try {
+                    Thread.sleep(-logid);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.calculate(logid, w);
+        }
+    }
+
+    private static THeaderTransport frame(String timeout) throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        if (timeout != null) {
+            out.setWriteHeader(THeaderTransport.CLIENT_TIMEOUT_HEADER, timeout);
+        }
+        out.write(new byte[1]);
+        out.flush();
+        return new THeaderTransport(wire);
+    }
+
+    public void testReadCountsFromArrival() throws Exception {
+        // any nanoTime value is a valid arrival stamp, 0 and negative ones included
+        assertEquals(1500 * 1000000L, TDeadline.read(frame("1500"), 0).getDeadlineNanos());
+        assertEquals(-1000000L, TDeadline.read(frame("1"), -2000000L).getDeadlineNanos());
+
+        long before = System.nanoTime();
+        TDeadline deadline = TDeadline.read(frame("1500"));
+        assertTrue(deadline.getDeadlineNanos() >= before + 1500 * 1000000L);
+        assertTrue(deadline.getDeadlineNanos() <= System.nanoTime() + 1500 * 1000000L);
+        assertFalse(deadline.isExpired());
+        assertTrue(deadline.getRemainingMillis() <= 1500);
+    }
+
+    public void testReadWithoutTimeout() throws Exception {
+        assertNull(TDeadline.read(frame(null)));
+        assertNull(TDeadline.read(frame("0")));
+        assertNull(TDeadline.read(frame("-5")));
+        assertNull(TDeadline.read(frame("soon")));
+        assertNull(TDeadline.read(new TMemoryBuffer(16)));
+    }
+
+    public void testExpired() {
+        TDeadline deadline = TDeadline.after(System.nanoTime() - 5000000L, 1);
+        assertTrue(deadline.isExpired());
+        assertTrue(deadline.getRemainingNanos() < 0);
+        assertEquals(0, deadline.getRemainingMillis());
+    }
+
+    public void testCurrent() {
+        TDeadline deadline = TDeadline.after(System.nanoTime(), 1000);
+        TDeadline.setCurrent(deadline);
+        try {
+            assertSame(deadline, TDeadline.current());
+        } finally {
+            TDeadline.setCurrent(null);
+        }
+        assertNull(TDeadline.current());
+    }
+
+    public void testBlockingServer() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        DeadlineHandler handler = new DeadlineHandler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            THeaderTransport transport = new THeaderTransport(new TSocket("localhost", socket.getServerSocket()
+                    .getLocalPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new THeaderProtocol(transport));
+            transport.setClientTimeout(5000);
+            assertEquals(3, client.add(1, 2));
+            assertNotNull(handler.lastDeadline);
+            assertTrue(handler.lastDeadline.getRemainingMillis() <= 5000);
+            assertTrue(handler.lastDeadline.getRemainingMillis() > 4000);
+
+            // the deadline does not outlive its call
+            transport.setClientTimeout(0);
+            assertEquals(3, client.add(1, 2));
+            assertNull(handler.lastDeadline);
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+
+    public void testQueuedCallsPastTheirDeadlineAreDropped() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        final DeadlineHandler handler = new DeadlineHandler();
+        TServer server = new THsHaServer(new THsHaServer.Args(socket).workerThreads(1)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            // keep the only worker busy for 500ms
+            final THeaderTransport slowTransport = new THeaderTransport(new TSocket("localhost", socket.getPort()));
+            slowTransport.open();
+            final Exception[] slowError = new Exception[1];
+            Thread slow = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Calculator.Client client = new Calculator.Client(new THeaderProtocol(slowTransport));
+                        client.calculate(-500, ServerTestHelper.work(1, 1, Operation.ADD));
+                    } catch (Exception e) {
+                        slowError[0] = e;
+                    }
+                }
+            };
+            slow.start();
+            assertTrue(handler.slowCallStarted.await(10, TimeUnit.SECONDS));
+
+            THeaderTransport transport = new THeaderTransport(new TSocket("localhost", socket.getPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new THeaderProtocol(transport));
+            transport.setClientTimeout(100);
+            try {
+                client.add(1, 2);
+                fail("a call queued past its deadline was processed");
+            } catch (TApplicationException e) {
+                assertEquals(TApplicationException.INTERNAL_ERROR, e.getType());
+                assertEquals("Deadline exceeded before processing add", e.getMessage());
+            }
+            // add never ran
+            assertNull(handler.lastDeadline);
+
+            // the connection stays usable
+            transport.setClientTimeout(5000);
+            assertEquals(3, client.add(1, 2));
+            assertNotNull(handler.lastDeadline);
+            transport.close();
+
+            slow.join(10000);
+            assertNull(slowError[0]);
+            slowTransport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+
+    public void testAsyncClientSendsItsTimeout() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        DeadlineHandler handler = new DeadlineHandler();
+        TServer server = new TNonblockingServer(new TNonblockingServer.Args(socket)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        TAsyncClientManager manager = new TAsyncClientManager();
+        try {
+            Calculator.AsyncClient client = new Calculator.AsyncClient(new THeaderProtocol.Factory(), manager,
+                    new TNonblockingSocket("localhost", socket.getPort()));
+            for (int i = 0; i < 5; i++) {
+                Result<Calculator.AsyncClient.add_call> result = new Result<Calculator.AsyncClient.add_call>();
+                client.add(i, 1, result);
+                assertEquals(i + 1, result.get().getResult());
+                assertNull(handler.lastDeadline);
+            }
+
+            client.setTimeout(3000);
+            Result<Calculator.AsyncClient.add_call> result = new Result<Calculator.AsyncClient.add_call>();
+            client.add(2, 2, result);
+            assertEquals(4, result.get().getResult());
+            assertNotNull(handler.lastDeadline);
+            assertTrue(handler.lastDeadline.getRemainingMillis() <= 3000);
+
+            Result<Calculator.AsyncClient.getStruct_call> struct = new Result<Calculator.AsyncClient.getStruct_call>();
+            client.getStruct(7, struct);
+            assertEquals("value 7", struct.get().getResult().value);
+        } finally {
+            manager.stop();
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+
+    private static class Result<T> implements AsyncMethodCallback<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private T response;
+        private Exception error;
+
+        @Override
+        public void onComplete(T response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            this.error = exception;
+            done.countDown();
+        }
+
+        T get() throws Exception {
+            assertTrue("no response", done.await(10, TimeUnit.SECONDS));
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestTLatencyHistogram extends TestCase {
+
+    public void testPercentilesWithinPrecision() {
+        for (int bits : new int[] { 3, 6, TLatencyHistogram.DEFAULT_SIGNIFICANT_BITS }) {
+            TLatencyHistogram histogram = new TLatencyHistogram(bits);
+            Random random = new Random(bits);
+            long[] values = new long[10000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (long) Math.exp(random.nextDouble() * 25);
+                histogram.recordValue(values[i]);
+            }
+            Arrays.sort(values);
+            double precision = Math.pow(2, 1 - bits);
+            for (double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+                long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+                long reported = histogram.getValueAtPercentile(percentile);
+                assertTrue(bits + " bits p" + percentile + ": " + reported + " vs " + exact, reported >= exact
+                        && reported <= exact + Math.max(1, exact * precision));
+            }
+            assertEquals(values.length, histogram.getTotalCount());
+            assertEquals(values[0], histogram.getMin());
+            assertEquals(values[values.length - 1], histogram.getMax());
+        }
+    }
+
+    public void testSmallValuesAreExact() {
+        TLatencyHistogram histogram = new TLatencyHistogram(4);
+        for (int i = 0; i < 16; i++) {
+            histogram.recordValue(i);
+        }
+        assertEquals(7, histogram.getValueAtPercentile(50));
+        assertEquals(7.5, histogram.getMean());
+    }
+
+    public void testClampsOutOfRangeValues() {
+        TLatencyHistogram histogram = new TLatencyHistogram();
+        histogram.recordValue(-5);
+        histogram.recordValue(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(TLatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(TLatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    public void testCoordinatedOmissionCorrection() {
+        TLatencyHistogram histogram = new TLatencyHistogram();
+        histogram.recordValueWithExpectedInterval(1000, 100);
+        // the stalled request plus the 9 that should have been sent while it was outstanding
+        assertEquals(10, histogram.getTotalCount());
+        assertEquals(100, histogram.getMin());
+        assertEquals(550.0, histogram.getMean());
+    }
+
+    public void testAddMergesAndChecksPrecision() {
+        TLatencyHistogram a = new TLatencyHistogram();
+        TLatencyHistogram b = new TLatencyHistogram();
+        a.recordValue(10);
+        b.recordValue(5);
+        b.recordValue(20);
+        a.add(b);
+        assertEquals(3, a.getTotalCount());
+        assertEquals(5, a.getMin());
+        assertEquals(20, a.getMax());
+        a.add(new TLatencyHistogram());
+        assertEquals(5, a.getMin());
+        try {
+            a.add(new TLatencyHistogram(5));
+            fail("added histograms of different precision");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final TLatencyHistogram histogram = new TLatencyHistogram(6);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.recordValue(offset * 1000 + i % 1000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getTotalCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(3999, histogram.getMax());
+    }
+
+    public void testPercentileDistributionOutput() {
+        TLatencyHistogram histogram = new TLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordValue(i * 1000);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.outputPercentileDistribution(new PrintStream(bytes, true), 1000.0);
+        String out = bytes.toString();
+        assertTrue(out, out.startsWith("       Value     Percentile TotalCount 1/(1-Percentile)"));
+        assertTrue(out, out.contains("1000.000 1.000000000000       1000"));
+        assertTrue(out, out.contains("#[Max     =     1000.000, Total count    =         1000]"));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTSlowCallLog extends TestCase {
+
+    private Calculator.Processor<Calculator.Iface> processor;
+    private TMemoryBuffer request;
+    private TMemoryBuffer response;
+    private Calculator.Client client;
+    private int requestRead;
+
+    @Override
+    protected void setUp() throws Exception {
+        processor = ServerTestHelper.processor(new ServerTestHelper.Handler());
+        request = new TMemoryBuffer(64);
+        response = new TMemoryBuffer(64);
+        client = new Calculator.Client(new TBinaryProtocol(response), new TBinaryProtocol(request));
+    }
+
+    public void testRecordsCallsOverThreshold() throws Exception {
+        TSlowCallLog log = new TSlowCallLog(8, 0, TimeUnit.NANOSECONDS);
+        processor.setSlowCallLog(log);
+
+        assertEquals(5, calculate(new Work(2, 3, Operation.ADD)));
+        client.send_ping();
+        process();
+        client.recv_ping();
+
+        assertEquals(2, log.getSlowCallCount());
+        List<TSlowCallLog.Entry> entries = log.getEntries();
+        assertEquals(2, entries.size());
+        TSlowCallLog.Entry calc = entries.get(0);
+        assertEquals("calculate", calc.getMethodName());
+        assertEquals("ping", entries.get(1).getMethodName());
+        assertTrue(entries.get(1).getSeqid() > calc.getSeqid());
+        assertTrue(calc.getArgs(), calc.getArgs().contains("num2:3"));
+        assertEquals(Thread.currentThread().getName(), calc.getThreadName());
+        assertTrue(calc.getProcessNanos() >= 0);
+
+        // the raw bytes decode back to the same arguments
+        assertNotNull(calc.getArgsBytes());
+        assertFalse(calc.isArgsTruncated());
+        Calculator.calculate_args args = new Calculator.calculate_args();
+        args.read(new TBinaryProtocol(new TMemoryInputTransport(calc.getArgsBytes())));
+        assertEquals(new Work(2, 3, Operation.ADD), args.getW());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.dump(new PrintStream(out, true));
+        assertTrue(out.toString().contains("calculate seqid=" + calc.getSeqid()));
+
+        log.clear();
+        assertTrue(log.getEntries().isEmpty());
+        assertEquals(2, log.getSlowCallCount());
+    }
+
+    public void testThresholds() throws Exception {
+        TSlowCallLog log = new TSlowCallLog(8, 1, TimeUnit.HOURS);
+        processor.setSlowCallLog(log);
+        calculate(new Work(1, 1, Operation.ADD));
+        assertEquals(0, log.getSlowCallCount());
+
+        log.setThreshold("calculate", 0, TimeUnit.NANOSECONDS);
+        assertEquals(0, log.getThresholdNanos("calculate"));
+        assertEquals(TimeUnit.HOURS.toNanos(1), log.getThresholdNanos("ping"));
+        calculate(new Work(1, 1, Operation.ADD));
+        client.send_ping();
+        process();
+        client.recv_ping();
+        assertEquals(1, log.getSlowCallCount());
+        assertEquals("calculate", log.getEntries().get(0).getMethodName());
+
+        processor.setSlowCallLog(null);
+        calculate(new Work(1, 1, Operation.ADD));
+        assertEquals(1, log.getSlowCallCount());
+    }
+
+    public void testSamplingAndRingBuffer() throws Exception {
+        TSlowCallLog log = new TSlowCallLog(2, 0, TimeUnit.NANOSECONDS);
+        log.setSampleInterval(2);
+        processor.setSlowCallLog(log);
+        for (int i = 0; i < 8; i++) {
+            calculate(new Work(i, 1, Operation.ADD));
+        }
+        assertEquals(8, log.getSlowCallCount());
+        // calls 0, 2, 4 and 6 were sampled, the ring only keeps the last two
+        List<TSlowCallLog.Entry> entries = log.getEntries();
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).getArgs(), entries.get(0).getArgs().contains("num1:4"));
+        assertTrue(entries.get(1).getArgs(), entries.get(1).getArgs().contains("num1:6"));
+
+        try {
+            log.setSampleInterval(0);
+            fail("sample interval must be positive");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new TSlowCallLog(0, 0, TimeUnit.NANOSECONDS);
+            fail("capacity must be positive");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testTruncatesArgsBytes() throws Exception {
+        TSlowCallLog log = new TSlowCallLog(4, 0, TimeUnit.NANOSECONDS);
+        log.setMaxArgsBytes(4);
+        processor.setSlowCallLog(log);
+        Work work = new Work(1, 1, Operation.ADD);
+        work.setComment("a comment that is longer than four bytes");
+        calculate(work);
+
+        TSlowCallLog.Entry entry = log.getEntries().get(0);
+        assertTrue(entry.isArgsTruncated());
+        assertEquals(4, entry.getArgsBytes().length);
+        assertTrue(entry.toString().contains("truncated"));
+    }
+
+    private int calculate(Work work) throws TException {
+        client.send_calculate(1, work);
+        process();
+        return client.recv_calculate();
+    }
+
+    // serves the pending request from a buffer the slow call log can read the raw arguments from
+    private void process() throws TException {
+        byte[] bytes = Arrays.copyOfRange(request.getArray(), requestRead, request.length());
+        requestRead = request.length();
+        processor.process(new TBinaryProtocol(new TMemoryInputTransport(bytes)), new TBinaryProtocol(response));
+    }
+}
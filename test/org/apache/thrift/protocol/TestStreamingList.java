@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestStreamingList extends TestCase {
+
+    private static final TListElementWriter<Integer> I32_WRITER = new TListElementWriter<Integer>() {
+        @Override
+        public void write(TProtocol oprot, Integer element) throws TException {
+            oprot.writeI32(element);
+        }
+    };
+
+    private static final TProtocolFactory[] FACTORIES = { new TBinaryProtocol.Factory(), new TCompactProtocol.Factory(),
+            new TJSONProtocol.Factory() };
+
+    public void testStreamedListMatchesMaterializedList() throws Exception {
+        for (TProtocolFactory factory : FACTORIES) {
+            List<Integer> values = Arrays.asList(1, -2, 300000, Integer.MIN_VALUE);
+
+            TMemoryBuffer streamed = new TMemoryBuffer(64);
+            factory.getProtocol(streamed).writeList(TType.I32, values.size(), values.iterator(), I32_WRITER);
+
+            TMemoryBuffer classic = new TMemoryBuffer(64);
+            TProtocol oprot = factory.getProtocol(classic);
+            oprot.writeListBegin(new TList(TType.I32, values.size()));
+            for (int v : values) {
+                oprot.writeI32(v);
+            }
+            oprot.writeListEnd();
+
+            assertEquals(classic.toString("UTF-8"), streamed.toString("UTF-8"));
+
+            final List<Integer> read = new ArrayList<Integer>();
+            TList header = factory.getProtocol(streamed).readList(new TListElementReader() {
+                @Override
+                public void read(TProtocol iprot, TList list, int index) throws TException {
+                    assertEquals(read.size(), index);
+                    read.add(iprot.readI32());
+                }
+            });
+            assertEquals(TType.I32, header.elemType);
+            assertEquals(values, read);
+        }
+    }
+
+    public void testStructListReusesOneInstance() throws Exception {
+        for (TProtocolFactory factory : FACTORIES) {
+            List<Work> works = new ArrayList<Work>();
+            for (int i = 0; i < 10; i++) {
+                Work w = new Work(i, i * 2, Operation.ADD);
+                if (i % 3 == 0) {
+                    w.setComment("row " + i);
+                }
+                works.add(w);
+            }
+
+            TMemoryBuffer buf = new TMemoryBuffer(256);
+            factory.getProtocol(buf).writeStructList(works.size(), works.iterator());
+
+            final Work reused = new Work();
+            final List<Work> read = new ArrayList<Work>();
+            factory.getProtocol(buf).readStructList(reused, new TStructElementHandler<Work>() {
+                @Override
+                public void handle(Work element, int index) {
+                    assertSame(reused, element);
+                    read.add(new Work(element));
+                }
+            });
+            // optional fields left over from the previous element must not leak into the next one
+            assertEquals(works, read);
+        }
+    }
+
+    public void testSizeMismatchIsRejected() throws Exception {
+        List<Integer> values = Arrays.asList(1, 2, 3);
+        try {
+            new TBinaryProtocol(new TMemoryBuffer(16)).writeList(TType.I32, 2, values.iterator(), I32_WRITER);
+            fail("wrote more elements than declared");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+        try {
+            new TBinaryProtocol(new TMemoryBuffer(16)).writeList(TType.I32, 4, values.iterator(), I32_WRITER);
+            fail("wrote fewer elements than declared");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+    }
+
+    public void testStructListRejectsOtherElementTypes() throws Exception {
+        TMemoryBuffer buf = new TMemoryBuffer(16);
+        new TBinaryProtocol(buf).writeList(TType.I32, 1, Arrays.asList(7).iterator(), I32_WRITER);
+        try {
+            new TBinaryProtocol(buf).readStructList(new Work(), new TStructElementHandler<Work>() {
+                @Override
+                public void handle(Work element, int index) {
+                    fail("no struct should be handed out");
+                }
+            });
+            fail("read an i32 list as structs");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+
+public class TestTAutoDetectProtocol extends TestCase {
+
+    private static final TProtocolFactory[] CLIENT_FACTORIES = { new TBinaryProtocol.Factory(),
+            new TBinaryProtocol.Factory(false, false), new TCompactProtocol.Factory(), new TJSONProtocol.Factory() };
+
+    private static byte[] message(TProtocolFactory factory, int seqid) throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = factory.getProtocol(buffer);
+        for (int i = 0; i < 2; i++) {
+            out.writeMessageBegin(new TMessage("getStruct", TMessageType.CALL, seqid + i));
+            new SharedStruct(seqid + i, "value " + i).write(out);
+            out.writeMessageEnd();
+        }
+        return Arrays.copyOf(buffer.getArray(), buffer.length());
+    }
+
+    private static void readMessages(TProtocol in, int seqid) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            TMessage message = in.readMessageBegin();
+            assertEquals("getStruct", message.name);
+            assertEquals(seqid + i, message.seqid);
+            SharedStruct struct = new SharedStruct();
+            struct.read(in);
+            in.readMessageEnd();
+            assertEquals(new SharedStruct(seqid + i, "value " + i), struct);
+        }
+    }
+
+    public void testDetectsFromTransportBuffer() throws Exception {
+        for (TProtocolFactory factory : CLIENT_FACTORIES) {
+            detect(factory, new TMemoryInputTransport(message(factory, 5)));
+        }
+    }
+
+    public void testDetectsFromStream() throws Exception {
+        for (TProtocolFactory factory : CLIENT_FACTORIES) {
+            TMemoryBuffer buffer = new TMemoryBuffer(64);
+            buffer.write(message(factory, 5));
+            // TMemoryBuffer does not expose its buffer, so the first byte has to be read and pushed back
+            assertTrue(buffer.getBytesRemainingInBuffer() < 0);
+            detect(factory, buffer);
+        }
+    }
+
+    private void detect(TProtocolFactory factory, TTransport transport) throws Exception {
+        TAutoDetectProtocol in = (TAutoDetectProtocol) new TAutoDetectProtocol.Factory().getProtocol(transport);
+        assertNull(in.getDetectedProtocolFactory());
+        readMessages(in, 5);
+        assertEquals(factory.getClass(), in.getDetectedProtocolFactory().getClass());
+    }
+
+    public void testOutputAnswersInDetectedProtocol() throws Exception {
+        TAutoDetectProtocol.Factory factory = new TAutoDetectProtocol.Factory();
+        TAutoDetectProtocol in = (TAutoDetectProtocol) factory.getProtocol(new TMemoryInputTransport(message(
+                new TCompactProtocol.Factory(), 1)));
+        TMemoryBuffer response = new TMemoryBuffer(64);
+        TAutoDetectProtocol out = (TAutoDetectProtocol) factory.getProtocol(response);
+        out.setRequestProtocol(in);
+        readMessages(in, 1);
+
+        out.writeMessageBegin(new TMessage("getStruct", TMessageType.REPLY, 1));
+        out.writeMessageEnd();
+        assertSame(in.getDetectedProtocolFactory(), out.getDetectedProtocolFactory());
+        assertEquals(0x82, response.getArray()[0] & 0xff);
+    }
+
+    public void testOutputFallsBackBeforeDetection() throws Exception {
+        TAutoDetectProtocol.Factory factory = new TAutoDetectProtocol.Factory(null, new TCompactProtocol.Factory(),
+                new TJSONProtocol.Factory());
+        TAutoDetectProtocol in = (TAutoDetectProtocol) factory.getProtocol(new TMemoryInputTransport(message(
+                new TJSONProtocol.Factory(), 1)));
+        TMemoryBuffer response = new TMemoryBuffer(64);
+        TAutoDetectProtocol out = (TAutoDetectProtocol) factory.getProtocol(response);
+        out.setRequestProtocol(in);
+
+        // e.g. an error about a message that could not be read, in the first accepted protocol
+        out.writeMessageBegin(new TMessage("x", TMessageType.EXCEPTION, 0));
+        out.writeMessageEnd();
+        assertEquals(0x82, response.getArray()[0] & 0xff);
+        assertNull(out.getDetectedProtocolFactory());
+
+        // and the detected one once there is one
+        readMessages(in, 1);
+        out.writeMessageBegin(new TMessage("getStruct", TMessageType.REPLY, 1));
+        out.writeMessageEnd();
+        assertTrue(out.getDetectedProtocolFactory() instanceof TJSONProtocol.Factory);
+    }
+
+    public void testRejectedProtocols() throws Exception {
+        TAutoDetectProtocol.Factory factory = new TAutoDetectProtocol.Factory(new TBinaryProtocol.Factory(), null,
+                null);
+        readMessages(factory.getProtocol(new TMemoryInputTransport(message(new TBinaryProtocol.Factory(), 1))), 1);
+        for (TProtocolFactory client : new TProtocolFactory[] { new TCompactProtocol.Factory(),
+                new TJSONProtocol.Factory() }) {
+            try {
+                factory.getProtocol(new TMemoryInputTransport(message(client, 1))).readMessageBegin();
+                fail("accepted " + client.getClass().getName());
+            } catch (TProtocolException e) {
+                assertEquals(TProtocolException.NOT_IMPLEMENTED, e.getType());
+            }
+        }
+        try {
+            new TAutoDetectProtocol.Factory().getProtocol(new TMemoryInputTransport("GET / HTTP/1.1".getBytes()))
+                    .readMessageBegin();
+            fail("accepted an HTTP request");
+        } catch (TProtocolException e) {
+            assertEquals("Unsupported protocol, message starts with 0x47", e.getMessage());
+        }
+        try {
+            new TAutoDetectProtocol.Factory(null, null, null);
+            fail("accepted no protocol at all");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testThreadPoolServer() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)).protocolFactory(new TAutoDetectProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            for (TProtocolFactory factory : CLIENT_FACTORIES) {
+                TTransport transport = new TSocket("localhost", socket.getServerSocket().getLocalPort());
+                transport.open();
+                calls(new Calculator.Client(factory.getProtocol(transport)));
+                transport.close();
+            }
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(CLIENT_FACTORIES.length * 30, handler.calls.get());
+    }
+
+    public void testNonblockingServer() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)).protocolFactory(new TAutoDetectProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            // clients of different protocols connected at the same time
+            TTransport[] transports = new TTransport[CLIENT_FACTORIES.length];
+            Calculator.Client[] clients = new Calculator.Client[CLIENT_FACTORIES.length];
+            for (int c = 0; c < clients.length; c++) {
+                transports[c] = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+                transports[c].open();
+                clients[c] = new Calculator.Client(CLIENT_FACTORIES[c].getProtocol(transports[c]));
+            }
+            for (int c = 0; c < clients.length; c++) {
+                calls(clients[c]);
+            }
+            for (TTransport transport : transports) {
+                transport.close();
+            }
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(CLIENT_FACTORIES.length * 30, handler.calls.get());
+    }
+
+    private static void calls(Calculator.Client client) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, client.add(i, 1));
+            assertEquals(i * 3, client.calculate(i, ServerTestHelper.work(i, 3, Operation.MULTIPLY)));
+            assertEquals("value " + i, client.getStruct(i).value);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTColumnarProtocol extends TestCase {
+
+    private static final TProtocolFactory[] FACTORIES = { new TBinaryProtocol.Factory(), new TCompactProtocol.Factory(),
+            new TJSONProtocol.Factory() };
+
+    /**
+     * A struct with a field of every type, written and read the way generated code does.
+     */
+    static class Row {
+        boolean flag;
+        byte b;
+        short s;
+        int i;
+        long l;
+        double d;
+        String name;
+        ByteBuffer bin;
+        SharedStruct shared;
+        List<Integer> ints;
+        List<Work> works;
+
+        static Row make(int n) {
+            Row row = new Row();
+            row.flag = n % 2 == 0;
+            row.b = (byte) n;
+            row.s = (short) (n * 7);
+            row.i = n % 5 == 0 ? -n : n * 1000;
+            row.l = (long) n << 40;
+            row.d = n / 3.0;
+            row.name = n % 3 == 0 ? null : "name " + n % 4;
+            row.bin = ByteBuffer.wrap(new byte[] { (byte) n, 1, 2 });
+            row.shared = n % 4 == 0 ? null : new SharedStruct(n, "shared " + n);
+            row.ints = Arrays.asList(n, n + 1, n + 2);
+            row.works = new ArrayList<Work>();
+            for (int w = 0; w < n % 3; w++) {
+                row.works.add(new Work(n, w, Operation.ADD));
+            }
+            return row;
+        }
+
+        void write(TProtocol out) throws Exception {
+            out.writeStructBegin(new TStruct("Row"));
+            out.writeFieldBegin(new TField("flag", TType.BOOL, (short) 1));
+            out.writeBool(flag);
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("b", TType.BYTE, (short) 2));
+            out.writeByte(b);
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("s", TType.I16, (short) 3));
+            out.writeI16(s);
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("i", TType.I32, (short) 4));
+            out.writeI32(i);
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("l", TType.I64, (short) 5));
+            out.writeI64(l);
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("d", TType.DOUBLE, (short) 6));
+            out.writeDouble(d);
+            out.writeFieldEnd();
+            if (name != null) {
+                out.writeFieldBegin(new TField("name", TType.STRING, (short) 7));
+                out.writeString(name);
+                out.writeFieldEnd();
+            }
+            out.writeFieldBegin(new TField("bin", TType.STRING, (short) 8));
+            out.writeBinary(bin.duplicate());
+            out.writeFieldEnd();
+            if (shared != null) {
+                out.writeFieldBegin(new TField("shared", TType.STRUCT, (short) 9));
+                shared.write(out);
+                out.writeFieldEnd();
+            }
+            out.writeFieldBegin(new TField("ints", TType.LIST, (short) 10));
+            out.writeListBegin(new TList(TType.I32, ints.size()));
+            for (int v : ints) {
+                out.writeI32(v);
+            }
+            out.writeListEnd();
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("works", TType.LIST, (short) 11));
+            out.writeListBegin(new TList(TType.STRUCT, works.size()));
+            for (Work work : works) {
+                work.write(out);
+            }
+            out.writeListEnd();
+            out.writeFieldEnd();
+            out.writeFieldStop();
+            out.writeStructEnd();
+        }
+
+        static Row read(TProtocol in) throws Exception {
+            Row row = new Row();
+            in.readStructBegin();
+            while (true) {
+                TField field = in.readFieldBegin();
+                if (field.type == TType.STOP) {
+                    break;
+                }
+                switch (field.id) {
+                case 1:
+                    row.flag = in.readBool();
+                    break;
+                case 2:
+                    row.b = in.readByte();
+                    break;
+                case 3:
+                    row.s = in.readI16();
+                    break;
+                case 4:
+                    row.i = in.readI32();
+                    break;
+                case 5:
+                    row.l = in.readI64();
+                    break;
+                case 6:
+                    row.d = in.readDouble();
+                    break;
+                case 7:
+                    row.name = in.readString();
+                    break;
+                case 8:
+                    ByteBuffer bin = in.readBinary();
+                    row.bin = ByteBuffer.allocate(bin.remaining());
+                    row.bin.put(bin).flip();
+                    break;
+                case 9:
+                    row.shared = new SharedStruct();
+                    row.shared.read(in);
+                    break;
+                case 10:
+                    TList ints = in.readListBegin();
+                    row.ints = new ArrayList<Integer>();
+                    for (int i = 0; i < ints.size; i++) {
+                        row.ints.add(in.readI32());
+                    }
+                    in.readListEnd();
+                    break;
+                case 11:
+                    TList works = in.readListBegin();
+                    row.works = new ArrayList<Work>();
+                    for (int i = 0; i < works.size; i++) {
+                        Work work = new Work();
+                        work.read(in);
+                        row.works.add(work);
+                    }
+                    in.readListEnd();
+                    break;
+                default:
+                    TProtocolUtil.skip(in, field.type);
+                    break;
+                }
+                in.readFieldEnd();
+            }
+            in.readStructEnd();
+            return row;
+        }
+
+        void assertSame(Row other) {
+            assertEquals(flag, other.flag);
+            assertEquals(b, other.b);
+            assertEquals(s, other.s);
+            assertEquals(i, other.i);
+            assertEquals(l, other.l);
+            assertEquals(d, other.d, 0);
+            assertEquals(name, other.name);
+            assertEquals(bin, other.bin);
+            assertEquals(shared, other.shared);
+            assertEquals(ints, other.ints);
+            assertEquals(works, other.works);
+        }
+    }
+
+    private static List<Row> rows(int count) {
+        List<Row> rows = new ArrayList<Row>();
+        for (int n = 0; n < count; n++) {
+            rows.add(Row.make(n));
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the rows in a struct, between two other fields, as generated code writes a list field.
+     */
+    private static void writeTable(TProtocol out, List<Row> rows) throws Exception {
+        out.writeStructBegin(new TStruct("Table"));
+        out.writeFieldBegin(new TField("id", TType.I32, (short) 1));
+        out.writeI32(rows.size());
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("rows", TType.LIST, (short) 2));
+        out.writeListBegin(new TList(TType.STRUCT, rows.size()));
+        for (Row row : rows) {
+            row.write(out);
+        }
+        out.writeListEnd();
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("tail", TType.STRING, (short) 3));
+        out.writeString("tail");
+        out.writeFieldEnd();
+        out.writeFieldStop();
+        out.writeStructEnd();
+    }
+
+    private static void readTable(TProtocol in, List<Row> rows) throws Exception {
+        in.readStructBegin();
+        assertEquals(1, in.readFieldBegin().id);
+        assertEquals(rows.size(), in.readI32());
+        in.readFieldEnd();
+        assertEquals(2, in.readFieldBegin().id);
+        TList list = in.readListBegin();
+        assertEquals(TType.STRUCT, list.elemType);
+        assertEquals(rows.size(), list.size);
+        for (Row row : rows) {
+            row.assertSame(Row.read(in));
+        }
+        in.readListEnd();
+        in.readFieldEnd();
+        assertEquals(3, in.readFieldBegin().id);
+        assertEquals("tail", in.readString());
+        in.readFieldEnd();
+        assertEquals(TType.STOP, in.readFieldBegin().type);
+        in.readStructEnd();
+    }
+
+    public void testRoundTrip() throws Exception {
+        for (TProtocolFactory factory : FACTORIES) {
+            TMemoryBuffer buffer = new TMemoryBuffer(64);
+            TProtocolFactory columnar = new TColumnarProtocol.Factory(factory);
+            TProtocol out = columnar.getProtocol(buffer);
+            TProtocol in = columnar.getProtocol(buffer);
+            // the same protocols for several lists, empty ones and ones past a presence bitmap word
+            for (int count : new int[] { 1, 0, 200, 3, 1000 }) {
+                List<Row> rows = rows(count);
+                writeTable(out, rows);
+                readTable(in, rows);
+            }
+        }
+    }
+
+    public void testMessages() throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = new TColumnarProtocol(new TCompactProtocol(buffer));
+        List<Work> works = new ArrayList<Work>();
+        for (int i = 0; i < 100; i++) {
+            Work work = new Work(i, -i, Operation.findByValue(1 + i % 4));
+            if (i % 2 == 0) {
+                work.setComment("comment " + i % 3);
+            }
+            works.add(work);
+        }
+        out.writeMessageBegin(new TMessage("works", TMessageType.CALL, 3));
+        out.writeListBegin(new TList(TType.STRUCT, works.size()));
+        for (Work work : works) {
+            work.write(out);
+        }
+        out.writeListEnd();
+        out.writeMessageEnd();
+
+        TProtocol in = new TColumnarProtocol(new TCompactProtocol(buffer));
+        assertEquals(3, in.readMessageBegin().seqid);
+        TList list = in.readListBegin();
+        for (int i = 0; i < list.size; i++) {
+            Work work = new Work();
+            work.read(in);
+            assertEquals(works.get(i), work);
+        }
+        in.readListEnd();
+        in.readMessageEnd();
+    }
+
+    public void testColumnarListView() throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = new TColumnarProtocol(new TBinaryProtocol(buffer));
+        List<Row> rows = rows(300);
+        out.writeListBegin(new TList(TType.STRUCT, rows.size()));
+        for (Row row : rows) {
+            row.write(out);
+        }
+        out.writeListEnd();
+
+        TColumnarList list = new TColumnarProtocol(new TBinaryProtocol(buffer)).readColumnarList();
+        assertEquals(300, list.getRowCount());
+        assertEquals(11, list.getColumnCount());
+        for (int c = 0; c < list.getColumnCount(); c++) {
+            assertEquals(c + 1, list.getColumn(c).getFieldId());
+        }
+        assertNull(list.getColumnById((short) 12));
+
+        TColumnarList.Column name = list.getColumnById((short) 7);
+        assertEquals(TType.STRING, name.getType());
+        assertTrue(name.isDictionaryEncoded());
+        TColumnarList.Column bin = list.getColumnById((short) 8);
+        TColumnarList.Column shared = list.getColumnById((short) 9);
+        for (int n = 0; n < rows.size(); n++) {
+            Row row = rows.get(n);
+            assertEquals(row.flag, list.getColumnById((short) 1).getBool(n));
+            assertEquals(row.b, list.getColumnById((short) 2).getByte(n));
+            assertEquals(row.s, list.getColumnById((short) 3).getI16(n));
+            assertEquals(row.i, list.getColumnById((short) 4).getI32(n));
+            assertEquals(row.l, list.getColumnById((short) 5).getI64(n));
+            assertEquals(row.d, list.getColumnById((short) 6).getDouble(n), 0);
+            assertEquals(row.name != null, name.isSet(n));
+            assertEquals(row.name, name.getString(n));
+            assertEquals(row.bin, bin.getBinary(n));
+            assertEquals(row.shared != null, shared.isSet(n));
+        }
+    }
+
+    public void testDistinctStringsAreNotDictionaryEncoded() throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = new TColumnarProtocol(new TCompactProtocol(buffer));
+        int count = 5000;
+        out.writeListBegin(new TList(TType.STRUCT, count));
+        for (int i = 0; i < count; i++) {
+            new SharedStruct(i, "unique " + i).write(out);
+        }
+        out.writeListEnd();
+
+        TColumnarList list = new TColumnarProtocol(new TCompactProtocol(buffer)).readColumnarList();
+        TColumnarList.Column value = list.getColumnById((short) 2);
+        assertFalse(value.isDictionaryEncoded());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, list.getColumnById((short) 1).getI32(i));
+            assertEquals("unique " + i, value.getString(i));
+        }
+    }
+
+    public void testSmallerThanRowByRow() throws Exception {
+        int count = 10000;
+        TMemoryBuffer compact = new TMemoryBuffer(64);
+        TMemoryBuffer columnar = new TMemoryBuffer(64);
+        for (TProtocol out : new TProtocol[] { new TCompactProtocol(compact),
+                new TColumnarProtocol(new TCompactProtocol(columnar)) }) {
+            out.writeListBegin(new TList(TType.STRUCT, count));
+            for (int i = 0; i < count; i++) {
+                new Work(i, i % 10, Operation.findByValue(1 + i % 4)).write(out);
+            }
+            out.writeListEnd();
+        }
+        assertTrue(columnar.length() + " >= " + compact.length(), columnar.length() < compact.length());
+    }
+
+    public void testOtherValuesPassThrough() throws Exception {
+        for (TProtocolFactory factory : FACTORIES) {
+            TMemoryBuffer plain = new TMemoryBuffer(64);
+            TMemoryBuffer columnar = new TMemoryBuffer(64);
+            for (TProtocol out : new TProtocol[] { factory.getProtocol(plain),
+                    new TColumnarProtocol(factory.getProtocol(columnar)) }) {
+                out.writeMessageBegin(new TMessage("m", TMessageType.CALL, 1));
+                new Work(1, 2, Operation.ADD).write(out);
+                out.writeListBegin(new TList(TType.I32, 2));
+                out.writeI32(1);
+                out.writeI32(2);
+                out.writeListEnd();
+                out.writeMessageEnd();
+            }
+            assertTrue(Arrays.equals(Arrays.copyOf(plain.getArray(), plain.length()), Arrays.copyOf(
+                    columnar.getArray(), columnar.length())));
+        }
+    }
+
+    public void testInvalidWrites() throws Exception {
+        TProtocol out = new TColumnarProtocol(new TCompactProtocol(new TMemoryBuffer(64)));
+        out.writeListBegin(new TList(TType.STRUCT, 2));
+        new Work(1, 2, Operation.ADD).write(out);
+        try {
+            out.writeListEnd();
+            fail("wrote fewer rows than declared");
+        } catch (TProtocolException e) {
+            assertEquals("List declared 2 elements but 1 were written", e.getMessage());
+        }
+
+        out = new TColumnarProtocol(new TCompactProtocol(new TMemoryBuffer(64)));
+        out.writeListBegin(new TList(TType.STRUCT, 2));
+        new SharedStruct(1, "a").write(out);
+        out.writeStructBegin(new TStruct("Other"));
+        try {
+            out.writeFieldBegin(new TField("key", TType.STRING, (short) 1));
+            fail("changed the type of a field");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+
+        out = new TColumnarProtocol(new TCompactProtocol(new TMemoryBuffer(64)));
+        out.writeListBegin(new TList(TType.STRUCT, 1));
+        try {
+            out.writeI32(1);
+            fail("wrote a value outside of a row");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+    }
+
+    public void testReadColumnarListOfOtherElements() throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = new TColumnarProtocol(new TCompactProtocol(buffer));
+        out.writeListBegin(new TList(TType.I32, 1));
+        out.writeI32(1);
+        out.writeListEnd();
+        try {
+            new TColumnarProtocol(new TCompactProtocol(buffer)).readColumnarList();
+            fail("read a list of i32 as columns");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+    }
+
+    public void testCorruptBlock() throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        TProtocol out = new TBinaryProtocol(buffer);
+        out.writeListBegin(new TList(TType.STRUCT, 3));
+        out.writeBinary(ByteBuffer.wrap(new byte[] { 100, 1, 8 }));
+        out.writeListEnd();
+        try {
+            new TColumnarProtocol(new TBinaryProtocol(buffer)).readColumnarList();
+            fail("decoded a corrupt block");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.INVALID_DATA, e.getType());
+        }
+    }
+}
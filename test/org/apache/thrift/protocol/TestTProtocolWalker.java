@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTProtocolWalker extends TestCase {
+
+    /**
+     * Records every event as a short string.
+     */
+    private static class RecordingVisitor extends TProtocolVisitor {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void structBegin(Class<? extends TBase> structClass) {
+            events.add("struct " + (structClass == null ? "?" : structClass.getSimpleName()));
+        }
+
+        @Override
+        public boolean fieldBegin(TField field, FieldMetaData metaData) {
+            events.add("field " + field.id + (metaData == null ? "" : " " + metaData.fieldName));
+            return true;
+        }
+
+        @Override
+        public void visitI32(int i32) {
+            events.add("i32 " + i32);
+        }
+
+        @Override
+        public void visitBinary(ByteBuffer buf) {
+            events.add("binary " + buf.remaining());
+        }
+
+        @Override
+        public void structEnd() {
+            events.add("end");
+        }
+    }
+
+    public void testWalkWithAndWithoutSchema() throws Exception {
+        Work work = new Work(3, 4, Operation.MULTIPLY);
+        work.setComment("hi");
+        TMemoryBuffer buf = new TMemoryBuffer(64);
+        work.write(new TCompactProtocol(buf));
+        byte[] bytes = buf.getArray().clone();
+
+        RecordingVisitor named = new RecordingVisitor();
+        new TProtocolWalker().walkStruct(new TCompactProtocol(buf), Work.class, named);
+        assertEquals("[struct Work, field 1 num1, i32 3, field 2 num2, i32 4, field 3 op, i32 3, field 4 comment, "
+                + "binary 2, end]", named.events.toString());
+
+        TMemoryBuffer again = new TMemoryBuffer(64);
+        again.write(bytes);
+        RecordingVisitor anonymous = new RecordingVisitor();
+        new TProtocolWalker().walkStruct(new TCompactProtocol(again), anonymous);
+        assertEquals("[struct ?, field 1, i32 3, field 2, i32 4, field 3, i32 3, field 4, binary 2, end]",
+                anonymous.events.toString());
+    }
+
+    public void testSkippedFieldsAreConsumed() throws Exception {
+        Work work = new Work(1, 2, Operation.ADD);
+        work.setComment("skipped");
+        TMemoryBuffer buf = new TMemoryBuffer(64);
+        TBinaryProtocol prot = new TBinaryProtocol(buf);
+        work.write(prot);
+        prot.writeI32(42);
+
+        final List<Integer> seen = new ArrayList<Integer>();
+        new TProtocolWalker().walkStruct(prot, Work.class, new TProtocolVisitor() {
+            @Override
+            public boolean fieldBegin(TField field, FieldMetaData metaData) {
+                return field.id == 2;
+            }
+
+            @Override
+            public void visitI32(int i32) {
+                seen.add(i32);
+            }
+        });
+        assertEquals(1, seen.size());
+        assertEquals(2, seen.get(0).intValue());
+        // the walker stopped exactly at the end of the struct
+        assertEquals(42, prot.readI32());
+    }
+
+    public void testDefaultConstructorLimitsDepth() throws Exception {
+        // nested lists far deeper than the default limit, cheap to encode but deep enough to overflow the stack
+        int depth = 100000;
+        TMemoryBuffer buf = new TMemoryBuffer(depth * 2);
+        TCompactProtocol prot = new TCompactProtocol(buf);
+        for (int i = 0; i < depth; i++) {
+            prot.writeListBegin(new TList(TType.LIST, 1));
+        }
+        try {
+            new TProtocolWalker().walk(prot, TType.LIST, new TProtocolVisitor() {
+            });
+            fail("walked hostile nesting");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.DEPTH_LIMIT, e.getType());
+        }
+    }
+
+    public void testDefaultConstructorHonoursLowerSkipDepth() throws Exception {
+        Work work = new Work(1, 2, Operation.ADD);
+        TMemoryBuffer buf = new TMemoryBuffer(64);
+        TBinaryProtocol prot = new TBinaryProtocol(buf);
+        prot.writeListBegin(new TList(TType.STRUCT, 1));
+        work.write(prot);
+        prot.writeListEnd();
+
+        TProtocolUtil.setMaxSkipDepth(2);
+        try {
+            new TProtocolWalker().walk(prot, TType.LIST, new TProtocolVisitor() {
+            });
+            fail("walked deeper than the configured skip depth");
+        } catch (TProtocolException e) {
+            assertEquals(TProtocolException.DEPTH_LIMIT, e.getType());
+        } finally {
+            TProtocolUtil.setMaxSkipDepth(Integer.MAX_VALUE);
+        }
+    }
+}
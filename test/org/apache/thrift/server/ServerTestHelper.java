@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.minhtu.thrift.gen.shared.SharedStruct;
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.InvalidOperation;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+/**
+ * Helpers shared by the tests that run a real server on a loopback port.
+ */
+public final class ServerTestHelper {
+
+    private ServerTestHelper() {
+    }
+
+    /**
+     * Calculator that answers immediately, unlike the tutorial handler, and counts the calls it served.
+     */
+    public static class Handler implements Calculator.Iface {
+        public final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void ping() {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public int add(int num1, int num2) {
+            calls.incrementAndGet();
+            return num1 + num2;
+        }
+
+        @Override
+        public int calculate(int logid, Work w) throws InvalidOperation {
+            calls.incrementAndGet();
+            switch (w.op) {
+            case ADD:
+                return w.num1 + w.num2;
+            case SUBTRACT:
+                return w.num1 - w.num2;
+            case MULTIPLY:
+                return w.num1 * w.num2;
+            default:
+                if (w.num2 == 0) {
+                    throw new InvalidOperation(w.op.getValue(), "Cannot divide by 0");
+                }
+                return w.num1 / w.num2;
+            }
+        }
+
+        @Override
+        public void zip() {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public SharedStruct getStruct(int key) {
+            calls.incrementAndGet();
+            return new SharedStruct(key, "value " + key);
+        }
+    }
+
+    public static Calculator.Processor<Calculator.Iface> processor(Calculator.Iface handler) {
+        return new Calculator.Processor<Calculator.Iface>(handler);
+    }
+
+    public static Work work(int num1, int num2, Operation op) {
+        return new Work(num1, num2, op);
+    }
+
+    /**
+     * Runs the server on a new daemon thread and waits until it accepts connections.
+     */
+    public static Thread start(final TServer server) throws InterruptedException {
+        Thread thread = new Thread("test server") {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!server.isServing()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("server did not start");
+            }
+            Thread.sleep(10);
+        }
+        return thread;
+    }
+
+    public static void stop(TServer server, Thread thread) throws InterruptedException {
+        server.stop();
+        thread.join(10000);
+    }
+}
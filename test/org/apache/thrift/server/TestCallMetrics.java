@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TCallHistograms;
+import org.apache.thrift.TCallTimings.Phase;
+import org.apache.thrift.TLatencyHistogram;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+
+public class TestCallMetrics extends TestCase {
+
+    private static final int CALLS = 25;
+
+    public void testThreadPoolServerReportsPhases() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        TCallHistograms metrics = new TCallHistograms();
+        TThreadPoolServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(
+                ServerTestHelper.processor(new ServerTestHelper.Handler())).transportFactory(
+                new TFramedTransport.Factory()).metrics(metrics));
+        runCalls(server, socket.getServerSocket().getLocalPort(), metrics);
+
+        // a blocking server does not see the frame being read
+        assertNull(nonEmpty(metrics.getHistogram("add", Phase.READ)));
+    }
+
+    public void testNonblockingServerReportsPhases() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        TCallHistograms metrics = new TCallHistograms();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(new ServerTestHelper.Handler())).metrics(metrics));
+        runCalls(server, socket.getPort(), metrics);
+
+        assertNotNull(nonEmpty(metrics.getHistogram("add", Phase.READ)));
+        assertNotNull(nonEmpty(metrics.getHistogram("add", Phase.WRITE)));
+    }
+
+    public void testServerWithoutMetricsStillServes() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TTransport transport = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            transport.open();
+            assertEquals(3, new Calculator.Client(new TBinaryProtocol(transport)).add(1, 2));
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(1, handler.calls.get());
+    }
+
+    private static void runCalls(TServer server, int port, TCallHistograms metrics) throws Exception {
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TTransport transport = new TFramedTransport(new TSocket("localhost", port));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+            for (int i = 0; i < CALLS; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals(2 * i, client.calculate(i, ServerTestHelper.work(i, 2, Operation.MULTIPLY)));
+            }
+            transport.close();
+
+            // the nonblocking servers report a call once its response has been written, which can be after the client
+            // has read it
+            long deadline = System.currentTimeMillis() + 5000;
+            while (count(metrics, "calculate") < CALLS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+
+        assertTrue(metrics.getMethodNames().contains("add"));
+        assertTrue(metrics.getMethodNames().contains("calculate"));
+        assertEquals(CALLS, metrics.getHistogram("add", Phase.TOTAL).getTotalCount());
+        assertEquals(CALLS, count(metrics, "calculate"));
+        for (Phase phase : new Phase[] { Phase.DECODE, Phase.HANDLER, Phase.ENCODE }) {
+            TLatencyHistogram histogram = metrics.getHistogram("calculate", phase);
+            assertTrue(phase.name(), histogram.getTotalCount() > 0);
+            assertTrue(phase.name(), histogram.getMax() <= metrics.getHistogram("calculate", Phase.TOTAL).getMax());
+        }
+        assertNull(metrics.getHistogram("ping", Phase.TOTAL));
+        assertTrue(metrics.toString().contains("calculate total: count=" + CALLS));
+    }
+
+    private static long count(TCallHistograms metrics, String method) {
+        TLatencyHistogram histogram = metrics.getHistogram(method, Phase.TOTAL);
+        return histogram == null ? 0 : histogram.getTotalCount();
+    }
+
+    private static TLatencyHistogram nonEmpty(TLatencyHistogram histogram) {
+        return histogram != null && histogram.getTotalCount() > 0 ? histogram : null;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TCallTimings;
+import org.apache.thrift.TCallTimings.Phase;
+import org.apache.thrift.TEventRecorder;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+
+public class TestEventRecorder extends TestCase {
+
+    private static class Recorder extends TEventRecorder {
+        final List<String> serverCalls = new CopyOnWriteArrayList<String>();
+        final List<String> clientCalls = new CopyOnWriteArrayList<String>();
+        final List<String> asyncCalls = new CopyOnWriteArrayList<String>();
+        volatile int selectLoops;
+
+        @Override
+        public void serverCallCompleted(TCallTimings timings) {
+            assertTrue(timings.getNanos(Phase.READ) > 0);
+            assertTrue(timings.getNanos(Phase.TOTAL) >= timings.getNanos(Phase.HANDLER));
+            serverCalls.add(timings.getMethodName());
+        }
+
+        @Override
+        public void clientSendCompleted(String methodName, int seqid, long startNanos, long endNanos) {
+            assertTrue(endNanos - startNanos >= 0);
+            clientCalls.add("send " + methodName);
+        }
+
+        @Override
+        public void clientReceiveCompleted(String methodName, int seqid, long startNanos, long endNanos,
+                boolean success) {
+            clientCalls.add("receive " + methodName + " " + success);
+        }
+
+        @Override
+        public void asyncCallCompleted(String methodName, long sequenceId, long startNanos, long requestSentNanos,
+                long endNanos, int requestBytes, int responseBytes, Exception error) {
+            assertTrue(requestBytes > 0 && responseBytes > 0);
+            asyncCalls.add(methodName + " " + (error == null));
+        }
+
+        @Override
+        public void selectCompleted(String threadName, int selectedKeys, long selectStartNanos, long selectEndNanos,
+                long processEndNanos) {
+            selectLoops++;
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        TEventRecorder.setInstance(null);
+    }
+
+    public void testServerAndClientEvents() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        Recorder recorder = new Recorder();
+        try {
+            TTransport transport = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+
+            // nothing is timed until a recorder is installed
+            assertEquals(2, client.add(1, 1));
+            TEventRecorder.setInstance(recorder);
+            // the selector samples the recorder once per pass, so this call may still go untimed
+            assertEquals(3, client.add(1, 2));
+            assertEquals(4, client.add(1, 3));
+            client.ping();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!recorder.serverCalls.contains("ping") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            int recorded = recorder.serverCalls.size();
+            TEventRecorder.setInstance(null);
+            assertEquals(5, client.add(1, 4));
+            transport.close();
+            Thread.sleep(100);
+            assertEquals(recorded, recorder.serverCalls.size());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+
+        assertTrue(recorder.serverCalls.toString(), recorder.serverCalls.contains("ping"));
+        assertTrue(recorder.serverCalls.contains("add"));
+        assertTrue(recorder.serverCalls.size() <= 3);
+        assertEquals("[send add, receive add true, send add, receive add true, send ping, receive ping true]",
+                recorder.clientCalls.toString());
+        assertTrue(recorder.selectLoops > 0);
+        assertEquals(5, handler.calls.get());
+    }
+
+    public void testAsyncClientEvents() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(new ServerTestHelper.Handler())));
+        Thread thread = ServerTestHelper.start(server);
+        Recorder recorder = new Recorder();
+        TEventRecorder.setInstance(recorder);
+        TAsyncClientManager manager = new TAsyncClientManager();
+        try {
+            Calculator.AsyncClient client = new Calculator.AsyncClient(new TBinaryProtocol.Factory(), manager,
+                    new TNonblockingSocket("localhost", socket.getPort()));
+            final CountDownLatch done = new CountDownLatch(1);
+            client.add(20, 22, new AsyncMethodCallback<Calculator.AsyncClient.add_call>() {
+                @Override
+                public void onComplete(Calculator.AsyncClient.add_call response) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(Exception exception) {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            waitFor(recorder.asyncCalls, 1);
+        } finally {
+            manager.stop();
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals("[add true]", recorder.asyncCalls.toString());
+    }
+
+    private static void waitFor(List<String> events, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
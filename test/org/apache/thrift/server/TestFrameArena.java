@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+
+public class TestFrameArena extends TestCase {
+
+    public void testReusesArrayUpToLimit() {
+        FrameArena arena = new FrameArena(1024, false);
+        ByteBuffer first = arena.allocate(100);
+        assertEquals(100, first.capacity());
+        arena.release(first);
+        ByteBuffer second = arena.allocate(50);
+        assertEquals(50, second.capacity());
+        assertSame(first.array(), second.array());
+        assertEquals(100, arena.retainedBytes());
+
+        arena.release(second);
+        ByteBuffer big = arena.allocate(4096);
+        assertNotSame(first.array(), big.array());
+        // frames above the limit are not kept around
+        assertEquals(100, arena.retainedBytes());
+    }
+
+    public void testLeakDetectionNeverReuses() {
+        FrameArena arena = new FrameArena(1024, true);
+        ByteBuffer first = arena.allocate(16);
+        arena.release(first);
+        ByteBuffer second = arena.allocate(16);
+        assertNotSame(first.array(), second.array());
+        assertEquals(0, arena.retainedBytes());
+    }
+
+    public void testNoLeakReportedWhenHandlerKeepsNothing() throws Exception {
+        assertEquals(0, leaksDetected(new BinaryProcessor(false)));
+    }
+
+    public void testLeakReportedWhenHandlerRetainsBinary() throws Exception {
+        BinaryProcessor processor = new BinaryProcessor(true);
+        assertTrue(leaksDetected(processor) > 0);
+        assertEquals(5, processor.retained.size());
+    }
+
+    public void testFramedTransportCopiesUnlessAsked() throws Exception {
+        TMemoryBuffer framed = new TMemoryBuffer(16);
+        TFramedTransport writer = new TFramedTransport(framed);
+        writer.write(new byte[] { 1, 2, 3 });
+        writer.flush();
+        byte[] wire = new byte[framed.length()];
+        framed.read(wire, 0, wire.length);
+
+        TFramedTransport copying = new TFramedTransport(new TMemoryInputTransport(wire));
+        byte[] out = new byte[3];
+        copying.readAll(out, 0, 3);
+        assertNotSame(wire, copying.getBuffer());
+
+        TFramedTransport inPlace = new TFramedTransport(new TMemoryInputTransport(wire));
+        inPlace.setReadInPlace(true);
+        inPlace.readAll(out, 0, 3);
+        assertSame(wire, inPlace.getBuffer());
+        assertEquals(3, out[2]);
+    }
+
+    public void testServerWithArena() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)).frameArenaMaxBytes(1024));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TFramedTransport transport = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals("value " + i, client.getStruct(i).value);
+                assertEquals(i * 3, client.calculate(i, ServerTestHelper.work(i, 3, Operation.MULTIPLY)));
+            }
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(60, handler.calls.get());
+    }
+
+    /**
+     * Sends five calls carrying a binary value with a full collection between them, and returns how many retained
+     * frames the server reported.
+     */
+    private static long leaksDetected(TProcessor processor) throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(processor)
+                .frameArenaLeakDetection(true));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TFramedTransport transport = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            transport.open();
+            TBinaryProtocol protocol = new TBinaryProtocol(transport);
+            for (int i = 0; i < 5; i++) {
+                protocol.writeMessageBegin(new TMessage("echo", TMessageType.CALL, i));
+                protocol.writeBinary(ByteBuffer.wrap(new byte[] { 1, 2, 3, (byte) i }));
+                protocol.writeMessageEnd();
+                transport.flush();
+                assertEquals(i, protocol.readMessageBegin().seqid);
+                assertEquals(4, protocol.readI32());
+                protocol.readMessageEnd();
+                System.gc();
+            }
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        return server.getFrameLeaksDetected();
+    }
+
+    /**
+     * Reads one binary value per message and answers with its length, optionally holding on to the value.
+     */
+    private static class BinaryProcessor implements TProcessor {
+        final List<ByteBuffer> retained = new CopyOnWriteArrayList<ByteBuffer>();
+        private final boolean retain;
+
+        BinaryProcessor(boolean retain) {
+            this.retain = retain;
+        }
+
+        @Override
+        public boolean process(TProtocol in, TProtocol out) throws TException {
+            TMessage message = in.readMessageBegin();
+            ByteBuffer value = in.readBinary();
+            in.readMessageEnd();
+            if (retain) {
+                retained.add(value);
+            }
+            out.writeMessageBegin(new TMessage(message.name, TMessageType.REPLY, message.seqid));
+            out.writeI32(value.remaining());
+            out.writeMessageEnd();
+            out.getTransport().flush();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestTAsyncFileWriter extends TestCase {
+
+    private static final int CHUNK_SIZE = 256;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("async", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testConcurrentWritersKeepEveryEvent() throws Exception {
+        final int threads = 4;
+        final int events = 500;
+        // a small queue makes writers wait for each other
+        final TAsyncFileWriter writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.NEVER, 16,
+                CHUNK_SIZE);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> started = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    TFileTransport transport = new TFileTransport(writer);
+                    try {
+                        for (int i = 0; i < events; i++) {
+                            transport.write(event(id, i));
+                            transport.flush();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        writer.close();
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertFalse(writer.isOpen());
+        assertEquals(threads * events, writer.getWrittenCount());
+        assertEquals(file.length(), writer.getBytesWritten());
+        assertEquals(0, writer.getSyncCount());
+
+        // every thread's events are there, in order, and none spans a chunk
+        int[] next = new int[threads];
+        for (ByteBuffer event : readEvents()) {
+            int id = event.get();
+            assertEquals(next[id]++, event.getInt());
+            assertEquals(event.capacity(), eventLength(event.getInt(1)));
+        }
+        for (int t = 0; t < threads; t++) {
+            assertEquals(events, next[t]);
+        }
+    }
+
+    public void testSync() throws Exception {
+        TAsyncFileWriter writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.NEVER, 16,
+                CHUNK_SIZE);
+        try {
+            for (int i = 0; i < 10; i++) {
+                byte[] event = event(0, i);
+                writer.append(event, 0, event.length);
+            }
+            writer.sync();
+            assertEquals(10, writer.getWrittenCount());
+            assertEquals(1, writer.getSyncCount());
+            assertEquals(writer.getBytesWritten(), file.length());
+            // nothing new to force
+            writer.sync();
+            assertEquals(1, writer.getSyncCount());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testSyncPolicies() throws Exception {
+        assertEquals("SyncPolicy(every 5 ms)", TAsyncFileWriter.SyncPolicy.every(5, TimeUnit.MILLISECONDS).toString());
+        assertEquals("SyncPolicy(every 10 bytes)", TAsyncFileWriter.SyncPolicy.everyBytes(10).toString());
+        try {
+            TAsyncFileWriter.SyncPolicy.everyBytes(0);
+            fail("sync interval must be positive");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        TAsyncFileWriter writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.every(5,
+                TimeUnit.MILLISECONDS), 16, CHUNK_SIZE);
+        try {
+            byte[] event = event(0, 0);
+            writer.append(event, 0, event.length);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (writer.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, writer.getSyncCount());
+        } finally {
+            writer.close();
+        }
+
+        writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.ALWAYS, 16, CHUNK_SIZE);
+        byte[] event = event(0, 1);
+        writer.append(event, 0, event.length);
+        writer.close();
+        assertTrue(writer.getSyncCount() >= 1);
+    }
+
+    public void testRejectedEvents() throws Exception {
+        TAsyncFileWriter writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.NEVER, 16,
+                CHUNK_SIZE);
+        byte[] big = new byte[CHUNK_SIZE - 3];
+        try {
+            writer.append(big, 0, big.length);
+            fail("the event does not fit into a chunk");
+        } catch (TTransportException expected) {
+        }
+        assertTrue(writer.append(big, 0, big.length - 1, 1, TimeUnit.SECONDS));
+        writer.close();
+        try {
+            writer.append(big, 0, 1);
+            fail("the writer is closed");
+        } catch (TTransportException expected) {
+            assertEquals(TTransportException.NOT_OPEN, expected.getType());
+        }
+        assertEquals(CHUNK_SIZE, file.length());
+    }
+
+    public void testAppendsToExistingFile() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            TAsyncFileWriter writer = new TAsyncFileWriter(file.getPath(), TAsyncFileWriter.SyncPolicy.ALWAYS, 16,
+                    CHUNK_SIZE);
+            for (int i = 0; i < 20; i++) {
+                byte[] event = event(0, round * 20 + i);
+                writer.append(event, 0, event.length);
+            }
+            writer.close();
+        }
+        List<ByteBuffer> events = readEvents();
+        assertEquals(60, events.size());
+        for (int i = 0; i < 60; i++) {
+            assertEquals(i, events.get(i).getInt(1));
+        }
+    }
+
+    // thread id, sequence number, and padding so events have different sizes
+    private static byte[] event(int id, int seq) {
+        byte[] event = new byte[eventLength(seq)];
+        ByteBuffer.wrap(event).put((byte) id).putInt(seq);
+        return event;
+    }
+
+    private static int eventLength(int seq) {
+        return 5 + seq % 40;
+    }
+
+    private List<ByteBuffer> readEvents() throws Exception {
+        List<ByteBuffer> events = new ArrayList<ByteBuffer>();
+        TMappedFileReader reader = new TMappedFileReader(file, CHUNK_SIZE);
+        try {
+            byte[] buf = new byte[CHUNK_SIZE];
+            for (int c = 0; c < reader.getNumChunks(); c++) {
+                TMappedFileReader.Chunk chunk = reader.getChunk(c);
+                while (chunk.hasMoreEvents()) {
+                    // a read never crosses the end of an event
+                    int n = chunk.read(buf, 0, buf.length);
+                    ByteBuffer event = ByteBuffer.allocate(n);
+                    event.put(buf, 0, n).flip();
+                    events.add(event);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+}
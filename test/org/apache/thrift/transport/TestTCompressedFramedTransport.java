@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTCompressedFramedTransport extends TestCase {
+
+    private static byte[] text(int length) {
+        byte[] data = new byte[length];
+        byte[] word = "compressible frame ".getBytes();
+        for (int i = 0; i < length; i++) {
+            data[i] = word[i % word.length];
+        }
+        return data;
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readFrame(TTransport transport, int length) throws TTransportException {
+        byte[] data = new byte[length];
+        transport.readAll(data, 0, length);
+        return data;
+    }
+
+    public void testSmallFrameIsNotCompressed() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        byte[] data = text(100);
+        out.write(data);
+        out.flush();
+
+        assertEquals(100, out.getBytesWritten());
+        assertEquals(4 + 1 + 100, out.getWireBytesWritten());
+        assertEquals(wire.length(), out.getWireBytesWritten());
+        assertEquals(TCompressedFramedTransport.FLAG_UNCOMPRESSED, wire.getArray()[4]);
+
+        TCompressedFramedTransport in = new TCompressedFramedTransport(wire);
+        assertTrue(Arrays.equals(data, readFrame(in, 100)));
+    }
+
+    public void testLargeFrameIsDeflated() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        byte[] data = text(50000);
+        // several writes end up in one frame
+        out.write(data, 0, 20000);
+        out.write(data, 20000, 30000);
+        out.flush();
+
+        assertEquals(50000, out.getBytesWritten());
+        assertTrue(out.getWireBytesWritten() < 5000);
+        assertEquals(wire.length(), out.getWireBytesWritten());
+        assertEquals(TCompressedFramedTransport.FLAG_DEFLATE, wire.getArray()[4]);
+
+        TCompressedFramedTransport in = new TCompressedFramedTransport(wire);
+        assertTrue(Arrays.equals(data, readFrame(in, 50000)));
+    }
+
+    public void testIncompressibleFrameIsSentAsIs() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        byte[] data = random(10000);
+        out.write(data);
+        out.flush();
+
+        assertEquals(4 + 1 + 10000, out.getWireBytesWritten());
+        assertEquals(TCompressedFramedTransport.FLAG_UNCOMPRESSED, wire.getArray()[4]);
+        assertTrue(Arrays.equals(data, readFrame(new TCompressedFramedTransport(wire), 10000)));
+    }
+
+    public void testManyFrames() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        TCompressedFramedTransport in = new TCompressedFramedTransport(wire);
+        for (int i = 0; i < 50; i++) {
+            // alternate compressed, incompressible and tiny frames, reusing the buffers of both sides
+            byte[] data = i % 3 == 0 ? text(2000 + i * 100) : i % 3 == 1 ? random(1100 + i * 10) : text(1);
+            out.write(data);
+            out.flush();
+            assertTrue(Arrays.equals(data, readFrame(in, data.length)));
+        }
+    }
+
+    public void testThresholdOnlyMattersToTheWriter() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire, 16, Deflater.BEST_COMPRESSION, null,
+                TCompressedFramedTransport.DEFAULT_MAX_LENGTH);
+        byte[] data = text(500);
+        out.write(data);
+        out.flush();
+        assertEquals(TCompressedFramedTransport.FLAG_DEFLATE, wire.getArray()[4]);
+
+        TCompressedFramedTransport in = new TCompressedFramedTransport(wire);
+        assertTrue(Arrays.equals(data, readFrame(in, 500)));
+    }
+
+    public void testDictionary() throws Exception {
+        byte[] dictionary = text(200);
+        TMemoryBuffer plain = new TMemoryBuffer(64);
+        TCompressedFramedTransport withoutDictionary = new TCompressedFramedTransport(plain, 16,
+                TCompressedFramedTransport.DEFAULT_LEVEL, null, TCompressedFramedTransport.DEFAULT_MAX_LENGTH);
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire, 16,
+                TCompressedFramedTransport.DEFAULT_LEVEL, dictionary, TCompressedFramedTransport.DEFAULT_MAX_LENGTH);
+        byte[] data = text(150);
+        withoutDictionary.write(data);
+        withoutDictionary.flush();
+        out.write(data);
+        out.flush();
+        assertTrue(out.getWireBytesWritten() < withoutDictionary.getWireBytesWritten());
+
+        TCompressedFramedTransport in = new TCompressedFramedTransport(wire, 16,
+                TCompressedFramedTransport.DEFAULT_LEVEL, dictionary, TCompressedFramedTransport.DEFAULT_MAX_LENGTH);
+        assertTrue(Arrays.equals(data, readFrame(in, 150)));
+    }
+
+    public void testMissingDictionary() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire, 16,
+                TCompressedFramedTransport.DEFAULT_LEVEL, text(200), TCompressedFramedTransport.DEFAULT_MAX_LENGTH);
+        out.write(text(150));
+        out.flush();
+        try {
+            readFrame(new TCompressedFramedTransport(wire), 150);
+            fail("read a frame without its dictionary");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("dictionary"));
+        }
+    }
+
+    public void testMaxLength() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        out.write(random(2000));
+        out.flush();
+        try {
+            readFrame(new TCompressedFramedTransport(wire, 1024, Deflater.BEST_SPEED, null, 1000), 2000);
+            fail("read a frame above the max length");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("max length"));
+        }
+    }
+
+    public void testMaxLengthAfterDecompression() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        out.write(text(100000));
+        out.flush();
+        assertTrue(out.getWireBytesWritten() < 10000);
+        try {
+            readFrame(new TCompressedFramedTransport(wire, 1024, Deflater.BEST_SPEED, null, 10000), 100000);
+            fail("inflated a frame above the max length");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Uncompressed frame size"));
+        }
+    }
+
+    public void testUnknownFlag() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        wire.write(new byte[] { 0, 0, 0, 2, 7, 0 });
+        try {
+            readFrame(new TCompressedFramedTransport(wire), 1);
+            fail("read a frame with an unknown flag");
+        } catch (TTransportException e) {
+            assertEquals("Unknown frame flag 7", e.getMessage());
+        }
+    }
+
+    public void testTruncatedCompressedFrame() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        TCompressedFramedTransport out = new TCompressedFramedTransport(wire);
+        out.write(text(5000));
+        out.flush();
+        byte[] frame = Arrays.copyOf(wire.getArray(), wire.length());
+        // declare more uncompressed bytes than the stream holds
+        frame[8] += 1;
+        TMemoryBuffer corrupt = new TMemoryBuffer(64);
+        corrupt.write(frame);
+        try {
+            readFrame(new TCompressedFramedTransport(corrupt), 5000);
+            fail("read a frame shorter than it declares");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("declares"));
+        }
+    }
+
+    public void testInvalidLevel() {
+        try {
+            new TCompressedFramedTransport(new TMemoryBuffer(16), 1024, 10, null, 1000);
+            fail("accepted compression level 10");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid compression level 10", e.getMessage());
+        }
+    }
+
+    public void testServer() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)).transportFactory(new TCompressedFramedTransport.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TCompressedFramedTransport transport = new TCompressedFramedTransport(new TSocket("localhost", socket
+                    .getServerSocket().getLocalPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+            StringBuilder comment = new StringBuilder();
+            while (comment.length() < 20000) {
+                comment.append("comment ");
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                Work work = ServerTestHelper.work(i, 2, Operation.MULTIPLY);
+                work.setComment(comment.toString());
+                assertEquals(i * 2, client.calculate(i, work));
+                assertEquals("value " + i, client.getStruct(i).value);
+            }
+            assertTrue(transport.getWireBytesWritten() < transport.getBytesWritten());
+            transport.close();
+            assertEquals(60, handler.calls.get());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.THeaderProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.ServerContext;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TServerEventHandler;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+
+public class TestTHeaderTransport extends TestCase {
+
+    /**
+     * Flips every bit of the payload, so a reader without it sees garbage.
+     */
+    static class InvertTransform implements THeaderTransform {
+        static final int ID = 0x20;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+
+        @Override
+        public int encode(byte[] buf, int off, int len, AutoExpandingBuffer out) {
+            out.resizeIfNecessary(len);
+            for (int i = 0; i < len; i++) {
+                out.array()[i] = (byte) ~buf[off + i];
+            }
+            return len;
+        }
+
+        @Override
+        public int decode(byte[] buf, int off, int len, AutoExpandingBuffer out) {
+            return encode(buf, off, len, out);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 31);
+        }
+        return data;
+    }
+
+    private static byte[] read(TTransport transport, int length) throws TTransportException {
+        byte[] data = new byte[length];
+        transport.readAll(data, 0, length);
+        return data;
+    }
+
+    public void testHeadersAndSequenceId() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.setSequenceId(42);
+        out.setProtocolId(THeaderTransport.PROTOCOL_COMPACT);
+        out.setWriteHeader("trace", "abc");
+        out.setWriteHeader("priority", "h\u00f6ch");
+        byte[] data = payload(100);
+        out.write(data);
+        out.flush();
+        assertTrue(out.getWriteHeaders().isEmpty());
+        out.write(data, 0, 10);
+        out.flush();
+
+        THeaderTransport in = new THeaderTransport(wire);
+        Map<String, String> headers = in.readHeaders();
+        assertEquals(2, headers.size());
+        assertEquals("abc", headers.get("trace"));
+        assertEquals("h\u00f6ch", headers.get("priority"));
+        assertEquals(42, in.getReadSequenceId());
+        assertEquals(THeaderTransport.PROTOCOL_COMPACT, in.getReadProtocolId());
+        assertEquals(0, in.getReadTransforms().length);
+        // the payload is still there, and reading headers again does not skip it
+        assertSame(headers, in.readHeaders());
+        assertTrue(Arrays.equals(data, read(in, 100)));
+
+        // headers only go with the frame they were set for
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 10), read(in, 10)));
+        assertTrue(in.getReadHeaders().isEmpty());
+    }
+
+    public void testClientTimeout() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.setClientTimeout(1500);
+        out.write(payload(1));
+        out.flush();
+        out.setWriteHeader(THeaderTransport.CLIENT_TIMEOUT_HEADER, "20");
+        out.write(payload(1));
+        out.flush();
+        out.setClientTimeout(0);
+        out.write(payload(1));
+        out.flush();
+
+        THeaderTransport in = new THeaderTransport(wire);
+        assertEquals("1500", in.readHeaders().get(THeaderTransport.CLIENT_TIMEOUT_HEADER));
+        read(in, 1);
+        assertEquals("20", in.readHeaders().get(THeaderTransport.CLIENT_TIMEOUT_HEADER));
+        assertEquals(1, in.getReadHeaders().size());
+        read(in, 1);
+        assertTrue(in.readHeaders().isEmpty());
+    }
+
+    public void testTransforms() throws Exception {
+        transforms(THeaderTransport.ZLIB_TRANSFORM);
+        transforms(THeaderTransport.CRC32_TRANSFORM);
+        transforms(THeaderTransport.ZLIB_TRANSFORM, THeaderTransport.CRC32_TRANSFORM);
+        transforms(THeaderTransport.CRC32_TRANSFORM, THeaderTransport.ZLIB_TRANSFORM);
+        transforms(InvertTransform.ID, THeaderTransport.ZLIB_TRANSFORM);
+    }
+
+    private void transforms(int... ids) throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.addTransform(new InvertTransform());
+        for (int id : ids) {
+            out.addWriteTransform(id);
+        }
+        THeaderTransport in = new THeaderTransport(wire);
+        in.addTransform(new InvertTransform());
+        // frames smaller and larger than the initial buffers, reusing the transforms
+        for (int length : new int[] { 0, 1, 5000, 200000, 17 }) {
+            byte[] data = payload(length);
+            out.setWriteHeader("length", Integer.toString(length));
+            out.write(data);
+            out.flush();
+            assertEquals(Integer.toString(length), in.readHeaders().get("length"));
+            assertTrue(Arrays.equals(ids, in.getReadTransforms()));
+            assertTrue(Arrays.equals(data, read(in, length)));
+        }
+        out.close();
+        in.close();
+    }
+
+    public void testZlibShrinksFrames() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.addWriteTransform(THeaderTransport.ZLIB_TRANSFORM);
+        out.write(payload(100000));
+        out.flush();
+        assertTrue(wire.length() < 10000);
+    }
+
+    public void testUnknownTransform() throws Exception {
+        THeaderTransport out = new THeaderTransport(new TMemoryBuffer(64));
+        try {
+            out.addWriteTransform(InvertTransform.ID);
+            fail("added an unregistered transform");
+        } catch (TTransportException e) {
+            assertEquals("Unknown header transform 32", e.getMessage());
+        }
+
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        out = new THeaderTransport(wire);
+        out.addTransform(new InvertTransform());
+        out.addWriteTransform(InvertTransform.ID);
+        out.write(payload(10));
+        out.flush();
+        try {
+            new THeaderTransport(wire).readHeaders();
+            fail("read a frame with an unregistered transform");
+        } catch (TTransportException e) {
+            assertEquals("Unknown header transform 32", e.getMessage());
+        }
+    }
+
+    public void testChecksumMismatch() throws Exception {
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.addWriteTransform(THeaderTransport.CRC32_TRANSFORM);
+        out.write(payload(100));
+        out.flush();
+        byte[] frame = Arrays.copyOf(wire.getArray(), wire.length());
+        frame[frame.length - 10]++;
+        THeaderTransport in = new THeaderTransport(new TMemoryInputTransport(frame));
+        try {
+            read(in, 100);
+            fail("read a corrupt frame");
+        } catch (TTransportException e) {
+            assertEquals("Payload checksum mismatch", e.getMessage());
+        }
+        // the stream is out of step after a bad frame
+        try {
+            read(in, 1);
+            fail("read past a corrupt frame");
+        } catch (TTransportException e) {
+            assertEquals("Payload checksum mismatch", e.getMessage());
+        }
+    }
+
+    public void testInvalidFrames() throws Exception {
+        try {
+            new THeaderTransport(new TMemoryInputTransport(new byte[] { 0, 0, 0, 10, (byte) 0x80, 1, 0, 1, 0, 0, 0,
+                    0, 0, 0 })).readHeaders();
+            fail("read a frame without the header magic");
+        } catch (TTransportException e) {
+            assertEquals("Not a header frame, magic 0x8001", e.getMessage());
+        }
+
+        TMemoryBuffer wire = new TMemoryBuffer(64);
+        THeaderTransport out = new THeaderTransport(wire);
+        out.write(payload(2000));
+        out.flush();
+        try {
+            new THeaderTransport(wire, 1000).readHeaders();
+            fail("read a frame above the max length");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("max length"));
+        }
+
+        wire = new TMemoryBuffer(64);
+        out = new THeaderTransport(wire);
+        out.addWriteTransform(THeaderTransport.ZLIB_TRANSFORM);
+        out.write(new byte[100000]);
+        out.flush();
+        assertTrue(wire.length() < 1000);
+        try {
+            new THeaderTransport(wire, 1000).readHeaders();
+            fail("inflated a frame above the max length");
+        } catch (TTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("max length"));
+        }
+    }
+
+    public void testServerMirrorsProtocolAndTransforms() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            mirror(socket.getServerSocket().getLocalPort());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+
+    public void testNonblockingServerMirrorsProtocolAndTransforms() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TNonblockingServer(new TNonblockingServer.Args(socket)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            mirror(socket.getPort());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+
+    private void mirror(int port) throws Exception {
+        int[][] transforms = { {}, { THeaderTransport.ZLIB_TRANSFORM },
+                { THeaderTransport.CRC32_TRANSFORM, THeaderTransport.ZLIB_TRANSFORM } };
+        int[] protocols = { THeaderTransport.PROTOCOL_BINARY, THeaderTransport.PROTOCOL_COMPACT,
+                THeaderTransport.PROTOCOL_JSON };
+        for (int p = 0; p < protocols.length; p++) {
+            THeaderTransport transport = new THeaderTransport(new TSocket("localhost", port));
+            for (int id : transforms[p]) {
+                transport.addWriteTransform(id);
+            }
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new THeaderProtocol(transport, protocols[p]));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals(protocols[p], transport.getReadProtocolId());
+                assertTrue(Arrays.equals(transforms[p], transport.getReadTransforms()));
+                assertEquals(i * 4, client.calculate(i, ServerTestHelper.work(i, 4, Operation.MULTIPLY)));
+                assertEquals("value " + i, client.getStruct(i).value);
+            }
+            transport.close();
+        }
+    }
+
+    public void testEventHandlerSeesHeaders() throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+                .processor(ServerTestHelper.processor(handler)).transportFactory(new THeaderTransport.Factory())
+                .protocolFactory(new THeaderProtocol.Factory()));
+        server.setServerEventHandler(new TServerEventHandler() {
+            @Override
+            public void preServe() {
+            }
+
+            @Override
+            public ServerContext createContext(TProtocol input, TProtocol output) {
+                return null;
+            }
+
+            @Override
+            public void deleteContext(ServerContext serverContext, TProtocol input, TProtocol output) {
+            }
+
+            @Override
+            public void processContext(ServerContext serverContext, TTransport inputTransport,
+                    TTransport outputTransport) {
+                try {
+                    String trace = ((THeaderTransport) inputTransport).readHeaders().get("trace");
+                    ((THeaderTransport) outputTransport).setWriteHeader("trace", trace + " served");
+                } catch (TTransportException e) {
+                    // the client went away
+                }
+            }
+        });
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            THeaderTransport transport = new THeaderTransport(new TSocket("localhost", socket.getServerSocket()
+                    .getLocalPort()));
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new THeaderProtocol(transport));
+            for (int i = 0; i < 10; i++) {
+                transport.setWriteHeader("trace", "t" + i);
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals("t" + i + " served", transport.getReadHeaders().get("trace"));
+            }
+            transport.close();
+            assertEquals(10, handler.calls.get());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.AbstractNonblockingServer;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TSSLTransportFactory.TSSLTransportParameters;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTNonblockingSSLSocket extends TestCase {
+
+    static TSSLTransportParameters params() {
+        TSSLTransportParameters params = new TSSLTransportParameters();
+        params.setKeyStore(System.getProperty("javax.net.ssl.keyStore", "test/.keystore"), "thrift");
+        params.setTrustStore(System.getProperty("javax.net.ssl.trustStore", "test/.truststore"), "thrift");
+        return params;
+    }
+
+    public void testNonblockingServer() throws Exception {
+        TNonblockingSSLServerSocket socket = TSSLTransportFactory.getNonblockingServerSocket(0, 10000, null, params());
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new TNonblockingServer(new TNonblockingServer.Args(socket).processor(ServerTestHelper
+                .processor(handler))), socket.getPort(), handler);
+    }
+
+    public void testHsHaServer() throws Exception {
+        TNonblockingSSLServerSocket socket = TSSLTransportFactory.getNonblockingServerSocket(0, 10000, null, params());
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new THsHaServer(new THsHaServer.Args(socket).workerThreads(2).processor(ServerTestHelper
+                .processor(handler))), socket.getPort(), handler);
+    }
+
+    public void testThreadedSelectorServer() throws Exception {
+        TNonblockingSSLServerSocket socket = TSSLTransportFactory.getNonblockingServerSocket(0, 10000, null, params());
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(socket).selectorThreads(2)
+                .workerThreads(2).processor(ServerTestHelper.processor(handler))), socket.getPort(), handler);
+    }
+
+    private void roundTrip(AbstractNonblockingServer server, int port, ServerTestHelper.Handler handler)
+            throws Exception {
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TSSLTransportParameters params = params();
+            // requests larger than a TLS record arrive in several records
+            StringBuilder comment = new StringBuilder();
+            while (comment.length() < 100000) {
+                comment.append("comment ");
+            }
+            for (int c = 0; c < 3; c++) {
+                TFramedTransport transport = new TFramedTransport(TSSLTransportFactory.getClientSocket("localhost",
+                        port, 10000, params));
+                Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(i + c, client.add(i, c));
+                    Work work = ServerTestHelper.work(i, 3, Operation.MULTIPLY);
+                    work.setComment(comment.toString());
+                    assertEquals(i * 3, client.calculate(i, work));
+                }
+                transport.close();
+            }
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(60, handler.calls.get());
+    }
+
+    public void testAsyncClient() throws Exception {
+        TSSLTransportParameters params = params();
+        TNonblockingSSLServerSocket socket = TSSLTransportFactory.getNonblockingServerSocket(0, 10000, null, params);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        TAsyncClientManager manager = new TAsyncClientManager();
+        try {
+            for (int c = 0; c < 2; c++) {
+                Calculator.AsyncClient client = new Calculator.AsyncClient(new TBinaryProtocol.Factory(), manager,
+                        TSSLTransportFactory.getNonblockingClientSocket("localhost", socket.getPort(), 10000, params));
+                for (int i = 0; i < 10; i++) {
+                    Result<Calculator.AsyncClient.add_call> result = new Result<Calculator.AsyncClient.add_call>();
+                    client.add(i, c, result);
+                    assertEquals(i + c, result.get().getResult());
+                }
+            }
+        } finally {
+            manager.stop();
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(20, handler.calls.get());
+    }
+
+    public void testContextFollowsSettings() throws Exception {
+        TSSLTransportParameters params = params();
+        SSLContext first = params.getSSLContext();
+        assertSame(first, params.getSSLContext());
+
+        params.setSessionCache(10, 30);
+        SSLContext second = params.getSSLContext();
+        assertNotSame(first, second);
+        assertEquals(30, second.getClientSessionContext().getSessionTimeout());
+        assertEquals(10, second.getServerSessionContext().getSessionCacheSize());
+
+        params.setTrustStore(System.getProperty("javax.net.ssl.trustStore", "test/.truststore"), "thrift");
+        assertNotSame(second, params.getSSLContext());
+
+        // a key store that can not be read is reported when the next transport is created
+        params.setKeyStore("does not exist", "thrift");
+        try {
+            params.getSSLContext();
+            fail("the key store does not exist");
+        } catch (TTransportException expected) {
+        }
+    }
+
+    private static class Result<T> implements AsyncMethodCallback<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private T response;
+        private Exception error;
+
+        @Override
+        public void onComplete(T response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            this.error = exception;
+            done.countDown();
+        }
+
+        T get() throws Exception {
+            assertTrue("no response", done.await(10, TimeUnit.SECONDS));
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+}
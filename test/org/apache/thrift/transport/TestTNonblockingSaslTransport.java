@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.AbstractNonblockingServer;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+
+public class TestTNonblockingSaslTransport extends TestCase {
+
+    private static TNonblockingSaslServerTransport saslServerTransport(TNonblockingServerTransport transport,
+            String qop) {
+        return new TNonblockingSaslServerTransport(transport, TestTSaslTransport.MECHANISM,
+                TestTSaslTransport.PROTOCOL, TestTSaslTransport.SERVER_NAME, TestTSaslTransport.props(qop),
+                new TestTSaslTransport.DigestCallbackHandler());
+    }
+
+    public void testNonblockingServer() throws Exception {
+        for (String qop : new String[] { "auth", "auth-int", "auth-conf" }) {
+            TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+            ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+            roundTrip(new TNonblockingServer(new TNonblockingServer.Args(saslServerTransport(socket, qop))
+                    .processor(ServerTestHelper.processor(handler))), qop, plain(socket.getPort()), handler);
+        }
+    }
+
+    public void testHsHaServer() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new THsHaServer(new THsHaServer.Args(saslServerTransport(socket, "auth-conf")).workerThreads(2)
+                .processor(ServerTestHelper.processor(handler))), "auth-conf", plain(socket.getPort()), handler);
+    }
+
+    public void testThreadedSelectorServer() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(saslServerTransport(socket, "auth"))
+                .selectorThreads(2).workerThreads(2).processor(ServerTestHelper.processor(handler))), "auth",
+                plain(socket.getPort()), handler);
+    }
+
+    public void testOverTls() throws Exception {
+        final TNonblockingSSLServerSocket socket = TSSLTransportFactory.getNonblockingServerSocket(0, 10000, null,
+                TestTNonblockingSSLSocket.params());
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        roundTrip(new TNonblockingServer(new TNonblockingServer.Args(saslServerTransport(socket, "auth"))
+                .processor(ServerTestHelper.processor(handler))), "auth", new Connector() {
+            @Override
+            public TTransport connect() throws TTransportException {
+                return TSSLTransportFactory.getClientSocket("localhost", socket.getPort(), 10000,
+                        TestTNonblockingSSLSocket.params());
+            }
+        }, handler);
+    }
+
+    public void testFailedNegotiation() throws Exception {
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(saslServerTransport(socket,
+                "auth")).processor(ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            // a health check that connects and goes away
+            new Socket("localhost", socket.getPort()).close();
+
+            final CallbackHandler valid = new TestTSaslTransport.DigestCallbackHandler();
+            CallbackHandler wrongPassword = new CallbackHandler() {
+                @Override
+                public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                    for (Callback callback : callbacks) {
+                        if (callback instanceof PasswordCallback) {
+                            ((PasswordCallback) callback).setPassword("wrong".toCharArray());
+                        } else {
+                            valid.handle(new Callback[] { callback });
+                        }
+                    }
+                }
+            };
+            TSaslClientTransport rejected = new TSaslClientTransport(TestTSaslTransport.MECHANISM, null,
+                    TestTSaslTransport.PROTOCOL, TestTSaslTransport.SERVER_NAME, TestTSaslTransport.props("auth"),
+                    wrongPassword, new TSocket("localhost", socket.getPort()));
+            try {
+                rejected.open();
+                fail("the password is wrong");
+            } catch (TTransportException expected) {
+            }
+
+            // the server keeps serving other clients
+            TSaslClientTransport transport = TestTSaslTransport.client("auth", new TSocket("localhost", socket
+                    .getPort()));
+            transport.open();
+            assertEquals(3, new Calculator.Client(new TBinaryProtocol(transport)).add(1, 2));
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(1, handler.calls.get());
+    }
+
+    private interface Connector {
+        TTransport connect() throws TTransportException;
+    }
+
+    private static Connector plain(final int port) {
+        return new Connector() {
+            @Override
+            public TTransport connect() {
+                return new TSocket("localhost", port);
+            }
+        };
+    }
+
+    private void roundTrip(AbstractNonblockingServer server, String qop, Connector connector,
+            ServerTestHelper.Handler handler) throws Exception {
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            for (int c = 0; c < 2; c++) {
+                TTransport socket = connector.connect();
+                TSaslClientTransport transport = TestTSaslTransport.client(qop, socket);
+                transport.open();
+                assertEquals(qop, transport.getSaslClient().getNegotiatedProperty(Sasl.QOP));
+                Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(i + c, client.add(i, c));
+                    assertEquals(i * 3, client.calculate(i, TestTSaslTransport.bigWork(i)));
+                }
+                transport.close();
+            }
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(40, handler.calls.get());
+    }
+}
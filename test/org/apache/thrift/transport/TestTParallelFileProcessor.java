@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+
+public class TestTParallelFileProcessor extends TestCase {
+
+    private static final int CHUNK_SIZE = 128;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("events", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testProcessesEveryChunk() throws Exception {
+        List<byte[]> events = addCalls(20);
+        write(events);
+        TMappedFileReader reader = new TMappedFileReader(file, CHUNK_SIZE);
+        assertTrue(reader.getNumChunks() > 2);
+
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            TParallelFileProcessor processor = new TParallelFileProcessor(ServerTestHelper.processor(handler),
+                    new TBinaryProtocol.Factory(), new TBinaryProtocol.Factory(), reader, pool);
+            processor.process();
+            assertEquals(20, processor.getCallCount());
+            assertEquals(20, handler.calls.get());
+            // a pool that was passed in stays usable
+            assertFalse(pool.isShutdown());
+            processor.processChunk(0);
+            assertTrue(processor.getCallCount() > 20);
+        } finally {
+            pool.shutdown();
+            reader.close();
+        }
+    }
+
+    public void testOwnPool() throws Exception {
+        write(addCalls(10));
+        TMappedFileReader reader = new TMappedFileReader(file, CHUNK_SIZE);
+        try {
+            ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+            TParallelFileProcessor processor = new TParallelFileProcessor(ServerTestHelper.processor(handler),
+                    new TBinaryProtocol.Factory(), reader);
+            processor.process();
+            processor.process();
+            assertEquals(20, handler.calls.get());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testEventCutOffAtEndOfFile() throws Exception {
+        List<byte[]> events = addCalls(20);
+        write(events);
+        // cut the file just after the size of the first event of the last chunk
+        TMappedFileReader whole = new TMappedFileReader(file, CHUNK_SIZE);
+        int lastChunk = whole.getNumChunks() - 1;
+        whole.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) lastChunk * CHUNK_SIZE + 4 + 2);
+        raf.close();
+
+        TMappedFileReader reader = new TMappedFileReader(file, CHUNK_SIZE);
+        try {
+            TMappedFileReader.Chunk chunk = reader.getChunk(-1);
+            assertEquals(lastChunk, chunk.getChunkNum());
+            assertFalse(chunk.hasMoreEvents());
+
+            ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+            TParallelFileProcessor processor = new TParallelFileProcessor(ServerTestHelper.processor(handler),
+                    new TBinaryProtocol.Factory(), reader);
+            processor.process();
+            assertTrue(handler.calls.get() > 0);
+            assertTrue(handler.calls.get() < 20);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testEventLargerThanChunk() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { (byte) CHUNK_SIZE, 0, 0, 0 });
+        out.write(new byte[CHUNK_SIZE * 2]);
+        FileOutputStream fos = new FileOutputStream(file);
+        out.writeTo(fos);
+        fos.close();
+
+        TMappedFileReader reader = new TMappedFileReader(file, CHUNK_SIZE);
+        try {
+            reader.getChunk(0).hasMoreEvents();
+            fail("an event can not be larger than its chunk");
+        } catch (TTransportException expected) {
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static List<byte[]> addCalls(int n) throws TException {
+        List<byte[]> events = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++) {
+            TMemoryBuffer buffer = new TMemoryBuffer(64);
+            new Calculator.Client(new TBinaryProtocol(buffer)).send_add(i, 1);
+            events.add(Arrays.copyOf(buffer.getArray(), buffer.length()));
+        }
+        return events;
+    }
+
+    // writes the events like TFileTransport does, with a chunk size small enough for a few events per chunk
+    private void write(List<byte[]> events) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] event : events) {
+            int remaining = CHUNK_SIZE - out.size() % CHUNK_SIZE;
+            if (event.length + 4 > remaining) {
+                out.write(new byte[remaining]);
+            }
+            int len = event.length;
+            out.write(new byte[] { (byte) len, (byte) (len >> 8), (byte) (len >> 16), (byte) (len >> 24) });
+            out.write(event);
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            out.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTRecordStore extends TestCase {
+
+    private File file;
+    private TRecordStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("records", ".store");
+        file.delete();
+        store = open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        new File(file.getPath() + ".index").delete();
+        file.delete();
+    }
+
+    private TRecordStore open() throws TTransportException {
+        // a small interval so that lookups need the index
+        return new TRecordStore(file.getPath(), new TCompactProtocol.Factory(), 64);
+    }
+
+    public void testAppendAndGet() throws Exception {
+        assertEquals(Long.MIN_VALUE, store.getLastKey());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, store.append(work(i)));
+        }
+        assertEquals(999, store.getLastKey());
+        for (int i = 0; i < 1000; i += 7) {
+            Work work = new Work();
+            assertTrue(store.get(i, work));
+            assertEquals(work(i), work);
+        }
+        assertNull(store.get(1000));
+        assertNull(store.get(-1));
+        assertFalse(store.get(5000, new Work()));
+
+        byte[] raw = store.get(42);
+        Work work = new Work();
+        new TDeserializer(new TCompactProtocol.Factory()).deserialize(work, raw);
+        assertEquals(work(42), work);
+    }
+
+    public void testSparseKeysAndReplacement() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.append(i * 10L, work(i));
+        }
+        store.append(990, work(-1));
+        assertNull(store.get(15));
+        assertEquals(work(50), get(500));
+        assertEquals(work(-1), get(990));
+        try {
+            store.append(980, work(0));
+            fail("keys must not decrease");
+        } catch (TException expected) {
+        }
+        // the next sequence number follows the last key
+        assertEquals(991, store.append(work(7)));
+    }
+
+    public void testReopen() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            store.append(work(i));
+        }
+        store.sync();
+        long length = store.length();
+        store.close();
+
+        store = open();
+        assertEquals(length, store.length());
+        assertEquals(199, store.getLastKey());
+        assertEquals(work(123), get(123));
+        assertEquals(200, store.append(work(200)));
+        assertEquals(work(200), get(200));
+    }
+
+    public void testTornTailIsTruncated() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            store.append(work(i));
+        }
+        long complete = store.length();
+        store.append(work(50));
+        store.close();
+
+        // the last record was only partly written
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = open();
+        assertEquals(49, store.getLastKey());
+        assertEquals(complete, store.length());
+        assertNull(store.get(50));
+        assertEquals(work(49), get(49));
+        assertEquals(50, store.append(work(51)));
+        assertEquals(work(51), get(50));
+    }
+
+    public void testCorruptTailIsTruncated() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.append(work(i));
+        }
+        store.close();
+
+        // flip a byte of the last record's contents, its CRC no longer matches
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 2);
+        int b = raf.read();
+        raf.seek(raf.length() - 2);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        store = open();
+        assertEquals(8, store.getLastKey());
+        assertNull(store.get(9));
+    }
+
+    public void testCompact() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            store.append(i / 3, work(i));
+        }
+        assertEquals(99, store.getLastKey());
+        long before = store.length();
+
+        long reclaimed = store.compact(new TRecordStore.Filter() {
+            @Override
+            public boolean keep(long key, byte[] record, int offset, int length) {
+                return key % 2 == 0;
+            }
+        });
+        assertTrue(reclaimed > 0);
+        assertEquals(before - reclaimed, store.length());
+        for (int key = 0; key < 100; key++) {
+            if (key % 2 == 0) {
+                // only the last record of every key is kept
+                assertEquals(work(key * 3 + 2), get(key));
+            } else {
+                assertNull(store.get(key));
+            }
+        }
+        assertEquals(98, store.getLastKey());
+        assertEquals(99, store.append(work(0)));
+
+        // the compacted files are the store's files now
+        store.close();
+        store = open();
+        assertEquals(work(8), get(2));
+        assertEquals(99, store.getLastKey());
+    }
+
+    public void testLookupsDuringCompaction() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            store.append(work(i));
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; !done.get() || i < 2000; i++) {
+                        int key = i % 2000;
+                        assertEquals(work(key), get(key));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 5; i++) {
+            store.compact(null);
+        }
+        done.set(true);
+        reader.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    public void testPartialGet() throws Exception {
+        Calculator.calculate_args args = new Calculator.calculate_args(7, work(3));
+        store.append(args);
+        Work work = new Work();
+        assertTrue(store.get(0, work, Calculator.calculate_args._Fields.W));
+        assertEquals(work(3), work);
+        assertFalse(store.get(1, work, Calculator.calculate_args._Fields.W));
+    }
+
+    private Work get(long key) throws TException {
+        Work work = new Work();
+        assertTrue("no record " + key, store.get(key, work));
+        return work;
+    }
+
+    private static Work work(int i) {
+        Work work = new Work(i, i * 2, Operation.ADD);
+        work.setComment("record " + i);
+        return work;
+    }
+}
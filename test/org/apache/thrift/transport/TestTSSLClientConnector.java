@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TSSLTransportFactory.TSSLTransportParameters;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+
+public class TestTSSLClientConnector extends TestCase {
+
+    private ServerTestHelper.Handler handler;
+    private TServer server;
+    private Thread thread;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        TServerSocket socket = TSSLTransportFactory.getServerSocket(0, 10000, null, TestTNonblockingSSLSocket.params());
+        port = socket.getServerSocket().getLocalPort();
+        handler = new ServerTestHelper.Handler();
+        server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(ServerTestHelper
+                .processor(handler)));
+        thread = ServerTestHelper.start(server);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ServerTestHelper.stop(server, thread);
+    }
+
+    public void testReconnectsResumeSession() throws Exception {
+        TSSLHandshakeStats stats = TSSLTransportFactory.getClientHandshakeStats();
+        long full = stats.getFullHandshakes().getTotalCount();
+        long resumed = stats.getResumedHandshakes().getTotalCount();
+
+        TSSLTransportParameters params = TestTNonblockingSSLSocket.params();
+        for (int i = 0; i < 5; i++) {
+            TSocket socket = TSSLTransportFactory.getClientSocket("localhost", port, 10000, params);
+            assertEquals(i + 1, new Calculator.Client(new TBinaryProtocol(socket)).add(i, 1));
+            socket.close();
+            // resumption is told apart by the session's creation time, in milliseconds
+            Thread.sleep(5);
+        }
+        assertEquals(1, stats.getFullHandshakes().getTotalCount() - full);
+        assertEquals(4, stats.getResumedHandshakes().getTotalCount() - resumed);
+        assertEquals(5, handler.calls.get());
+    }
+
+    public void testTakeConnectsAhead() throws Exception {
+        TSSLHandshakeStats stats = TSSLTransportFactory.getClientHandshakeStats();
+        long handshakes = stats.getFullHandshakes().getTotalCount() + stats.getResumedHandshakes().getTotalCount();
+
+        TSSLClientConnector connector = new TSSLClientConnector("localhost", port, 10000, TestTNonblockingSSLSocket
+                .params(), 2, 60000);
+        try {
+            awaitReady(connector, 2);
+            for (int i = 0; i < 5; i++) {
+                TSocket socket = connector.take();
+                assertTrue(socket.isOpen());
+                assertEquals(i, new Calculator.Client(new TBinaryProtocol(socket)).add(i, 0));
+                socket.close();
+                awaitReady(connector, 2);
+            }
+            // one connection per take, plus the two kept ready
+            assertEquals(7, stats.getFullHandshakes().getTotalCount() + stats.getResumedHandshakes().getTotalCount()
+                    - handshakes);
+        } finally {
+            connector.close();
+        }
+        assertEquals(0, connector.getReadyCount());
+        try {
+            connector.take();
+            fail("the connector is closed");
+        } catch (TTransportException expected) {
+            assertEquals(TTransportException.NOT_OPEN, expected.getType());
+        }
+        assertEquals(5, handler.calls.get());
+    }
+
+    public void testIdleConnectionsAreReplaced() throws Exception {
+        TSSLClientConnector connector = new TSSLClientConnector("localhost", port, 10000, TestTNonblockingSSLSocket
+                .params(), 1, 0);
+        try {
+            awaitReady(connector, 1);
+            Thread.sleep(5);
+            // the ready connection is too old, a new one is made on the calling thread
+            TSocket socket = connector.take();
+            assertEquals(3, new Calculator.Client(new TBinaryProtocol(socket)).add(1, 2));
+            socket.close();
+        } finally {
+            connector.close();
+        }
+    }
+
+    private static void awaitReady(TSSLClientConnector connector, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (connector.getReadyCount() < count) {
+            assertTrue("connections were not made ahead", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
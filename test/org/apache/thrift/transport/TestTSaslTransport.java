@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.RealmCallback;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslServer;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTSaslTransport extends TestCase {
+
+    static final String MECHANISM = "DIGEST-MD5";
+    static final String PROTOCOL = "thrift";
+    static final String SERVER_NAME = "localhost";
+
+    private static final String USER = "user";
+    private static final String PASSWORD = "secret";
+
+    /**
+     * Answers the DIGEST-MD5 callbacks of both sides with a fixed user and password.
+     */
+    static class DigestCallbackHandler implements CallbackHandler {
+        @Override
+        public void handle(Callback[] callbacks) throws UnsupportedCallbackException {
+            for (Callback callback : callbacks) {
+                if (callback instanceof NameCallback) {
+                    ((NameCallback) callback).setName(USER);
+                } else if (callback instanceof PasswordCallback) {
+                    ((PasswordCallback) callback).setPassword(PASSWORD.toCharArray());
+                } else if (callback instanceof RealmCallback) {
+                    RealmCallback realm = (RealmCallback) callback;
+                    realm.setText(realm.getDefaultText());
+                } else if (callback instanceof AuthorizeCallback) {
+                    AuthorizeCallback authorize = (AuthorizeCallback) callback;
+                    authorize.setAuthorized(authorize.getAuthenticationID().equals(authorize.getAuthorizationID()));
+                } else {
+                    throw new UnsupportedCallbackException(callback);
+                }
+            }
+        }
+    }
+
+    static Map<String, String> props(String qop) {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(Sasl.QOP, qop);
+        return props;
+    }
+
+    static TSaslClientTransport client(String qop, TTransport transport) throws Exception {
+        return new TSaslClientTransport(MECHANISM, null, PROTOCOL, SERVER_NAME, props(qop),
+                new DigestCallbackHandler(), transport);
+    }
+
+    /**
+     * Requests larger than the 64KB buffers of the default pool and than a SASL frame in one read.
+     */
+    static Work bigWork(int i) {
+        StringBuilder comment = new StringBuilder();
+        while (comment.length() < 100000) {
+            comment.append("comment ").append(i).append(' ');
+        }
+        Work work = ServerTestHelper.work(i, 3, Operation.MULTIPLY);
+        work.setComment(comment.toString());
+        return work;
+    }
+
+    public void testWithoutQop() throws Exception {
+        roundTrip("auth", false);
+    }
+
+    public void testIntegrity() throws Exception {
+        roundTrip("auth-int", false);
+    }
+
+    public void testConfidentiality() throws Exception {
+        roundTrip("auth-conf", false);
+    }
+
+    public void testReusedFrames() throws Exception {
+        roundTrip("auth", true);
+        roundTrip("auth-conf", true);
+    }
+
+    private void roundTrip(String qop, boolean reuseFrames) throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(ServerTestHelper
+                .processor(handler)).transportFactory(new TSaslServerTransport.Factory(MECHANISM, PROTOCOL,
+                SERVER_NAME, props(qop), new DigestCallbackHandler())));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TSaslClientTransport transport = client(qop, new TSocket("localhost", socket.getServerSocket()
+                    .getLocalPort()));
+            transport.setReuseFrames(reuseFrames);
+            transport.setBufferPool(new TByteBufferPool(1024, 4));
+            transport.open();
+            assertEquals(qop, transport.getSaslClient().getNegotiatedProperty(Sasl.QOP));
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals(i * 3, client.calculate(i, bigWork(i)));
+                assertEquals("value " + i, client.getStruct(i).value);
+            }
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(60, handler.calls.get());
+    }
+
+    public void testPlainFramesAreCopiedUnlessAsked() throws Exception {
+        byte[] wire = { 0, 0, 0, 3, 1, 2, 3 };
+        byte[] out = new byte[3];
+
+        TSaslTransport copying = completed(new TMemoryInputTransport(wire));
+        copying.readAll(out, 0, 3);
+        assertEquals(3, out[2]);
+        assertNotSame(wire, copying.getBuffer());
+
+        TSaslTransport inPlace = completed(new TMemoryInputTransport(wire));
+        inPlace.setReadInPlace(true);
+        inPlace.readAll(out, 0, 3);
+        assertEquals(3, out[2]);
+        assertSame(wire, inPlace.getBuffer());
+    }
+
+    /**
+     * A transport whose negotiation completed without a QOP, reading frames from the given transport.
+     */
+    private static TSaslTransport completed(TTransport underlying) {
+        TSaslTransport transport = new TSaslTransport(underlying) {
+            @Override
+            protected void handleSaslStartMessage() {
+            }
+
+            @Override
+            protected SaslRole getRole() {
+                return SaslRole.SERVER;
+            }
+        };
+        transport.setSaslServer(new SaslServer() {
+            public String getMechanismName() {
+                return MECHANISM;
+            }
+
+            public byte[] evaluateResponse(byte[] response) {
+                return null;
+            }
+
+            public boolean isComplete() {
+                return true;
+            }
+
+            public String getAuthorizationID() {
+                return USER;
+            }
+
+            public byte[] unwrap(byte[] incoming, int offset, int len) {
+                throw new UnsupportedOperationException();
+            }
+
+            public byte[] wrap(byte[] outgoing, int offset, int len) {
+                throw new UnsupportedOperationException();
+            }
+
+            public Object getNegotiatedProperty(String propName) {
+                return null;
+            }
+
+            public void dispose() {
+            }
+        });
+        return transport;
+    }
+
+    public void testRejectsDirectPool() throws Exception {
+        TSaslClientTransport transport = client("auth", new TMemoryBuffer(16));
+        try {
+            transport.setBufferPool(new TByteBufferPool(1024, 4, true));
+            fail("a pool of direct buffers can not be used");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+import com.minhtu.thrift.gen.tutorial.Work;
+
+public class TestTSharedMemoryTransport extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("thrift", ".shm.d");
+        directory.delete();
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        roundTrip(TSharedMemoryTransport.WaitStrategy.PARK);
+    }
+
+    public void testRoundTripBusySpin() throws Exception {
+        roundTrip(TSharedMemoryTransport.WaitStrategy.BUSY_SPIN);
+    }
+
+    private void roundTrip(TSharedMemoryTransport.WaitStrategy waitStrategy) throws Exception {
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(new TSharedMemoryServerTransport(
+                directory.getPath(), waitStrategy, 0)).processor(ServerTestHelper.processor(handler))
+                .transportFactory(new TFramedTransport.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            // requests several times the ring size wrap around it while the server drains it
+            StringBuilder comment = new StringBuilder();
+            while (comment.length() < 20000) {
+                comment.append("comment ");
+            }
+            TFramedTransport first = new TFramedTransport(new TSharedMemoryTransport(directory.getPath(), 4096,
+                    waitStrategy, 10000));
+            TFramedTransport second = new TFramedTransport(new TSharedMemoryTransport(directory.getPath()));
+            first.open();
+            second.open();
+            Calculator.Client firstClient = new Calculator.Client(new TBinaryProtocol(first));
+            Calculator.Client secondClient = new Calculator.Client(new TBinaryProtocol(second));
+            for (int i = 0; i < 50; i++) {
+                Work work = ServerTestHelper.work(i, 3, Operation.MULTIPLY);
+                work.setComment(comment.toString());
+                assertEquals(i * 3, firstClient.calculate(i, work));
+                assertEquals("value " + i, secondClient.getStruct(i).value);
+            }
+            first.close();
+            second.close();
+            assertFalse(first.isOpen());
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(100, handler.calls.get());
+        // accepted connection files are removed
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testRingCapacity() throws Exception {
+        new TSharedMemoryTransport(directory.getPath(), TSharedMemoryTransport.MAX_RING_CAPACITY,
+                TSharedMemoryTransport.WaitStrategy.PARK, 0);
+        for (int capacity : new int[] { 0, -1, TSharedMemoryTransport.MAX_RING_CAPACITY + 1, 1 << 30,
+                Integer.MAX_VALUE }) {
+            try {
+                new TSharedMemoryTransport(directory.getPath(), capacity, TSharedMemoryTransport.WaitStrategy.PARK, 0);
+                fail("capacity " + capacity + " was accepted");
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains(String.valueOf(capacity)));
+            }
+        }
+    }
+
+    public void testRejectsBadConnectionFile() throws Exception {
+        File file = new File(directory, "bad" + TSharedMemoryTransport.FILE_SUFFIX);
+        ByteBuffer header = ByteBuffer.allocate(4096);
+        // magic, version, and a capacity the file does not have room for
+        header.putInt(0x5453484d).putInt(2).putInt(1 << 30);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(header.array());
+        out.close();
+        try {
+            TSharedMemoryTransport.accept(file, TSharedMemoryTransport.WaitStrategy.PARK, 0);
+            fail("the ring capacity is invalid");
+        } catch (TTransportException expected) {
+        }
+    }
+
+    public void testConnectTimesOutWithoutServer() throws Exception {
+        TSharedMemoryTransport transport = new TSharedMemoryTransport(directory.getPath(), 4096,
+                TSharedMemoryTransport.WaitStrategy.PARK, 200);
+        try {
+            transport.open();
+            fail("nobody accepts the connection");
+        } catch (TTransportException expected) {
+            assertEquals(TTransportException.TIMED_OUT, expected.getType());
+        }
+        assertFalse(transport.isOpen());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testRemovesConnectionsAbandonedBeforeStartup() throws Exception {
+        // what a client that died while waiting for a server leaves behind: an unaccepted connection whose connect
+        // deadline has passed
+        File stale = new File(directory, "stale" + TSharedMemoryTransport.FILE_SUFFIX);
+        ByteBuffer header = ByteBuffer.allocate(5 * 64 + 2 * 4096);
+        header.putInt(0x5453484d).putInt(2).putInt(4096).putInt(0).putInt(0).putInt(0)
+                .putLong(System.currentTimeMillis() - 1000);
+        FileOutputStream out = new FileOutputStream(stale);
+        out.write(header.array());
+        out.close();
+
+        TSharedMemoryServerTransport serverTransport = new TSharedMemoryServerTransport(directory.getPath());
+        serverTransport.listen();
+        final TSharedMemoryTransport client = new TSharedMemoryTransport(directory.getPath(), 4096,
+                TSharedMemoryTransport.WaitStrategy.PARK, 5000);
+        Thread connector = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.open();
+                } catch (TTransportException e) {
+                    // the accept below fails or times out
+                }
+            }
+        };
+        connector.start();
+        try {
+            TTransport accepted = serverTransport.accept();
+            connector.join(5000);
+            assertTrue(client.isOpen());
+            assertFalse(stale.exists());
+            accepted.write(new byte[] { 42 });
+            accepted.flush();
+            byte[] read = new byte[1];
+            client.readAll(read, 0, 1);
+            assertEquals(42, read[0]);
+            accepted.close();
+            client.close();
+        } finally {
+            serverTransport.close();
+        }
+    }
+}
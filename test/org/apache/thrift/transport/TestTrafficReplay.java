@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+
+public class TestTrafficReplay extends TestCase {
+
+    private File log;
+
+    @Override
+    protected void setUp() throws Exception {
+        log = File.createTempFile("traffic", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        log.delete();
+    }
+
+    public void testCaptureAndReplay() throws Exception {
+        TTrafficCapture capture = new TTrafficCapture(log.getPath());
+        TNonblockingServerSocket socket = new TNonblockingServerSocket(0);
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(socket).processor(
+                ServerTestHelper.processor(new ServerTestHelper.Handler())).trafficCapture(capture));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TFramedTransport first = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            TFramedTransport second = new TFramedTransport(new TSocket("localhost", socket.getPort()));
+            first.open();
+            second.open();
+            Calculator.Client firstClient = new Calculator.Client(new TBinaryProtocol(first));
+            Calculator.Client secondClient = new Calculator.Client(new TBinaryProtocol(second));
+            firstClient.zip();
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i + 1, firstClient.add(i, 1));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals("value " + i, secondClient.getStruct(i).value);
+            }
+            first.close();
+            second.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+            capture.close();
+        }
+        assertTrue(capture.getCapturedCount() >= 9);
+        assertEquals(0, capture.getDroppedCount());
+
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TTrafficReplayer replayer = replay(handler, 0, "zip");
+        assertEquals(8, replayer.getCallCount());
+        assertEquals(1, replayer.getOnewayCallCount());
+        assertEquals(0, replayer.getErrorCount());
+        assertEquals(9, handler.calls.get());
+    }
+
+    public void testSlowConnectionDoesNotHoldUpOthers() throws Exception {
+        // more frames on the slow connection than any read ahead would buffer
+        int slowFrames = 2000;
+        int fastFrames = 3;
+        TTrafficCapture capture = new TTrafficCapture(log.getPath());
+        byte[] ping = frame(new Request() {
+            @Override
+            public void send(Calculator.Client client) throws TException {
+                client.send_ping();
+            }
+        });
+        byte[] add = frame(new Request() {
+            @Override
+            public void send(Calculator.Client client) throws TException {
+                client.send_add(1, 2);
+            }
+        });
+        for (int i = 0; i < slowFrames; i++) {
+            capture.captureFrame(1, ping, 0, ping.length);
+        }
+        for (int i = 0; i < fastFrames; i++) {
+            capture.captureFrame(2, add, 0, add.length);
+        }
+        capture.captureClose(1);
+        capture.captureClose(2);
+        capture.close();
+
+        // the first ping only completes once the other connection has been replayed
+        final CountDownLatch adds = new CountDownLatch(fastFrames);
+        final boolean[] waited = new boolean[1];
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler() {
+            @Override
+            public void ping() {
+                super.ping();
+                try {
+                    if (adds.getCount() > 0) {
+                        waited[0] = adds.await(10, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public int add(int num1, int num2) {
+                adds.countDown();
+                return super.add(num1, num2);
+            }
+        };
+        TTrafficReplayer replayer = replay(handler, 0);
+        assertTrue("the fast connection was held up by the slow one", waited[0]);
+        assertEquals(slowFrames + fastFrames, replayer.getCallCount());
+        assertEquals(0, replayer.getErrorCount());
+    }
+
+    public void testReaderStaysWithinBufferBound() throws Exception {
+        TTrafficCapture capture = new TTrafficCapture(log.getPath());
+        byte[] add = frame(new Request() {
+            @Override
+            public void send(Calculator.Client client) throws TException {
+                client.send_add(1, 2);
+            }
+        });
+        for (int i = 0; i < 500; i++) {
+            capture.captureFrame(1 + i % 2, add, 0, add.length);
+        }
+        capture.captureClose(1);
+        capture.captureClose(2);
+        capture.close();
+
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TTrafficReplayer replayer = replay(handler, 0, 4 * add.length);
+        assertEquals(500, replayer.getCallCount());
+        assertEquals(500, handler.calls.get());
+        assertTrue(replayer.getPeakBufferedBytes() > 0);
+        assertTrue(replayer.getPeakBufferedBytes() <= 4 * add.length);
+
+        // frames larger than the bound still get through, one at a time
+        replayer = replay(handler, 0, 1);
+        assertEquals(500, replayer.getCallCount());
+        assertEquals(1, replayer.getPeakBufferedBytes());
+    }
+
+    public void testOversizedFramesAreDropped() throws Exception {
+        TTrafficCapture capture = new TTrafficCapture(log.getPath());
+        byte[] big = new byte[TTrafficCapture.MAX_FRAME_SIZE + 1];
+        capture.captureFrame(1, big, 0, big.length);
+        byte[] small = { 1, 2, 3 };
+        capture.captureFrame(1, small, 0, small.length);
+        capture.captureClose(1);
+        capture.close();
+        assertEquals(1, capture.getOversizedCount());
+        assertEquals(2, capture.getCapturedCount());
+
+        // the capture kept going after the oversized frame
+        TFileTransport file = new TFileTransport(new TStandardFile(log.getPath()), true);
+        file.open();
+        try {
+            TTrafficRecord record = TTrafficRecord.read(file);
+            assertEquals(TTrafficRecord.FRAME, record.getType());
+            assertEquals(1, record.getConnectionId());
+            assertTrue(Arrays.equals(small, record.getFrame()));
+            assertEquals(TTrafficRecord.CLOSE, TTrafficRecord.read(file).getType());
+            assertNull(TTrafficRecord.read(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testCloseDuringCaptureLosesNoCountedRecord() throws Exception {
+        final TTrafficCapture capture = new TTrafficCapture(log.getPath(), 16);
+        final CountDownLatch started = new CountDownLatch(4);
+        final int perThread = 20000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long connectionId = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] frame = { 1, 2, 3 };
+                    started.countDown();
+                    for (int i = 0; i < perThread; i++) {
+                        capture.captureFrame(connectionId, frame, 0, frame.length);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        started.await();
+        capture.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, capture.getCapturedCount() + capture.getDroppedCount());
+
+        // every record counted as captured made it into the file
+        TFileTransport file = new TFileTransport(new TStandardFile(log.getPath()), true);
+        file.open();
+        try {
+            long written = 0;
+            while (TTrafficRecord.read(file) != null) {
+                written++;
+            }
+            assertEquals(capture.getCapturedCount(), written);
+        } finally {
+            file.close();
+        }
+    }
+
+    private interface Request {
+        void send(Calculator.Client client) throws TException;
+    }
+
+    private static byte[] frame(Request request) throws TException {
+        TMemoryBuffer buffer = new TMemoryBuffer(64);
+        request.send(new Calculator.Client(new TBinaryProtocol(buffer)));
+        return Arrays.copyOf(buffer.getArray(), buffer.length());
+    }
+
+    private TTrafficReplayer replay(Calculator.Iface handler, double speed, String... onewayMethods) throws Exception {
+        return replay(handler, speed, TTrafficReplayer.DEFAULT_MAX_BUFFERED_BYTES, onewayMethods);
+    }
+
+    private TTrafficReplayer replay(Calculator.Iface handler, double speed, int maxBufferedBytes,
+            String... onewayMethods) throws Exception {
+        TServerSocket socket = new TServerSocket(0);
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket).processor(
+                ServerTestHelper.processor(handler)).transportFactory(new TFramedTransport.Factory()));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TTrafficReplayer replayer = new TTrafficReplayer(log.getPath(), "localhost",
+                    socket.getServerSocket().getLocalPort()).speed(speed).timeout(20000)
+                    .maxBufferedBytes(maxBufferedBytes).onewayMethods(onewayMethods);
+            replayer.replay();
+            return replayer;
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+    }
+}
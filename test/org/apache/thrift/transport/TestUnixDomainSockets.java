@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.ServerSocketChannel;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestHelper;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+
+import com.minhtu.thrift.gen.tutorial.Calculator;
+import com.minhtu.thrift.gen.tutorial.Operation;
+
+public class TestUnixDomainSockets extends TestCase {
+
+    private File socket;
+
+    @Override
+    protected void setUp() throws Exception {
+        socket = File.createTempFile("thrift", ".sock");
+        socket.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        socket.delete();
+    }
+
+    public void testBlockingServer() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(new TUnixServerSocket(socket.getPath()))
+                .processor(ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TUnixSocket transport = new TUnixSocket(socket.getPath());
+            transport.open();
+            Calculator.Client client = new Calculator.Client(new TBinaryProtocol(transport));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, client.add(i, 1));
+                assertEquals(i * 2, client.calculate(1, ServerTestHelper.work(i, 2, Operation.MULTIPLY)));
+            }
+            transport.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(20, handler.calls.get());
+        // the server removes its socket file
+        assertFalse(socket.exists());
+    }
+
+    public void testNonblockingServer() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        ServerTestHelper.Handler handler = new ServerTestHelper.Handler();
+        TNonblockingServer server = new TNonblockingServer(new TNonblockingServer.Args(
+                new TNonblockingUnixServerSocket(socket.getPath())).processor(ServerTestHelper.processor(handler)));
+        Thread thread = ServerTestHelper.start(server);
+        try {
+            TFramedTransport first = new TFramedTransport(new TUnixSocket(socket.getPath()));
+            TFramedTransport second = new TFramedTransport(new TUnixSocket(socket.getPath()));
+            first.open();
+            second.open();
+            Calculator.Client firstClient = new Calculator.Client(new TBinaryProtocol(first));
+            Calculator.Client secondClient = new Calculator.Client(new TBinaryProtocol(second));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, firstClient.add(i, 1));
+                assertEquals("value " + i, secondClient.getStruct(i).value);
+            }
+            first.close();
+            second.close();
+        } finally {
+            ServerTestHelper.stop(server, thread);
+        }
+        assertEquals(20, handler.calls.get());
+    }
+
+    public void testReplacesStaleSocket() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        // a server that went away without removing its socket file
+        ServerSocketChannel stale = UnixDomainSockets.openServerChannel(socket.getPath(), 0);
+        stale.close();
+        assertTrue(socket.exists());
+
+        TUnixServerSocket server = new TUnixServerSocket(socket.getPath());
+        try {
+            TUnixSocket client = new TUnixSocket(socket.getPath());
+            client.open();
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRefusesSocketInUse() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        TUnixServerSocket server = new TUnixServerSocket(socket.getPath());
+        try {
+            try {
+                new TUnixServerSocket(socket.getPath());
+                fail("a server is listening on the socket");
+            } catch (TTransportException expected) {
+            }
+            // the first server still accepts connections
+            TUnixSocket client = new TUnixSocket(socket.getPath());
+            client.open();
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRefusesOtherFiles() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(socket);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        try {
+            new TNonblockingUnixServerSocket(socket.getPath());
+            fail("the path is a regular file");
+        } catch (TTransportException expected) {
+        }
+        assertEquals(3, socket.length());
+
+        File directory = new File(socket.getPath() + ".d");
+        assertTrue(directory.mkdir());
+        try {
+            new TUnixServerSocket(directory.getPath());
+            fail("the path is a directory");
+        } catch (TTransportException expected) {
+        } finally {
+            directory.delete();
+        }
+    }
+}